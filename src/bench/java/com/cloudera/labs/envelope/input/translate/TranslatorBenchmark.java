@@ -0,0 +1,187 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaBuilder.FieldAssembler;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.spark.sql.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Translates a single message with the delimited, key-value pair and Avro translators. The
+ * messages have the given number of fields, which cycle through the supported field types.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslatorBenchmark {
+
+  private static final String[] TYPES = {"string", "long", "int", "double", "boolean"};
+
+  @Param({"5", "50"})
+  public int width;
+
+  private DelimitedTranslator delimitedTranslator;
+  private KVPTranslator kvpTranslator;
+  private AvroTranslator avroTranslator;
+  private String delimitedMessage;
+  private String kvpMessage;
+  private byte[] avroMessage;
+
+  @Setup
+  public void setup() throws Exception {
+    List<String> fieldNames = Lists.newArrayList();
+    List<String> fieldTypes = Lists.newArrayList();
+    List<Object> values = Lists.newArrayList();
+    for (int i = 0; i < width; i++) {
+      String type = TYPES[i % TYPES.length];
+      fieldNames.add("field" + i);
+      fieldTypes.add(type);
+      values.add(valueFor(type, i));
+    }
+
+    StringBuilder delimited = new StringBuilder();
+    StringBuilder kvp = new StringBuilder();
+    for (int i = 0; i < width; i++) {
+      if (i > 0) {
+        delimited.append(",");
+        kvp.append(",");
+      }
+      delimited.append(values.get(i));
+      kvp.append(fieldNames.get(i)).append("=").append(values.get(i));
+    }
+    delimitedMessage = delimited.toString();
+    kvpMessage = kvp.toString();
+    avroMessage = avroMessageFor(fieldNames, fieldTypes, values);
+
+    Map<String, Object> delimitedConfig = Maps.newHashMap();
+    delimitedConfig.put(DelimitedTranslator.DELIMITER_CONFIG_NAME, ",");
+    delimitedConfig.put(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME, fieldNames);
+    delimitedConfig.put(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME, fieldTypes);
+    delimitedTranslator = new DelimitedTranslator();
+    delimitedTranslator.configure(ConfigFactory.parseMap(delimitedConfig));
+
+    Map<String, Object> kvpConfig = Maps.newHashMap();
+    kvpConfig.put(KVPTranslator.KVP_DELIMITER_CONFIG_NAME, ",");
+    kvpConfig.put(KVPTranslator.FIELD_DELIMITER_CONFIG_NAME, "=");
+    kvpConfig.put(KVPTranslator.FIELD_NAMES_CONFIG_NAME, fieldNames);
+    kvpConfig.put(KVPTranslator.FIELD_TYPES_CONFIG_NAME, fieldTypes);
+    kvpTranslator = new KVPTranslator();
+    kvpTranslator.configure(ConfigFactory.parseMap(kvpConfig));
+
+    Map<String, Object> avroConfig = Maps.newHashMap();
+    avroConfig.put(AvroTranslator.FIELD_NAMES_CONFIG_NAME, fieldNames);
+    avroConfig.put(AvroTranslator.FIELD_TYPES_CONFIG_NAME, fieldTypes);
+    avroTranslator = new AvroTranslator();
+    avroTranslator.configure(ConfigFactory.parseMap(avroConfig));
+  }
+
+  @Benchmark
+  public Iterable<Row> delimited() {
+    return delimitedTranslator.translate(null, delimitedMessage);
+  }
+
+  @Benchmark
+  public Iterable<Row> kvp() {
+    return kvpTranslator.translate(null, kvpMessage);
+  }
+
+  @Benchmark
+  public Iterable<Row> avro() throws Exception {
+    return avroTranslator.translate(null, avroMessage);
+  }
+
+  private static Object valueFor(String type, int i) {
+    switch (type) {
+      case "string":
+        return "value" + i;
+      case "long":
+        return 1000000000000L + i;
+      case "int":
+        return i;
+      case "double":
+        return i + 0.5;
+      default:
+        return i % 2 == 0;
+    }
+  }
+
+  private static byte[] avroMessageFor(List<String> fieldNames, List<String> fieldTypes, List<Object> values)
+      throws Exception
+  {
+    FieldAssembler<Schema> assembler = SchemaBuilder.record("t").fields();
+    for (int i = 0; i < fieldNames.size(); i++) {
+      switch (fieldTypes.get(i)) {
+        case "string":
+          assembler = assembler.optionalString(fieldNames.get(i));
+          break;
+        case "long":
+          assembler = assembler.optionalLong(fieldNames.get(i));
+          break;
+        case "int":
+          assembler = assembler.optionalInt(fieldNames.get(i));
+          break;
+        case "double":
+          assembler = assembler.optionalDouble(fieldNames.get(i));
+          break;
+        default:
+          assembler = assembler.optionalBoolean(fieldNames.get(i));
+      }
+    }
+    Schema schema = assembler.endRecord();
+
+    GenericRecord record = new GenericData.Record(schema);
+    for (int i = 0; i < fieldNames.size(); i++) {
+      record.put(fieldNames.get(i), values.get(i));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(schema).write(record, encoder);
+    encoder.flush();
+
+    return out.toByteArray();
+  }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Plans the mutations of a single key with the event time and bitemporal history planners. The
+ * key has an existing history of the given depth, and the arriving record either follows the
+ * whole history or lands in the middle of it, which re-writes the history after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryPlannerBenchmark {
+
+  @Param({"5", "50"})
+  public int width;
+
+  @Param({"1", "10", "100"})
+  public int depth;
+
+  private Row key;
+  private List<Row> arrivingLatest;
+  private List<Row> arrivingOutOfOrder;
+  private List<Row> eventTimeExisting;
+  private List<Row> bitemporalExisting;
+  private RandomPlanner eventTimePlanner;
+  private RandomPlanner bitemporalPlanner;
+
+  @Setup
+  public void setup() {
+    List<String> valueFieldNames = Lists.newArrayList();
+    List<StructField> arrivingFields = Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false));
+    for (int i = 0; i < width; i++) {
+      valueFieldNames.add("value" + i);
+      arrivingFields.add(DataTypes.createStructField("value" + i, DataTypes.StringType, true));
+    }
+    StructType arrivingSchema = DataTypes.createStructType(arrivingFields);
+
+    List<StructField> eventTimeFields = Lists.newArrayList(arrivingFields);
+    eventTimeFields.add(DataTypes.createStructField("startdate", DataTypes.LongType, false));
+    eventTimeFields.add(DataTypes.createStructField("enddate", DataTypes.LongType, false));
+    eventTimeFields.add(DataTypes.createStructField("currentflag", DataTypes.StringType, false));
+    StructType eventTimeSchema = DataTypes.createStructType(eventTimeFields);
+
+    List<StructField> bitemporalFields = Lists.newArrayList(arrivingFields);
+    bitemporalFields.add(DataTypes.createStructField("eventstart", DataTypes.LongType, false));
+    bitemporalFields.add(DataTypes.createStructField("eventend", DataTypes.LongType, false));
+    bitemporalFields.add(DataTypes.createStructField("systemstart", DataTypes.LongType, false));
+    bitemporalFields.add(DataTypes.createStructField("systemend", DataTypes.LongType, false));
+    bitemporalFields.add(DataTypes.createStructField("currentflag", DataTypes.StringType, false));
+    StructType bitemporalSchema = DataTypes.createStructType(bitemporalFields);
+
+    key = new RowWithSchema(DataTypes.createStructType(Lists.newArrayList(arrivingFields.get(0))), "a");
+
+    eventTimeExisting = Lists.newArrayList();
+    bitemporalExisting = Lists.newArrayList();
+    for (int version = 0; version < depth; version++) {
+      long timestamp = version * 1000L;
+      long effectiveTo = version == depth - 1 ?
+          EventTimeHistoryPlanner.FAR_FUTURE_MILLIS : timestamp + 999L;
+      String currentFlag = version == depth - 1 ?
+          EventTimeHistoryPlanner.CURRENT_FLAG_YES : EventTimeHistoryPlanner.CURRENT_FLAG_NO;
+
+      List<Object> values = valuesFor(timestamp, version);
+      List<Object> eventTimeValues = Lists.newArrayList(values);
+      eventTimeValues.add(timestamp);
+      eventTimeValues.add(effectiveTo);
+      eventTimeValues.add(currentFlag);
+      eventTimeExisting.add(new RowWithSchema(eventTimeSchema, eventTimeValues.toArray()));
+
+      List<Object> bitemporalValues = Lists.newArrayList(values);
+      bitemporalValues.add(timestamp);
+      bitemporalValues.add(effectiveTo);
+      bitemporalValues.add(0L);
+      bitemporalValues.add(BitemporalHistoryPlanner.FAR_FUTURE_MILLIS);
+      bitemporalValues.add(currentFlag);
+      bitemporalExisting.add(new RowWithSchema(bitemporalSchema, bitemporalValues.toArray()));
+    }
+
+    arrivingLatest = Lists.<Row>newArrayList(
+        new RowWithSchema(arrivingSchema, valuesFor(depth * 1000L, depth).toArray()));
+    arrivingOutOfOrder = Lists.<Row>newArrayList(
+        new RowWithSchema(arrivingSchema, valuesFor((depth / 2) * 1000L + 500L, depth).toArray()));
+
+    Map<String, Object> eventTimeConfig = Maps.newHashMap();
+    eventTimeConfig.put(EventTimeHistoryPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    eventTimeConfig.put(EventTimeHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, valueFieldNames);
+    eventTimeConfig.put(EventTimeHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "ts");
+    eventTimeConfig.put(EventTimeHistoryPlanner.EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME, "startdate");
+    eventTimeConfig.put(EventTimeHistoryPlanner.EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME, "enddate");
+    eventTimeConfig.put(EventTimeHistoryPlanner.CURRENT_FLAG_FIELD_NAME_CONFIG_NAME, "currentflag");
+    eventTimePlanner = new EventTimeHistoryPlanner();
+    eventTimePlanner.configure(ConfigFactory.parseMap(eventTimeConfig));
+
+    Map<String, Object> bitemporalConfig = Maps.newHashMap();
+    bitemporalConfig.put(BitemporalHistoryPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    bitemporalConfig.put(BitemporalHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, valueFieldNames);
+    bitemporalConfig.put(BitemporalHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "ts");
+    bitemporalConfig.put(BitemporalHistoryPlanner.EVENT_TIME_EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME, "eventstart");
+    bitemporalConfig.put(BitemporalHistoryPlanner.EVENT_TIME_EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME, "eventend");
+    bitemporalConfig.put(BitemporalHistoryPlanner.SYSTEM_TIME_EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME, "systemstart");
+    bitemporalConfig.put(BitemporalHistoryPlanner.SYSTEM_TIME_EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME, "systemend");
+    bitemporalConfig.put(BitemporalHistoryPlanner.CURRENT_FLAG_FIELD_NAME_CONFIG_NAME, "currentflag");
+    bitemporalPlanner = new BitemporalHistoryPlanner();
+    bitemporalPlanner.configure(ConfigFactory.parseMap(bitemporalConfig));
+  }
+
+  @Benchmark
+  public List<PlannedRow> eventTimeHistoryLatest() {
+    return eventTimePlanner.planMutationsForKey(key, arrivingLatest, eventTimeExisting);
+  }
+
+  @Benchmark
+  public List<PlannedRow> eventTimeHistoryOutOfOrder() {
+    return eventTimePlanner.planMutationsForKey(key, arrivingOutOfOrder, eventTimeExisting);
+  }
+
+  @Benchmark
+  public List<PlannedRow> bitemporalHistoryLatest() {
+    return bitemporalPlanner.planMutationsForKey(key, arrivingLatest, bitemporalExisting);
+  }
+
+  @Benchmark
+  public List<PlannedRow> bitemporalHistoryOutOfOrder() {
+    return bitemporalPlanner.planMutationsForKey(key, arrivingOutOfOrder, bitemporalExisting);
+  }
+
+  private List<Object> valuesFor(long timestamp, int version) {
+    List<Object> values = Lists.<Object>newArrayList("a", timestamp);
+
+    for (int i = 0; i < width; i++) {
+      values.add("value" + i + "-" + version);
+    }
+
+    return values;
+  }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the field name based helpers of {@link RowUtils}, and compares them with
+ * {@link RowAccessor}, on rows of the given width. The last two fields of the rows are the key
+ * and the last five fields are the values. As in the planners, the first row is an arriving row
+ * and the second row is an existing row, and the two have distinct but equal schema instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowUtilsBenchmark {
+
+  @Param({"10", "50"})
+  public int width;
+
+  private List<String> valueFieldNames;
+  private String lastFieldName;
+  private StructType keySchema;
+  private Row first;
+  private Row second;
+
+  private RowAccessor keyAccessor;
+  private RowAccessor valuesAccessor;
+  private RowAccessor timestampAccessor;
+
+  @Setup
+  public void setup() {
+    List<StructField> fields = Lists.newArrayList();
+    Object[] firstValues = new Object[width];
+    Object[] secondValues = new Object[width];
+
+    fields.add(DataTypes.createStructField("ts", DataTypes.LongType, false));
+    firstValues[0] = 1000L;
+    secondValues[0] = 2000L;
+    for (int i = 1; i < width; i++) {
+      fields.add(DataTypes.createStructField("field" + i, DataTypes.StringType, true));
+      firstValues[i] = "value" + i;
+      secondValues[i] = "value" + i;
+    }
+    StructType schema = DataTypes.createStructType(fields);
+    StructType existingSchema = DataTypes.createStructType(Lists.newArrayList(fields));
+
+    first = new RowWithSchema(schema, firstValues);
+    second = new RowWithSchema(existingSchema, secondValues);
+
+    List<String> keyFieldNames = Lists.newArrayList("field" + (width - 2), "field" + (width - 1));
+    valueFieldNames = Lists.newArrayList();
+    for (int i = width - 5; i < width; i++) {
+      valueFieldNames.add("field" + i);
+    }
+    keySchema = RowUtils.subsetSchema(schema, keyFieldNames);
+    lastFieldName = "field" + (width - 1);
+
+    keyAccessor = new RowAccessor(keyFieldNames);
+    valuesAccessor = new RowAccessor(valueFieldNames);
+    timestampAccessor = new RowAccessor("ts");
+  }
+
+  @Benchmark
+  public Row append() {
+    return RowUtils.append(first, "appended");
+  }
+
+  @Benchmark
+  public Row subsetRowUtils() {
+    return RowUtils.subsetRow(first, keySchema);
+  }
+
+  @Benchmark
+  public Row subsetAccessor() {
+    return keyAccessor.subset(first);
+  }
+
+  @Benchmark
+  public boolean differentRowUtils() {
+    return RowUtils.different(first, second, valueFieldNames);
+  }
+
+  @Benchmark
+  public boolean differentAccessor() {
+    return valuesAccessor.different(first, second);
+  }
+
+  @Benchmark
+  public Row setRowUtils() {
+    return RowUtils.set(first, lastFieldName, "replaced");
+  }
+
+  @Benchmark
+  public Row setAccessor() {
+    return keyAccessor.set(first, 1, "replaced");
+  }
+
+  @Benchmark
+  public int compareTimestampRowUtils() {
+    return RowUtils.compareTimestamp(first, second, "ts");
+  }
+
+  @Benchmark
+  public int compareTimestampAccessor() {
+    return timestampAccessor.compareTimestamp(first, second);
+  }
+
+}
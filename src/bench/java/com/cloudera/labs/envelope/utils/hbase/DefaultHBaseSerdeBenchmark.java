@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.hbase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Converts a row to a put, and a result to a row, with the default HBase serde. The rows have a
+ * two field row key and the given number of column values, which cycle through string, int and
+ * long columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefaultHBaseSerdeBenchmark {
+
+  private static final String[] TYPES = {"string", "int", "long"};
+
+  @Param({"5", "20", "50"})
+  public int width;
+
+  private DefaultHBaseSerde serde;
+  private Row row;
+  private Result result;
+
+  @Setup
+  public void setup() {
+    StringBuilder columns = new StringBuilder();
+    columns.append("symbol { cf = rowkey, col = symbol, type = string }\n");
+    columns.append("transacttime { cf = rowkey, col = transacttime, type = long }\n");
+
+    List<StructField> fields = Lists.newArrayList(
+        DataTypes.createStructField("symbol", DataTypes.StringType, false),
+        DataTypes.createStructField("transacttime", DataTypes.LongType, false));
+    List<Object> values = Lists.<Object>newArrayList("GOOG", 1000000000000L);
+
+    for (int i = 0; i < width; i++) {
+      String type = TYPES[i % TYPES.length];
+      columns.append("column" + i + " { cf = cf1, col = column" + i + ", type = " + type + " }\n");
+
+      switch (type) {
+        case "string":
+          fields.add(DataTypes.createStructField("column" + i, DataTypes.StringType, true));
+          values.add("value" + i);
+          break;
+        case "int":
+          fields.add(DataTypes.createStructField("column" + i, DataTypes.IntegerType, true));
+          values.add(i);
+          break;
+        default:
+          fields.add(DataTypes.createStructField("column" + i, DataTypes.LongType, true));
+          values.add((long)i);
+      }
+    }
+
+    serde = new DefaultHBaseSerde();
+    serde.configure(ConfigFactory.parseString(
+        "zookeeper = \"localhost:2181\"\n" +
+        "table.name = \"test\"\n" +
+        "mapping.rowkey = [symbol, transacttime]\n" +
+        "mapping.columns {\n" + columns + "}"));
+
+    row = new RowWithSchema(DataTypes.createStructType(fields), values.toArray());
+
+    Put put = serde.convertToPut(row);
+    List<Cell> cells = Lists.newArrayList();
+    for (List<Cell> familyCells : put.getFamilyCellMap().values()) {
+      cells.addAll(familyCells);
+    }
+    result = Result.create(cells);
+  }
+
+  @Benchmark
+  public Put convertToPut() {
+    return serde.convertToPut(row);
+  }
+
+  @Benchmark
+  public Row convertFromResult() {
+    return serde.convertFromResult(result);
+  }
+
+}
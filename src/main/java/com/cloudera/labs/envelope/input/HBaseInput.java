@@ -0,0 +1,197 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.utils.hbase.HBaseSerde;
+import com.cloudera.labs.envelope.utils.hbase.HBaseUtils;
+import com.cloudera.labs.envelope.utils.hbase.SubRegionTableInputFormat;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * HBase input that reads a table with one Spark partition per region, or per sub-range of each
+ * region, and converts the results to rows with the same serde and column mapping as
+ * {@link com.cloudera.labs.envelope.output.HBaseOutput}.
+ * <p>
+ * The row key range, the columns and the time range to read are pushed down into the scans of
+ * the regions, so that only the requested cells are returned by the region servers.
+ */
+public class HBaseInput implements BatchInput {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HBaseInput.class);
+
+  public static final String ROW_START_CONFIG_NAME = "row.start";
+  public static final String ROW_STOP_CONFIG_NAME = "row.stop";
+  public static final String COLUMNS_CONFIG_NAME = "columns";
+  public static final String TIME_RANGE_START_CONFIG_NAME = "time.range.start";
+  public static final String TIME_RANGE_END_CONFIG_NAME = "time.range.end";
+  public static final String SCAN_CACHING_CONFIG_NAME = "scan.caching";
+  public static final String SPLITS_PER_REGION_CONFIG_NAME = "splits.per.region";
+
+  public static final int DEFAULT_SCAN_CACHING = 1000;
+
+  private Config config;
+  private TableName tableName;
+
+  @Override
+  public void configure(Config config) {
+    this.config = config;
+    if (HBaseUtils.validateConfig(config)) {
+      tableName = HBaseUtils.tableInfoFor(config);
+    } else {
+      LOG.error("Invalid configuration");
+      throw new IllegalArgumentException("Invalid configuration");
+    }
+  }
+
+  @Override
+  public Dataset<Row> read() throws Exception {
+    Map<String, HBaseSerde.ColumnDef> columns = HBaseUtils.columnsFor(config);
+
+    Configuration hbaseConfiguration = HBaseUtils.getHBaseConfiguration(config);
+    hbaseConfiguration.set(TableInputFormat.INPUT_TABLE, tableName.getNameAsString());
+    hbaseConfiguration.set(TableInputFormat.SCAN,
+        Base64.encodeBytes(ProtobufUtil.toScan(scanFor(columns)).toByteArray()));
+    if (config.hasPath(SPLITS_PER_REGION_CONFIG_NAME)) {
+      hbaseConfiguration.setInt(SubRegionTableInputFormat.SPLITS_PER_REGION,
+          config.getInt(SPLITS_PER_REGION_CONFIG_NAME));
+    }
+
+    @SuppressWarnings("resource")
+    JavaSparkContext context = new JavaSparkContext(Contexts.getSparkSession().sparkContext());
+    JavaPairRDD<ImmutableBytesWritable, Result> results = context.newAPIHadoopRDD(hbaseConfiguration,
+        SubRegionTableInputFormat.class, ImmutableBytesWritable.class, Result.class);
+
+    JavaRDD<Row> rows = results.mapPartitions(new ResultsToRowsFunction(config));
+    StructType schema = HBaseUtils.buildSchema(columns);
+    Dataset<Row> tableDF = Contexts.getSparkSession().createDataFrame(rows, schema);
+
+    if (config.hasPath(COLUMNS_CONFIG_NAME)) {
+      List<Column> selected = Lists.newArrayList();
+      for (String fieldName : schema.fieldNames()) {
+        if (isProjected(columns.get(fieldName))) {
+          selected.add(functions.col(fieldName));
+        }
+      }
+      tableDF = tableDF.select(selected.toArray(new Column[selected.size()]));
+    }
+
+    return tableDF;
+  }
+
+  Scan scanFor(Map<String, HBaseSerde.ColumnDef> columns) {
+    Scan scan = new Scan();
+
+    if (config.hasPath(ROW_START_CONFIG_NAME)) {
+      scan.setStartRow(Bytes.toBytesBinary(config.getString(ROW_START_CONFIG_NAME)));
+    }
+    if (config.hasPath(ROW_STOP_CONFIG_NAME)) {
+      scan.setStopRow(Bytes.toBytesBinary(config.getString(ROW_STOP_CONFIG_NAME)));
+    }
+
+    if (config.hasPath(COLUMNS_CONFIG_NAME)) {
+      for (String columnName : config.getStringList(COLUMNS_CONFIG_NAME)) {
+        if (!columns.containsKey(columnName)) {
+          throw new RuntimeException("HBase input column '" + columnName + "' is not in the mapping");
+        }
+      }
+      for (HBaseSerde.ColumnDef column : columns.values()) {
+        if (!column.cf.equals("rowkey") && isProjected(column)) {
+          scan.addColumn(Bytes.toBytes(column.cf), Bytes.toBytes(column.name));
+        }
+      }
+    }
+
+    if (config.hasPath(TIME_RANGE_START_CONFIG_NAME) || config.hasPath(TIME_RANGE_END_CONFIG_NAME)) {
+      long start = config.hasPath(TIME_RANGE_START_CONFIG_NAME) ?
+          config.getLong(TIME_RANGE_START_CONFIG_NAME) : 0L;
+      long end = config.hasPath(TIME_RANGE_END_CONFIG_NAME) ?
+          config.getLong(TIME_RANGE_END_CONFIG_NAME) : Long.MAX_VALUE;
+      try {
+        scan.setTimeRange(start, end);
+      }
+      catch (Exception e) {
+        throw new RuntimeException("Invalid HBase input time range", e);
+      }
+    }
+
+    // Results are not split across multiple batches because the serde converts whole rows, and
+    // the blocks of a full scan are not cached so that they do not evict those of random reads
+    scan.setCaching(config.hasPath(SCAN_CACHING_CONFIG_NAME) ?
+        config.getInt(SCAN_CACHING_CONFIG_NAME) : DEFAULT_SCAN_CACHING);
+    scan.setCacheBlocks(false);
+
+    return scan;
+  }
+
+  // Row key columns are always read
+  private boolean isProjected(HBaseSerde.ColumnDef column) {
+    return column.cf.equals("rowkey") || config.getStringList(COLUMNS_CONFIG_NAME).contains(column.name);
+  }
+
+  @SuppressWarnings("serial")
+  private static class ResultsToRowsFunction
+      implements FlatMapFunction<Iterator<Tuple2<ImmutableBytesWritable, Result>>, Row> {
+    private Config config;
+
+    ResultsToRowsFunction(Config config) {
+      this.config = config;
+    }
+
+    @Override
+    public Iterator<Row> call(Iterator<Tuple2<ImmutableBytesWritable, Result>> results) {
+      final HBaseSerde serde = HBaseUtils.getSerde(config);
+
+      return Iterators.transform(results, new Function<Tuple2<ImmutableBytesWritable, Result>, Row>() {
+        @Override
+        public Row apply(Tuple2<ImmutableBytesWritable, Result> result) {
+          return serde.convertFromResult(result._2());
+        }
+      });
+    }
+  }
+
+}
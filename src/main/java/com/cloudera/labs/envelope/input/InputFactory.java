@@ -48,6 +48,9 @@ public class InputFactory {
       case "jdbc":
         input = new JdbcInput();
         break;
+      case "hbase":
+        input = new HBaseInput();
+        break;
       default:
         try {
           Class<?> clazz = Class.forName(inputType);
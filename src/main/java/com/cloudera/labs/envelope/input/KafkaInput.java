@@ -18,56 +18,65 @@ package com.cloudera.labs.envelope.input;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.types.DataTypes;
-import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.streaming.DataStreamReader;
 import org.apache.spark.streaming.Duration;
 import org.apache.spark.streaming.api.java.JavaDStream;
+import org.apache.spark.streaming.api.java.JavaInputDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.apache.spark.streaming.kafka010.CanCommitOffsets;
 import org.apache.spark.streaming.kafka010.ConsumerStrategies;
+import org.apache.spark.streaming.kafka010.ConsumerStrategy;
 import org.apache.spark.streaming.kafka010.HasOffsetRanges;
 import org.apache.spark.streaming.kafka010.KafkaUtils;
 import org.apache.spark.streaming.kafka010.LocationStrategies;
 import org.apache.spark.streaming.kafka010.OffsetRange;
 
+import com.cloudera.labs.envelope.input.translate.TopicTranslatePartitionFunction;
 import com.cloudera.labs.envelope.output.Output;
 import com.cloudera.labs.envelope.output.OutputFactory;
 import com.cloudera.labs.envelope.output.RandomOutput;
 import com.cloudera.labs.envelope.plan.MutationType;
-import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.AdaptiveRateController;
 import com.cloudera.labs.envelope.spark.Contexts;
-import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class KafkaInput implements StreamInput, CanRecordProgress {
+public class KafkaInput implements StreamInput, StructuredStreamInput, CanRecordProgress {
 
   public static final String BROKERS_CONFIG = "brokers";
   public static final String TOPIC_CONFIG = "topic";
+  public static final String TOPICS_CONFIG = "topics";
+  public static final String TOPIC_PATTERN_CONFIG = "topic.pattern";
   public static final String ENCODING_CONFIG = "encoding";
   public static final String PARAMETER_CONFIG_PREFIX = "parameter.";
   public static final String WINDOW_ENABLED_CONFIG = "window.enabled";
   public static final String WINDOW_MILLISECONDS_CONFIG = "window.milliseconds";
   public static final String OFFSETS_MANAGE_CONFIG = "offsets.manage";
   public static final String OFFSETS_OUTPUT_CONFIG = "offsets.output";
+  public static final String OFFSETS_VERIFY_INTERVAL_CONFIG = "offsets.verify.interval";
+  public static final String OFFSETS_COMMIT_ASYNC_CONFIG = "offsets.commit.async";
+  public static final String OFFSETS_COMMIT_KAFKA_CONFIG = "offsets.commit.kafka";
   public static final String GROUP_ID_CONFIG = "group.id";
 
   private Config config;
   private String groupID;
-  private String topic;
+  private List<String> topics;
+  private Pattern topicPattern;
   private OffsetRange[] offsetRanges;
-  private RandomOutput offsetsOutput;
+  private KafkaOffsetCommitter offsetCommitter;
 
   @Override
   public void configure(Config config) {
@@ -81,8 +90,15 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
     String brokers = config.getString(BROKERS_CONFIG);
     kafkaParams.put("bootstrap.servers", brokers);
 
-    topic = config.getString(TOPIC_CONFIG);
-    Set<String> topicSet = Sets.newHashSet(topic);
+    if (config.hasPath(TOPIC_PATTERN_CONFIG)) {
+      topicPattern = Pattern.compile(config.getString(TOPIC_PATTERN_CONFIG));
+    }
+    else if (config.hasPath(TOPICS_CONFIG)) {
+      topics = config.getStringList(TOPICS_CONFIG);
+    }
+    else {
+      topics = Lists.newArrayList(config.getString(TOPIC_CONFIG));
+    }
 
     String encoding = config.getString(ENCODING_CONFIG);
     if (encoding.equals("string")) {
@@ -110,32 +126,28 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
     addCustomParams(kafkaParams);
 
     JavaStreamingContext jssc = Contexts.getJavaStreamingContext();
-    JavaDStream<?> dStream = null;
+    JavaInputDStream<?> inputStream = null;
+
+    // Read the stored offsets once, and only when they will be used
+    Map<TopicPartition, Long> lastOffsets = doesRecordProgress() ?
+        getOffsetCommitter().getLastOffsets() : Collections.<TopicPartition, Long>emptyMap();
 
     if (encoding.equals("string")) {
-      if (doesRecordProgress() && hasLastOffsets()) {
-        dStream = KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(),
-            ConsumerStrategies.<String, String>Subscribe(topicSet, kafkaParams, getLastOffsets()));
-      }
-      else {
-        dStream = KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(),
-            ConsumerStrategies.<String, String>Subscribe(topicSet, kafkaParams));
-      }
+      inputStream = this.<String, String>createDirectStream(jssc, kafkaParams, lastOffsets);
     }
     else if (encoding.equals("bytearray")) {
-      if (doesRecordProgress() && hasLastOffsets()) {      
-        dStream = KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(),
-            ConsumerStrategies.<byte[], byte[]>Subscribe(topicSet, kafkaParams, getLastOffsets()));
-      }
-      else {
-        dStream = KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(),
-            ConsumerStrategies.<byte[], byte[]>Subscribe(topicSet, kafkaParams));
-      }
+      inputStream = this.<byte[], byte[]>createDirectStream(jssc, kafkaParams, lastOffsets);
     }
     else {
       throw new RuntimeException("Invalid Kafka input encoding type. Valid types are 'string' and 'bytearray'.");
     }
 
+    if (doesRecordProgress() && doesCommitToKafka()) {
+      getOffsetCommitter().setKafkaCommitter((CanCommitOffsets)inputStream.inputDStream());
+    }
+
+    JavaDStream<?> dStream = inputStream;
+
     if (config.hasPath(WINDOW_ENABLED_CONFIG) && config.getBoolean(WINDOW_ENABLED_CONFIG)) {
       int windowDuration = config.getInt(WINDOW_MILLISECONDS_CONFIG);
 
@@ -145,6 +157,78 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
     return dStream;
   }
 
+  private <K, V> JavaInputDStream<ConsumerRecord<K, V>> createDirectStream(
+      JavaStreamingContext jssc, Map<String, Object> kafkaParams, Map<TopicPartition, Long> lastOffsets) {
+    ConsumerStrategy<K, V> strategy;
+
+    if (topicPattern != null) {
+      strategy = lastOffsets.isEmpty() ?
+          ConsumerStrategies.<K, V>SubscribePattern(topicPattern, kafkaParams) :
+          ConsumerStrategies.<K, V>SubscribePattern(topicPattern, kafkaParams, lastOffsets);
+    }
+    else {
+      strategy = lastOffsets.isEmpty() ?
+          ConsumerStrategies.<K, V>Subscribe(topics, kafkaParams) :
+          ConsumerStrategies.<K, V>Subscribe(topics, kafkaParams, lastOffsets);
+    }
+
+    if (AdaptiveRateController.get() != null) {
+      // Limit the partitions to the rate that the controller currently allows
+      return KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(), strategy,
+          AdaptiveRateController.getPerPartitionConfig());
+    }
+
+    return KafkaUtils.createDirectStream(jssc, LocationStrategies.PreferConsistent(), strategy);
+  }
+
+  @Override
+  public Dataset<Row> readStream() throws Exception {
+    DataStreamReader reader = Contexts.getSparkSession().readStream().format("kafka");
+
+    reader.option("kafka.bootstrap.servers", config.getString(BROKERS_CONFIG));
+
+    if (config.hasPath(TOPIC_PATTERN_CONFIG)) {
+      reader.option("subscribePattern", config.getString(TOPIC_PATTERN_CONFIG));
+    }
+    else if (config.hasPath(TOPICS_CONFIG)) {
+      reader.option("subscribe", Joiner.on(",").join(config.getStringList(TOPICS_CONFIG)));
+    }
+    else {
+      reader.option("subscribe", config.getString(TOPIC_CONFIG));
+    }
+
+    Map<String, Object> customParams = Maps.newHashMap();
+    addCustomParams(customParams);
+    for (Map.Entry<String, Object> customParam : customParams.entrySet()) {
+      // The Kafka source manages the consumer offsets itself, so it only takes the starting
+      // offsets of a new query rather than the consumer reset policy
+      if (customParam.getKey().equals("auto.offset.reset")) {
+        reader.option("startingOffsets", customParam.getValue().toString());
+      }
+      else {
+        reader.option("kafka." + customParam.getKey(), customParam.getValue().toString());
+      }
+    }
+
+    Dataset<Row> stream = reader.load();
+
+    // The Kafka source always provides the key and value as binary
+    String encoding = config.getString(ENCODING_CONFIG);
+    if (encoding.equals("string")) {
+      stream = stream.selectExpr("CAST(key AS STRING) AS " + KEY_FIELD_NAME,
+          "CAST(value AS STRING) AS " + VALUE_FIELD_NAME, "topic AS " + TOPIC_FIELD_NAME);
+    }
+    else if (encoding.equals("bytearray")) {
+      stream = stream.selectExpr("key AS " + KEY_FIELD_NAME, "value AS " + VALUE_FIELD_NAME,
+          "topic AS " + TOPIC_FIELD_NAME);
+    }
+    else {
+      throw new RuntimeException("Invalid Kafka input encoding type. Valid types are 'string' and 'bytearray'.");
+    }
+
+    return stream;
+  }
+
   private void addCustomParams(Map<String, Object> params) {
     for (String propertyName : config.root().keySet()) {
       if (propertyName.startsWith(PARAMETER_CONFIG_PREFIX)) {
@@ -158,6 +242,11 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
 
   @Override
   public PairFunction<?, ?, ?> getPrepareFunction() {
+    if (config.hasPath(TopicTranslatePartitionFunction.TRANSLATORS_CONFIG_NAME)) {
+      // The per-topic translators need to know the topic of each record
+      return new UnwrapConsumerRecordWithTopicFunction();
+    }
+
     return new UnwrapConsumerRecordFunction();
   }
   
@@ -169,6 +258,15 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
       return new Tuple2<>(record.key(), record.value());
     }
   }
+
+  @SuppressWarnings({ "serial", "rawtypes" })
+  private static class UnwrapConsumerRecordWithTopicFunction implements PairFunction {
+    @Override
+    public Tuple2 call(Object recordObject) throws Exception {
+      ConsumerRecord record = (ConsumerRecord)recordObject;
+      return new Tuple2<>(record.topic(), new Tuple2<>(record.key(), record.value()));
+    }
+  }
   
   private boolean doesRecordProgress() {
     boolean managed = config.hasPath(OFFSETS_MANAGE_CONFIG) && config.getBoolean(OFFSETS_MANAGE_CONFIG);
@@ -190,81 +288,46 @@ public class KafkaInput implements StreamInput, CanRecordProgress {
   @Override
   public void recordProgress() throws Exception {
     if (doesRecordProgress()) {
-      // Plan the offset ranges as an upsert 
-      List<PlannedRow> planned = Lists.newArrayList();
-      StructType schema = DataTypes.createStructType(Lists.newArrayList(
-          DataTypes.createStructField("group_id", DataTypes.StringType, false),
-          DataTypes.createStructField("topic", DataTypes.StringType, false),
-          DataTypes.createStructField("partition", DataTypes.IntegerType, false),
-          DataTypes.createStructField("offset", DataTypes.LongType, false)));
-      for (OffsetRange offsetRange : offsetRanges) {
-        Row offsetRow = new RowWithSchema(schema, groupID, offsetRange.topic(), offsetRange.partition(), offsetRange.untilOffset());
-        PlannedRow plan = new PlannedRow(offsetRow, MutationType.UPSERT);
-        planned.add(plan);
-      }
-      
-      // Upsert the offset ranges at the output
-      RandomOutput output = getOffsetsOutput();
-      output.applyRandomMutations(planned);
-      
-      // Retrieve back the offset ranges and assert that they were stored correctly
-      Map<TopicPartition, Long> storedOffsets = getLastOffsets();
-      for (OffsetRange offsetRange : offsetRanges) {
-        TopicPartition tp = new TopicPartition(offsetRange.topic(), offsetRange.partition());
-        if (!storedOffsets.get(tp).equals(offsetRange.untilOffset())) {
-          String exceptionMessage = String.format(
-              "Kafka input failed to assert that offset ranges were stored correctly! " + 
-              "For group ID '%s', topic '%s', partition '%d' expected offset '%d' but found offset '%d'",
-              groupID, topic, tp.partition(), offsetRange.untilOffset(), storedOffsets.get(tp));
-          throw new RuntimeException(exceptionMessage);
-        }
-      }
+      getOffsetCommitter().commit(offsetRanges);
     }
   }
-  
-  private RandomOutput getOffsetsOutput() {
-    if (offsetsOutput == null) {
-      Config outputConfig = config.getConfig(OFFSETS_OUTPUT_CONFIG);
-      Output output = OutputFactory.create(outputConfig);
-      
-      if (!(output instanceof RandomOutput) ||
-          !((RandomOutput)output).getSupportedRandomMutationTypes().contains(MutationType.UPSERT)) {
-        throw new RuntimeException("Output used for Kafka offsets must support random upsert mutations");
+
+  private boolean doesCommitToKafka() {
+    return config.hasPath(OFFSETS_COMMIT_KAFKA_CONFIG) && config.getBoolean(OFFSETS_COMMIT_KAFKA_CONFIG);
+  }
+
+  private KafkaOffsetCommitter getOffsetCommitter() {
+    if (offsetCommitter == null) {
+      RandomOutput output = null;
+      if (config.hasPath(OFFSETS_OUTPUT_CONFIG)) {
+        output = getOffsetsOutput();
+      }
+      else if (!doesCommitToKafka()) {
+        throw new RuntimeException("Kafka input can not manage offsets without an offsets output " +
+            "or committing offsets to Kafka");
       }
-      
-      offsetsOutput = (RandomOutput)output;
+
+      int verifyInterval = config.hasPath(OFFSETS_VERIFY_INTERVAL_CONFIG) ?
+          config.getInt(OFFSETS_VERIFY_INTERVAL_CONFIG) : 1;
+      boolean async = config.hasPath(OFFSETS_COMMIT_ASYNC_CONFIG) &&
+          config.getBoolean(OFFSETS_COMMIT_ASYNC_CONFIG);
+
+      offsetCommitter = new KafkaOffsetCommitter(groupID, topics, output, verifyInterval, async);
     }
-    
-    return offsetsOutput;
-  }
-  
-  private boolean hasLastOffsets() throws Exception {
-    return !getLastOffsets().isEmpty();
+
+    return offsetCommitter;
   }
-  
-  private Map<TopicPartition, Long> getLastOffsets() throws Exception {
-    // Create filter for groupid/topic
-    StructType filterSchema = DataTypes.createStructType(Lists.newArrayList(
-        DataTypes.createStructField("group_id", DataTypes.StringType, false),
-        DataTypes.createStructField("topic", DataTypes.StringType, false)));
-    Row groupIDTopicFilter = new RowWithSchema(filterSchema, groupID, topic);
-    Iterable<Row> filters = Collections.singleton(groupIDTopicFilter);
-    
-    // Get results
-    RandomOutput output = getOffsetsOutput();
-    Iterable<Row> results = output.getExistingForFilters(filters);
-    
-    // Transform results into map
-    Map<TopicPartition, Long> offsetRanges = Maps.newHashMap();
-    for (Row result : results) {
-      Integer partition = result.getInt(result.fieldIndex("partition"));
-      Long offset = result.getLong(result.fieldIndex("offset"));
-      TopicPartition topicPartition = new TopicPartition(topic, partition);
-      
-      offsetRanges.put(topicPartition, offset);
+
+  private RandomOutput getOffsetsOutput() {
+    Config outputConfig = config.getConfig(OFFSETS_OUTPUT_CONFIG);
+    Output output = OutputFactory.create(outputConfig);
+
+    if (!(output instanceof RandomOutput) ||
+        !((RandomOutput)output).getSupportedRandomMutationTypes().contains(MutationType.UPSERT)) {
+      throw new RuntimeException("Output used for Kafka offsets must support random upsert mutations");
     }
-    
-    return offsetRanges;
+
+    return (RandomOutput)output;
   }
 
 }
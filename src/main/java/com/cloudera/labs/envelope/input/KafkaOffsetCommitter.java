@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.streaming.kafka010.CanCommitOffsets;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Commits the Kafka offsets that each micro-batch has processed, to an output that supports random
+ * upserts and/or to the consumer group storage of Kafka itself.
+ *
+ * Only the partitions whose offsets have moved since the last commit are written to the output,
+ * in a single mutation call. The stored offsets are read back to verify the first commit, and
+ * then every few commits as configured, rather than after every commit. When committing
+ * asynchronously the output is written on a background thread while the next micro-batch runs,
+ * and the next commit waits for it and raises any failure, so at most one commit is in flight.
+ */
+public class KafkaOffsetCommitter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaOffsetCommitter.class);
+
+  private static final StructType OFFSET_SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("group_id", DataTypes.StringType, false),
+      DataTypes.createStructField("topic", DataTypes.StringType, false),
+      DataTypes.createStructField("partition", DataTypes.IntegerType, false),
+      DataTypes.createStructField("offset", DataTypes.LongType, false)));
+  private static final StructType FILTER_SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("group_id", DataTypes.StringType, false),
+      DataTypes.createStructField("topic", DataTypes.StringType, false)));
+  private static final StructType GROUP_FILTER_SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("group_id", DataTypes.StringType, false)));
+
+  private String groupID;
+  private List<String> topics;
+  private RandomOutput output;
+  private int verifyInterval;
+  private boolean async;
+  private CanCommitOffsets kafkaCommitter;
+
+  private Map<TopicPartition, Long> committedOffsets = Maps.newHashMap();
+  private long outputCommits = 0;
+  private ExecutorService executor;
+  private Future<?> pendingCommit;
+
+  /**
+   * @param groupID The Kafka consumer group ID of the input.
+   * @param topics The Kafka topics of the input, or null for all of the topics of the group ID,
+   * such as when the input subscribes to a topic pattern.
+   * @param output The output to store the offsets in, or null to not store them in an output.
+   * @param verifyInterval Read back the stored offsets after every this many commits to the
+   * output, in addition to after the first. Zero verifies only the first commit.
+   * @param async Whether to write the offsets to the output on a background thread.
+   */
+  public KafkaOffsetCommitter(String groupID, List<String> topics, RandomOutput output,
+                              int verifyInterval, boolean async) {
+    this.groupID = groupID;
+    this.topics = topics;
+    this.output = output;
+    this.verifyInterval = verifyInterval;
+    this.async = async;
+  }
+
+  /**
+   * Also commit the offsets to the consumer group storage of Kafka through the given stream.
+   */
+  public void setKafkaCommitter(CanCommitOffsets kafkaCommitter) {
+    this.kafkaCommitter = kafkaCommitter;
+  }
+
+  /**
+   * @return The offsets stored in the output for the group ID and topics, which is empty if there
+   * are none or there is no output.
+   */
+  public Map<TopicPartition, Long> getLastOffsets() throws Exception {
+    if (output == null) {
+      return Collections.emptyMap();
+    }
+
+    Map<TopicPartition, Long> lastOffsets = readOffsets();
+    committedOffsets.putAll(lastOffsets);
+
+    return lastOffsets;
+  }
+
+  /**
+   * Commit the offset ranges of a micro-batch. Must be called from the driver.
+   */
+  public void commit(final OffsetRange[] offsetRanges) throws Exception {
+    awaitPendingCommit();
+
+    if (kafkaCommitter != null) {
+      // Committed by the stream when it computes its next micro-batch
+      kafkaCommitter.commitAsync(offsetRanges);
+    }
+
+    if (output == null) {
+      return;
+    }
+
+    if (async) {
+      pendingCommit = getExecutor().submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          commitToOutput(offsetRanges);
+          return null;
+        }
+      });
+    }
+    else {
+      commitToOutput(offsetRanges);
+    }
+  }
+
+  /**
+   * Wait for any asynchronous commit to the output to finish, and raise its failure if it failed.
+   */
+  public void awaitPendingCommit() throws Exception {
+    if (pendingCommit == null) {
+      return;
+    }
+
+    try {
+      pendingCommit.get();
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("Kafka input could not commit offsets", e.getCause());
+    }
+    finally {
+      pendingCommit = null;
+    }
+  }
+
+  private void commitToOutput(OffsetRange[] offsetRanges) throws Exception {
+    List<PlannedRow> planned = Lists.newArrayList();
+    Map<TopicPartition, Long> offsets = Maps.newHashMap();
+
+    for (OffsetRange offsetRange : offsetRanges) {
+      TopicPartition tp = new TopicPartition(offsetRange.topic(), offsetRange.partition());
+      Long committedOffset = committedOffsets.get(tp);
+
+      if (committedOffset == null || committedOffset != offsetRange.untilOffset()) {
+        Row offsetRow = new RowWithSchema(OFFSET_SCHEMA, groupID, offsetRange.topic(),
+            offsetRange.partition(), offsetRange.untilOffset());
+        planned.add(new PlannedRow(offsetRow, MutationType.UPSERT));
+        offsets.put(tp, offsetRange.untilOffset());
+      }
+    }
+
+    if (planned.isEmpty()) {
+      LOG.debug("No Kafka offsets have moved since the last commit");
+      return;
+    }
+
+    output.applyRandomMutations(planned);
+    outputCommits++;
+
+    if (outputCommits == 1 || (verifyInterval > 0 && outputCommits % verifyInterval == 0)) {
+      verify(offsets);
+    }
+
+    committedOffsets.putAll(offsets);
+  }
+
+  // Retrieve back the offsets and assert that they were stored correctly
+  private void verify(Map<TopicPartition, Long> offsets) throws Exception {
+    Map<TopicPartition, Long> storedOffsets = readOffsets();
+
+    for (Map.Entry<TopicPartition, Long> offset : offsets.entrySet()) {
+      TopicPartition tp = offset.getKey();
+
+      if (!offset.getValue().equals(storedOffsets.get(tp))) {
+        String exceptionMessage = String.format(
+            "Kafka input failed to assert that offset ranges were stored correctly! " +
+            "For group ID '%s', topic '%s', partition '%d' expected offset '%d' but found offset '%d'",
+            groupID, tp.topic(), tp.partition(), offset.getValue(), storedOffsets.get(tp));
+        throw new RuntimeException(exceptionMessage);
+      }
+    }
+  }
+
+  private Map<TopicPartition, Long> readOffsets() throws Exception {
+    List<Row> filters = Lists.newArrayList();
+    if (topics != null) {
+      for (String topic : topics) {
+        filters.add(new RowWithSchema(FILTER_SCHEMA, groupID, topic));
+      }
+    }
+    else {
+      filters.add(new RowWithSchema(GROUP_FILTER_SCHEMA, groupID));
+    }
+
+    Iterable<Row> results = output.getExistingForFilters(filters);
+
+    Map<TopicPartition, Long> offsets = Maps.newHashMap();
+    for (Row result : results) {
+      String topic = result.getString(result.fieldIndex("topic"));
+      Integer partition = result.getInt(result.fieldIndex("partition"));
+      Long offset = result.getLong(result.fieldIndex("offset"));
+
+      offsets.put(new TopicPartition(topic, partition), offset);
+    }
+
+    return offsets;
+  }
+
+  private ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("envelope-kafka-offset-commit-%d").build());
+    }
+
+    return executor;
+  }
+
+}
@@ -15,16 +15,41 @@
  */
 package com.cloudera.labs.envelope.input;
 
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.DataFrameReader;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
 
 import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.utils.kudu.KuduConnections;
+import com.cloudera.labs.envelope.utils.kudu.KuduRowConverter;
+import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValue;
 
+/**
+ * Reads a Kudu table through the kudu-spark data source. The configured columns and predicates
+ * are applied to the table before it is handed on, so that Spark pushes them down into the Kudu
+ * scan and only the rows and columns that the pipeline uses are read.
+ */
 public class KuduInput implements BatchInput {
 
   public static final String CONNECTION_CONFIG_NAME = "connection";
   public static final String TABLE_NAME_CONFIG_NAME = "table.name";
+  public static final String COLUMNS_CONFIG_NAME = "columns";
+  public static final String PREDICATES_CONFIG_NAME = "predicates";
+  public static final String PREDICATE_COLUMN_CONFIG_NAME = "column";
+  public static final String PREDICATE_OPERATOR_CONFIG_NAME = "operator";
+  public static final String PREDICATE_VALUE_CONFIG_NAME = "value";
+  public static final String PREDICATE_VALUES_CONFIG_NAME = "values";
+  public static final String OPTION_CONFIG_PREFIX = "option";
 
   private Config config;
 
@@ -38,13 +63,101 @@ public class KuduInput implements BatchInput {
     String connection = config.getString(CONNECTION_CONFIG_NAME);
     String tableName = config.getString(TABLE_NAME_CONFIG_NAME);
 
-    Dataset<Row> tableDF = Contexts.getSparkSession().read()
-                                                     .format("org.apache.kudu.spark.kudu")
-                                                     .option("kudu.master", connection)
-                                                     .option("kudu.table", tableName)
-                                                     .load();
+    DataFrameReader reader = Contexts.getSparkSession().read()
+                                                       .format("org.apache.kudu.spark.kudu")
+                                                       .option("kudu.master", connection)
+                                                       .option("kudu.table", tableName);
+
+    if (config.hasPath(OPTION_CONFIG_PREFIX)) {
+      for (Map.Entry<String, ConfigValue> option : config.getConfig(OPTION_CONFIG_PREFIX).entrySet()) {
+        reader = reader.option(option.getKey(), option.getValue().unwrapped().toString());
+      }
+    }
+
+    Dataset<Row> tableDF = reader.load();
+
+    if (config.hasPath(PREDICATES_CONFIG_NAME) || config.hasPath(COLUMNS_CONFIG_NAME)) {
+      Schema tableSchema = KuduConnections.getConnection(connection).getTable(tableName).getSchema();
+
+      if (config.hasPath(PREDICATES_CONFIG_NAME)) {
+        for (Config predicateConfig : config.getConfigList(PREDICATES_CONFIG_NAME)) {
+          tableDF = tableDF.filter(predicateFor(predicateConfig, tableSchema));
+        }
+      }
+
+      if (config.hasPath(COLUMNS_CONFIG_NAME)) {
+        List<Column> columns = Lists.newArrayList();
+        for (String columnName : config.getStringList(COLUMNS_CONFIG_NAME)) {
+          columns.add(functions.col(tableSchema.getColumn(columnName).getName()));
+        }
+
+        tableDF = tableDF.select(columns.toArray(new Column[columns.size()]));
+      }
+    }
 
     return tableDF;
   }
 
+  static Column predicateFor(Config predicateConfig, Schema tableSchema) {
+    ColumnSchema columnSchema = tableSchema.getColumn(predicateConfig.getString(PREDICATE_COLUMN_CONFIG_NAME));
+    Column column = functions.col(columnSchema.getName());
+    String operator = predicateConfig.getString(PREDICATE_OPERATOR_CONFIG_NAME);
+
+    if (operator.equals("in")) {
+      List<Object> values = Lists.newArrayList();
+      for (Object value : predicateConfig.getAnyRefList(PREDICATE_VALUES_CONFIG_NAME)) {
+        values.add(valueFor(columnSchema, value));
+      }
+
+      return column.isin(values.toArray());
+    }
+
+    Object value = valueFor(columnSchema, predicateConfig.getAnyRef(PREDICATE_VALUE_CONFIG_NAME));
+
+    switch (operator) {
+      case "=":
+        return column.equalTo(value);
+      case "<":
+        return column.lt(value);
+      case "<=":
+        return column.leq(value);
+      case ">":
+        return column.gt(value);
+      case ">=":
+        return column.geq(value);
+      default:
+        throw new RuntimeException("Unsupported Kudu input predicate operator: " + operator);
+    }
+  }
+
+  // The configured values are converted to the type of the column so that the predicates can be
+  // pushed down to Kudu without being cast
+  private static Object valueFor(ColumnSchema columnSchema, Object value) {
+    switch (columnSchema.getType()) {
+      case INT8:
+        return ((Number)value).byteValue();
+      case INT16:
+        return ((Number)value).shortValue();
+      case INT32:
+        return ((Number)value).intValue();
+      case INT64:
+        return ((Number)value).longValue();
+      case FLOAT:
+        return ((Number)value).floatValue();
+      case DOUBLE:
+        return ((Number)value).doubleValue();
+      case BOOL:
+        return (Boolean)value;
+      case STRING:
+        return value.toString();
+      case UNIXTIME_MICROS:
+        if (value instanceof Number) {
+          return KuduRowConverter.timestampFor(((Number)value).longValue());
+        }
+        return Timestamp.valueOf(value.toString());
+      default:
+        throw new RuntimeException("Unsupported Kudu input predicate column type: " + columnSchema.getType());
+    }
+  }
+
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+/**
+ * Structured stream inputs read in an unbounded Spark SQL DataFrame from an external stream
+ * source, for when the pipeline runs on the Structured Streaming engine. Custom stream inputs
+ * that can also run on that engine should implement StructuredStreamInput.
+ */
+public interface StructuredStreamInput extends Input {
+
+  String KEY_FIELD_NAME = "key";
+  String VALUE_FIELD_NAME = "value";
+  String TOPIC_FIELD_NAME = "topic";
+
+  /**
+   * Provide the streaming DataFrame of the input stream. The DataFrame must contain the message
+   * of each record in a 'value' field, and may also contain its key in a 'key' field. Inputs
+   * that read from more than one topic should also provide the topic in a 'topic' field so that
+   * the records can be translated by the translator of their topic.
+   */
+  Dataset<Row> readStream() throws Exception;
+
+}
@@ -15,17 +15,24 @@
  */
 package com.cloudera.labs.envelope.input.translate;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Type;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.SchemaBuilder.FieldAssembler;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.Decoder;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
@@ -33,13 +40,33 @@ import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.cloudera.labs.envelope.utils.TranslatorUtils;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
  * A translator implementation for binary Apache Avro generic record messages.
+ *
+ * The decoder and the decoded record are reused from one message to the next, so values that
+ * Avro may reuse are copied into the translated rows.
+ *
+ * When writer schema files are provided, each message is expected to be in the Avro single
+ * object encoding, where the value is prefixed with the fingerprint of the schema that it was
+ * written with. The fingerprint is looked up in the writer schemas, and the value is resolved
+ * from that schema to the schema of the field names and types, so that messages written by
+ * different versions of the producers can be read together.
  */
-public class AvroTranslator implements Translator<byte[], byte[]> {
+public class AvroTranslator implements PartitionTranslator<byte[], byte[]> {
+
+  private static final int PLAIN_FIELD = 0;
+  private static final int STRING_FIELD = 1;
+  private static final int BYTES_FIELD = 2;
+
+  // The two byte marker and eight byte fingerprint of the Avro single object encoding
+  private static final byte SINGLE_OBJECT_MARKER_1 = (byte)0xC3;
+  private static final byte SINGLE_OBJECT_MARKER_2 = (byte)0x01;
+  private static final int SINGLE_OBJECT_HEADER_LENGTH = 10;
 
   private List<String> fieldNames;
   private List<String> fieldTypes;
@@ -47,9 +74,14 @@ public class AvroTranslator implements Translator<byte[], byte[]> {
   private Schema avroSchema;
   private boolean doesAppendRaw;
   private GenericDatumReader<GenericRecord> reader;
+  private int[] fieldKinds;
+  private BinaryDecoder decoder;
+  private GenericRecord record;
+  private Map<Long, GenericDatumReader<GenericRecord>> writerReaders;
 
   public static final String FIELD_NAMES_CONFIG_NAME = "field.names";
   public static final String FIELD_TYPES_CONFIG_NAME = "field.types";
+  public static final String WRITER_SCHEMA_FILES_CONFIG_NAME = "writer.schema.files";
 
   @Override
   public void configure(Config config) {
@@ -57,6 +89,11 @@ public class AvroTranslator implements Translator<byte[], byte[]> {
     fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
     avroSchema = schemaFor(fieldNames, fieldTypes);
     reader = new GenericDatumReader<GenericRecord>(avroSchema);
+    fieldKinds = fieldKindsFor(avroSchema);
+
+    if (config.hasPath(WRITER_SCHEMA_FILES_CONFIG_NAME)) {
+      writerReaders = writerReadersFor(config.getStringList(WRITER_SCHEMA_FILES_CONFIG_NAME), avroSchema);
+    }
     
     doesAppendRaw = TranslatorUtils.doesAppendRaw(config);
     if (doesAppendRaw) {
@@ -71,16 +108,47 @@ public class AvroTranslator implements Translator<byte[], byte[]> {
 
   @Override
   public Iterable<Row> translate(byte[] key, byte[] value) throws Exception {
-    Decoder decoder = DecoderFactory.get().binaryDecoder(value, null);
-    GenericRecord record = reader.read(null, decoder);
-    Row row = rowForRecord(record);
-    
+    return Collections.singleton(translateToRow(key, value));
+  }
+
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<byte[], byte[]>> keysAndValues) {
+    return new RowPerValueIterator<byte[], byte[]>(keysAndValues) {
+      @Override
+      protected Row translateToRow(byte[] key, byte[] value) throws Exception {
+        return AvroTranslator.this.translateToRow(key, value);
+      }
+    };
+  }
+
+  private Row translateToRow(byte[] key, byte[] value) throws Exception {
+    if (writerReaders != null) {
+      // The resolving decoder of each writer schema is cached by its datum reader
+      long fingerprint = fingerprintOf(value);
+      GenericDatumReader<GenericRecord> writerReader = writerReaders.get(fingerprint);
+      if (writerReader == null) {
+        throw new RuntimeException("Avro translator found a message written with an unknown schema, fingerprint: " +
+            fingerprint);
+      }
+
+      decoder = DecoderFactory.get().binaryDecoder(value, SINGLE_OBJECT_HEADER_LENGTH,
+          value.length - SINGLE_OBJECT_HEADER_LENGTH, decoder);
+      record = writerReader.read(record, decoder);
+    }
+    else {
+      decoder = DecoderFactory.get().binaryDecoder(value, decoder);
+      record = reader.read(record, decoder);
+    }
+    Object[] values = new Object[fieldNames.size()];
+
+    valuesForRecord(record, values);
+
     if (doesAppendRaw) {
-      row = RowUtils.append(row, key);
-      row = RowUtils.append(row, value);
+      values[fieldKinds.length] = key;
+      values[fieldKinds.length + 1] = value;
     }
 
-    return Collections.singleton(row);
+    return RowFactory.create(values);
   }
 
   @Override
@@ -125,25 +193,84 @@ public class AvroTranslator implements Translator<byte[], byte[]> {
     return assembler.endRecord();
   }
 
-  private static Row rowForRecord(GenericRecord record) {
-    List<Object> values = Lists.newArrayList();
+  private static Map<Long, GenericDatumReader<GenericRecord>> writerReadersFor(List<String> writerSchemaFiles,
+                                                                               Schema readerSchema) {
+    Map<Long, GenericDatumReader<GenericRecord>> writerReaders = Maps.newHashMap();
 
-    for (Field field : record.getSchema().getFields()) {
-      Object value = record.get(field.name());
+    for (String writerSchemaFile : writerSchemaFiles) {
+      Schema writerSchema;
+      try {
+        writerSchema = new Schema.Parser().parse(new File(writerSchemaFile));
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Error parsing Avro writer schema file: " + writerSchemaFile, e);
+      }
+
+      writerReaders.put(SchemaNormalization.parsingFingerprint64(writerSchema),
+          new GenericDatumReader<GenericRecord>(writerSchema, readerSchema));
+    }
+
+    return writerReaders;
+  }
+
+  private static long fingerprintOf(byte[] value) {
+    if (value.length < SINGLE_OBJECT_HEADER_LENGTH ||
+        value[0] != SINGLE_OBJECT_MARKER_1 || value[1] != SINGLE_OBJECT_MARKER_2) {
+      throw new RuntimeException("Avro translator expected a message in the Avro single object encoding");
+    }
+
+    return ByteBuffer.wrap(value, 2, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  // The fields of the records are read by position, so the kinds of the fields are resolved up front
+  private static int[] fieldKindsFor(Schema avroSchema) {
+    List<Field> fields = avroSchema.getFields();
+    int[] fieldKinds = new int[fields.size()];
 
-      Type fieldType = field.schema().getType();
+    for (int i = 0; i < fieldKinds.length; i++) {
+      Schema fieldSchema = fields.get(i).schema();
+      Type fieldType = fieldSchema.getType();
       if (fieldType.equals(Type.UNION)) {
-        fieldType = field.schema().getTypes().get(1).getType();
-      }
-      // Avro returns Utf8s for strings, which Spark SQL doesn't know how to use
-      if (fieldType.equals(Type.STRING) && value != null) {
-        value = value.toString();
+        fieldType = fieldSchema.getTypes().get(1).getType();
       }
 
-      values.add(value);
+      if (fieldType.equals(Type.STRING)) {
+        fieldKinds[i] = STRING_FIELD;
+      }
+      else if (fieldType.equals(Type.BYTES)) {
+        fieldKinds[i] = BYTES_FIELD;
+      }
+      else {
+        fieldKinds[i] = PLAIN_FIELD;
+      }
     }
 
-    return RowFactory.create(values.toArray());
+    return fieldKinds;
+  }
+
+  private void valuesForRecord(GenericRecord record, Object[] values) {
+    for (int i = 0; i < fieldKinds.length; i++) {
+      Object value = record.get(i);
+
+      if (value != null) {
+        switch (fieldKinds[i]) {
+          case STRING_FIELD:
+            // Avro returns Utf8s for strings, which Spark SQL doesn't know how to use
+            value = value.toString();
+            break;
+          case BYTES_FIELD:
+            // Avro reads bytes into the buffer of the reused record where it can
+            ByteBuffer buffer = ((ByteBuffer)value).duplicate();
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer);
+            copy.flip();
+            value = copy;
+            break;
+        }
+      }
+
+      values[i] = value;
+    }
   }
 
 }
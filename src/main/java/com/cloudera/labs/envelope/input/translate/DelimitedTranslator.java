@@ -16,8 +16,8 @@
 package com.cloudera.labs.envelope.input.translate;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
@@ -25,19 +25,32 @@ import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.cloudera.labs.envelope.utils.TranslatorUtils;
-import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
  * A translator implementation for plain delimited text messages, e.g. CSV.
+ *
+ * The messages are split on the delimiter and the fields are parsed directly from the message,
+ * without regular expressions or intermediate strings for the integral fields. As with
+ * String#split, empty fields at the end of a message are not included in the translated row.
  */
-public class DelimitedTranslator implements Translator<String, String> {
+public class DelimitedTranslator implements PartitionTranslator<String, String> {
+
+  private static final int STRING_FIELD = 0;
+  private static final int FLOAT_FIELD = 1;
+  private static final int DOUBLE_FIELD = 2;
+  private static final int INT_FIELD = 3;
+  private static final int LONG_FIELD = 4;
+  private static final int BOOLEAN_FIELD = 5;
 
   private String delimiter;
   private List<String> fieldNames;
   private List<String> fieldTypes;
   private StructType schema;
-  private List<Object> values = Lists.newArrayList();
+  private int[] fieldKinds;
+  private Object[] values;
   private boolean doesAppendRaw;
 
   public static final String DELIMITER_CONFIG_NAME = "delimiter";
@@ -47,8 +60,17 @@ public class DelimitedTranslator implements Translator<String, String> {
   @Override
   public void configure(Config config) {
     delimiter = resolveDelimiter(config.getString(DELIMITER_CONFIG_NAME));
+    if (delimiter.isEmpty()) {
+      throw new RuntimeException("Delimited translator requires a non-empty delimiter");
+    }
     fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
     fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
+
+    fieldKinds = new int[fieldTypes.size()];
+    for (int fieldPos = 0; fieldPos < fieldKinds.length; fieldPos++) {
+      fieldKinds[fieldPos] = fieldKindFor(fieldTypes.get(fieldPos));
+    }
+    values = new Object[fieldKinds.length];
     
     doesAppendRaw = TranslatorUtils.doesAppendRaw(config);
     if (doesAppendRaw) {
@@ -63,50 +85,67 @@ public class DelimitedTranslator implements Translator<String, String> {
 
   @Override
   public Iterable<Row> translate(String key, String value) {
-    String[] stringValues = value.split(Pattern.quote(delimiter));
-    values.clear();
-
-    for (int valuePos = 0; valuePos < stringValues.length; valuePos++) {
-      String fieldValue = stringValues[valuePos];
-      
-      if (fieldValue.length() == 0) {
-        values.add(null);
+    return Collections.singleton(translateToRow(key, value));
+  }
+
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<String, String>> keysAndValues) {
+    return new RowPerValueIterator<String, String>(keysAndValues) {
+      @Override
+      protected Row translateToRow(String key, String value) {
+        return DelimitedTranslator.this.translateToRow(key, value);
       }
-      else {
-        switch (fieldTypes.get(valuePos)) {
-          case "string":
-            values.add(fieldValue);
-            break;
-          case "float":
-            values.add(Float.parseFloat(fieldValue));
-            break;
-          case "double":
-            values.add(Double.parseDouble(fieldValue));
-            break;
-          case "int":
-            values.add(Integer.parseInt(fieldValue));
-            break;
-          case "long":
-            values.add(Long.parseLong(fieldValue));
-            break;
-          case "boolean":
-            values.add(Boolean.parseBoolean(fieldValue));
-            break;
-          default:
-            throw new RuntimeException("Unsupported delimited field type: " + fieldTypes.get(valuePos));
+    };
+  }
+
+  private Row translateToRow(String key, String value) {
+    int delimiterLength = delimiter.length();
+    int numValues = 0;
+    int start = 0;
+    int end = value.indexOf(delimiter);
+
+    if (end == -1) {
+      // As with String#split, a message without the delimiter is a single field
+      values[0] = parseField(value, 0, value.length(), 0);
+      numValues = 1;
+    }
+    else {
+      // Empty fields at the end of the message are dropped, so only the fields up to the last
+      // non-empty field are counted
+      int fieldPos = 0;
+      while (true) {
+        if (end == -1) {
+          end = value.length();
+        }
+        if (fieldPos >= fieldKinds.length) {
+          if (end > start) {
+            throw new RuntimeException("Delimited message has more fields than the configured " +
+                fieldKinds.length + " fields");
+          }
         }
+        else {
+          values[fieldPos] = parseField(value, start, end, fieldPos);
+          if (end > start) {
+            numValues = fieldPos + 1;
+          }
+        }
+        if (end == value.length()) {
+          break;
+        }
+        fieldPos++;
+        start = end + delimiterLength;
+        end = value.indexOf(delimiter, start);
       }
-
     }
 
-    Row row = RowFactory.create(values.toArray());
-    
+    Object[] rowValues = new Object[numValues + (doesAppendRaw ? 2 : 0)];
+    System.arraycopy(values, 0, rowValues, 0, numValues);
     if (doesAppendRaw) {
-      row = RowUtils.append(row, key);
-      row = RowUtils.append(row, value);
+      rowValues[numValues] = key;
+      rowValues[numValues + 1] = value;
     }
 
-    return Collections.singleton(row);
+    return RowFactory.create(rowValues);
   }
 
   @Override
@@ -114,6 +153,84 @@ public class DelimitedTranslator implements Translator<String, String> {
     return schema;
   }
 
+  private Object parseField(String value, int start, int end, int fieldPos) {
+    if (start == end) {
+      return null;
+    }
+
+    switch (fieldKinds[fieldPos]) {
+      case STRING_FIELD:
+        return value.substring(start, end);
+      case FLOAT_FIELD:
+        return Float.parseFloat(value.substring(start, end));
+      case DOUBLE_FIELD:
+        return Double.parseDouble(value.substring(start, end));
+      case INT_FIELD:
+        return (int)parseIntegral(value, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+      case LONG_FIELD:
+        return parseIntegral(value, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+      default:
+        return end - start == 4 && value.regionMatches(true, start, "true", 0, 4);
+    }
+  }
+
+  // Parses a decimal integer in the same way as Long#parseLong, but without a substring
+  private static long parseIntegral(String value, int start, int end, long min, long max) {
+    boolean negative = false;
+    int position = start;
+    char first = value.charAt(position);
+
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      position++;
+      if (position == end) {
+        throw numberFormatException(value, start, end);
+      }
+    }
+
+    long limit = negative ? min : -max;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+
+    // Accumulates negatively so that the minimum value does not overflow
+    for (; position < end; position++) {
+      int digit = Character.digit(value.charAt(position), 10);
+      if (digit < 0 || result < multiplyLimit) {
+        throw numberFormatException(value, start, end);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(value, start, end);
+      }
+      result -= digit;
+    }
+
+    return negative ? result : -result;
+  }
+
+  private static NumberFormatException numberFormatException(String value, int start, int end) {
+    return new NumberFormatException("For input string: \"" + value.substring(start, end) + "\"");
+  }
+
+  private static int fieldKindFor(String fieldType) {
+    switch (fieldType) {
+      case "string":
+        return STRING_FIELD;
+      case "float":
+        return FLOAT_FIELD;
+      case "double":
+        return DOUBLE_FIELD;
+      case "int":
+        return INT_FIELD;
+      case "long":
+        return LONG_FIELD;
+      case "boolean":
+        return BOOLEAN_FIELD;
+      default:
+        throw new RuntimeException("Unsupported delimited field type: " + fieldType);
+    }
+  }
+
   private String resolveDelimiter(String delimiterArg) {
     if (delimiterArg.startsWith("chars:")) {
       String[] codePoints = delimiterArg.substring("chars:".length()).split(",");
@@ -16,6 +16,7 @@
 package com.cloudera.labs.envelope.input.translate;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -30,13 +31,17 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
  * A translator implementation for text key-value pair messages.
  */
-public class KVPTranslator implements Translator<String, String> {
+public class KVPTranslator implements PartitionTranslator<String, String> {
 
   private String kvpDelimiter;
   private String fieldDelimiter;
+  private Pattern kvpPattern;
+  private Pattern fieldPattern;
   private List<String> fieldNames;
   private List<String> fieldTypes;
   private StructType schema;
@@ -53,6 +58,8 @@ public class KVPTranslator implements Translator<String, String> {
   public void configure(Config config) {
     kvpDelimiter = resolveDelimiter(config.getString(KVP_DELIMITER_CONFIG_NAME));
     fieldDelimiter = resolveDelimiter(config.getString(FIELD_DELIMITER_CONFIG_NAME));
+    kvpPattern = Pattern.compile(Pattern.quote(kvpDelimiter));
+    fieldPattern = Pattern.compile(Pattern.quote(fieldDelimiter));
     fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
     fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
     
@@ -69,12 +76,26 @@ public class KVPTranslator implements Translator<String, String> {
 
   @Override
   public Iterable<Row> translate(String key, String value) {
+    return Collections.singleton(translateToRow(key, value));
+  }
+
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<String, String>> keysAndValues) {
+    return new RowPerValueIterator<String, String>(keysAndValues) {
+      @Override
+      protected Row translateToRow(String key, String value) {
+        return KVPTranslator.this.translateToRow(key, value);
+      }
+    };
+  }
+
+  private Row translateToRow(String key, String value) {
     kvpMap.clear();
     values.clear();
 
-    String[] kvps = value.split(Pattern.quote(kvpDelimiter));
+    String[] kvps = kvpPattern.split(value);
     for (String kvp : kvps) {
-      String[] components = kvp.split(Pattern.quote(fieldDelimiter));
+      String[] components = fieldPattern.split(kvp);
       String kvpKey = components[0];
       String kvpValue = components.length == 2 ? components[1] : null;
 
@@ -123,14 +144,12 @@ public class KVPTranslator implements Translator<String, String> {
       }
     }
 
-    Row row = RowFactory.create(values.toArray());
-    
     if (doesAppendRaw) {
-      row = RowUtils.append(row, key);
-      row = RowUtils.append(row, value);
+      values.add(key);
+      values.add(value);
     }
-    
-    return Collections.singleton(row);
+
+    return RowFactory.create(values.toArray());
   }
 
   @Override
@@ -0,0 +1,43 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Iterator;
+
+import org.apache.spark.sql.Row;
+
+import scala.Tuple2;
+
+/**
+ * Translators that can translate a whole partition of keyed values at a time, which allows them
+ * to set up decoders and buffers once and reuse them across the values of the partition.
+ * Envelope uses this in place of {@link Translator#translate(Object, Object)} when it is
+ * implemented.
+ * @param <K> The data type of the input keys
+ * @param <V> The data type of the input values
+ */
+public interface PartitionTranslator<K, V> extends Translator<K, V> {
+
+  /**
+   * Translate the raw keys and values of a partition into structured rows.
+   * @param keysAndValues The keyed values of the partition.
+   * @return An iterator of the Spark SQL Rows of the partition, which should translate the keyed
+   * values as it is iterated. The returned rows must not be reused by the translator.
+   * @throws Exception
+   */
+  Iterator<Row> translatePartition(Iterator<Tuple2<K, V>> keysAndValues) throws Exception;
+
+}
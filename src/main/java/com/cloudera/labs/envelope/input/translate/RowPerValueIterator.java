@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Iterator;
+
+import org.apache.spark.sql.Row;
+
+import scala.Tuple2;
+
+/**
+ * An iterator for partition translators that translate each keyed value into exactly one row.
+ */
+public abstract class RowPerValueIterator<K, V> implements Iterator<Row> {
+
+  private Iterator<Tuple2<K, V>> keysAndValues;
+
+  public RowPerValueIterator(Iterator<Tuple2<K, V>> keysAndValues) {
+    this.keysAndValues = keysAndValues;
+  }
+
+  /**
+   * Translate a single keyed value into a row.
+   */
+  protected abstract Row translateToRow(K key, V value) throws Exception;
+
+  @Override
+  public boolean hasNext() {
+    return keysAndValues.hasNext();
+  }
+
+  @Override
+  public Row next() {
+    Tuple2<K, V> keyAndValue = keysAndValues.next();
+
+    try {
+      return translateToRow(keyAndValue._1(), keyAndValue._2());
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigValue;
+
+import scala.Tuple2;
+
+/**
+ * Translates a partition of keyed values that were read from multiple topics, with the translator
+ * configured for the topic of each keyed value. The rows of all of the translators share one
+ * schema, which has the fields of every translator followed by a field for the topic of the row.
+ * Fields that only some translators provide are null in the rows of the other translators.
+ */
+@SuppressWarnings("serial")
+public class TopicTranslatePartitionFunction<K, V>
+    implements FlatMapFunction<Iterator<Tuple2<String, Tuple2<K, V>>>, Row> {
+
+  public static final String TRANSLATORS_CONFIG_NAME = "translators";
+  public static final String DEFAULT_TRANSLATOR_CONFIG_NAME = "translator";
+  public static final String TOPIC_FIELD_NAME_CONFIG_NAME = "topic.field.name";
+
+  private Config config;
+  private StructType schema;
+  private transient Map<String, TopicTranslator<K, V>> topicTranslators;
+  private transient TopicTranslator<K, V> defaultTranslator;
+
+  private static Logger LOG = LoggerFactory.getLogger(TopicTranslatePartitionFunction.class);
+
+  /**
+   * @param config The configuration of the input, which has the translators of the topics
+   * under {@value #TRANSLATORS_CONFIG_NAME}, keyed by topic name, and optionally a translator
+   * for any other topic under {@value #DEFAULT_TRANSLATOR_CONFIG_NAME}.
+   */
+  public TopicTranslatePartitionFunction(Config config) {
+    this.config = config;
+    this.schema = buildSchema(getTopicSchemas(), getDefaultSchema(), getTopicFieldName());
+  }
+
+  @Override
+  public Iterator<Row> call(Iterator<Tuple2<String, Tuple2<K, V>>> topicKeysAndValues) throws Exception {
+    if (topicTranslators == null) {
+      initializeTranslators();
+    }
+
+    return new RoutingIterator(topicKeysAndValues);
+  }
+
+  public StructType getSchema() {
+    return schema;
+  }
+
+  /**
+   * @return The schemas of the translators of the configured topics, keyed by topic name.
+   */
+  public Map<String, StructType> getTopicSchemas() {
+    Map<String, StructType> topicSchemas = new TreeMap<>();
+
+    for (Map.Entry<String, Config> topicConfig : getTopicConfigs().entrySet()) {
+      topicSchemas.put(topicConfig.getKey(), TranslatorFactory.create(topicConfig.getValue()).getSchema());
+    }
+
+    return topicSchemas;
+  }
+
+  public String getTopicFieldName() {
+    return config.hasPath(TOPIC_FIELD_NAME_CONFIG_NAME) ?
+        config.getString(TOPIC_FIELD_NAME_CONFIG_NAME) : "topic";
+  }
+
+  private StructType getDefaultSchema() {
+    if (!config.hasPath(DEFAULT_TRANSLATOR_CONFIG_NAME)) {
+      return null;
+    }
+
+    return TranslatorFactory.create(config.getConfig(DEFAULT_TRANSLATOR_CONFIG_NAME)).getSchema();
+  }
+
+  private Map<String, Config> getTopicConfigs() {
+    // Sorted so that the fields of the schema are in the same order on every run
+    Map<String, Config> topicConfigs = new TreeMap<>();
+    ConfigObject translatorsObject = config.getObject(TRANSLATORS_CONFIG_NAME);
+
+    for (Map.Entry<String, ConfigValue> entry : translatorsObject.entrySet()) {
+      topicConfigs.put(entry.getKey(), ((ConfigObject)entry.getValue()).toConfig());
+    }
+
+    return topicConfigs;
+  }
+
+  static StructType buildSchema(Map<String, StructType> topicSchemas, StructType defaultSchema,
+                                String topicFieldName) {
+    Map<String, StructField> fields = Maps.newLinkedHashMap();
+
+    List<StructType> schemas = Lists.newArrayList();
+    if (defaultSchema != null) {
+      schemas.add(defaultSchema);
+    }
+    schemas.addAll(topicSchemas.values());
+
+    for (StructType translatorSchema : schemas) {
+      for (StructField field : translatorSchema.fields()) {
+        StructField existing = fields.get(field.name());
+
+        if (existing == null) {
+          fields.put(field.name(), DataTypes.createStructField(field.name(), field.dataType(), true));
+        }
+        else if (!existing.dataType().equals(field.dataType())) {
+          throw new RuntimeException("Field '" + field.name() + "' has different types for different " +
+              "topics: " + existing.dataType() + " and " + field.dataType());
+        }
+      }
+    }
+
+    if (fields.containsKey(topicFieldName)) {
+      throw new RuntimeException("Translated field '" + topicFieldName + "' clashes with the topic " +
+          "field. Set '" + TOPIC_FIELD_NAME_CONFIG_NAME + "' to use another name for the topic field.");
+    }
+    fields.put(topicFieldName, DataTypes.createStructField(topicFieldName, DataTypes.StringType, false));
+
+    return DataTypes.createStructType(Lists.newArrayList(fields.values()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void initializeTranslators() {
+    topicTranslators = Maps.newHashMap();
+
+    for (Map.Entry<String, Config> topicConfig : getTopicConfigs().entrySet()) {
+      Translator<K, V> translator = (Translator<K, V>)TranslatorFactory.create(topicConfig.getValue());
+      topicTranslators.put(topicConfig.getKey(), new TopicTranslator<>(translator, schema));
+      LOG.info("Translator created for topic " + topicConfig.getKey() + ": " + translator.getClass().getName());
+    }
+
+    if (config.hasPath(DEFAULT_TRANSLATOR_CONFIG_NAME)) {
+      Translator<K, V> translator =
+          (Translator<K, V>)TranslatorFactory.create(config.getConfig(DEFAULT_TRANSLATOR_CONFIG_NAME));
+      defaultTranslator = new TopicTranslator<>(translator, schema);
+      LOG.info("Default translator created: " + translator.getClass().getName());
+    }
+  }
+
+  private TopicTranslator<K, V> translatorFor(String topic) {
+    TopicTranslator<K, V> translator = topicTranslators.get(topic);
+
+    if (translator == null) {
+      if (defaultTranslator == null) {
+        throw new RuntimeException("No translator is configured for topic '" + topic + "'");
+      }
+      translator = defaultTranslator;
+    }
+
+    return translator;
+  }
+
+  // A translator with the positions of its fields in the shared schema
+  private static class TopicTranslator<K, V> {
+    private Translator<K, V> translator;
+    private int[] fieldPositions;
+    private int topicPosition;
+    private int numFields;
+
+    TopicTranslator(Translator<K, V> translator, StructType schema) {
+      this.translator = translator;
+
+      StructField[] translatorFields = translator.getSchema().fields();
+      fieldPositions = new int[translatorFields.length];
+      for (int i = 0; i < translatorFields.length; i++) {
+        fieldPositions[i] = schema.fieldIndex(translatorFields[i].name());
+      }
+
+      topicPosition = schema.length() - 1;
+      numFields = schema.length();
+    }
+
+    Row toSharedRow(Row translated, String topic) {
+      Object[] values = new Object[numFields];
+
+      for (int i = 0; i < fieldPositions.length; i++) {
+        values[fieldPositions[i]] = translated.get(i);
+      }
+      values[topicPosition] = topic;
+
+      return RowFactory.create(values);
+    }
+  }
+
+  // Lazily translates each run of keyed values of the same topic with the translator of the
+  // topic, so that partition translators translate the whole run at once. The keyed values of a
+  // Kafka partition are all from one topic, so there is usually one run for the partition.
+  private class RoutingIterator implements Iterator<Row> {
+    private PeekingIterator<Tuple2<String, Tuple2<K, V>>> topicKeysAndValues;
+    private Iterator<Row> translated = Collections.emptyIterator();
+    private TopicTranslator<K, V> translator;
+    private String topic;
+
+    RoutingIterator(Iterator<Tuple2<String, Tuple2<K, V>>> topicKeysAndValues) {
+      this.topicKeysAndValues = Iterators.peekingIterator(topicKeysAndValues);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!translated.hasNext() && topicKeysAndValues.hasNext()) {
+        topic = topicKeysAndValues.peek()._1();
+        translator = translatorFor(topic);
+
+        try {
+          translated = TranslatePartitionFunction.translate(translator.translator, new TopicRunIterator(topic));
+        }
+        catch (RuntimeException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      return translated.hasNext();
+    }
+
+    @Override
+    public Row next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return translator.toSharedRow(translated.next(), topic);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // The keyed values of the partition up to the next value of another topic
+    private class TopicRunIterator implements Iterator<Tuple2<K, V>> {
+      private String runTopic;
+
+      TopicRunIterator(String runTopic) {
+        this.runTopic = runTopic;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return topicKeysAndValues.hasNext() && topicKeysAndValues.peek()._1().equals(runTopic);
+      }
+
+      @Override
+      public Tuple2<K, V> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return topicKeysAndValues.next()._2();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * Translates a partition of keyed values at a time. Translators that implement
+ * {@link PartitionTranslator} are given the whole partition, and other translators are given
+ * each keyed value of the partition in turn.
+ */
+@SuppressWarnings("serial")
+public class TranslatePartitionFunction<K, V> implements FlatMapFunction<Iterator<Tuple2<K, V>>, Row> {
+
+  private Config config;
+  private Translator<K, V> translator;
+
+  private static Logger LOG = LoggerFactory.getLogger(TranslatePartitionFunction.class);
+
+  public TranslatePartitionFunction(Config config) {
+    this.config = config;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Iterator<Row> call(Iterator<Tuple2<K, V>> keysAndValues) throws Exception {
+    if (translator == null) {
+      translator = (Translator<K, V>)TranslatorFactory.create(config);
+      LOG.info("Translator created: " + translator.getClass().getName());
+    }
+
+    return translate(translator, keysAndValues);
+  }
+
+  public StructType getSchema() {
+    return TranslatorFactory.create(config).getSchema();
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> Iterator<Row> translate(Translator<K, V> translator, Iterator<Tuple2<K, V>> keysAndValues)
+      throws Exception {
+    if (translator instanceof PartitionTranslator) {
+      return ((PartitionTranslator<K, V>)translator).translatePartition(keysAndValues);
+    }
+    else {
+      return new TranslatingIterator<>(translator, keysAndValues);
+    }
+  }
+
+  // Lazily translates each keyed value of the partition with Translator#translate
+  private static class TranslatingIterator<K, V> implements Iterator<Row> {
+    private Translator<K, V> translator;
+    private Iterator<Tuple2<K, V>> keysAndValues;
+    private Iterator<Row> translated = Collections.emptyIterator();
+
+    public TranslatingIterator(Translator<K, V> translator, Iterator<Tuple2<K, V>> keysAndValues) {
+      this.translator = translator;
+      this.keysAndValues = keysAndValues;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!translated.hasNext() && keysAndValues.hasNext()) {
+        Tuple2<K, V> keyAndValue = keysAndValues.next();
+
+        try {
+          translated = translator.translate(keyAndValue._1(), keyAndValue._2()).iterator();
+        }
+        catch (RuntimeException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      return translated.hasNext();
+    }
+
+    @Override
+    public Row next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return translated.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
@@ -18,6 +18,7 @@ package com.cloudera.labs.envelope.output;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.hadoop.hbase.TableName;
@@ -29,6 +30,7 @@ import org.apache.hadoop.hbase.client.Query;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.spark.api.java.function.ForeachPartitionFunction;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.sql.Dataset;
@@ -38,8 +40,10 @@ import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.utils.hbase.HBaseMultiGetter;
 import com.cloudera.labs.envelope.utils.hbase.HBaseSerde;
 import com.cloudera.labs.envelope.utils.hbase.HBaseUtils;
+import com.cloudera.labs.envelope.utils.hbase.HFileBulkLoader;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -98,7 +102,8 @@ import scala.Tuple2;
  *     }
  * </pre>
  */
-public class HBaseOutput implements RandomOutput, BulkOutput {
+public class HBaseOutput implements RandomOutput, BulkOutput, ProjectsExistingFields,
+    SupportsConcurrentLookups {
 
   private static final Logger LOG = LoggerFactory.getLogger(HBaseOutput.class);
 
@@ -109,6 +114,10 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
   private static HBaseSerde serde;
   private TableName tableName;
   private int batchSize;
+  private int lookupBatchSize;
+  private int lookupThreads;
+  private Map<String, HBaseSerde.ColumnDef> columns;
+  private List<String> existingFieldNames;
 
   // API methods
 
@@ -118,6 +127,9 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
     if (HBaseUtils.validateConfig(config)) {
       tableName = HBaseUtils.tableInfoFor(config);
       batchSize = HBaseUtils.batchSizeFor(config);
+      lookupBatchSize = HBaseUtils.lookupBatchSizeFor(config);
+      lookupThreads = HBaseUtils.lookupThreadsFor(config);
+      columns = HBaseUtils.columnsFor(config);
     } else {
       LOG.error("Invalid configuration");
       throw new IllegalArgumentException("Invalid configuration");
@@ -138,7 +150,14 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
         LOG.debug("Adding filter: {}", query);
         
         if (query instanceof Get) {
-          gets.add((Get)query);
+          Get get = (Get)query;
+          // Gets that filter on column values already request the families of those columns
+          if (!get.hasFamilies()) {
+            for (HBaseSerde.ColumnDef column : getProjectedColumns()) {
+              get.addColumn(Bytes.toBytes(column.cf), Bytes.toBytes(column.name));
+            }
+          }
+          gets.add(get);
         }
         else if (query instanceof Scan) {
           scans.add((Scan)query);
@@ -150,10 +169,15 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
       
       List<Result> results = Lists.newArrayList();
       if (gets.size() > 0) {
-        results.addAll(Lists.newArrayList(table.get(gets)));
+        HBaseMultiGetter getter = new HBaseMultiGetter(
+            getConnection(config), tableName, lookupBatchSize, lookupThreads);
+        results.addAll(getter.get(gets));
       }
       if (scans.size() > 0) {
         Scan mergedScan = HBaseUtils.mergeRangeScans(scans);
+        for (HBaseSerde.ColumnDef column : getProjectedColumns()) {
+          mergedScan.addColumn(Bytes.toBytes(column.cf), Bytes.toBytes(column.name));
+        }
         results.addAll(Lists.newArrayList(table.getScanner(mergedScan)));
       }
       
@@ -163,6 +187,24 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
     return filterResults;
   }
 
+  @Override
+  public void receiveExistingFieldNames(List<String> fieldNames) {
+    this.existingFieldNames = fieldNames;
+  }
+
+  // The non-row key columns of the mapping that the existing records need to contain
+  private List<HBaseSerde.ColumnDef> getProjectedColumns() {
+    List<HBaseSerde.ColumnDef> projected = Lists.newArrayList();
+    for (HBaseSerde.ColumnDef column : columns.values()) {
+      if (!column.cf.equals("rowkey") &&
+          (existingFieldNames == null || existingFieldNames.contains(column.name))) {
+        projected.add(column);
+      }
+    }
+
+    return projected;
+  }
+
   @Override
   public void applyRandomMutations(List<PlannedRow> plannedRows) throws Exception {
     LOG.debug("Applying planned rows to table: {}", tableName.toString());
@@ -214,6 +256,16 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
   @Override
   public void applyBulkMutations(List<Tuple2<MutationType, Dataset<Row>>> planned) {
     for (Tuple2<MutationType, Dataset<Row>> mutationDataset : planned) {
+      if (mutationDataset._1() == MutationType.UPSERT && HBaseUtils.bulkLoadEnabledFor(config)) {
+        try {
+          new HFileBulkLoader(config, getConnection(config)).load(mutationDataset._2());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Could not bulk load into HBase table " + tableName, e);
+        }
+        continue;
+      }
+
       BulkHBaseMutatorFunction mutatorFunction;
       switch (mutationDataset._1()) {
         case UPSERT:
@@ -15,41 +15,99 @@
  */
 package com.cloudera.labs.envelope.output;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.common.serialization.Serializer;
-import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.utils.AvroUtils;
+import com.cloudera.labs.envelope.utils.kafka.KafkaProducers;
 import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
 
 import scala.Tuple2;
 
+/**
+ * Writes the rows of each partition to a Kafka topic through the shared producer of the executor,
+ * sending asynchronously so that the producer can batch the records, and failing the partition
+ * at the end if any of its records could not be sent.
+ */
 public class KafkaOutput implements BulkOutput {
 
   public static final String BROKERS_CONFIG_NAME = "brokers";
   public static final String TOPIC_CONFIG_NAME = "topic";
   public static final String FIELD_DELIMITER_CONFIG_NAME = "field.delimiter";
-  
-  private String brokers;
+  public static final String NULL_VALUE_CONFIG_NAME = "null-value";
+  public static final String KEY_FIELD_NAMES_CONFIG_NAME = "key.field.names";
+  public static final String ENCODING_CONFIG_NAME = "encoding";
+  public static final String VALUE_FIELD_NAME_CONFIG_NAME = "value.field.name";
+  public static final String PARAMETER_CONFIG_PREFIX = "parameter.";
+
+  public static final String DELIMITED_ENCODING = "delimited";
+  public static final String AVRO_ENCODING = "avro";
+  public static final String BINARY_ENCODING = "binary";
+
+  // Let the producer gather records into larger batches than the Kafka defaults
+  private static final String DEFAULT_LINGER_MS = "5";
+  private static final String DEFAULT_BATCH_SIZE = "65536";
+
+  private Config config;
   private String topic;
   private String delimiter;
+  private String nullValue;
+  private List<String> keyFieldNames;
+  private String encoding;
+  private HashMap<String, Object> producerProperties;
 
   @Override
-  public void configure(Config config) {    
-    this.brokers = config.getString(BROKERS_CONFIG_NAME);
+  public void configure(Config config) {
+    this.config = config;
     this.topic = config.getString(TOPIC_CONFIG_NAME);
     this.delimiter = getDelimiter(config);
+    this.nullValue = config.hasPath(NULL_VALUE_CONFIG_NAME) ? config.getString(NULL_VALUE_CONFIG_NAME) : "";
+    this.producerProperties = getProducerProperties(config);
+
+    if (config.hasPath(KEY_FIELD_NAMES_CONFIG_NAME)) {
+      this.keyFieldNames = config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
+    }
+
+    this.encoding = config.hasPath(ENCODING_CONFIG_NAME) ?
+        config.getString(ENCODING_CONFIG_NAME) : DELIMITED_ENCODING;
+
+    if (!Sets.newHashSet(DELIMITED_ENCODING, AVRO_ENCODING, BINARY_ENCODING).contains(encoding)) {
+      throw new RuntimeException("Invalid Kafka output encoding type '" + encoding +
+          "'. Valid types are 'delimited', 'avro' and 'binary'.");
+    }
+
+    if (encoding.equals(BINARY_ENCODING) && !config.hasPath(VALUE_FIELD_NAME_CONFIG_NAME)) {
+      throw new RuntimeException("Kafka output with 'binary' encoding requires '" +
+          VALUE_FIELD_NAME_CONFIG_NAME + "'");
+    }
   }
 
   @Override
@@ -59,7 +117,15 @@ public class KafkaOutput implements BulkOutput {
       Dataset<Row> mutationDF = mutation._2();
 
       if (mutationType.equals(MutationType.INSERT)) {
-        mutationDF.javaRDD().foreach(new SendRowToKafkaFunction(topic, brokers, delimiter));
+        StructType schema = mutationDF.schema();
+
+        RowEncoder keyEncoder = null;
+        if (keyFieldNames != null) {
+          keyEncoder = new DelimitedRowEncoder(fieldIndexesFor(schema, keyFieldNames), delimiter, nullValue);
+        }
+
+        mutationDF.javaRDD().foreachPartition(new SendPartitionToKafkaFunction(
+            topic, producerProperties, keyEncoder, valueEncoderFor(schema)));
       }
     }
   }
@@ -69,6 +135,52 @@ public class KafkaOutput implements BulkOutput {
     return Sets.newHashSet(MutationType.INSERT);
   }
 
+  RowEncoder valueEncoderFor(StructType schema) {
+    switch (encoding) {
+      case AVRO_ENCODING:
+        return new AvroRowEncoder(schema);
+      case BINARY_ENCODING:
+        return new BinaryFieldEncoder(schema.fieldIndex(config.getString(VALUE_FIELD_NAME_CONFIG_NAME)));
+      default:
+        int[] allFieldIndexes = new int[schema.length()];
+        for (int fieldIndex = 0; fieldIndex < allFieldIndexes.length; fieldIndex++) {
+          allFieldIndexes[fieldIndex] = fieldIndex;
+        }
+        return new DelimitedRowEncoder(allFieldIndexes, delimiter, nullValue);
+    }
+  }
+
+  static HashMap<String, Object> getProducerProperties(Config config) {
+    HashMap<String, Object> producerProperties = new HashMap<>();
+    producerProperties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getString(BROKERS_CONFIG_NAME));
+    producerProperties.put(ProducerConfig.LINGER_MS_CONFIG, DEFAULT_LINGER_MS);
+    producerProperties.put(ProducerConfig.BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+
+    // Parameters can be given either as quoted keys or as nested paths
+    for (Map.Entry<String, ConfigValue> entry : config.entrySet()) {
+      String propertyName = Joiner.on('.').join(ConfigUtil.splitPath(entry.getKey()));
+
+      if (propertyName.startsWith(PARAMETER_CONFIG_PREFIX)) {
+        String paramName = propertyName.substring(PARAMETER_CONFIG_PREFIX.length());
+        String paramValue = String.valueOf(entry.getValue().unwrapped());
+
+        producerProperties.put(paramName, paramValue);
+      }
+    }
+
+    return producerProperties;
+  }
+
+  private static int[] fieldIndexesFor(StructType schema, List<String> fieldNames) {
+    int[] fieldIndexes = new int[fieldNames.size()];
+
+    for (int i = 0; i < fieldIndexes.length; i++) {
+      fieldIndexes[i] = schema.fieldIndex(fieldNames.get(i));
+    }
+
+    return fieldIndexes;
+  }
+
   private String getDelimiter(Config config) {
     if (!config.hasPath(FIELD_DELIMITER_CONFIG_NAME)) return ",";
 
@@ -90,46 +202,149 @@ public class KafkaOutput implements BulkOutput {
   }
 
   @SuppressWarnings("serial")
-  private static class SendRowToKafkaFunction implements VoidFunction<Row> {
-    private KafkaProducer<String, String> producer;
+  private static class SendPartitionToKafkaFunction implements VoidFunction<Iterator<Row>> {
     private String topic;
-    private String brokers;
-    private String delimiter;
-    private Joiner joiner;
+    private HashMap<String, Object> producerProperties;
+    private RowEncoder keyEncoder;
+    private RowEncoder valueEncoder;
 
-    public SendRowToKafkaFunction(String topic, String brokers, String delimiter) {
+    public SendPartitionToKafkaFunction(String topic, HashMap<String, Object> producerProperties,
+                                        RowEncoder keyEncoder, RowEncoder valueEncoder) {
       this.topic = topic;
-      this.brokers = brokers;
-      this.delimiter = delimiter;
+      this.producerProperties = producerProperties;
+      this.keyEncoder = keyEncoder;
+      this.valueEncoder = valueEncoder;
+    }
+
+    @Override
+    public void call(Iterator<Row> rows) throws Exception {
+      Producer<byte[], byte[]> producer = KafkaProducers.getProducer(producerProperties);
+      SendErrors errors = new SendErrors();
+
+      while (rows.hasNext()) {
+        Row row = rows.next();
+
+        byte[] key = keyEncoder != null ? keyEncoder.encode(row) : null;
+        byte[] value = valueEncoder.encode(row);
+
+        producer.send(new ProducerRecord<>(topic, key, value), errors);
+      }
+
+      // Wait for the batches of the partition to be acknowledged before reporting any failures
+      producer.flush();
+      errors.throwIfAny(topic);
     }
+  }
 
-    private void initialize() {
-      Properties producerProps = new Properties();
-      producerProps.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-      producerProps.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-      producerProps.put("bootstrap.servers", brokers);
+  // Gathers the failures of the asynchronous sends of a partition
+  private static class SendErrors implements Callback {
+    private AtomicLong count = new AtomicLong();
+    private volatile Exception first;
+
+    @Override
+    public void onCompletion(RecordMetadata metadata, Exception exception) {
+      if (exception != null && count.getAndIncrement() == 0) {
+        first = exception;
+      }
+    }
 
-      Serializer<String> serializer = new StringSerializer();
-      producer = new KafkaProducer<String, String>(producerProps, serializer, serializer);
+    void throwIfAny(String topic) {
+      long errorCount = count.get();
 
-      joiner = Joiner.on(delimiter);
+      if (errorCount > 0) {
+        throw new RuntimeException(errorCount + " record(s) could not be sent to Kafka topic '" +
+            topic + "'", first);
+      }
+    }
+  }
+
+  /**
+   * Encodes a row, or part of a row, into the bytes of a Kafka message key or value.
+   */
+  interface RowEncoder extends Serializable {
+    byte[] encode(Row row) throws IOException;
+  }
+
+  @SuppressWarnings("serial")
+  static class DelimitedRowEncoder implements RowEncoder {
+    private int[] fieldIndexes;
+    private String delimiter;
+    private String nullValue;
+    private transient StringBuilder builder;
+
+    DelimitedRowEncoder(int[] fieldIndexes, String delimiter, String nullValue) {
+      this.fieldIndexes = fieldIndexes;
+      this.delimiter = delimiter;
+      this.nullValue = nullValue;
     }
 
     @Override
-    public void call(Row mutation) throws Exception {
-      if (producer == null) {
-        initialize();
+    public byte[] encode(Row row) {
+      if (builder == null) {
+        builder = new StringBuilder();
+      }
+      builder.setLength(0);
+
+      for (int i = 0; i < fieldIndexes.length; i++) {
+        if (i > 0) {
+          builder.append(delimiter);
+        }
+
+        Object value = row.get(fieldIndexes[i]);
+        builder.append(value != null ? value : nullValue);
       }
 
-      List<Object> values = Lists.newArrayList();
+      return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class AvroRowEncoder implements RowEncoder {
+    private StructType schema;
+    private transient Schema avroSchema;
+    private transient GenericDatumWriter<GenericRecord> writer;
+    private transient ByteArrayOutputStream out;
+    private transient BinaryEncoder encoder;
+
+    AvroRowEncoder(StructType schema) {
+      this.schema = schema;
+    }
 
-      for (int fieldIndex = 0; fieldIndex < mutation.size(); fieldIndex++) {
-        values.add(mutation.get(fieldIndex));
+    @Override
+    public byte[] encode(Row row) throws IOException {
+      if (writer == null) {
+        avroSchema = AvroUtils.schemaFor(schema);
+        writer = new GenericDatumWriter<>(avroSchema);
+        out = new ByteArrayOutputStream();
       }
+      out.reset();
 
-      String message = joiner.join(values);
+      encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+      writer.write(AvroUtils.recordFor(row, avroSchema), encoder);
+      encoder.flush();
 
-      producer.send(new ProducerRecord<String, String>(topic, message));
+      return out.toByteArray();
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class BinaryFieldEncoder implements RowEncoder {
+    private int fieldIndex;
+
+    BinaryFieldEncoder(int fieldIndex) {
+      this.fieldIndex = fieldIndex;
+    }
+
+    @Override
+    public byte[] encode(Row row) {
+      Object value = row.get(fieldIndex);
+
+      if (value == null || value instanceof byte[]) {
+        return (byte[])value;
+      }
+      else {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+      }
     }
   }
 
@@ -15,62 +15,73 @@
  */
 package com.cloudera.labs.envelope.output;
 
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import org.apache.kudu.ColumnSchema;
-import org.apache.kudu.client.KuduClient;
+import org.apache.kudu.Schema;
+import org.apache.kudu.client.AsyncKuduScanner;
+import org.apache.kudu.client.AsyncKuduScanner.AsyncKuduScannerBuilder;
+import org.apache.kudu.client.AsyncKuduSession;
 import org.apache.kudu.client.KuduException;
 import org.apache.kudu.client.KuduPredicate;
-import org.apache.kudu.client.KuduScanner;
-import org.apache.kudu.client.KuduScanner.KuduScannerBuilder;
-import org.apache.kudu.client.KuduSession;
 import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.LocatedTablet;
 import org.apache.kudu.client.Operation;
+import org.apache.kudu.client.OperationResponse;
 import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.Partition;
 import org.apache.kudu.client.RowError;
 import org.apache.kudu.client.RowResult;
-import org.apache.kudu.client.SessionConfiguration.FlushMode;
+import org.apache.kudu.client.RowResultIterator;
 import org.apache.kudu.spark.kudu.KuduContext;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
-import com.cloudera.labs.envelope.spark.AccumulatorRequest;
-import com.cloudera.labs.envelope.spark.Accumulators;
-import com.cloudera.labs.envelope.spark.RowWithSchema;
-import com.cloudera.labs.envelope.spark.UsesAccumulators;
-import com.cloudera.labs.envelope.utils.RowUtils;
+import com.cloudera.labs.envelope.utils.kudu.KuduConnection;
+import com.cloudera.labs.envelope.utils.kudu.KuduConnections;
+import com.cloudera.labs.envelope.utils.kudu.KuduRowConverter;
+import com.cloudera.labs.envelope.utils.kudu.KuduRowConverter.RowWriter;
+import com.cloudera.labs.envelope.utils.kudu.KuduSessionPool;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.Callback;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
+public class KuduOutput implements RandomOutput, BulkOutput, ProjectsExistingFields, SupportsConcurrentLookups {
 
   public static final String CONNECTION_CONFIG_NAME = "connection";
   public static final String TABLE_CONFIG_NAME = "table.name";
   public static final String INSERT_IGNORE_CONFIG_NAME = "insert.ignore";
-  
-  private static final String ACCUMULATOR_NUMBER_OF_SCANNERS = "Number of Kudu scanners";
-  private static final String ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED = "Number of filters scanned in Kudu";
-  private static final String ACCUMULATOR_SECONDS_SCANNING = "Seconds spent scanning Kudu";
+  public static final String BATCH_SIZE_CONFIG_NAME = "batch.size";
+  public static final String MAX_BATCHES_IN_FLIGHT_CONFIG_NAME = "batches.in.flight.max";
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 4;
+  private static final int MAX_ROW_ERRORS_LOGGED = 100;
 
   private Config config;
-  private Accumulators accumulators;
+  private List<String> existingFieldNames;
+  private KuduRowConverter existingConverter;
 
-  private static KuduClient client;
-  private static KuduSession session;
-  private static Map<String, KuduTable> tables;
-  private static Map<String, StructType> tableSchemas;
 
   private static Logger LOG = LoggerFactory.getLogger(KuduOutput.class);
 
@@ -85,22 +96,136 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
 
     List<Operation> operations = extractOperations(planned, table);
 
-    for (Operation operation : operations) {
-      session.apply(operation);
+    KuduSessionPool sessions = getConnection().getSessionPool(table.getName());
+
+    applyOperations(operations, sessions, getBatchSize(), getMaxBatchesInFlight(), isInsertIgnore());
+  }
+
+  /**
+   * Apply the operations in batches, each flushed by a session of the pool, and wait until all of
+   * the batches have completed.
+   * @throws RuntimeException If a batch failed, or if any operations had row errors.
+   */
+  static void applyOperations(List<Operation> operations, KuduSessionPool sessions,
+                              int batchSize, int maxBatchesInFlight, boolean insertIgnore) throws Exception {
+    BatchErrors batchErrors = new BatchErrors();
+    Semaphore batchesInFlight = new Semaphore(maxBatchesInFlight);
+
+    // Each batch is flushed by a session taken from the pool, and the next batch is only started
+    // once fewer than the maximum number of batches are in flight, so the tablet servers are kept
+    // fed without buffering all operations
+    for (int batchStart = 0; batchStart < operations.size(); batchStart += batchSize) {
+      List<Operation> batch = operations.subList(batchStart, Math.min(batchStart + batchSize, operations.size()));
+
+      batchesInFlight.acquire();
+      AsyncKuduSession session = sessions.take();
+      session.setMutationBufferSpace(batch.size());
+      session.setIgnoreAllDuplicateRows(insertIgnore);
+
+      // The session is always flushed so that it is returned to the pool
+      BatchCallback batchCallback = new BatchCallback(session, sessions, batchesInFlight, batchErrors);
+      try {
+        for (Operation operation : batch) {
+          session.apply(operation);
+        }
+      }
+      finally {
+        session.flush().addCallbacks(batchCallback, batchCallback.errback());
+      }
     }
 
-    // Wait until all operations have completed before checking for errors.
-    while (session.hasPendingOperations()) {
-      Thread.sleep(1);
+    // Wait until all batches have completed before checking for errors
+    batchesInFlight.acquire(maxBatchesInFlight);
+
+    if (batchErrors.getException() != null) {
+      throw new RuntimeException("Kudu output could not apply mutations", batchErrors.getException());
     }
 
-    // Fail fast on any error applying mutations
-    if (session.countPendingErrors() > 0) {
-      RowError firstError = session.getPendingErrors().getRowErrors()[0];
-      String errorMessage = String.format("Kudu output error '%s' during operation '%s' at tablet server '%s'",
-          firstError.getErrorStatus(), firstError.getOperation(), firstError.getTsUUID());
+    List<RowError> rowErrors = batchErrors.getRowErrors();
+    if (!rowErrors.isEmpty()) {
+      for (RowError rowError : rowErrors.subList(0, Math.min(rowErrors.size(), MAX_ROW_ERRORS_LOGGED))) {
+        LOG.error(errorMessageFor(rowError));
+      }
 
-      throw new RuntimeException(errorMessage);
+      throw new RuntimeException(String.format("Kudu output encountered %d row errors, first error: %s",
+          rowErrors.size(), errorMessageFor(rowErrors.get(0))));
+    }
+  }
+
+  private static String errorMessageFor(RowError rowError) {
+    return String.format("Kudu output error '%s' during operation '%s' at tablet server '%s'",
+        rowError.getErrorStatus(), rowError.getOperation(), rowError.getTsUUID());
+  }
+
+  // Collects the row errors of a completed batch and returns its session to the pool
+  private static class BatchCallback implements Callback<Void, List<OperationResponse>> {
+    private AsyncKuduSession session;
+    private KuduSessionPool sessions;
+    private Semaphore batchesInFlight;
+    private BatchErrors batchErrors;
+
+    public BatchCallback(AsyncKuduSession session, KuduSessionPool sessions, Semaphore batchesInFlight,
+                         BatchErrors batchErrors) {
+      this.session = session;
+      this.sessions = sessions;
+      this.batchesInFlight = batchesInFlight;
+      this.batchErrors = batchErrors;
+    }
+
+    private void completed() {
+      sessions.release(session);
+      batchesInFlight.release();
+    }
+
+    @Override
+    public Void call(List<OperationResponse> responses) {
+      try {
+        batchErrors.addRowErrors(OperationResponse.collectErrors(responses));
+      }
+      finally {
+        completed();
+      }
+
+      return null;
+    }
+
+    public Callback<Void, Exception> errback() {
+      return new Callback<Void, Exception>() {
+        @Override
+        public Void call(Exception batchException) {
+          try {
+            batchErrors.setException(batchException);
+          }
+          finally {
+            completed();
+          }
+
+          return null;
+        }
+      };
+    }
+  }
+
+  private static class BatchErrors {
+    private List<RowError> rowErrors = Lists.newArrayList();
+    private Exception exception;
+
+    public synchronized void addRowErrors(List<RowError> batchRowErrors) {
+      rowErrors.addAll(batchRowErrors);
+    }
+
+    public synchronized void setException(Exception batchException) {
+      if (exception == null) {
+        exception = batchException;
+      }
+    }
+
+    public synchronized List<RowError> getRowErrors() {
+      return rowErrors;
+    }
+
+    public synchronized Exception getException() {
+      return exception;
     }
   }
 
@@ -117,170 +242,277 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
   @Override
   public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
     List<Row> existingForFilters = Lists.newArrayList();
+    List<Row> filtersList = Lists.newArrayList(filters);
 
-    if (!filters.iterator().hasNext()) {
+    if (filtersList.isEmpty()) {
       return existingForFilters;
     }
 
+    if (filtersList.get(0).schema() == null) {
+      throw new RuntimeException("Kudu existing filter did not contain a schema.");
+    }
+
     KuduTable table = connectToTable();
-    KuduScanner scanner = scannerForFilters(filters, table);
+    KuduRowConverter converter = getExistingConverter(table);
+    Collection<List<Row>> filtersByTablet = groupFiltersByTablet(filtersList, table);
 
+    // The tablets are scanned concurrently, and the rows of each scanner are converted as they arrive
     long startTime = System.nanoTime();
-    while (scanner.hasMoreRows()) {
-      for (RowResult rowResult : scanner.nextRows()) {
-        Row existing = resultAsRow(rowResult, table);
-
-        existingForFilters.add(existing);
-      }
+    List<Deferred<List<Row>>> scans = Lists.newArrayList();
+    for (List<Row> tabletFilters : filtersByTablet) {
+      AsyncKuduScanner scanner = scannerForFilters(tabletFilters, table, converter);
+      scans.add(new TabletScan(scanner, converter, tabletFilters).start());
     }
-    long endTime = System.nanoTime();
-    if (hasAccumulators()) {
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_SCANNING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+    for (List<Row> existingForTablet : Deferred.group(scans).join()) {
+      existingForFilters.addAll(existingForTablet);
     }
+    long endTime = System.nanoTime();
+
+    // Lookups can run off the task thread, where the accumulators of the step can not be added to
+    LOG.debug("Kudu output scanned {} filters with {} scanners in {} seconds", filtersList.size(),
+        filtersByTablet.size(), (endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
 
     return existingForFilters;
   }
 
-  private synchronized KuduTable connectToTable() throws KuduException {
-    if (client == null) {
-      LOG.info("Connecting to Kudu");
+  @Override
+  public void receiveExistingFieldNames(List<String> fieldNames) {
+    this.existingFieldNames = fieldNames;
+  }
+
+  private KuduConnection getConnection() {
+    return KuduConnections.getConnection(config.getString(CONNECTION_CONFIG_NAME));
+  }
 
-      String masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
+  private KuduTable connectToTable() throws KuduException {
+    return getConnection().getTable(config.getString(TABLE_CONFIG_NAME));
+  }
 
-      client = new KuduClient.KuduClientBuilder(masterAddresses).build();
-      session = client.newSession();
-      session.setFlushMode(FlushMode.AUTO_FLUSH_BACKGROUND);
-      session.setMutationBufferSpace(10000);
-      session.setIgnoreAllDuplicateRows(isInsertIgnore());
+  // Filters are grouped by the tablet that their key would be stored in, and filters that could
+  // not be stored in any tablet are dropped. When the filters do not contain the whole primary key
+  // they are all kept in one group. The tablet locations are cached by the connection, and are only
+  // retrieved again when a key is not in any of the cached tablets, e.g. after a range partition
+  // has been added.
+  private Collection<List<Row>> groupFiltersByTablet(List<Row> filters, KuduTable table) throws Exception {
+    Schema tableSchema = table.getSchema();
+    StructType filterSchema = filters.get(0).schema();
+    List<String> filterFieldNames = Arrays.asList(filterSchema.fieldNames());
+
+    for (ColumnSchema keyColumn : tableSchema.getPrimaryKeyColumns()) {
+      if (!filterFieldNames.contains(keyColumn.getName())) {
+        return Collections.singletonList(filters);
+      }
+    }
+
+    RowWriter writer = getConnection().getConverter(table).writerFor(filterSchema);
+    List<Row> keyedFilters = Lists.newArrayList();
+    List<byte[]> partitionKeys = Lists.newArrayList();
 
-      LOG.info("Connection to Kudu established");
+    for (Row filter : filters) {
+      // Keys with null values can not be stored in Kudu
+      if (hasNullValue(filter)) {
+        continue;
+      }
+
+      PartialRow keyRow = tableSchema.newPartialRow();
+      writer.write(filter, keyRow);
+      keyedFilters.add(filter);
+      partitionKeys.add(table.getPartitionSchema().encodePartitionKey(keyRow));
     }
 
-    String tableName = config.getString(TABLE_CONFIG_NAME);
-    KuduTable table = getTable(tableName);
+    List<LocatedTablet> tablets = getConnection().getTabletLocations(table);
+    Map<Integer, List<Row>> filtersByTablet = groupKeysByTablet(keyedFilters, partitionKeys, tablets, false);
+
+    if (filtersByTablet == null) {
+      tablets = getConnection().refreshTabletLocations(table);
+      filtersByTablet = groupKeysByTablet(keyedFilters, partitionKeys, tablets, true);
+    }
 
-    return table;
+    return filtersByTablet.values();
   }
 
-  private Row resultAsRow(RowResult result, KuduTable table) throws KuduException {
-    List<Object> values = Lists.newArrayList();
+  // Returns null if a key is not in any of the tablets and the missing keys are not dropped
+  private static Map<Integer, List<Row>> groupKeysByTablet(List<Row> filters, List<byte[]> partitionKeys,
+                                                           List<LocatedTablet> tablets, boolean dropMissing) {
+    Map<Integer, List<Row>> filtersByTablet = Maps.newHashMap();
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String columnName = columnSchema.getName();
+    for (int i = 0; i < filters.size(); i++) {
+      int tablet = tabletFor(partitionKeys.get(i), tablets);
 
-      if (result.isNull(columnName)) {
-        values.add(null);
+      if (tablet == -1) {
+        if (!dropMissing) {
+          return null;
+        }
         continue;
       }
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          values.add(result.getDouble(columnName));
-          break;
-        case FLOAT:
-          values.add(result.getFloat(columnName));
-          break;
-        case INT32:
-          values.add(result.getInt(columnName));
-          break;
-        case INT64:
-          values.add(result.getLong(columnName));
-          break;
-        case STRING:
-          values.add(result.getString(columnName));
-          break;
-        case BOOL:
-          values.add(result.getBoolean(columnName));
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
+      if (!filtersByTablet.containsKey(tablet)) {
+        filtersByTablet.put(tablet, Lists.<Row>newArrayList());
       }
+      filtersByTablet.get(tablet).add(filters.get(i));
     }
 
-    Row row = new RowWithSchema(getTableSchema(table), values.toArray());
+    return filtersByTablet;
+  }
 
-    return row;
+  private static boolean hasNullValue(Row row) {
+    for (int i = 0; i < row.length(); i++) {
+      if (row.isNullAt(i)) {
+        return true;
+      }
+    }
+
+    return false;
   }
 
-  private StructType schemaFor(KuduTable table) {
-    List<String> fieldNames = Lists.newArrayList();
-    List<String> fieldTypes = Lists.newArrayList();
+  // The tablets are in partition key order, and an empty end key is the end of the table
+  private static int tabletFor(byte[] partitionKey, List<LocatedTablet> tablets) {
+    Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+    int low = 0;
+    int high = tablets.size() - 1;
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String fieldName = columnSchema.getName();
-      String fieldType;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      Partition partition = tablets.get(middle).getPartition();
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          fieldType = "double";
-          break;
-        case FLOAT:
-          fieldType = "float";
-          break;
-        case INT32:
-          fieldType = "int";
-          break;
-        case INT64:
-          fieldType = "long";
-          break;
-        case STRING:
-          fieldType = "string";
-          break;
-        case BOOL:
-          fieldType = "boolean";
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
+      if (comparator.compare(partitionKey, partition.getPartitionKeyStart()) < 0) {
+        high = middle - 1;
+      }
+      else if (partition.getPartitionKeyEnd().length > 0 &&
+               comparator.compare(partitionKey, partition.getPartitionKeyEnd()) >= 0) {
+        low = middle + 1;
+      }
+      else {
+        return middle;
       }
-
-      fieldNames.add(fieldName);
-      fieldTypes.add(fieldType);
     }
 
-    StructType tableSchema = RowUtils.structTypeFor(fieldNames, fieldTypes);
+    return -1;
+  }
+
+  private AsyncKuduScanner scannerForFilters(List<Row> filters, KuduTable table, KuduRowConverter converter) {
+    AsyncKuduScannerBuilder builder = table.getAsyncClient().newScannerBuilder(table);
+    builder.setProjectedColumnNames(Arrays.asList(converter.getSchema().fieldNames()));
 
-    return tableSchema;
+    for (String fieldName : filters.get(0).schema().fieldNames()) {
+      ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
+      int fieldIndex = filters.get(0).fieldIndex(fieldName);
+
+      builder.addPredicate(inListPredicateFor(columnSchema, filters, fieldIndex));
+    }
+
+    return builder.build();
   }
 
-  private KuduScanner scannerForFilters(Iterable<Row> filters, KuduTable table) {
-    List<Row> filtersList = Lists.newArrayList(filters);
+  // The Kudu client only accepts the Java types of its own columns in predicates, so timestamps are
+  // given as their microseconds and binary values as byte arrays. Binary values are deduplicated
+  // by their content.
+  static KuduPredicate inListPredicateFor(ColumnSchema columnSchema, List<Row> filters, int fieldIndex) {
+    Set<Object> columnValues = Sets.newLinkedHashSet();
+    for (Row filter : filters) {
+      Object value = filter.get(fieldIndex);
 
-    if (filtersList.size() == 0) {
-      throw new RuntimeException("Kudu existing filter was not provided.");
+      if (value instanceof Timestamp) {
+        value = KuduRowConverter.microsFor((Timestamp)value);
+      }
+      else if (value instanceof byte[]) {
+        value = ByteBuffer.wrap((byte[])value);
+      }
+
+      columnValues.add(value);
     }
-    
-    if (filtersList.get(0).schema() == null) {
-      throw new RuntimeException("Kudu existing filter did not contain a schema.");
+
+    List<Object> predicateValues = Lists.newArrayListWithCapacity(columnValues.size());
+    for (Object value : columnValues) {
+      if (value instanceof ByteBuffer) {
+        ByteBuffer buffer = ((ByteBuffer)value).duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        value = bytes;
+      }
+
+      predicateValues.add(value);
+    }
+
+    return KuduPredicate.newInListPredicate(columnSchema, predicateValues);
+  }
+
+  // Scans the rows of a tablet for a group of filters. The in-list predicates of the scan can
+  // match combinations of the key values that are not filters, so only the rows that exactly
+  // match a filter are kept.
+  private static class TabletScan implements Callback<Deferred<List<Row>>, RowResultIterator> {
+    private AsyncKuduScanner scanner;
+    private KuduRowConverter converter;
+    private int[] keyOrdinals;
+    private Set<List<Object>> keys = Sets.newHashSet();
+    private List<Row> existing = Lists.newArrayList();
+
+    public TabletScan(AsyncKuduScanner scanner, KuduRowConverter converter, List<Row> filters) {
+      this.scanner = scanner;
+      this.converter = converter;
+
+      String[] keyFieldNames = filters.get(0).schema().fieldNames();
+      int[] filterOrdinals = new int[keyFieldNames.length];
+      keyOrdinals = new int[keyFieldNames.length];
+      for (int i = 0; i < keyFieldNames.length; i++) {
+        filterOrdinals[i] = i;
+        keyOrdinals[i] = converter.getSchema().fieldIndex(keyFieldNames[i]);
+      }
+
+      for (Row filter : filters) {
+        keys.add(keyFor(filter, filterOrdinals));
+      }
     }
-    
-    if (hasAccumulators()) {
-      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_SCANNERS).add(1);
-      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED).add(filtersList.size());
+
+    public Deferred<List<Row>> start() {
+      return scanner.nextRows().addCallbackDeferring(this);
     }
-    
-    KuduScannerBuilder builder = client.newScannerBuilder(table);
 
-    for (String fieldName : filtersList.get(0).schema().fieldNames()) {
-      ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
+    @Override
+    public Deferred<List<Row>> call(RowResultIterator results) {
+      if (results != null) {
+        for (RowResult result : results) {
+          Row row = converter.toRow(result);
 
-      List<Object> columnValues = Lists.newArrayList();
-      for (Row filter : filtersList) {
-        Object columnValue = RowUtils.get(filter, fieldName);
-        columnValues.add(columnValue);
+          if (keys.contains(keyFor(row, keyOrdinals))) {
+            existing.add(row);
+          }
+        }
       }
 
-      KuduPredicate predicate = KuduPredicate.newInListPredicate(columnSchema, columnValues);
+      if (scanner.hasMoreRows()) {
+        return scanner.nextRows().addCallbackDeferring(this);
+      }
 
-      builder = builder.addPredicate(predicate);
+      return Deferred.fromResult(existing);
     }
 
-    KuduScanner scanner = builder.build();
+    // Binary values are compared by content and timestamps by their microseconds in Kudu
+    private static List<Object> keyFor(Row row, int[] ordinals) {
+      List<Object> key = Lists.newArrayListWithCapacity(ordinals.length);
+
+      for (int ordinal : ordinals) {
+        Object value = row.get(ordinal);
+
+        if (value instanceof byte[]) {
+          value = ByteBuffer.wrap((byte[])value);
+        }
+        else if (value instanceof Timestamp) {
+          value = KuduRowConverter.microsFor((Timestamp)value);
+        }
+
+        key.add(value);
+      }
 
-    return scanner;
+      return key;
+    }
   }
 
   private List<Operation> extractOperations(List<PlannedRow> planned, KuduTable table) throws Exception {
     List<Operation> operations = Lists.newArrayList();
+    KuduRowConverter converter = getConnection().getConverter(table);
+    StructType lastSchema = null;
+    RowWriter writer = null;
 
     for (PlannedRow plan : planned) {
       MutationType mutationType = plan.getMutationType();
@@ -311,36 +543,12 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
         throw new RuntimeException("Plan sent to Kudu output does not contain a schema");
       }
 
-      for (StructField field : planRow.schema().fields()) {
-        String fieldName = field.name();
-        ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
-
-        if (!planRow.isNullAt(planRow.fieldIndex(fieldName))) {
-          int fieldIndex = planRow.fieldIndex(fieldName);
-          switch (columnSchema.getType()) {
-            case DOUBLE:
-              kuduRow.addDouble(fieldName, planRow.getDouble(fieldIndex));
-              break;
-            case FLOAT:
-              kuduRow.addFloat(fieldName, planRow.getFloat(fieldIndex));
-              break;
-            case INT32:
-              kuduRow.addInt(fieldName, planRow.getInt(fieldIndex));
-              break;
-            case INT64:
-              kuduRow.addLong(fieldName, planRow.getLong(fieldIndex));
-              break;
-            case STRING:
-              kuduRow.addString(fieldName, planRow.getString(fieldIndex));
-              break;
-            case BOOL:
-              kuduRow.addBoolean(fieldName, planRow.getBoolean(fieldIndex));
-              break;
-            default:
-              throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
-          }
-        }
+      // The planned rows of a batch almost always share a schema
+      if (planRow.schema() != lastSchema) {
+        lastSchema = planRow.schema();
+        writer = converter.writerFor(lastSchema);
       }
+      writer.write(planRow, kuduRow);
 
       operations.add(operation);
     }
@@ -348,39 +556,31 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
     return operations;
   }
 
-  private synchronized KuduTable getTable(String tableName) throws KuduException {
-    if (tables == null) {
-      tables = Maps.newHashMap();
-    }
-
-    if (tables.containsKey(tableName)) {
-      return tables.get(tableName);
-    }
-    else {
-      KuduTable table = client.openTable(tableName);
-      tables.put(tableName, table);
-      return table;
-    }
-  }
+  // Converts the existing records, which only contain the primary key and the existing field
+  // names when they have been provided
+  private synchronized KuduRowConverter getExistingConverter(KuduTable table) {
+    if (existingConverter == null) {
+      if (existingFieldNames == null) {
+        existingConverter = getConnection().getConverter(table);
+      }
+      else {
+        List<ColumnSchema> projectedColumns = Lists.newArrayList();
+        for (ColumnSchema column : table.getSchema().getColumns()) {
+          if (column.isKey() || existingFieldNames.contains(column.getName())) {
+            projectedColumns.add(column);
+          }
+        }
 
-  private synchronized StructType getTableSchema(KuduTable table) throws KuduException {
-    if (tableSchemas == null) {
-      tableSchemas = Maps.newHashMap();
+        existingConverter = new KuduRowConverter(new Schema(projectedColumns));
+      }
     }
 
-    if (tableSchemas.containsKey(table.getName())) {
-      return tableSchemas.get(table.getName());
-    }
-    else {
-      StructType tableSchema = schemaFor(table);
-      tableSchemas.put(table.getName(), tableSchema);
-      return tableSchema;
-    }
+    return existingConverter;
   }
 
   @Override
   public void applyBulkMutations(List<Tuple2<MutationType, Dataset<Row>>> planned) {
-    KuduContext kc = new KuduContext(config.getString(CONNECTION_CONFIG_NAME));
+    KuduContext kc = getConnection().getKuduContext();
 
     for (Tuple2<MutationType, Dataset<Row>> plan : planned) {
       MutationType mutationType = plan._1();
@@ -417,24 +617,13 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
     return config.hasPath(INSERT_IGNORE_CONFIG_NAME) && config.getBoolean(INSERT_IGNORE_CONFIG_NAME);
   }
   
-  private boolean hasAccumulators() {
-    return accumulators != null;
+  private int getBatchSize() {
+    return config.hasPath(BATCH_SIZE_CONFIG_NAME) ? config.getInt(BATCH_SIZE_CONFIG_NAME) : DEFAULT_BATCH_SIZE;
   }
 
-  @Override
-  public Set<AccumulatorRequest> getAccumulatorRequests() {
-    LOG.info("Kudu output requesting accumulators");
-    
-    return Sets.newHashSet(new AccumulatorRequest(ACCUMULATOR_NUMBER_OF_SCANNERS, Long.class),
-                           new AccumulatorRequest(ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED, Long.class),
-                           new AccumulatorRequest(ACCUMULATOR_SECONDS_SCANNING, Double.class));
-  }
-
-  @Override
-  public void receiveAccumulators(Accumulators accumulators) {
-    this.accumulators = accumulators;
-    
-    LOG.info("Kudu output received accumulators");
+  private int getMaxBatchesInFlight() {
+    return config.hasPath(MAX_BATCHES_IN_FLIGHT_CONFIG_NAME) ?
+        config.getInt(MAX_BATCHES_IN_FLIGHT_CONFIG_NAME) : DEFAULT_MAX_BATCHES_IN_FLIGHT;
   }
 
 }
@@ -0,0 +1,32 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.List;
+
+/**
+ * Random outputs that can retrieve only some of the fields of the existing records.
+ */
+public interface ProjectsExistingFields {
+
+  /**
+   * Receive the list of field names that the existing records retrieved by
+   * {@link RandomOutput#getExistingForFilters(Iterable)} need to contain. Fields that are not in
+   * the list may be left out of the existing records.
+   */
+  void receiveExistingFieldNames(List<String> fieldNames);
+
+}
@@ -37,7 +37,8 @@ public interface RandomOutput extends Output {
    * Apply the random mutations to the external sink of the output.
    * @param planned The list of random mutations, where each mutation is composed of an object of a
    * mutation type and the mutation data as a Spark SQL Row. The output must apply the mutations in
-   * the same order as the list.
+   * the same order as the list. The list may be reused by the caller once this method returns, so
+   * the output must not keep a reference to it.
    */
   void applyRandomMutations(List<PlannedRow> planned) throws Exception;
 
@@ -48,6 +49,10 @@ public interface RandomOutput extends Output {
    * the iterable collection is a batch of keys (each defined as a Row).
    * @return The iterable collection of existing records that match the filters. There can be
    * zero-to-one-to-many existing record rows per filter row.
+   * Unless the output implements {@link SupportsConcurrentLookups} this is never called while
+   * {@link #applyRandomMutations(List)} or another call of this method runs on the same instance.
+   * This may be called from a thread other than the thread of the Spark task, so the output must
+   * not add to accumulators here.
    */
   Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception;
 
@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+/**
+ * Random outputs that can retrieve existing records from other threads while the same instance
+ * retrieves other existing records or applies mutations.
+ *
+ * Envelope only looks up the next batches of keys while it plans and applies the mutations of
+ * the current batch, and only has more than one lookup in flight at once, for outputs that
+ * implement this interface. Other outputs are never queried by
+ * {@link RandomOutput#getExistingForFilters(Iterable)} while
+ * {@link RandomOutput#applyRandomMutations(java.util.List)} runs.
+ */
+public interface SupportsConcurrentLookups {
+
+}
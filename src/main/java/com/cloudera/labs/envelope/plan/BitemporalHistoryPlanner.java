@@ -16,14 +16,8 @@
 package com.cloudera.labs.envelope.plan;
 
 import static com.cloudera.labs.envelope.utils.ConfigUtils.assertConfig;
-import static com.cloudera.labs.envelope.utils.RowUtils.after;
-import static com.cloudera.labs.envelope.utils.RowUtils.append;
-import static com.cloudera.labs.envelope.utils.RowUtils.before;
-import static com.cloudera.labs.envelope.utils.RowUtils.compareTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.different;
 import static com.cloudera.labs.envelope.utils.RowUtils.get;
 import static com.cloudera.labs.envelope.utils.RowUtils.precedingTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.set;
 import static com.cloudera.labs.envelope.utils.RowUtils.simultaneous;
 
 import java.util.Collections;
@@ -35,6 +29,8 @@ import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 
+import com.cloudera.labs.envelope.spark.MutableRowWithSchema;
+import com.cloudera.labs.envelope.utils.RowAccessor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -56,6 +52,10 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
   private Config config;
+  private MutableRowWithSchema.Layouts arrivingLayouts;
+  private MutableRowWithSchema.Layouts existingLayouts;
+  private RowAccessor timestampAccessor;
+  private RowAccessor valuesAccessor;
 
   @Override
   public void configure(Config config) {
@@ -89,41 +89,48 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     }
 
     long currentSystemTime = System.currentTimeMillis();
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(timestampFieldName);
+    if (timestampAccessor == null) {
+      timestampAccessor = new RowAccessor(timestampFieldName);
+      valuesAccessor = new RowAccessor(valueFieldNames);
+    }
+
+    Comparator<PlannedRow> tc = new PlanTimestampComparator(timestampAccessor);
 
     List<PlannedRow> plannedForKey = Lists.newArrayList();
 
-    // Filter out existing entries for this key that have already been closed
+    // Filter out existing entries for this key that have already been closed. The planned rows
+    // are changed in place, so the existing rows are copied before planning.
     if (existingForKey != null) {
       for (Row existing : existingForKey) {
-        if (currentSystemTime < (long)get(existing, systemTimeEffectiveToFieldName)) {
-          plannedForKey.add(new PlannedRow(existing, MutationType.NONE));
+        if (currentSystemTime < existing.getLong(existing.fieldIndex(systemTimeEffectiveToFieldName))) {
+          MutableRowWithSchema existingCopy = MutableRowWithSchema.copyOf(existing, getExistingLayouts().get(existing.schema()));
+          plannedForKey.add(new PlannedRow(existingCopy, MutationType.NONE));
         }
       }
     }
 
     Collections.sort(plannedForKey, tc);
-    Collections.sort(arrivingForKey, new ArrivingTimestampComparator(timestampFieldName));
-
-    for (Row arriving : arrivingForKey) {
-      arriving = append(arriving, eventTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, eventTimeEffectiveToFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveToFieldName, DataTypes.LongType, null);
-      if (hasCurrentFlagField) {
-        arriving = append(arriving, currentFlagFieldName, DataTypes.StringType, null);
-      }
+    Collections.sort(arrivingForKey, new ArrivingTimestampComparator(timestampAccessor));
 
-      Long arrivingTimestamp = (Long)get(arriving, timestampFieldName);
+    for (Row arrived : arrivingForKey) {
+      // The arriving row is copied once into a row that has the planned fields appended
+      MutableRowWithSchema arriving = MutableRowWithSchema.copyOf(arrived, getArrivingLayouts().get(arrived.schema()));
+      int eventTimeEffectiveFromIndex = arriving.fieldIndex(eventTimeEffectiveFromFieldName);
+      int eventTimeEffectiveToIndex = arriving.fieldIndex(eventTimeEffectiveToFieldName);
+      int systemTimeEffectiveFromIndex = arriving.fieldIndex(systemTimeEffectiveFromFieldName);
+      int systemTimeEffectiveToIndex = arriving.fieldIndex(systemTimeEffectiveToFieldName);
+      int currentFlagIndex = hasCurrentFlagField ? arriving.fieldIndex(currentFlagFieldName) : -1;
+
+      long arrivingTimestamp = timestampAccessor.getLong(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
       if (plannedForKey.isEmpty()) {
-        arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-        arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-        arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-        arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+        arriving.setLong(eventTimeEffectiveFromIndex, arrivingTimestamp);
+        arriving.setLong(eventTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
+        arriving.setLong(systemTimeEffectiveFromIndex, currentSystemTime);
+        arriving.setLong(systemTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
         if (hasCurrentFlagField) {
-          arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
+          arriving.set(currentFlagIndex, CURRENT_FLAG_YES);
         }
         plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
@@ -134,7 +141,8 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
       // have either corrected the history or gone all the way through it.
       for (int position = 0; position < plannedForKey.size(); position++) {
         PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)get(plan.getRow(), timestampFieldName);
+        MutableRowWithSchema planRow = (MutableRowWithSchema)plan.getRow();
+        long planTimestamp = timestampAccessor.getLong(planRow);
         PlannedRow previousPlanned = null;
         PlannedRow nextPlanned = null;
         Long nextPlannedTimestamp = null;
@@ -144,27 +152,26 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
         }
         if (position + 1 < plannedForKey.size()) {
           nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)get(nextPlanned.getRow(), timestampFieldName);
+          nextPlannedTimestamp = timestampAccessor.getLong(nextPlanned.getRow());
         }
 
         // There is an existing record for the same key and timestamp. It is possible that
         // the existing record is in the storage layer or is about to be added during this
         // micro-batch. Either way, we only update that record if it has changed.
-        if (simultaneous(arriving, plan.getRow(), timestampFieldName) &&
-          different(arriving, plan.getRow(), valueFieldNames))
+        if (arrivingTimestamp == planTimestamp && valuesAccessor.different(arriving, planRow))
         {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, get(plan.getRow(), eventTimeEffectiveFromFieldName));
-          arriving = set(arriving, eventTimeEffectiveToFieldName, get(plan.getRow(), eventTimeEffectiveToFieldName));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+          arriving.set(eventTimeEffectiveFromIndex, get(planRow, eventTimeEffectiveFromFieldName));
+          arriving.set(eventTimeEffectiveToIndex, get(planRow, eventTimeEffectiveToFieldName));
+          arriving.setLong(systemTimeEffectiveFromIndex, currentSystemTime);
+          arriving.setLong(systemTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
           if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, get(plan.getRow(), currentFlagFieldName));
+            arriving.set(currentFlagIndex, get(planRow, currentFlagFieldName));
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
+          setLong(planRow, systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime));
           if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
+            planRow.set(planRow.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
           }
           if (!plan.getMutationType().equals(MutationType.INSERT)) {
             plan.setMutationType(MutationType.UPDATE);
@@ -177,13 +184,13 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
         // The input record is timestamped before any existing record of the same key. In
         // this case there is no need to modify existing records, and we only have to insert
         // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && before(arriving, plan.getRow(), timestampFieldName)) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(planTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+        else if (previousPlanned == null && arrivingTimestamp < planTimestamp) {
+          arriving.setLong(eventTimeEffectiveFromIndex, arrivingTimestamp);
+          arriving.setLong(eventTimeEffectiveToIndex, precedingTimestamp(planTimestamp));
+          arriving.setLong(systemTimeEffectiveFromIndex, currentSystemTime);
+          arriving.setLong(systemTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
           if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
+            arriving.set(currentFlagIndex, CURRENT_FLAG_NO);
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
@@ -194,30 +201,29 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
         // effective until just prior to the next existing record and we update the
         // previous existing record to be effective until just prior to the input record.
         else if (plan != null && nextPlanned != null &&
-             after(arriving, plan.getRow(), timestampFieldName) &&
-             before(arriving, nextPlanned.getRow(), timestampFieldName))
+             arrivingTimestamp > planTimestamp && arrivingTimestamp < nextPlannedTimestamp)
         {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(nextPlannedTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+          arriving.setLong(eventTimeEffectiveFromIndex, arrivingTimestamp);
+          arriving.setLong(eventTimeEffectiveToIndex, precedingTimestamp(nextPlannedTimestamp));
+          arriving.setLong(systemTimeEffectiveFromIndex, currentSystemTime);
+          arriving.setLong(systemTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
           if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
+            arriving.set(currentFlagIndex, CURRENT_FLAG_NO);
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
+          setLong(planRow, systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime));
           if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
+            planRow.set(planRow.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
           }
           if (!plan.getMutationType().equals(MutationType.INSERT)) {
             plan.setMutationType(MutationType.UPDATE);
           }
 
-          Row superseded = plan.getRow();
-          superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-          superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-          superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+          MutableRowWithSchema superseded = planRow.copy();
+          setLong(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
+          setLong(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
+          setLong(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
           plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
 
           break;
@@ -226,37 +232,37 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
         // is the 'normal' case where data arrives in order. We insert the input record
         // effective until the far future, and we update the previous existing record
         // to be effective until just prior to the input record.
-        else if (after(arriving, plan.getRow(), timestampFieldName) && nextPlanned == null) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+        else if (arrivingTimestamp > planTimestamp && nextPlanned == null) {
+          arriving.setLong(eventTimeEffectiveFromIndex, arrivingTimestamp);
+          arriving.setLong(eventTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
+          arriving.setLong(systemTimeEffectiveFromIndex, currentSystemTime);
+          arriving.setLong(systemTimeEffectiveToIndex, FAR_FUTURE_MILLIS);
           if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
+            arriving.set(currentFlagIndex, CURRENT_FLAG_YES);
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
           if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
+            planRow.set(planRow.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
           }
 
-          if ((long)get(plan.getRow(), systemTimeEffectiveFromFieldName) < currentSystemTime) {
-            plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
+          if (getLong(planRow, systemTimeEffectiveFromFieldName) < currentSystemTime) {
+            setLong(planRow, systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime));
             if (!plan.getMutationType().equals(MutationType.INSERT)) {
               plan.setMutationType(MutationType.UPDATE);
             }
 
-            Row superseded = plan.getRow();
-            superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-            superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-            superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+            MutableRowWithSchema superseded = planRow.copy();
+            setLong(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
+            setLong(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
+            setLong(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
             if (hasCurrentFlagField) {
-              superseded = set(superseded, currentFlagFieldName, CURRENT_FLAG_NO);
+              superseded.set(superseded.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
             }
             plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
           }
           else {
-            plan.setRow(set(plan.getRow(), eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp)));
+            setLong(planRow, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
           }
 
           break;
@@ -271,25 +277,24 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     if (doesCarryForward()) {
       for (int position = 0; position < plannedForKey.size(); position++) {
         PlannedRow plan = plannedForKey.get(position);
+        MutableRowWithSchema planRow = (MutableRowWithSchema)plan.getRow();
         // We carry forward for all mutations in case the next non-NONE row needs the values from this row
         if (position > 0) {
-          Row carried = carryForwardWhenNull(plan.getRow(),
-              plannedForKey.get(position - 1).getRow());
-          if (different(plan.getRow(), carried, getValueFieldNames())) {
+          MutableRowWithSchema carried = carryForwardWhenNull(planRow,
+              (MutableRowWithSchema)plannedForKey.get(position - 1).getRow());
+          if (valuesAccessor.different(planRow, carried)) {
             // Close existing record and add a new one if not an insert - otherwise just replace
-            Row superseded = plan.getRow();
-            superseded = set(superseded, systemTimeEffectiveToFieldName,
-                precedingTimestamp(currentSystemTime));
+            MutableRowWithSchema superseded = planRow.copy();
+            setLong(superseded, systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime));
             if (hasCurrentFlagField) {
-              superseded = set(superseded, currentFlagFieldName, CURRENT_FLAG_NO);
+              superseded.set(superseded.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
             }
             if (plan.getMutationType().equals(MutationType.INSERT)) {
               plan.setRow(carried);
               // This might supersede a previous insert that we've just added as part of a history re-write
               // Condition: the values are the same, it has the same timestamp and has the same currentSystemTime
               if (planned.size() > 1 &&
-                  simultaneous(plan.getRow(), planned.get(planned.size() - 1).getRow(),
-                      timestampFieldName) &&
+                  timestampAccessor.simultaneous(plan.getRow(), planned.get(planned.size() - 1).getRow()) &&
                   simultaneous(plan.getRow(), planned.get(planned.size() - 1).getRow(),
                       systemTimeEffectiveFromFieldName)) {
                 planned.remove(planned.size() - 1);
@@ -297,10 +302,10 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
               planned.add(plan);
             } else {
               planned.add(new PlannedRow(superseded, MutationType.UPDATE));
-              carried = set(carried, systemTimeEffectiveFromFieldName, currentSystemTime);
-              carried = set(carried, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+              setLong(carried, systemTimeEffectiveFromFieldName, currentSystemTime);
+              setLong(carried, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
               if (hasCurrentFlagField) {
-                carried = set(carried, currentFlagFieldName, CURRENT_FLAG_YES);
+                carried.set(carried.fieldIndex(currentFlagFieldName), CURRENT_FLAG_YES);
               }
               planned.add(new PlannedRow(carried, MutationType.INSERT));
             }
@@ -366,44 +371,87 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
 
   // When the arrived record value is null then we have the option to carry forward
   // the value from the previous record. This is useful for handling sparse records.
-  private Row carryForwardWhenNull(Row into, Row from) {
+  // The row is only copied if there is a value to carry forward into it.
+  private MutableRowWithSchema carryForwardWhenNull(MutableRowWithSchema into, MutableRowWithSchema from) {
     if (!doesCarryForward()) {
       return into;
     }
 
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (get(into, fieldName) == null && get(from, fieldName) != null) {
-        into = set(into, fieldName, get(from, fieldName));
+    MutableRowWithSchema carried = into;
+    StructField[] fields = into.schema().fields();
+
+    for (int i = 0; i < fields.length; i++) {
+      if (into.isNullAt(i)) {
+        int fromIndex = from.fieldIndex(fields[i].name());
+
+        if (!from.isNullAt(fromIndex)) {
+          if (carried == into) {
+            carried = into.copy();
+          }
+          carried.set(i, from.get(fromIndex));
+        }
       }
     }
     
-    return into;
+    return carried;
+  }
+
+  private MutableRowWithSchema.Layouts getArrivingLayouts() {
+    if (arrivingLayouts == null) {
+      List<StructField> plannedFields = Lists.newArrayList(
+          DataTypes.createStructField(getEventTimeEffectiveFromFieldName(), DataTypes.LongType, true),
+          DataTypes.createStructField(getEventTimeEffectiveToFieldName(), DataTypes.LongType, true),
+          DataTypes.createStructField(getSystemTimeEffectiveFromFieldName(), DataTypes.LongType, true),
+          DataTypes.createStructField(getSystemTimeEffectiveToFieldName(), DataTypes.LongType, true));
+      if (hasCurrentFlagField()) {
+        plannedFields.add(DataTypes.createStructField(getCurrentFlagFieldName(), DataTypes.StringType, true));
+      }
+
+      arrivingLayouts = new MutableRowWithSchema.Layouts(plannedFields);
+    }
+
+    return arrivingLayouts;
+  }
+
+  private MutableRowWithSchema.Layouts getExistingLayouts() {
+    if (existingLayouts == null) {
+      existingLayouts = new MutableRowWithSchema.Layouts(Lists.<StructField>newArrayList());
+    }
+
+    return existingLayouts;
+  }
+
+  private static long getLong(MutableRowWithSchema row, String fieldName) {
+    return row.getLong(row.fieldIndex(fieldName));
+  }
+
+  private static void setLong(MutableRowWithSchema row, String fieldName, long value) {
+    row.setLong(row.fieldIndex(fieldName), value);
   }
 
-  private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
+  private static class PlanTimestampComparator implements Comparator<PlannedRow> {
+    private RowAccessor timestampAccessor;
 
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
+    public PlanTimestampComparator(RowAccessor timestampAccessor) {
+      this.timestampAccessor = timestampAccessor;
     }
 
     @Override
     public int compare(PlannedRow p1, PlannedRow p2) {
-      return compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
+      return timestampAccessor.compareTimestamp(p1.getRow(), p2.getRow());
     }
   }
 
-  private class ArrivingTimestampComparator implements Comparator<Row> {
-    private String timestampFieldName;
+  private static class ArrivingTimestampComparator implements Comparator<Row> {
+    private RowAccessor timestampAccessor;
 
-    public ArrivingTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
+    public ArrivingTimestampComparator(RowAccessor timestampAccessor) {
+      this.timestampAccessor = timestampAccessor;
     }
 
     @Override
     public int compare(Row r1, Row r2) {
-      return compareTimestamp(r1, r2, timestampFieldName);
+      return timestampAccessor.compareTimestamp(r1, r2);
     }
   }
 
@@ -27,6 +27,8 @@ import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 
+import com.cloudera.labs.envelope.spark.MutableRowWithSchema;
+import com.cloudera.labs.envelope.utils.RowAccessor;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -36,7 +38,7 @@ import com.typesafe.config.Config;
  * A planner implementation for storing all versions of the values of a key (its history) using
  * Type II SCD modeling.
  */
-public class EventTimeHistoryPlanner implements RandomPlanner {
+public class EventTimeHistoryPlanner implements RandomPlanner, UsesExistingFields {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "fields.values";
@@ -52,6 +54,10 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
   private Config config;
+  private MutableRowWithSchema.Layouts arrivingLayouts;
+  private MutableRowWithSchema.Layouts existingLayouts;
+  private RowAccessor timestampAccessor;
+  private RowAccessor valuesAccessor;
 
   @Override
   public void configure(Config config) {
@@ -66,40 +72,54 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
   @Override
   public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey)
   {   
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(getTimestampFieldName());
+    String timestampFieldName = getTimestampFieldName();
+    List<String> valueFieldNames = getValueFieldNames();
+    String effectiveFromFieldName = getEffectiveFromFieldName();
+    String effectiveToFieldName = getEffectiveToFieldName();
+    boolean hasCurrentFlagField = hasCurrentFlagField();
+    String currentFlagFieldName = hasCurrentFlagField ? getCurrentFlagFieldName() : null;
+    boolean hasLastUpdatedField = hasLastUpdatedField();
+    String lastUpdatedFieldName = hasLastUpdatedField ? getLastUpdatedFieldName() : null;
+
+    if (timestampAccessor == null) {
+      timestampAccessor = new RowAccessor(timestampFieldName);
+      valuesAccessor = new RowAccessor(valueFieldNames);
+    }
+
+    Comparator<PlannedRow> tc = new PlanTimestampComparator(timestampAccessor);
 
     List<PlannedRow> planned = Lists.newArrayList();
     List<PlannedRow> plannedForKey = Lists.newArrayList();
 
+    // The planned rows are changed in place, so the existing rows are copied before planning
     if (existingForKey != null) {
       for (Row existing : existingForKey) {
-        plannedForKey.add(new PlannedRow(existing, MutationType.NONE));
+        MutableRowWithSchema existingCopy = MutableRowWithSchema.copyOf(existing, getExistingLayouts().get(existing.schema()));
+        plannedForKey.add(new PlannedRow(existingCopy, MutationType.NONE));
       }
     }
 
     Collections.sort(plannedForKey, tc);
 
-    for (Row arriving : arrivingForKey) {
-      arriving = RowUtils.append(arriving, getEffectiveFromFieldName(), DataTypes.LongType, null);
-      arriving = RowUtils.append(arriving, getEffectiveToFieldName(), DataTypes.LongType, null);
-      if (hasCurrentFlagField()) {
-        arriving = RowUtils.append(arriving, getCurrentFlagFieldName(), DataTypes.StringType, null);
-      }
-      if (hasLastUpdatedField()) {
-        arriving = RowUtils.append(arriving, getLastUpdatedFieldName(), DataTypes.StringType, null);
-      }
+    for (Row arrived : arrivingForKey) {
+      // The arriving row is copied once into a row that has the planned fields appended
+      MutableRowWithSchema arriving = MutableRowWithSchema.copyOf(arrived, getArrivingLayouts().get(arrived.schema()));
+      int effectiveFromIndex = arriving.fieldIndex(effectiveFromFieldName);
+      int effectiveToIndex = arriving.fieldIndex(effectiveToFieldName);
+      int currentFlagIndex = hasCurrentFlagField ? arriving.fieldIndex(currentFlagFieldName) : -1;
+      int lastUpdatedIndex = hasLastUpdatedField ? arriving.fieldIndex(lastUpdatedFieldName) : -1;
 
-      Long arrivedTimestamp = (Long)RowUtils.get(arriving, getTimestampFieldName());
+      long arrivedTimestamp = timestampAccessor.getLong(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
       if (plannedForKey.size() == 0) {
-        arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-        arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-        if (hasCurrentFlagField()) {
-          arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
+        arriving.setLong(effectiveFromIndex, arrivedTimestamp);
+        arriving.setLong(effectiveToIndex, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arriving.set(currentFlagIndex, CURRENT_FLAG_YES);
         }
-        if (hasLastUpdatedField()) {
-          arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
+        if (hasLastUpdatedField) {
+          arriving.set(lastUpdatedIndex, currentTimestampString());
         }
         plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
@@ -110,7 +130,8 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
       // have either corrected the history or gone all the way through it.
       for (int position = 0; position < plannedForKey.size(); position++) {
         PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)RowUtils.get(plan.getRow(), getTimestampFieldName());
+        MutableRowWithSchema planRow = (MutableRowWithSchema)plan.getRow();
+        long planTimestamp = timestampAccessor.getLong(planRow);
         PlannedRow previousPlanned = null;
         PlannedRow nextPlanned = null;
         Long nextPlannedTimestamp = null;
@@ -120,22 +141,21 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
         }
         if (position + 1 < plannedForKey.size()) {
           nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)RowUtils.get(nextPlanned.getRow(), getTimestampFieldName());
+          nextPlannedTimestamp = timestampAccessor.getLong(nextPlanned.getRow());
         }
 
         // There is an existing record for the same key and timestamp. It is possible that
         // the existing record is in the storage layer or is about to be added during this
         // micro-batch. Either way, we only update that record if it has changed.
-        if (RowUtils.simultaneous(arriving, plan.getRow(), getTimestampFieldName()) &&
-          RowUtils.different(arriving, plan.getRow(), getValueFieldNames()))
+        if (arrivedTimestamp == planTimestamp && valuesAccessor.different(arriving, planRow))
         {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), RowUtils.get(plan.getRow(), getEffectiveFromFieldName()));
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.get(plan.getRow(), getEffectiveToFieldName()));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), RowUtils.get(plan.getRow(), getCurrentFlagFieldName()));
+          arriving.set(effectiveFromIndex, RowUtils.get(planRow, effectiveFromFieldName));
+          arriving.set(effectiveToIndex, RowUtils.get(planRow, effectiveToFieldName));
+          if (hasCurrentFlagField) {
+            arriving.set(currentFlagIndex, RowUtils.get(planRow, currentFlagFieldName));
           }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
+          if (hasLastUpdatedField) {
+            arriving.set(lastUpdatedIndex, currentTimestampString());
           }
 
           if (plan.getMutationType().equals(MutationType.INSERT)) {
@@ -152,14 +172,14 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
         // The input record is timestamped before any existing record of the same key. In
         // this case there is no need to modify existing records, and we only have to insert
         // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && RowUtils.before(arriving, plan.getRow(), getTimestampFieldName())) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(planTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
+        else if (previousPlanned == null && arrivedTimestamp < planTimestamp) {
+          arriving.setLong(effectiveFromIndex, arrivedTimestamp);
+          arriving.setLong(effectiveToIndex, RowUtils.precedingTimestamp(planTimestamp));
+          if (hasCurrentFlagField) {
+            arriving.set(currentFlagIndex, CURRENT_FLAG_NO);
           }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
+          if (hasLastUpdatedField) {
+            arriving.set(lastUpdatedIndex, currentTimestampString());
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
@@ -170,25 +190,24 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
         // effective until just prior to the next existing record and we update the
         // previous existing record to be effective until just prior to the input record.
         else if (plan != null && nextPlanned != null &&
-             RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) &&
-             RowUtils.before(arriving, nextPlanned.getRow(), getTimestampFieldName()))
+             arrivedTimestamp > planTimestamp && arrivedTimestamp < nextPlannedTimestamp)
         {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(nextPlannedTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
+          arriving.setLong(effectiveFromIndex, arrivedTimestamp);
+          arriving.setLong(effectiveToIndex, RowUtils.precedingTimestamp(nextPlannedTimestamp));
+          if (hasCurrentFlagField) {
+            arriving.set(currentFlagIndex, CURRENT_FLAG_NO);
           }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
+          if (hasLastUpdatedField) {
+            arriving.set(lastUpdatedIndex, currentTimestampString());
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
+          planRow.setLong(planRow.fieldIndex(effectiveToFieldName), RowUtils.precedingTimestamp(arrivedTimestamp));
+          if (hasCurrentFlagField) {
+            planRow.set(planRow.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
           }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
+          if (hasLastUpdatedField) {
+            planRow.set(planRow.fieldIndex(lastUpdatedFieldName), currentTimestampString());
           }
           if (!plan.getMutationType().equals(MutationType.INSERT)) {
             plan.setMutationType(MutationType.UPDATE);
@@ -200,23 +219,23 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
         // is the 'normal' case where data arrives in order. We insert the input record
         // effective until the far future, and we update the previous existing record
         // to be effective until just prior to the input record.
-        else if (RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) && nextPlanned == null) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
+        else if (arrivedTimestamp > planTimestamp && nextPlanned == null) {
+          arriving.setLong(effectiveFromIndex, arrivedTimestamp);
+          arriving.setLong(effectiveToIndex, FAR_FUTURE_MILLIS);
+          if (hasCurrentFlagField) {
+            arriving.set(currentFlagIndex, CURRENT_FLAG_YES);
           }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
+          if (hasLastUpdatedField) {
+            arriving.set(lastUpdatedIndex, currentTimestampString());
           }
           plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
+          planRow.setLong(planRow.fieldIndex(effectiveToFieldName), RowUtils.precedingTimestamp(arrivedTimestamp));
+          if (hasCurrentFlagField) {
+            planRow.set(planRow.fieldIndex(currentFlagFieldName), CURRENT_FLAG_NO);
           }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
+          if (hasLastUpdatedField) {
+            planRow.set(planRow.fieldIndex(lastUpdatedFieldName), currentTimestampString());
           }
           if (!plan.getMutationType().equals(MutationType.INSERT)) {
             plan.setMutationType(MutationType.UPDATE);
@@ -229,11 +248,14 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
       Collections.sort(plannedForKey, tc);
     }
 
+    boolean carryForward = config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME);
+
     for (int position = 0; position < plannedForKey.size(); position++) {
       PlannedRow plan = plannedForKey.get(position);
       // We carry forward for all mutations in case the next non-NONE row needs the values from this row
-      if (position > 0) {
-        plan.setRow(carryForwardWhenNull(plan.getRow(), plannedForKey.get(position - 1).getRow()));
+      if (carryForward && position > 0) {
+        carryForwardWhenNull((MutableRowWithSchema)plan.getRow(),
+            (MutableRowWithSchema)plannedForKey.get(position - 1).getRow());
       }
       if (!plan.getMutationType().equals(MutationType.NONE)) {
         planned.add(plan);
@@ -248,6 +270,28 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
   }
 
+  @Override
+  public List<String> getExistingFieldNames() {
+    // Carrying forward can copy any field of the existing records
+    if (config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME)) {
+      return null;
+    }
+
+    List<String> fieldNames = Lists.newArrayList(getKeyFieldNames());
+    fieldNames.add(getTimestampFieldName());
+    fieldNames.addAll(getValueFieldNames());
+    fieldNames.add(getEffectiveFromFieldName());
+    fieldNames.add(getEffectiveToFieldName());
+    if (hasCurrentFlagField()) {
+      fieldNames.add(getCurrentFlagFieldName());
+    }
+    if (hasLastUpdatedField()) {
+      fieldNames.add(getLastUpdatedFieldName());
+    }
+
+    return fieldNames;
+  }
+
   private boolean hasLastUpdatedField() {
     return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
   }
@@ -282,19 +326,44 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
 
   // When the arrived record value is null then we have the option to carry forward
   // the value from the previous record. This is useful for handling sparse stream records.
-  private Row carryForwardWhenNull(Row into, Row from) {
-    if (!config.hasPath(CARRY_FORWARD_CONFIG_NAME) || !config.getBoolean(CARRY_FORWARD_CONFIG_NAME)) {
-      return into;
+  private void carryForwardWhenNull(MutableRowWithSchema into, MutableRowWithSchema from) {
+    StructField[] fields = into.schema().fields();
+
+    for (int i = 0; i < fields.length; i++) {
+      if (into.isNullAt(i)) {
+        int fromIndex = from.fieldIndex(fields[i].name());
+
+        if (!from.isNullAt(fromIndex)) {
+          into.set(i, from.get(fromIndex));
+        }
+      }
     }
+  }
 
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (RowUtils.get(into, fieldName) == null && RowUtils.get(from, fieldName) != null) {
-        into = RowUtils.set(into, fieldName, RowUtils.get(from, fieldName));
+  private MutableRowWithSchema.Layouts getArrivingLayouts() {
+    if (arrivingLayouts == null) {
+      List<StructField> plannedFields = Lists.newArrayList(
+          DataTypes.createStructField(getEffectiveFromFieldName(), DataTypes.LongType, true),
+          DataTypes.createStructField(getEffectiveToFieldName(), DataTypes.LongType, true));
+      if (hasCurrentFlagField()) {
+        plannedFields.add(DataTypes.createStructField(getCurrentFlagFieldName(), DataTypes.StringType, true));
       }
+      if (hasLastUpdatedField()) {
+        plannedFields.add(DataTypes.createStructField(getLastUpdatedFieldName(), DataTypes.StringType, true));
+      }
+
+      arrivingLayouts = new MutableRowWithSchema.Layouts(plannedFields);
+    }
+
+    return arrivingLayouts;
+  }
+
+  private MutableRowWithSchema.Layouts getExistingLayouts() {
+    if (existingLayouts == null) {
+      existingLayouts = new MutableRowWithSchema.Layouts(Lists.<StructField>newArrayList());
     }
 
-    return into;
+    return existingLayouts;
   }
 
   @Override
@@ -306,16 +375,16 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return new Date(System.currentTimeMillis()).toString();
   }
 
-  private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
+  private static class PlanTimestampComparator implements Comparator<PlannedRow> {
+    private RowAccessor timestampAccessor;
 
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
+    public PlanTimestampComparator(RowAccessor timestampAccessor) {
+      this.timestampAccessor = timestampAccessor;
     }
 
     @Override
     public int compare(PlannedRow p1, PlannedRow p2) {
-      return RowUtils.compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
+      return timestampAccessor.compareTimestamp(p1.getRow(), p2.getRow());
     }
   }
 
@@ -15,8 +15,6 @@
  */
 package com.cloudera.labs.envelope.plan;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -24,7 +22,8 @@ import java.util.Set;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 
-import com.cloudera.labs.envelope.utils.RowUtils;
+import com.cloudera.labs.envelope.spark.MutableRowWithSchema;
+import com.cloudera.labs.envelope.utils.RowAccessor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -33,7 +32,7 @@ import com.typesafe.config.Config;
  * A planner implementation for updating existing and inserting new (upsert). This maintains the
  * most recent version of the values of a key, which is equivalent to Type I SCD modeling.
  */
-public class EventTimeUpsertPlanner implements RandomPlanner {
+public class EventTimeUpsertPlanner implements RandomPlanner, UsesExistingFields {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
@@ -41,6 +40,9 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
   public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "field.values";
 
   private Config config;
+  private MutableRowWithSchema.Layouts lastUpdatedLayouts;
+  private RowAccessor timestampAccessor;
+  private RowAccessor valuesAccessor;
 
   @Override
   public void configure(Config config) {
@@ -54,22 +56,31 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
       throw new RuntimeException("Key sent to event time upsert planner does not contain a schema");
     }
 
-    String timestampFieldName = getTimestampFieldName();
-    List<String> valueFieldNames = getValueFieldNames();
-
-    Comparator<Row> tc = new TimestampComparator(timestampFieldName);
+    if (timestampAccessor == null) {
+      timestampAccessor = new RowAccessor(getTimestampFieldName());
+      valuesAccessor = new RowAccessor(getValueFieldNames());
+    }
 
     List<PlannedRow> planned = Lists.newArrayList();
 
-    if (arrivingForKey.size() > 1) {
-      Collections.sort(arrivingForKey, Collections.reverseOrder(tc));
-    }
+    // Only the most recent arriving record is planned, which is the first of the latest timestamp
     Row arrived = arrivingForKey.get(0);
 
     if (arrived.schema() == null) {
       throw new RuntimeException("Arriving row sent to event time upsert planner does not contain a schema");
     }
 
+    long arrivedTimestamp = timestampAccessor.getLong(arrived);
+    for (int i = 1; i < arrivingForKey.size(); i++) {
+      Row candidate = arrivingForKey.get(i);
+      long candidateTimestamp = timestampAccessor.getLong(candidate);
+
+      if (candidateTimestamp > arrivedTimestamp) {
+        arrived = candidate;
+        arrivedTimestamp = candidateTimestamp;
+      }
+    }
+
     Row existing = null;
     if (existingForKey.size() > 0) {
       existing = existingForKey.get(0);
@@ -81,20 +92,18 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
 
     if (existing == null) {
       if (hasLastUpdatedField()) {
-        arrived = RowUtils.append(arrived, getLastUpdatedFieldName(), DataTypes.StringType, currentTimestampString());
+        arrived = withLastUpdated(arrived);
       }
 
       planned.add(new PlannedRow(arrived, MutationType.INSERT));
     }
-    else if (RowUtils.before(arrived, existing, timestampFieldName)) {
+    else if (arrivedTimestamp < timestampAccessor.getLong(existing)) {
       // We do nothing because the arriving record is older than the existing record
     }
-    else if ((RowUtils.simultaneous(arrived, existing, timestampFieldName) ||
-          RowUtils.after(arrived, existing, timestampFieldName)) &&
-          RowUtils.different(arrived, existing, valueFieldNames))
+    else if (valuesAccessor.different(arrived, existing))
     {
       if (hasLastUpdatedField()) {
-        arrived = RowUtils.append(arrived, getLastUpdatedFieldName(), DataTypes.StringType, currentTimestampString());
+        arrived = withLastUpdated(arrived);
       }
       planned.add(new PlannedRow(arrived, MutationType.UPDATE));
     }
@@ -112,6 +121,15 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
     return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
   }
 
+  @Override
+  public List<String> getExistingFieldNames() {
+    List<String> fieldNames = Lists.newArrayList(getKeyFieldNames());
+    fieldNames.add(getTimestampFieldName());
+    fieldNames.addAll(getValueFieldNames());
+
+    return fieldNames;
+  }
+
   private boolean hasLastUpdatedField() {
     return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
   }
@@ -132,17 +150,18 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
     return new Date(System.currentTimeMillis()).toString();
   }
 
-  private class TimestampComparator implements Comparator<Row> {
-    private String timestampFieldName;
-
-    public TimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
+  // Copies the arriving row once into a row with the last updated field appended
+  private Row withLastUpdated(Row arrived) {
+    if (lastUpdatedLayouts == null) {
+      lastUpdatedLayouts = new MutableRowWithSchema.Layouts(Lists.newArrayList(
+          DataTypes.createStructField(getLastUpdatedFieldName(), DataTypes.StringType, true)));
     }
 
-    @Override
-    public int compare(Row r1, Row r2) {
-      return RowUtils.compareTimestamp(r1, r2, timestampFieldName);
-    }
+    MutableRowWithSchema withLastUpdated =
+        MutableRowWithSchema.copyOf(arrived, lastUpdatedLayouts.get(arrived.schema()));
+    withLastUpdated.set(withLastUpdated.length() - 1, currentTimestampString());
+
+    return withLastUpdated;
   }
 
 }
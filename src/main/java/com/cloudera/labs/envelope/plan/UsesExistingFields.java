@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.List;
+
+/**
+ * Random planners that only use some of the fields of the existing records, so that outputs
+ * that support it can retrieve only those fields.
+ */
+public interface UsesExistingFields {
+
+  /**
+   * Get the list of field names of the existing records that the planner uses, including the key
+   * fields. The planner must not emit mutations that would lose the values of the other fields
+   * of the existing records.
+   * @return The list of field names, or null if the planner uses all fields of the existing
+   * records with its current configuration.
+   */
+  List<String> getExistingFieldNames();
+
+}
@@ -67,6 +67,27 @@ public class BatchStep extends DataStep {
   public void submit(Set<Step> dependencySteps) throws Exception {
     Contexts.getSparkSession().sparkContext().setJobDescription("Step: " + getName());
 
+    setData(deriveData(dependencySteps));
+
+    setSubmitted(true);
+  }
+
+  /**
+   * Submit the step as a continuous query over the streaming data of its dependencies, for when
+   * the pipeline runs on the Structured Streaming engine.
+   */
+  public void submitStreaming(Set<Step> dependencySteps) throws Exception {
+    if (hasInput()) {
+      throw new RuntimeException("Step " + getName() + " reads a batch input and so can not " +
+          "be submitted as a streaming query");
+    }
+
+    setStreamingData(deriveData(dependencySteps));
+
+    setSubmitted(true);
+  }
+
+  private Dataset<Row> deriveData(Set<Step> dependencySteps) throws Exception {
     Dataset<Row> data;
     if (hasInput()) {
       data = ((BatchInput)getInput()).read();
@@ -84,9 +105,7 @@ public class BatchStep extends DataStep {
       data = repartition(data);
     }
 
-    setData(data);
-
-    setSubmitted(true);
+    return data;
   }
   
   private boolean doesRepartition() {
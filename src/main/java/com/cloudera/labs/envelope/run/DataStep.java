@@ -15,24 +15,34 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.spark.HashPartitioner;
 import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.JavaRDD;
-import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
-import org.apache.spark.api.java.function.PairFlatMapFunction;
 import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.functions;
-import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.streaming.StreamingQuery;
 import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.derive.Deriver;
 import com.cloudera.labs.envelope.derive.DeriverFactory;
@@ -41,7 +51,9 @@ import com.cloudera.labs.envelope.input.InputFactory;
 import com.cloudera.labs.envelope.output.BulkOutput;
 import com.cloudera.labs.envelope.output.Output;
 import com.cloudera.labs.envelope.output.OutputFactory;
+import com.cloudera.labs.envelope.output.ProjectsExistingFields;
 import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.output.SupportsConcurrentLookups;
 import com.cloudera.labs.envelope.partition.PartitionerFactory;
 import com.cloudera.labs.envelope.plan.BulkPlanner;
 import com.cloudera.labs.envelope.plan.MutationType;
@@ -49,13 +61,16 @@ import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.plan.Planner;
 import com.cloudera.labs.envelope.plan.PlannerFactory;
 import com.cloudera.labs.envelope.plan.RandomPlanner;
+import com.cloudera.labs.envelope.plan.UsesExistingFields;
 import com.cloudera.labs.envelope.spark.AccumulatorRequest;
 import com.cloudera.labs.envelope.spark.Accumulators;
+import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.spark.UsesAccumulators;
-import com.cloudera.labs.envelope.utils.RowUtils;
+import com.cloudera.labs.envelope.utils.RowAccessor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
@@ -67,16 +82,39 @@ import scala.Tuple2;
  */
 public abstract class DataStep extends Step implements UsesAccumulators {
 
+  private static Logger LOG = LoggerFactory.getLogger(DataStep.class);
+
   public static final String CACHE_PROPERTY = "cache";
   public static final String SMALL_HINT_PROPERTY = "hint.small";
   public static final String PRINT_SCHEMA_ENABLED_PROPERTY = "print.schema.enabled";
   public static final String PRINT_DATA_ENABLED_PROPERTY = "print.data.enabled";
   public static final String PRINT_DATA_LIMIT_PROPERTY = "print.data.limit";
+  public static final String LOOKUP_BATCH_SIZE_PROPERTY = "lookup.batch.size";
+  public static final String LOOKUP_PARALLELISM_PROPERTY = "lookup.parallelism";
+  public static final String LOOKUP_THREADS_PROPERTY = "lookup.threads";
+  public static final String LOOKUP_CACHE_ENABLED_PROPERTY = "lookup.cache.enabled";
+  public static final String LOOKUP_CACHE_SIZE_PROPERTY = "lookup.cache.size";
+  public static final String LOOKUP_CACHE_TTL_PROPERTY = "lookup.cache.ttl";
+  public static final String LOOKUP_CACHE_IDENTITY_FIELDS_PROPERTY = "lookup.cache.identity.fields";
+  public static final String STREAMING_OUTPUT_MODE_PROPERTY = "output.streaming.mode";
   
   private static final String ACCUMULATOR_SECONDS_EXTRACTING_KEYS = "Seconds spent extracting keys";
   private static final String ACCUMULATOR_SECONDS_EXISTING = "Seconds spent getting existing";
   private static final String ACCUMULATOR_SECONDS_PLANNING = "Seconds spent random planning";
   private static final String ACCUMULATOR_SECONDS_APPLYING = "Seconds spent applying random mutations";
+  private static final String ACCUMULATOR_CACHE_HITS = "Existing records cache hits";
+  private static final String ACCUMULATOR_CACHE_MISSES = "Existing records cache misses";
+  private static final String ACCUMULATOR_KEYS_LOOKED_UP = "Number of keys looked up in output";
+
+  private static final int DEFAULT_LOOKUP_BATCH_SIZE = 1000;
+  private static final int DEFAULT_LOOKUP_PARALLELISM = 1;
+  private static final int DEFAULT_LOOKUP_THREADS = 16;
+  private static final long DEFAULT_LOOKUP_CACHE_SIZE = 10000;
+  private static final long DEFAULT_LOOKUP_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  // Shared by all of the tasks of the executor JVM that look up existing records, and created
+  // by the first task that looks up, so lookups beyond its number of threads wait in its queue
+  private static ThreadPoolExecutor lookupThreadPool;
 
   private Dataset<Row> data;
   private Input input;
@@ -84,6 +122,7 @@ public abstract class DataStep extends Step implements UsesAccumulators {
   private Planner planner;
   private Output output;
   private Accumulators accumulators;
+  private long writes = 0;
 
   public DataStep(String name, Config config) {
     super(name, config);
@@ -119,8 +158,57 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     registerStep();
     
     if (hasOutput()) {
-      writeOutput();
+      writeOutput(data);
+    }
+  }
+
+  /**
+   * Set the unbounded DataFrame of the step when the pipeline runs on the Structured Streaming
+   * engine. The data is only registered for dependent steps to query, because a streaming
+   * DataFrame can not be cached or shown, and its output is written by a streaming query instead.
+   */
+  public void setStreamingData(Dataset<Row> streamDF) {
+    this.data = streamDF;
+
+    if (doesPrintSchema()) {
+      printSchema();
     }
+
+    registerStep();
+  }
+
+  /**
+   * Start the streaming query that writes each micro-batch of the streaming data of the step to
+   * the output of the step, as planned by the planner of the step.
+   * @param checkpointLocation The directory where the query records its progress.
+   */
+  public StreamingQuery startStreamingOutput(String checkpointLocation) {
+    StepSinkProvider.register(this);
+
+    return data.writeStream()
+        .format(StepSinkProvider.class.getName())
+        .option(StepSinkProvider.STEP_OPTION_NAME, getName())
+        .option(StepSinkProvider.CHECKPOINT_LOCATION_OPTION_NAME, checkpointLocation)
+        .queryName(getName())
+        .outputMode(getStreamingOutputMode())
+        .start();
+  }
+
+  /**
+   * Write a single micro-batch of the streaming data of the step to the output of the step.
+   */
+  public void writeStreamingBatch(Dataset<Row> batchDF) {
+    if (doesPrintData()) {
+      printData(batchDF);
+    }
+
+    writeOutput(batchDF);
+  }
+
+  private String getStreamingOutputMode() {
+    if (!config.hasPath(STREAMING_OUTPUT_MODE_PROPERTY)) return "append";
+
+    return config.getString(STREAMING_OUTPUT_MODE_PROPERTY);
   }
   
   protected Input getInput() {
@@ -214,6 +302,10 @@ public abstract class DataStep extends Step implements UsesAccumulators {
   }
   
   private void printData() {
+    printData(data);
+  }
+
+  private void printData(Dataset<Row> data) {
     if (config.hasPath(PRINT_DATA_LIMIT_PROPERTY)) {
       int limit = config.getInt(PRINT_DATA_LIMIT_PROPERTY);
       data.limit(limit).show();
@@ -256,6 +348,9 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_APPLYING, Double.class));
     requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_EXISTING, Double.class));
     requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_EXTRACTING_KEYS, Double.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_CACHE_HITS, Long.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_CACHE_MISSES, Long.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_KEYS_LOOKED_UP, Long.class));
     
     return requests;
   }
@@ -298,7 +393,7 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     return config.hasPath("output");
   }
 
-  private void writeOutput() {
+  private void writeOutput(Dataset<Row> data) {
     Config plannerConfig = config.getConfig("planner");
     validatePlannerOutputCompatibility(getPlanner(), getOutput());
 
@@ -307,9 +402,15 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       RandomPlanner randomPlanner = (RandomPlanner)getPlanner();
       List<String> keyFieldNames = randomPlanner.getKeyFieldNames();
       Config outputConfig = config.getConfig("output");
-      JavaRDD<PlannedRow> planned = planMutationsByKey(data, keyFieldNames, plannerConfig, outputConfig);
+      writes++;
 
-      applyMutations(planned, outputConfig);
+      JavaPairRDD<Row, Row> keyedArriving =
+          data.javaRDD().keyBy(new ExtractKeyFunction(keyFieldNames, accumulators));
+      JavaPairRDD<Row, Iterable<Row>> arrivingByKey =
+          keyedArriving.groupByKey(getPartitioner(keyedArriving));
+      ExistingRecordsCache.ForWrite cache = getExistingRecordsCache(keyFieldNames, arrivingByKey.getNumPartitions());
+
+      planAndApplyMutationsByKey(arrivingByKey, keyFieldNames, plannerConfig, outputConfig, cache);
     }
     else if (getPlanner() instanceof BulkPlanner) {
       BulkPlanner bulkPlanner = (BulkPlanner)getPlanner();
@@ -361,31 +462,32 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     throw new RuntimeException("Incompatible planner (" + planner.getClass() + ") and output (" + output.getClass() + ").");
   }
   
-  // Group the arriving records by key, attach the existing records for each key, and plan
-  private JavaRDD<PlannedRow> planMutationsByKey(Dataset<Row> arriving, List<String> keyFieldNames, Config plannerConfig, Config outputConfig) {
-    JavaPairRDD<Row, Row> keyedArriving = 
-        arriving.javaRDD().keyBy(new ExtractKeyFunction(keyFieldNames, accumulators));
-
-    JavaPairRDD<Row, Iterable<Row>> arrivingByKey = 
-        keyedArriving.groupByKey(getPartitioner(keyedArriving));
-
-    JavaPairRDD<Row, Tuple2<Iterable<Row>, Iterable<Row>>> arrivingAndExistingByKey =
-        arrivingByKey.mapPartitionsToPair(new JoinExistingForKeysFunction(outputConfig, keyFieldNames, accumulators));
+  // Attach the existing records for each key of the grouped arriving records, plan the mutations
+  // for each key, and apply the mutations to the output, all in a single pass over each partition
+  private void planAndApplyMutationsByKey(JavaPairRDD<Row, Iterable<Row>> arrivingByKey, List<String> keyFieldNames,
+                                          Config plannerConfig, Config outputConfig, ExistingRecordsCache.ForWrite cache) {
+    arrivingByKey.foreachPartition(new PlanAndApplyForPartitionFunction(plannerConfig, outputConfig, keyFieldNames,
+        getLookupBatchSize(), getLookupParallelism(), getLookupThreads(), cache, accumulators));
+  }
 
-    JavaRDD<PlannedRow> planned = 
-        arrivingAndExistingByKey.flatMap(new PlanForKeyFunction(plannerConfig, accumulators));
+  private static synchronized ExecutorService getLookupThreadPool(int threads) {
+    if (lookupThreadPool == null) {
+      lookupThreadPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("envelope-lookup-%d").build());
+      lookupThreadPool.allowCoreThreadTimeOut(true);
+    }
 
-    return planned;
+    return lookupThreadPool;
   }
 
   @SuppressWarnings("serial")
   private static class ExtractKeyFunction implements Function<Row, Row> {
-    private StructType schema;
-    private List<String> keyFieldNames;
+    private RowAccessor keyAccessor;
     private Accumulators accumulators;
 
     public ExtractKeyFunction(List<String> keyFieldNames, Accumulators accumulators) {
-      this.keyFieldNames = keyFieldNames;
+      this.keyAccessor = new RowAccessor(keyFieldNames);
       this.accumulators = accumulators;
     }
 
@@ -393,11 +495,7 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     public Row call(Row arrived) throws Exception {
       long startTime = System.nanoTime();
 
-      if (schema == null) {
-        schema = RowUtils.subsetSchema(arrived.schema(), keyFieldNames);
-      }
-
-      Row key = RowUtils.subsetRow(arrived, schema);
+      Row key = keyAccessor.subset(arrived);
       
       long endTime = System.nanoTime();
       accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_EXTRACTING_KEYS).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
@@ -406,7 +504,57 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     }
   }
   
-  private Partitioner getPartitioner(JavaPairRDD<Row, Row> keyedArriving) {    
+  private int getLookupBatchSize() {
+    if (!config.hasPath(LOOKUP_BATCH_SIZE_PROPERTY)) return DEFAULT_LOOKUP_BATCH_SIZE;
+
+    return config.getInt(LOOKUP_BATCH_SIZE_PROPERTY);
+  }
+
+  private int getLookupParallelism() {
+    if (!config.hasPath(LOOKUP_PARALLELISM_PROPERTY)) return DEFAULT_LOOKUP_PARALLELISM;
+
+    return config.getInt(LOOKUP_PARALLELISM_PROPERTY);
+  }
+
+  private int getLookupThreads() {
+    if (!config.hasPath(LOOKUP_THREADS_PROPERTY)) return DEFAULT_LOOKUP_THREADS;
+
+    return config.getInt(LOOKUP_THREADS_PROPERTY);
+  }
+
+  // The cache is per partition of the grouped arriving records, so it is only used for the
+  // partitions of this write if they are the same as the partitions of the previous write
+  private ExistingRecordsCache.ForWrite getExistingRecordsCache(List<String> keyFieldNames, int numPartitions) {
+    if (!config.hasPath(LOOKUP_CACHE_ENABLED_PROPERTY) || !config.getBoolean(LOOKUP_CACHE_ENABLED_PROPERTY)) {
+      return null;
+    }
+
+    // A speculative copy of a task can write to the output while the first attempt is still using its cache
+    if (Contexts.getSparkSession().sparkContext().getConf().getBoolean("spark.speculation", false)) {
+      LOG.warn("Existing records cache of step " + getName() + " is disabled because speculative execution is enabled");
+      return null;
+    }
+
+    long maximumKeys = DEFAULT_LOOKUP_CACHE_SIZE;
+    if (config.hasPath(LOOKUP_CACHE_SIZE_PROPERTY)) {
+      maximumKeys = config.getLong(LOOKUP_CACHE_SIZE_PROPERTY);
+    }
+
+    long expiryMillis = DEFAULT_LOOKUP_CACHE_TTL_MILLIS;
+    if (config.hasPath(LOOKUP_CACHE_TTL_PROPERTY)) {
+      expiryMillis = config.getDuration(LOOKUP_CACHE_TTL_PROPERTY, TimeUnit.MILLISECONDS);
+    }
+
+    List<String> identityFieldNames = keyFieldNames;
+    if (config.hasPath(LOOKUP_CACHE_IDENTITY_FIELDS_PROPERTY)) {
+      identityFieldNames = config.getStringList(LOOKUP_CACHE_IDENTITY_FIELDS_PROPERTY);
+    }
+
+    return new ExistingRecordsCache.ForWrite(getName(), maximumKeys, expiryMillis, writes, numPartitions,
+        keyFieldNames, identityFieldNames);
+  }
+
+  private Partitioner getPartitioner(JavaPairRDD<Row, Row> keyedArriving) {
     if (hasPartitioner()) {
       Config partitionerConfig = config.getConfig("partitioner");      
       return PartitionerFactory.create(partitionerConfig, keyedArriving); 
@@ -417,77 +565,296 @@ public abstract class DataStep extends Step implements UsesAccumulators {
   }
   
   @SuppressWarnings("serial")
-  private static class JoinExistingForKeysFunction
-  implements PairFlatMapFunction<Iterator<Tuple2<Row, Iterable<Row>>>, Row, Tuple2<Iterable<Row>, Iterable<Row>>> {
+  private static class PlanAndApplyForPartitionFunction implements VoidFunction<Iterator<Tuple2<Row, Iterable<Row>>>> {
+    private Config plannerConfig;
     private Config outputConfig;
+    private RandomPlanner planner;
     private RandomOutput output;
     private List<String> keyFieldNames;
+    private int batchSize;
+    private int parallelism;
+    private int threads;
+    private ExistingRecordsCache.ForWrite cache;
     private Accumulators accumulators;
 
-    public JoinExistingForKeysFunction(Config outputConfig, List<String> keyFieldNames, Accumulators accumulators) {
+    public PlanAndApplyForPartitionFunction(Config plannerConfig, Config outputConfig, List<String> keyFieldNames,
+                                            int batchSize, int parallelism, int threads,
+                                            ExistingRecordsCache.ForWrite cache, Accumulators accumulators)
+    {
+      this.plannerConfig = plannerConfig;
       this.outputConfig = outputConfig;
       this.keyFieldNames = keyFieldNames;
+      this.batchSize = batchSize;
+      this.parallelism = parallelism;
+      this.threads = threads;
+      this.cache = cache;
       this.accumulators = accumulators;
     }
 
-    // Add the existing records for the keys to the arriving records
     @Override
-    public Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>
-    call(Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator) throws Exception
-    {
-      // If there are no arriving keys, return an empty list
+    public void call(Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator) throws Exception {
+      // The partition is started even when it is empty so that its cached keys stay usable
+      if (cache != null) {
+        cache.startPartition();
+      }
+
+      // If there are no arriving keys there is nothing to plan or apply
       if (!arrivingForKeysIterator.hasNext()) {
-        return Lists.<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>newArrayList().iterator();
+        if (cache != null) {
+          cache.completePartition();
+        }
+        return;
       }
-      
-      long startTime = System.nanoTime();
 
-      // If we have not instantiated the output for this partition, instantiate it
+      // If we have not instantiated the planner and output for this partition, instantiate them
+      if (planner == null) {
+        planner = (RandomPlanner)PlannerFactory.create(plannerConfig);
+        if (planner instanceof UsesAccumulators) {
+          ((UsesAccumulators)planner).receiveAccumulators(accumulators);
+        }
+      }
       if (output == null) {
         output = (RandomOutput)OutputFactory.create(outputConfig);
         if (output instanceof UsesAccumulators) {
-            ((UsesAccumulators)output).receiveAccumulators(accumulators);
+          ((UsesAccumulators)output).receiveAccumulators(accumulators);
+        }
+        if (output instanceof ProjectsExistingFields && planner instanceof UsesExistingFields) {
+          List<String> existingFieldNames = ((UsesExistingFields)planner).getExistingFieldNames();
+          if (existingFieldNames != null) {
+            ((ProjectsExistingFields)output).receiveExistingFieldNames(existingFieldNames);
+          }
         }
       }
 
-      // Convert the iterator of keys to a list
-      List<Tuple2<Row, Iterable<Row>>> arrivingForKeys = Lists.newArrayList(arrivingForKeysIterator);
+      // The keys are looked up in batches as the iterator is consumed, so that only a bounded
+      // number of keys are held in memory, and for outputs that support it so that the lookups
+      // of the next batches overlap with the planning and applying of the current batch
+      boolean concurrentLookups = output instanceof SupportsConcurrentLookups;
+      JoinExistingForKeysIterator arrivingAndExistingForKeys =
+          new JoinExistingForKeysIterator(arrivingForKeysIterator, output, keyFieldNames, batchSize,
+              concurrentLookups ? parallelism : 1, concurrentLookups, getLookupThreadPool(threads),
+              cache, accumulators);
+
+      // The planned mutations are applied whenever a batch worth has been planned, rather than
+      // collecting the mutations of the whole partition, and the same list is reused for each
+      // application as the outputs do not keep the list
+      List<PlannedRow> planned = Lists.newArrayListWithCapacity(batchSize);
+
+      try {
+        while (arrivingAndExistingForKeys.hasNext()) {
+          planForKey(arrivingAndExistingForKeys.next(), planned);
+
+          if (planned.size() >= batchSize) {
+            apply(planned);
+          }
+        }
 
-      // Extract the keys from the keyed arriving records
-      Set<Row> arrivingKeys = extractKeys(arrivingForKeys);
+        if (!planned.isEmpty()) {
+          apply(planned);
+        }
+      }
+      finally {
+        // If the partition failed then the lookups still in flight would otherwise keep
+        // querying the output after the task has ended
+        arrivingAndExistingForKeys.cancelLookups();
+      }
 
-      // Get the existing records for those keys from the output
-      Iterable<Row> existingWithoutKeys = output.getExistingForFilters(arrivingKeys);
-      
-      // Map the retrieved existing records to the keys they were looked up from
-      Map<Row, Iterable<Row>> existingForKeys = mapExistingToKeys(existingWithoutKeys);
+      if (cache != null) {
+        cache.completePartition();
+      }
+    }
+
+    private void planForKey(Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> keyedRecords, List<PlannedRow> planned)
+        throws Exception
+    {
+      long startTime = System.nanoTime();
+
+      Row key = keyedRecords._1();
+      List<Row> arrivingRecords = Lists.newArrayList(keyedRecords._2()._1());
+      List<Row> existingRecords = Lists.newArrayList(keyedRecords._2()._2());
+
+      for (PlannedRow plannedRow : planner.planMutationsForKey(key, arrivingRecords, existingRecords)) {
+        planned.add(plannedRow);
+      }
 
-      // Attach the existing records by key to the arriving records by key
-      List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys = 
-          attachExistingToArrivingForKeys(existingForKeys, arrivingForKeys);
-      
       long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_EXISTING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_PLANNING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+    }
 
-      return arrivingAndExistingForKeys.iterator();
+    private void apply(List<PlannedRow> planned) throws Exception {
+      long startTime = System.nanoTime();
+
+      output.applyRandomMutations(planned);
+
+      // Only once the mutations have been written do the cached keys reflect the output again
+      if (cache != null) {
+        cache.applyMutations(planned);
+      }
+
+      planned.clear();
+
+      long endTime = System.nanoTime();
+      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_APPLYING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
     }
+  }
 
-    private Set<Row> extractKeys(List<Tuple2<Row, Iterable<Row>>> arrivingForKeys) {
-      Set<Row> arrivingKeys = Sets.newHashSet();
+  private static class JoinExistingForKeysIterator
+  implements Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> {
+    private Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator;
+    private RandomOutput output;
+    private List<String> keyFieldNames;
+    private int batchSize;
+    private int parallelism;
+    private boolean prefetch;
+    private CompletionService<ExistingForBatch> lookups;
+    private ExistingRecordsCache.ForWrite cache;
+    private Accumulators accumulators;
 
-      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
-        arrivingKeys.add(arrivingForKey._1());
+    private Set<Future<ExistingForBatch>> inFlight = Sets.newHashSet();
+    private Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> currentBatch =
+        Collections.emptyIterator();
+
+    public JoinExistingForKeysIterator(Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator,
+                                       RandomOutput output, List<String> keyFieldNames, int batchSize,
+                                       int parallelism, boolean prefetch, ExecutorService lookupThreadPool,
+                                       ExistingRecordsCache.ForWrite cache, Accumulators accumulators)
+    {
+      this.arrivingForKeysIterator = arrivingForKeysIterator;
+      this.output = output;
+      this.keyFieldNames = keyFieldNames;
+      this.batchSize = batchSize;
+      this.parallelism = parallelism;
+      this.prefetch = prefetch;
+      this.lookups = new ExecutorCompletionService<>(lookupThreadPool);
+      this.cache = cache;
+      this.accumulators = accumulators;
+    }
+
+    /**
+     * Cancel the lookups that are still in flight, interrupting those that have started.
+     */
+    public void cancelLookups() {
+      for (Future<ExistingForBatch> lookup : inFlight) {
+        lookup.cancel(true);
+      }
+      inFlight.clear();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!currentBatch.hasNext()) {
+        submitLookups();
+
+        if (inFlight.isEmpty()) {
+          return false;
+        }
+
+        currentBatch = joinNextBatch();
       }
 
-      return arrivingKeys;
+      return true;
     }
 
-    private Map<Row, Iterable<Row>> mapExistingToKeys(Iterable<Row> existingWithoutKeys) throws Exception {
+    @Override
+    public Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return currentBatch.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // Keep up to the configured number of batches of keys being looked up in the output
+    private void submitLookups() {
+      while (inFlight.size() < parallelism && arrivingForKeysIterator.hasNext()) {
+        List<Tuple2<Row, Iterable<Row>>> arrivingForKeys = Lists.newArrayList();
+
+        Map<Row, Iterable<Row>> cachedForKeys = Maps.newHashMap();
+
+        while (arrivingForKeys.size() < batchSize && arrivingForKeysIterator.hasNext()) {
+          Tuple2<Row, Iterable<Row>> arrivingForKey = arrivingForKeysIterator.next();
+          arrivingForKeys.add(arrivingForKey);
+
+          if (cache != null) {
+            List<Row> cached = cache.getIfPresent(arrivingForKey._1());
+            if (cached != null) {
+              cachedForKeys.put(arrivingForKey._1(), cached);
+            }
+          }
+        }
+
+        if (cache != null) {
+          accumulators.getLongAccumulators().get(ACCUMULATOR_CACHE_HITS).add(cachedForKeys.size());
+          accumulators.getLongAccumulators().get(ACCUMULATOR_CACHE_MISSES).add(arrivingForKeys.size() - cachedForKeys.size());
+        }
+
+        inFlight.add(lookups.submit(new ExistingForBatchCallable(output, arrivingForKeys, cachedForKeys)));
+      }
+    }
+
+    // Batches are joined in the order their lookups complete, so that a failed lookup fails the
+    // partition straight away rather than after the lookups that were submitted before it
+    private Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> joinNextBatch() {
+      ExistingForBatch existingForBatch;
+      try {
+        Future<ExistingForBatch> completed = lookups.take();
+        inFlight.remove(completed);
+        existingForBatch = completed.get();
+      }
+      catch (InterruptedException e) {
+        cancelLookups();
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        cancelLookups();
+        throw new RuntimeException("Could not get existing records from output", e.getCause());
+      }
+
+      // Start the lookup of the next batch before this batch is handed on to be planned, unless
+      // the output can not be queried while the mutations of this batch are being applied
+      if (prefetch) {
+        submitLookups();
+      }
+
+      long startTime = System.nanoTime();
+
+      // Map the retrieved existing records to the keys they were looked up from
+      Map<Row, Iterable<Row>> existingForKeys = mapExistingToKeys(existingForBatch.getExisting());
+
+      if (cache != null) {
+        cacheExistingForKeys(existingForKeys, existingForBatch);
+      }
+
+      // Attach the existing records by key to the arriving records by key
+      List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys =
+          attachExistingToArrivingForKeys(existingForKeys, existingForBatch.getArrivingForKeys());
+
+      long endTime = System.nanoTime();
+      accumulators.getLongAccumulators().get(ACCUMULATOR_KEYS_LOOKED_UP).add(existingForBatch.getKeysLookedUp());
+      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_EXISTING).add(
+          (existingForBatch.getLookupNanos() + endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+
+      return arrivingAndExistingForKeys.iterator();
+    }
+
+    private Map<Row, Iterable<Row>> mapExistingToKeys(Iterable<Row> existingWithoutKeys) {
       Map<Row, Iterable<Row>> existingForKeys = Maps.newHashMap();
       ExtractKeyFunction extractKeyFunction = new ExtractKeyFunction(keyFieldNames, accumulators);
 
       for (Row existing : existingWithoutKeys) {
-        Row existingKey = extractKeyFunction.call(existing);
+        Row existingKey;
+        try {
+          existingKey = extractKeyFunction.call(existing);
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
 
         if (!existingForKeys.containsKey(existingKey)) {
           existingForKeys.put(existingKey, Lists.<Row>newArrayList());
@@ -499,6 +866,25 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       return existingForKeys;
     }
 
+    // Cache the looked up keys, including those that were not found, and add the cached keys
+    private void cacheExistingForKeys(Map<Row, Iterable<Row>> existingForKeys, ExistingForBatch existingForBatch) {
+      Map<Row, Iterable<Row>> cachedForKeys = existingForBatch.getCachedForKeys();
+
+      for (Tuple2<Row, Iterable<Row>> arrivingForKey : existingForBatch.getArrivingForKeys()) {
+        Row key = arrivingForKey._1();
+
+        if (cachedForKeys.containsKey(key)) {
+          existingForKeys.put(key, cachedForKeys.get(key));
+        }
+        else if (existingForKeys.containsKey(key)) {
+          cache.put(key, (List<Row>)existingForKeys.get(key));
+        }
+        else {
+          cache.put(key, Collections.<Row>emptyList());
+        }
+      }
+    }
+
     private List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> attachExistingToArrivingForKeys
     (Map<Row, Iterable<Row>> existingForKeys, List<Tuple2<Row, Iterable<Row>>> arrivingForKeys)
     {
@@ -527,75 +913,83 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     }
   }
 
-  @SuppressWarnings("serial")
-  private static class PlanForKeyFunction
-  implements FlatMapFunction<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>, PlannedRow> {
-    private Config config;
-    private RandomPlanner planner;
-    private Accumulators accumulators;
+  // Only the call to the output is made off the task thread. Spark accumulators are not thread-safe,
+  // so the lookup is measured here and added to the accumulators of the step by the task thread,
+  // and outputs do not add to accumulators when they are queried for existing records.
+  private static class ExistingForBatchCallable implements Callable<ExistingForBatch> {
+    private RandomOutput output;
+    private List<Tuple2<Row, Iterable<Row>>> arrivingForKeys;
+    private Map<Row, Iterable<Row>> cachedForKeys;
 
-    public PlanForKeyFunction(Config config, Accumulators accumulators) {
-      this.config = config;
-      this.accumulators = accumulators;
+    public ExistingForBatchCallable(RandomOutput output, List<Tuple2<Row, Iterable<Row>>> arrivingForKeys,
+                                    Map<Row, Iterable<Row>> cachedForKeys)
+    {
+      this.output = output;
+      this.arrivingForKeys = arrivingForKeys;
+      this.cachedForKeys = cachedForKeys;
     }
 
     @Override
-    public Iterator<PlannedRow>
-    call(Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> keyedRecords) throws Exception {
+    public ExistingForBatch call() throws Exception {
       long startTime = System.nanoTime();
-      
-      if (planner == null) {
-        planner = (RandomPlanner)PlannerFactory.create(config);
-        if (planner instanceof UsesAccumulators) {
-          ((UsesAccumulators)planner).receiveAccumulators(accumulators);
+
+      Set<Row> arrivingKeys = Sets.newHashSet();
+      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
+        if (!cachedForKeys.containsKey(arrivingForKey._1())) {
+          arrivingKeys.add(arrivingForKey._1());
         }
       }
 
-      Row key = keyedRecords._1();
-      List<Row> arrivingRecords = Lists.newArrayList(keyedRecords._2()._1());
-      List<Row> existingRecords = Lists.newArrayList(keyedRecords._2()._2());
+      Iterable<Row> existing;
+      if (arrivingKeys.isEmpty()) {
+        existing = Lists.newArrayList();
+      }
+      else {
+        existing = output.getExistingForFilters(arrivingKeys);
+      }
 
-      Iterable<PlannedRow> plannedForKey = planner.planMutationsForKey(key, arrivingRecords, existingRecords);
-      
       long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_PLANNING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
 
-      return plannedForKey.iterator();
+      return new ExistingForBatch(arrivingForKeys, cachedForKeys, existing, arrivingKeys.size(),
+          endTime - startTime);
     }
-  };
-
-  private void applyMutations(JavaRDD<PlannedRow> planned, Config outputConfig) {
-    planned.foreachPartition(new ApplyMutationsForPartitionFunction(outputConfig, accumulators));
   }
 
-  @SuppressWarnings("serial")
-  private static class ApplyMutationsForPartitionFunction implements VoidFunction<Iterator<PlannedRow>> {
-    private Config config;
-    private RandomOutput output;
-    private Accumulators accumulators;
+  private static class ExistingForBatch {
+    private List<Tuple2<Row, Iterable<Row>>> arrivingForKeys;
+    private Map<Row, Iterable<Row>> cachedForKeys;
+    private Iterable<Row> existing;
+    private int keysLookedUp;
+    private long lookupNanos;
 
-    public ApplyMutationsForPartitionFunction(Config config, Accumulators accumulators) {
-      this.config = config;
-      this.accumulators = accumulators;
+    public ExistingForBatch(List<Tuple2<Row, Iterable<Row>>> arrivingForKeys, Map<Row, Iterable<Row>> cachedForKeys,
+                            Iterable<Row> existing, int keysLookedUp, long lookupNanos)
+    {
+      this.arrivingForKeys = arrivingForKeys;
+      this.cachedForKeys = cachedForKeys;
+      this.existing = existing;
+      this.keysLookedUp = keysLookedUp;
+      this.lookupNanos = lookupNanos;
     }
 
-    @Override
-    public void call(Iterator<PlannedRow> plannedIterator) throws Exception {
-      long startTime = System.nanoTime();
+    public List<Tuple2<Row, Iterable<Row>>> getArrivingForKeys() {
+      return arrivingForKeys;
+    }
 
-      if (output == null) {
-        output = (RandomOutput)OutputFactory.create(config);
-        if (output instanceof UsesAccumulators) {
-          ((UsesAccumulators)output).receiveAccumulators(accumulators);
-        }
-      }
-      
-      List<PlannedRow> planned = Lists.newArrayList(plannedIterator);
+    public Map<Row, Iterable<Row>> getCachedForKeys() {
+      return cachedForKeys;
+    }
 
-      output.applyRandomMutations(planned);
-      
-      long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_APPLYING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+    public Iterable<Row> getExisting() {
+      return existing;
+    }
+
+    public int getKeysLookedUp() {
+      return keysLookedUp;
+    }
+
+    public long getLookupNanos() {
+      return lookupNanos;
     }
   }
 
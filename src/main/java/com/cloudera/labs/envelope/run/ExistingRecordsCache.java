@@ -0,0 +1,353 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.TaskContext;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.utils.RowAccessor;
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An executor-side cache of the existing records of a random output, by the key of the records.
+ * There is one cache per step, and within that one cache per partition of the arriving records,
+ * so that each cache only holds the keys that a single task looks up and writes.
+ *
+ * A cached key is only reused while this executor has processed the partition of the key in every
+ * write of the step since the key was cached, as otherwise another executor could have written to
+ * the key in the meantime, and only by the first attempt of the task of the partition, as a failed
+ * attempt could have written some of its mutations. Cached keys are kept coherent with the
+ * mutations that this executor writes to the output. Mutations that can not be unambiguously applied to the cached records of
+ * a key instead remove the key from the cache.
+ */
+public class ExistingRecordsCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExistingRecordsCache.class);
+
+  private static final Map<String, ExistingRecordsCache> CACHES = Maps.newHashMap();
+
+  private long maximumKeys;
+  private long expiryMillis;
+  private Map<Integer, PartitionCache> partitionCaches = Maps.newHashMap();
+
+  ExistingRecordsCache(long maximumKeys, long expiryMillis) {
+    this.maximumKeys = maximumKeys;
+    this.expiryMillis = expiryMillis;
+  }
+
+  /**
+   * Get the cache of the step for this executor JVM.
+   * @param name The name of the step.
+   * @param maximumKeys The maximum number of keys to cache for each partition.
+   * @param expiryMillis The time after which a cached key is no longer used.
+   */
+  public static synchronized ExistingRecordsCache get(String name, long maximumKeys, long expiryMillis) {
+    if (!CACHES.containsKey(name)) {
+      CACHES.put(name, new ExistingRecordsCache(maximumKeys, expiryMillis));
+    }
+
+    return CACHES.get(name);
+  }
+
+  /**
+   * Start a write of the step for a partition. If this executor did not complete the previous
+   * write of the partition, or this is not the first attempt of the write of the partition, then
+   * the cached keys of the partition are discarded.
+   * @param partition The partition of the arriving records.
+   * @param numPartitions The number of partitions of the arriving records.
+   * @param write The sequence number of the write of the step.
+   * @param retry Whether an earlier attempt of the write of the partition may have applied some
+   * of its mutations, possibly from another executor.
+   */
+  public synchronized void startPartition(int partition, int numPartitions, long write, boolean retry) {
+    PartitionCache partitionCache = partitionCaches.get(partition);
+
+    if (partitionCache == null ||
+        retry ||
+        partitionCache.getCompletedWrite() != write - 1 ||
+        partitionCache.getNumPartitions() != numPartitions)
+    {
+      if (partitionCache != null) {
+        LOG.debug("Discarding cached existing records for partition {}", partition);
+      }
+      partitionCache = new PartitionCache(numPartitions, newCache());
+      partitionCaches.put(partition, partitionCache);
+    }
+
+    // Until the write completes the cached keys of the partition can not be trusted
+    partitionCache.setCompletedWrite(-1);
+  }
+
+  /**
+   * Complete a write of the step for a partition, after its mutations have been applied.
+   */
+  public synchronized void completePartition(int partition, long write) {
+    PartitionCache partitionCache = partitionCaches.get(partition);
+
+    if (partitionCache != null) {
+      partitionCache.setCompletedWrite(write);
+    }
+  }
+
+  /**
+   * @return The cached existing records for the key, or null if the key is not cached.
+   */
+  public List<Row> getIfPresent(int partition, Row key) {
+    return getCache(partition).getIfPresent(key);
+  }
+
+  public void put(int partition, Row key, List<Row> existing) {
+    getCache(partition).put(key, Collections.unmodifiableList(Lists.newArrayList(existing)));
+  }
+
+  /**
+   * Apply the mutations that have been written to the output to the cached records of their keys.
+   * @param identityFieldNames The fields that identify a single record of a key, used to find the
+   * cached record that an update or delete applies to.
+   */
+  public void applyMutations(int partition, List<PlannedRow> planned, List<String> keyFieldNames,
+                             List<String> identityFieldNames)
+  {
+    Cache<Row, List<Row>> cache = getCache(partition);
+    RowAccessor keyAccessor = new RowAccessor(keyFieldNames);
+
+    for (PlannedRow plan : planned) {
+      Row key = keyAccessor.subset(plan.getRow());
+
+      List<Row> cached = cache.getIfPresent(key);
+      if (cached == null) {
+        continue;
+      }
+
+      List<Row> mutated = applyMutation(Lists.newArrayList(cached), plan, identityFieldNames);
+
+      if (mutated != null) {
+        cache.put(key, Collections.unmodifiableList(mutated));
+      }
+      else {
+        cache.invalidate(key);
+      }
+    }
+  }
+
+  private synchronized Cache<Row, List<Row>> getCache(int partition) {
+    PartitionCache partitionCache = partitionCaches.get(partition);
+
+    if (partitionCache == null) {
+      throw new RuntimeException("Existing records cache was used before the partition was started");
+    }
+
+    return partitionCache.getCache();
+  }
+
+  private Cache<Row, List<Row>> newCache() {
+    return CacheBuilder.newBuilder()
+        .maximumSize(maximumKeys)
+        .expireAfterWrite(expiryMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  // Returns the mutated records of the key, or null if the mutation is ambiguous
+  private List<Row> applyMutation(List<Row> existing, PlannedRow plan, List<String> identityFieldNames) {
+    Row row = plan.getRow();
+
+    List<Integer> matches = Lists.newArrayList();
+    for (int i = 0; i < existing.size(); i++) {
+      if (sameIdentity(row, existing.get(i), identityFieldNames)) {
+        matches.add(i);
+      }
+    }
+
+    switch (plan.getMutationType()) {
+      case NONE:
+        return existing;
+      case INSERT:
+        if (!matches.isEmpty()) return null;
+        if (existing.isEmpty()) {
+          existing.add(row);
+        }
+        else {
+          existing.add(conform(row, existing.get(0)));
+        }
+        return existing;
+      case UPDATE:
+        if (matches.size() != 1) return null;
+        existing.set(matches.get(0), conform(row, existing.get(matches.get(0))));
+        return existing;
+      case UPSERT:
+        if (matches.size() > 1) return null;
+        if (matches.isEmpty()) {
+          existing.add(row);
+        }
+        else {
+          existing.set(matches.get(0), conform(row, existing.get(matches.get(0))));
+        }
+        return existing;
+      case DELETE:
+        for (int i = matches.size() - 1; i >= 0; i--) {
+          existing.remove((int)matches.get(i));
+        }
+        return existing;
+      default:
+        return null;
+    }
+  }
+
+  private boolean sameIdentity(Row mutation, Row existing, List<String> identityFieldNames) {
+    for (String fieldName : identityFieldNames) {
+      if (!hasField(mutation, fieldName) || !hasField(existing, fieldName)) {
+        continue;
+      }
+
+      if (!Objects.equal(RowUtils.get(mutation, fieldName), RowUtils.get(existing, fieldName))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Puts the values of the mutation into the schema of the existing record, keeping the values
+  // of the existing record for the fields that the mutation does not provide, as the output would
+  private Row conform(Row mutation, Row existing) {
+    StructType schema = existing.schema();
+    Object[] values = new Object[schema.length()];
+
+    int i = 0;
+    for (StructField field : schema.fields()) {
+      if (hasField(mutation, field.name())) {
+        values[i] = RowUtils.get(mutation, field.name());
+      }
+      else {
+        values[i] = existing.get(i);
+      }
+      i++;
+    }
+
+    return new RowWithSchema(schema, values);
+  }
+
+  private boolean hasField(Row row, String fieldName) {
+    for (String rowFieldName : row.schema().fieldNames()) {
+      if (rowFieldName.equals(fieldName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The use of the cache of a step by one write of the step, which is sent to the tasks of the
+   * write. The methods must be called from the task thread, as the partition of the task is used.
+   */
+  @SuppressWarnings("serial")
+  public static class ForWrite implements Serializable {
+    private String name;
+    private long maximumKeys;
+    private long expiryMillis;
+    private long write;
+    private int numPartitions;
+    private List<String> keyFieldNames;
+    private List<String> identityFieldNames;
+
+    public ForWrite(String name, long maximumKeys, long expiryMillis, long write, int numPartitions,
+                    List<String> keyFieldNames, List<String> identityFieldNames)
+    {
+      this.name = name;
+      this.maximumKeys = maximumKeys;
+      this.expiryMillis = expiryMillis;
+      this.write = write;
+      this.numPartitions = numPartitions;
+      this.keyFieldNames = keyFieldNames;
+      this.identityFieldNames = identityFieldNames;
+    }
+
+    public void startPartition() {
+      // Retried and speculative task attempts follow an attempt that may have written to the output
+      getCache().startPartition(getPartition(), numPartitions, write, TaskContext.get().attemptNumber() > 0);
+    }
+
+    public List<Row> getIfPresent(Row key) {
+      return getCache().getIfPresent(getPartition(), key);
+    }
+
+    public void put(Row key, List<Row> existing) {
+      getCache().put(getPartition(), key, existing);
+    }
+
+    public void applyMutations(List<PlannedRow> planned) {
+      getCache().applyMutations(getPartition(), planned, keyFieldNames, identityFieldNames);
+    }
+
+    public void completePartition() {
+      getCache().completePartition(getPartition(), write);
+    }
+
+    private ExistingRecordsCache getCache() {
+      return ExistingRecordsCache.get(name, maximumKeys, expiryMillis);
+    }
+
+    private int getPartition() {
+      return TaskContext.getPartitionId();
+    }
+  }
+
+  private static class PartitionCache {
+    private int numPartitions;
+    private Cache<Row, List<Row>> cache;
+    private long completedWrite = -1;
+
+    public PartitionCache(int numPartitions, Cache<Row, List<Row>> cache) {
+      this.numPartitions = numPartitions;
+      this.cache = cache;
+    }
+
+    public int getNumPartitions() {
+      return numPartitions;
+    }
+
+    public Cache<Row, List<Row>> getCache() {
+      return cache;
+    }
+
+    public long getCompletedWrite() {
+      return completedWrite;
+    }
+
+    public void setCompletedWrite(long completedWrite) {
+      this.completedWrite = completedWrite;
+    }
+  }
+
+}
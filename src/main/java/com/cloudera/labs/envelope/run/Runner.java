@@ -15,16 +15,16 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.streaming.StreamingQuery;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
@@ -35,8 +35,10 @@ import com.cloudera.labs.envelope.input.BatchInput;
 import com.cloudera.labs.envelope.input.Input;
 import com.cloudera.labs.envelope.input.InputFactory;
 import com.cloudera.labs.envelope.input.StreamInput;
+import com.cloudera.labs.envelope.input.StructuredStreamInput;
 import com.cloudera.labs.envelope.spark.AccumulatorRequest;
 import com.cloudera.labs.envelope.spark.Accumulators;
+import com.cloudera.labs.envelope.spark.AdaptiveRateController;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.spark.Contexts.ExecutionMode;
 import com.cloudera.labs.envelope.utils.StepUtils;
@@ -60,6 +62,9 @@ public class Runner {
   public static final String LOOP_TYPE = "loop";
   public static final String DECISION_TYPE = "decision";
   public static final String PIPELINE_THREADS_PROPERTY = "application.pipeline.threads";
+  public static final String STREAMING_ENGINE_PROPERTY = "application.streaming.engine";
+  public static final String DSTREAM_ENGINE = "dstream";
+  public static final String STRUCTURED_ENGINE = "structured";
   
   private static ExecutorService threadPool;
   private static Logger LOG = LoggerFactory.getLogger(Runner.class);
@@ -84,7 +89,14 @@ public class Runner {
     if (StepUtils.hasStreamingStep(steps)) {
       LOG.debug("Streaming step(s) identified");
 
-      runStreaming(steps);
+      if (getStreamingEngine(config).equals(STRUCTURED_ENGINE)) {
+        runStructuredStreaming(config, steps);
+      }
+      else {
+        AdaptiveRateController.initialize(config);
+
+        runStreaming(steps);
+      }
     }
     else {
       LOG.debug("No streaming steps identified");
@@ -117,7 +129,7 @@ public class Runner {
             LOG.debug("Adding batch step: " + stepName);
             step = new BatchStep(stepName, stepConfig);
           }
-          else if (stepInput instanceof StreamInput) {
+          else if (stepInput instanceof StreamInput || stepInput instanceof StructuredStreamInput) {
             LOG.debug("Adding streaming step: " + stepName);
             step = new StreamingStep(stepName, stepConfig);
           }
@@ -174,6 +186,8 @@ public class Runner {
       stream.foreachRDD(new VoidFunction<JavaRDD<?>>() {
         @Override
         public void call(JavaRDD<?> raw) throws Exception {
+          long startTime = System.currentTimeMillis();
+
           // Some independent steps might be repeating steps that have been flagged for reload
           StepUtils.resetRepeatingSteps(steps);
           // This will run any batch steps (and dependents) that are not submitted
@@ -193,6 +207,11 @@ public class Runner {
           StepUtils.resetDataSteps(allDependentSteps);
           
           streamingStep.recordProgress();
+
+          AdaptiveRateController rateController = AdaptiveRateController.get();
+          if (rateController != null) {
+            rateController.batchCompleted(raw, System.currentTimeMillis() - startTime);
+          }
         }
       });
 
@@ -207,94 +226,125 @@ public class Runner {
   }
 
   /**
-   * Run the steps in dependency order.
-   * @param steps The steps to run, which may be the full Envelope pipeline, or a subset of it.
+   * Run the Envelope pipeline as a set of Structured Streaming queries.
+   * @param config The full configuration of the Envelope pipeline
+   * @param steps The steps of the Envelope pipeline
    */
-  private static void runBatch(Set<Step> steps) throws Exception {
-    LOG.debug("Started batch for steps: {}", StepUtils.stepNamesAsString(steps));
-    
-    Set<Future<Void>> offMainThreadSteps = Sets.newHashSet();
-    Set<Step> refactoredSteps = null;
+  private static void runStructuredStreaming(Config config, Set<Step> steps) throws Exception {
+    startStructuredStreaming(config, steps);
 
-    // The essential logic is to loop through all of the steps until they have all been submitted.
-    // Steps will not be submitted until all of their dependency steps have been submitted first.
-    while (!StepUtils.allStepsSubmitted(steps)) {
-      LOG.debug("Not all steps have been submitted");
-      
-      for (final Step step : steps) {
-        LOG.debug("Looking into step: " + step.getName());
-
-        if (step instanceof BatchStep) {
-          LOG.debug("Step is batch");
-          BatchStep batchStep = (BatchStep)step;
-
-          if (!batchStep.hasSubmitted()) {
-            LOG.debug("Step has not been submitted");
-
-            final Set<Step> dependencies = StepUtils.getDependencies(step, steps);
-
-            if (StepUtils.allStepsSubmitted(dependencies)) {
-              LOG.debug("Step dependencies have been submitted, running step off main thread");
-              // Batch steps are run off the main thread so that if they contain outputs they will
-              // not block the parallel execution of independent steps.
-              Future<Void> offMainThreadStep = runStepOffMainThread(batchStep, dependencies, threadPool);
-              offMainThreadSteps.add(offMainThreadStep);
-            }
-            else {
-              LOG.debug("Step dependencies have not been submitted");
-            }
-          }
-          else {
-            LOG.debug("Step has been submitted");
-          }
-        }
-        else if (step instanceof StreamingStep) {
-          LOG.debug("Step is streaming");
-        }
-        else if (step instanceof RefactorStep) {
-          LOG.debug("Step is a refactor step");
-          
-          RefactorStep refactorStep = (RefactorStep)step;
-          
-          if (!refactorStep.hasSubmitted()) {
-            LOG.debug("Step has not been submitted");
-          
-            final Set<Step> dependencies = StepUtils.getDependencies(step, steps);
-  
-            if (StepUtils.allStepsSubmitted(dependencies)) {
-              LOG.debug("Step dependencies have submitted, refactoring steps");
-              refactoredSteps = refactorStep.refactor(steps);
-              LOG.debug("Steps refactored");
-              break;
-            }
-            else {
-              LOG.debug("Step dependencies have not been submitted");
-            }
-          }
-          else {
-            LOG.debug("Step has been submitted");
-          }
-        }
-        else {
-          throw new RuntimeException("Unknown step class type: " + step.getClass().getName());
+    Contexts.getSparkSession().streams().awaitAnyTermination();
+    LOG.debug("Streaming query terminated");
+  }
+
+  /**
+   * Submit the streaming steps and their dependents as continuous queries, and start a streaming
+   * query for each of those steps that has an output.
+   * @return The started streaming queries.
+   */
+  static List<StreamingQuery> startStructuredStreaming(Config config, Set<Step> steps)
+      throws Exception {
+    // Without a checkpoint the queries would restart from scratch and rewrite their outputs
+    if (!config.hasPath(Contexts.CHECKPOINT_PATH_PROPERTY)) {
+      throw new RuntimeException("The " + STRUCTURED_ENGINE + " streaming engine requires '" +
+          Contexts.CHECKPOINT_PATH_PROPERTY + "' for the streaming queries to record their progress");
+    }
+
+    Set<Step> independentNonStreamingSteps = StepUtils.getIndependentNonStreamingSteps(steps);
+    runBatch(independentNonStreamingSteps);
+
+    Set<Step> streamingDependentSteps = Sets.newLinkedHashSet();
+
+    for (StreamingStep streamingStep : StepUtils.getStreamingSteps(steps)) {
+      LOG.debug("Setting up structured streaming step: " + streamingStep.getName());
+
+      streamingStep.setStreamingData(streamingStep.readStructuredStream());
+      streamingStep.setSubmitted(true);
+
+      streamingDependentSteps.addAll(StepUtils.getAllDependentSteps(streamingStep, steps));
+    }
+
+    submitStreamingDependentSteps(streamingDependentSteps, steps);
+
+    List<StreamingQuery> queries = Lists.newArrayList();
+
+    Set<Step> streamingDataSteps = Sets.newLinkedHashSet(streamingDependentSteps);
+    streamingDataSteps.addAll(StepUtils.getStreamingSteps(steps));
+
+    for (DataStep dataStep : StepUtils.getDataSteps(streamingDataSteps)) {
+      if (dataStep.hasOutput()) {
+        queries.add(dataStep.startStreamingOutput(getCheckpointLocation(config, dataStep)));
+        LOG.debug("Started streaming query for step: " + dataStep.getName());
+      }
+    }
+
+    return queries;
+  }
+
+  // The dependent steps are continuous queries that are only defined here, so they are submitted
+  // on the driver in dependency order rather than by the step scheduler
+  private static void submitStreamingDependentSteps(Set<Step> dependentSteps, Set<Step> steps)
+      throws Exception {
+    Set<Step> remaining = Sets.newLinkedHashSet(dependentSteps);
+
+    while (!remaining.isEmpty()) {
+      Step ready = null;
+
+      for (Step step : remaining) {
+        if (StepUtils.allStepsSubmitted(StepUtils.getDependencies(step, steps))) {
+          ready = step;
+          break;
         }
+      }
 
-        LOG.debug("Finished looking into step: " + step.getName());
+      if (ready == null) {
+        throw new RuntimeException("Steps could not be submitted in dependency order: " +
+            StepUtils.stepNamesAsString(remaining));
       }
 
-      awaitAllOffMainThreadsFinished(offMainThreadSteps);
-      offMainThreadSteps.clear();
-      
-      if (refactoredSteps != null) {
-        steps = refactoredSteps;
-        refactoredSteps = null;
+      if (!(ready instanceof BatchStep)) {
+        throw new RuntimeException("Step " + ready.getName() + " can not depend on a streaming " +
+            "step when using the structured streaming engine");
       }
+
+      ((BatchStep)ready).submitStreaming(StepUtils.getDependencies(ready, steps));
+      remaining.remove(ready);
+    }
+  }
+
+  private static String getStreamingEngine(Config config) {
+    if (!config.hasPath(STREAMING_ENGINE_PROPERTY)) return DSTREAM_ENGINE;
+
+    String engine = config.getString(STREAMING_ENGINE_PROPERTY);
+
+    if (!engine.equals(DSTREAM_ENGINE) && !engine.equals(STRUCTURED_ENGINE)) {
+      throw new RuntimeException("Invalid streaming engine '" + engine + "'. Valid engines are '" +
+          DSTREAM_ENGINE + "' and '" + STRUCTURED_ENGINE + "'.");
     }
 
+    return engine;
+  }
+
+  private static String getCheckpointLocation(Config config, DataStep step) {
+    return config.getString(Contexts.CHECKPOINT_PATH_PROPERTY) + "/" + step.getName();
+  }
+
+  /**
+   * Run the steps in dependency order.
+   * @param steps The steps to run, which may be the full Envelope pipeline, or a subset of it.
+   */
+  private static void runBatch(Set<Step> steps) throws Exception {
+    LOG.debug("Started batch for steps: {}", StepUtils.stepNamesAsString(steps));
+
+    // Each step is submitted as soon as all of its dependency steps have been submitted,
+    // rather than waiting for every other step that was submitted at the same time.
+    StepScheduler scheduler = new StepScheduler(steps, threadPool);
+    scheduler.run();
+
     LOG.debug("Finished batch for steps: {}", StepUtils.stepNamesAsString(steps));
   }
 
-  private static void initializeThreadPool(Config config) {
+  static void initializeThreadPool(Config config) {
     if (config.hasPath(PIPELINE_THREADS_PROPERTY)) {
       threadPool = Executors.newFixedThreadPool(config.getInt(PIPELINE_THREADS_PROPERTY));
     }
@@ -303,23 +353,7 @@ public class Runner {
     }
   }
 
-  private static Future<Void> runStepOffMainThread(final BatchStep step, final Set<Step> dependencies, final ExecutorService threadPool) {
-    return threadPool.submit(new Callable<Void>() {
-      @Override
-      public Void call() throws Exception {
-        step.submit(dependencies);
-        return null;
-      }
-    });
-  }
-
-  private static void awaitAllOffMainThreadsFinished(Set<Future<Void>> offMainThreadSteps) throws Exception {
-    for (Future<Void> offMainThreadStep : offMainThreadSteps) {
-      offMainThreadStep.get();
-    }
-  }
-
-  private static void shutdownThreadPool() {
+  static void shutdownThreadPool() {
     threadPool.shutdown();
   }
   
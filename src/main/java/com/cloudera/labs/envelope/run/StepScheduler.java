@@ -0,0 +1,302 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.utils.StepUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The step scheduler submits the steps of a pipeline in dependency order. Each step keeps a count
+ * of its dependencies that have not yet been submitted, and a batch step is handed to the thread
+ * pool as soon as its count reaches zero, so that a slow step only holds back the steps that
+ * depend on it.
+ *
+ * Refactor steps are run on the calling thread once their dependencies have been submitted, after
+ * which the dependency counts are rebuilt from the refactored steps. Streaming steps are never
+ * submitted by the scheduler.
+ *
+ * The scheduler records the time that each step spent queued for a pipeline thread and running,
+ * and the critical path of steps that determined the total time of the run.
+ */
+public class StepScheduler {
+
+  private static Logger LOG = LoggerFactory.getLogger(StepScheduler.class);
+
+  private Set<Step> steps;
+  private CompletionService<Step> completionService;
+
+  private Map<Step, Integer> remainingDependencyCounts = Maps.newHashMap();
+  private Map<Step, Set<Step>> dependents = Maps.newHashMap();
+  private Set<Step> running = Sets.newHashSet();
+  private Map<Step, StepTiming> timings = Maps.newLinkedHashMap();
+
+  public StepScheduler(Set<Step> steps, ExecutorService threadPool) {
+    this.steps = steps;
+    this.completionService = new ExecutorCompletionService<>(threadPool);
+  }
+
+  /**
+   * Submit all of the steps, returning when they have all been submitted.
+   * @throws Exception The exception of the first step to fail, wrapped in an
+   * {@link java.util.concurrent.ExecutionException} if the step was run off the calling thread.
+   */
+  public void run() throws Exception {
+    countDependencies();
+    submitReadySteps(null);
+
+    while (!running.isEmpty()) {
+      Future<Step> completed = completionService.take();
+      Step step = completed.get();
+
+      running.remove(step);
+      timings.get(step).finished();
+      LOG.debug("Step {} finished", step.getName());
+
+      submitReadySteps(step);
+    }
+
+    Set<Step> unsubmitted = getUnsubmittedNonStreamingSteps();
+    if (!unsubmitted.isEmpty()) {
+      throw new RuntimeException("Steps could not be submitted because their dependencies could not be satisfied: " +
+          StepUtils.stepNamesAsString(unsubmitted));
+    }
+
+    logTimings();
+  }
+
+  /**
+   * @return The queued and running times of the steps submitted by the scheduler, in the order
+   * that the steps were submitted.
+   */
+  public Map<Step, StepTiming> getTimings() {
+    return timings;
+  }
+
+  /**
+   * @return The chain of steps, ending with the last step to finish, where each step was the last
+   * dependency to finish before the next step in the chain could be submitted.
+   */
+  public List<Step> getCriticalPath() {
+    Step last = null;
+    for (Map.Entry<Step, StepTiming> timing : timings.entrySet()) {
+      if (last == null || timing.getValue().getFinishTime() > timings.get(last).getFinishTime()) {
+        last = timing.getKey();
+      }
+    }
+
+    List<Step> criticalPath = Lists.newArrayList();
+    for (Step step = last; step != null; step = timings.get(step).getReleasedBy()) {
+      criticalPath.add(0, step);
+    }
+
+    return criticalPath;
+  }
+
+  private void countDependencies() {
+    remainingDependencyCounts.clear();
+    dependents.clear();
+
+    for (Step step : steps) {
+      dependents.put(step, Sets.<Step>newHashSet());
+    }
+
+    for (Step step : steps) {
+      if (step.hasSubmitted() || running.contains(step) || step instanceof StreamingStep) {
+        continue;
+      }
+
+      int remaining = 0;
+      for (Step dependency : StepUtils.getDependencies(step, steps)) {
+        if (!dependency.hasSubmitted() || running.contains(dependency)) {
+          dependents.get(dependency).add(step);
+          remaining++;
+        }
+      }
+
+      remainingDependencyCounts.put(step, remaining);
+    }
+  }
+
+  // Submit the steps that have no remaining dependencies. The finished step is the dependency
+  // that has just been submitted, or null if the counts have just been built.
+  private void submitReadySteps(Step finished) {
+    submitReadySteps(finished, finished);
+  }
+
+  // The releasing step is recorded as the step that released the ready steps, which is the
+  // refactor step when the counts have been rebuilt after a refactoring
+  private void submitReadySteps(Step finished, Step releasedBy) {
+    Set<Step> ready = Sets.newHashSet();
+
+    if (finished == null) {
+      for (Map.Entry<Step, Integer> count : remainingDependencyCounts.entrySet()) {
+        if (count.getValue() == 0) {
+          ready.add(count.getKey());
+        }
+      }
+    }
+    else if (dependents.containsKey(finished)) {
+      for (Step dependent : dependents.get(finished)) {
+        int remaining = remainingDependencyCounts.get(dependent) - 1;
+        remainingDependencyCounts.put(dependent, remaining);
+
+        if (remaining == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+
+    for (Step step : ready) {
+      remainingDependencyCounts.remove(step);
+      timings.put(step, new StepTiming(releasedBy));
+
+      if (step instanceof BatchStep) {
+        LOG.debug("Step {} dependencies have been submitted, running step off main thread", step.getName());
+        // Batch steps are run off the main thread so that if they contain outputs they will
+        // not block the parallel execution of independent steps.
+        running.add(step);
+        completionService.submit(new SubmitStepCallable((BatchStep)step, StepUtils.getDependencies(step, steps),
+            timings.get(step)));
+      }
+      else if (step instanceof RefactorStep) {
+        LOG.debug("Step {} dependencies have been submitted, refactoring steps", step.getName());
+        timings.get(step).started();
+        steps = ((RefactorStep)step).refactor(steps);
+        timings.get(step).finished();
+        LOG.debug("Steps refactored");
+
+        // The refactoring can add, remove, and rewire steps, so the dependency counts
+        // are rebuilt from the refactored steps before anything else is submitted
+        countDependencies();
+        submitReadySteps(null, step);
+        return;
+      }
+      else {
+        throw new RuntimeException("Unknown step class type: " + step.getClass().getName());
+      }
+    }
+  }
+
+  private Set<Step> getUnsubmittedNonStreamingSteps() {
+    Set<Step> unsubmitted = Sets.newHashSet();
+
+    for (Step step : steps) {
+      if (!step.hasSubmitted() && !(step instanceof StreamingStep)) {
+        unsubmitted.add(step);
+      }
+    }
+
+    return unsubmitted;
+  }
+
+  // Logged at debug because the steps are run for every micro-batch of a streaming pipeline
+  private void logTimings() {
+    if (timings.isEmpty() || !LOG.isDebugEnabled()) return;
+
+    for (Map.Entry<Step, StepTiming> timing : timings.entrySet()) {
+      LOG.debug("Step {} was queued for {} ms and ran for {} ms", timing.getKey().getName(),
+          timing.getValue().getQueuedMillis(), timing.getValue().getRunningMillis());
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Step step : getCriticalPath()) {
+      if (sb.length() > 0) {
+        sb.append(" -> ");
+      }
+      sb.append(step.getName());
+      sb.append(" (");
+      sb.append(timings.get(step).getQueuedMillis() + timings.get(step).getRunningMillis());
+      sb.append(" ms)");
+    }
+    LOG.debug("Critical path of steps: {}", sb.toString());
+  }
+
+  private static class SubmitStepCallable implements Callable<Step> {
+    private BatchStep step;
+    private Set<Step> dependencies;
+    private StepTiming timing;
+
+    public SubmitStepCallable(BatchStep step, Set<Step> dependencies, StepTiming timing) {
+      this.step = step;
+      this.dependencies = dependencies;
+      this.timing = timing;
+    }
+
+    @Override
+    public Step call() throws Exception {
+      timing.started();
+      step.submit(dependencies);
+
+      return step;
+    }
+  }
+
+  /**
+   * The times at which a step was queued, started, and finished. A step is queued when its last
+   * dependency finishes, and that dependency is recorded as the step that released it.
+   */
+  public static class StepTiming {
+    private Step releasedBy;
+    private long queuedTime;
+    private volatile long startTime;
+    private volatile long finishTime;
+
+    StepTiming(Step releasedBy) {
+      this.releasedBy = releasedBy;
+      this.queuedTime = System.nanoTime();
+    }
+
+    void started() {
+      startTime = System.nanoTime();
+    }
+
+    void finished() {
+      finishTime = System.nanoTime();
+    }
+
+    public Step getReleasedBy() {
+      return releasedBy;
+    }
+
+    public long getFinishTime() {
+      return finishTime;
+    }
+
+    public long getQueuedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(startTime - queuedTime);
+    }
+
+    public long getRunningMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(finishTime - startTime);
+    }
+  }
+
+}
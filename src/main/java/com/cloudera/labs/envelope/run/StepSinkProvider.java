@@ -0,0 +1,199 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.catalyst.CatalystTypeConverters;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.execution.streaming.Sink;
+import org.apache.spark.sql.sources.StreamSinkProvider;
+import org.apache.spark.sql.streaming.OutputMode;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Maps;
+
+import scala.collection.Seq;
+import scala.collection.immutable.Map;
+
+/**
+ * A Structured Streaming sink that writes each micro-batch of a streaming query to the output
+ * of the data step that started the query, so that the query uses the same planners and
+ * outputs as the Spark Streaming micro-batches.
+ *
+ * The id of the last batch that each sink has written is recorded in the checkpoint of its query,
+ * so that a batch that the query replays after a restart is not written again. A failure between
+ * writing the output of a batch and recording its id can still write that one batch again.
+ */
+public class StepSinkProvider implements StreamSinkProvider {
+
+  public static final String STEP_OPTION_NAME = "step";
+  public static final String CHECKPOINT_LOCATION_OPTION_NAME = "checkpointLocation";
+
+  private static final String LAST_BATCH_ID_FILE_NAME = "last-batch-id";
+
+  // The sinks are created on the driver by the streaming query, which only knows the sink class
+  private static final ConcurrentMap<String, DataStep> STEPS = Maps.newConcurrentMap();
+
+  private static Logger LOG = LoggerFactory.getLogger(StepSinkProvider.class);
+
+  public static void register(DataStep step) {
+    STEPS.put(step.getName(), step);
+  }
+
+  @Override
+  public Sink createSink(SQLContext sqlContext, Map<String, String> parameters,
+                         Seq<String> partitionColumns, OutputMode outputMode) {
+    if (!parameters.contains(STEP_OPTION_NAME)) {
+      throw new RuntimeException("Step sink requires the '" + STEP_OPTION_NAME + "' option");
+    }
+
+    String stepName = parameters.apply(STEP_OPTION_NAME);
+    DataStep step = STEPS.get(stepName);
+
+    if (step == null) {
+      throw new RuntimeException("Step sink could not find registered step: " + stepName);
+    }
+
+    if (!parameters.contains(CHECKPOINT_LOCATION_OPTION_NAME)) {
+      throw new RuntimeException("Step sink requires the '" + CHECKPOINT_LOCATION_OPTION_NAME + "' option");
+    }
+
+    return new StepSink(step, parameters.apply(CHECKPOINT_LOCATION_OPTION_NAME));
+  }
+
+  private static class StepSink implements Sink {
+    private DataStep step;
+    private Path lastBatchIdPath;
+    private Long lastBatchId;
+
+    public StepSink(DataStep step, String checkpointLocation) {
+      this.step = step;
+      this.lastBatchIdPath = new Path(checkpointLocation, LAST_BATCH_ID_FILE_NAME);
+    }
+
+    @Override
+    public void addBatch(long batchId, Dataset<Row> data) {
+      if (lastBatchId == null) {
+        lastBatchId = readLastBatchId();
+      }
+
+      // A batch that is replayed after a restart may have already been written
+      if (batchId <= lastBatchId) {
+        LOG.info("Skipping already written batch {} of step {}", batchId, step.getName());
+        return;
+      }
+
+      Contexts.getSparkSession().sparkContext().setJobDescription(
+          "Step: " + step.getName() + ", batch: " + batchId);
+
+      step.writeStreamingBatch(toBatchDataFrame(data));
+
+      writeLastBatchId(batchId);
+      lastBatchId = batchId;
+    }
+
+    private long readLastBatchId() {
+      try {
+        FileContext fc = getFileContext();
+
+        if (!fc.util().exists(lastBatchIdPath)) {
+          return -1;
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(fc.open(lastBatchIdPath), StandardCharsets.UTF_8))) {
+          return Long.parseLong(reader.readLine().trim());
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Could not read the last written batch of step " + step.getName() +
+            " from " + lastBatchIdPath, e);
+      }
+    }
+
+    // Written alongside and then renamed over the previous id so that it is never left partial
+    private void writeLastBatchId(long batchId) {
+      Path tempPath = new Path(lastBatchIdPath.getParent(), "." + LAST_BATCH_ID_FILE_NAME + ".tmp");
+
+      try {
+        FileContext fc = getFileContext();
+
+        try (OutputStream out = fc.create(tempPath, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE),
+            Options.CreateOpts.createParent())) {
+          out.write(Long.toString(batchId).getBytes(StandardCharsets.UTF_8));
+        }
+
+        fc.rename(tempPath, lastBatchIdPath, Options.Rename.OVERWRITE);
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Could not record written batch " + batchId + " of step " +
+            step.getName() + " to " + lastBatchIdPath, e);
+      }
+    }
+
+    private FileContext getFileContext() throws IOException {
+      return FileContext.getFileContext(Contexts.getSparkSession().sparkContext().hadoopConfiguration());
+    }
+
+    // The planners and outputs run their own queries over the batch, which the incrementally
+    // planned streaming DataFrame does not support, so the batch is taken from its RDD
+    private Dataset<Row> toBatchDataFrame(Dataset<Row> data) {
+      StructType schema = data.schema();
+      JavaRDD<Row> rows = data.queryExecution().toRdd().toJavaRDD().map(new ToRowFunction(schema));
+
+      return Contexts.getSparkSession().createDataFrame(rows, schema);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class ToRowFunction implements Function<InternalRow, Row> {
+    private StructType schema;
+    private transient scala.Function1<Object, Object> converter;
+
+    public ToRowFunction(StructType schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public Row call(InternalRow internalRow) throws Exception {
+      if (converter == null) {
+        converter = CatalystTypeConverters.createToScalaConverter(schema);
+      }
+
+      return (Row)converter.apply(internalRow);
+    }
+  }
+
+}
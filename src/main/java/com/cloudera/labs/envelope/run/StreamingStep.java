@@ -15,35 +15,63 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.functions;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.streaming.api.java.JavaDStream;
 
 import com.cloudera.labs.envelope.input.CanRecordProgress;
 import com.cloudera.labs.envelope.input.StreamInput;
-import com.cloudera.labs.envelope.input.translate.TranslateFunction;
+import com.cloudera.labs.envelope.input.StructuredStreamInput;
+import com.cloudera.labs.envelope.input.translate.TopicTranslatePartitionFunction;
+import com.cloudera.labs.envelope.input.translate.TranslatePartitionFunction;
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
- * A streaming step is a data step that provides a DataFrame per Spark Streaming micro-batch.
+ * A streaming step is a data step that provides a DataFrame per Spark Streaming micro-batch,
+ * or a single streaming DataFrame when the pipeline runs on the Structured Streaming engine.
  */
 public class StreamingStep extends DataStep implements CanRecordProgress {
 
   public static final String REPARTITION_NUM_PARTITIONS_PROPERTY = "input.repartition.partitions";
+  public static final String TOPIC_VIEWS_PROPERTY = "input.topic.views";
   
   @SuppressWarnings("rawtypes")
-  private TranslateFunction translateFunction;
+  private TranslatePartitionFunction translateFunction;
+  @SuppressWarnings("rawtypes")
+  private TopicTranslatePartitionFunction topicTranslateFunction;
+  private Map<String, StructType> topicSchemas;
 
   public StreamingStep(String name, Config config) {
     super(name, config);
     
-    if (!config.hasPath("input.translator")) {
+    if (config.hasPath("input." + TopicTranslatePartitionFunction.TRANSLATORS_CONFIG_NAME)) {
+      topicTranslateFunction = new TopicTranslatePartitionFunction<>(config.getConfig("input"));
+    }
+    else if (config.hasPath("input.translator")) {
+      translateFunction = new TranslatePartitionFunction<>(config.getConfig("input.translator"));
+    }
+    else {
       throw new RuntimeException("Stream input '" + name + "' must have a translator");
     }
-    
-    translateFunction = new TranslateFunction<>(config.getConfig("input.translator"));
   }
 
   @SuppressWarnings("rawtypes")
@@ -57,9 +85,76 @@ public class StreamingStep extends DataStep implements CanRecordProgress {
     return stream;
   }
   
+  /**
+   * Read the input as a streaming DataFrame and translate it with the translator(s) of the step,
+   * for when the pipeline runs on the Structured Streaming engine.
+   */
+  @SuppressWarnings("rawtypes")
+  public Dataset<Row> readStructuredStream() throws Exception {
+    if (!(getInput() instanceof StructuredStreamInput)) {
+      throw new RuntimeException("Stream input '" + name + "' does not support the structured " +
+          "streaming engine: " + getInput().getClass().getName());
+    }
+
+    Dataset<Row> raw = ((StructuredStreamInput)getInput()).readStream();
+
+    if (doesRepartition()) {
+      raw = raw.repartition(config.getInt(REPARTITION_NUM_PARTITIONS_PROPERTY));
+    }
+
+    List<String> rawFieldNames = Arrays.asList(raw.schema().fieldNames());
+    int keyIndex = rawFieldNames.indexOf(StructuredStreamInput.KEY_FIELD_NAME);
+    int valueIndex = rawFieldNames.indexOf(StructuredStreamInput.VALUE_FIELD_NAME);
+    int topicIndex = rawFieldNames.indexOf(StructuredStreamInput.TOPIC_FIELD_NAME);
+
+    if (valueIndex == -1) {
+      throw new RuntimeException("Stream input '" + name + "' must provide a '" +
+          StructuredStreamInput.VALUE_FIELD_NAME + "' field");
+    }
+
+    FlatMapFunction translateRawFunction;
+    if (topicTranslateFunction != null) {
+      if (topicIndex == -1) {
+        throw new RuntimeException("Stream input '" + name + "' must provide a '" +
+            StructuredStreamInput.TOPIC_FIELD_NAME + "' field to use per-topic translators");
+      }
+      translateRawFunction = topicTranslateFunction;
+    }
+    else {
+      topicIndex = -1;
+      translateRawFunction = translateFunction;
+    }
+
+    return raw.mapPartitions(
+        new TranslateRowsFunction(translateRawFunction, keyIndex, valueIndex, topicIndex),
+        RowEncoder.apply(getSchema()));
+  }
+
   public StructType getSchema() {
+    if (topicTranslateFunction != null) {
+      return topicTranslateFunction.getSchema();
+    }
+
     return translateFunction.getSchema();
   }
+
+  @Override
+  public void setData(Dataset<Row> batchDF) {
+    super.setData(batchDF);
+
+    if (doesRegisterTopicViews()) {
+      registerTopicViews();
+    }
+  }
+
+  @Override
+  public void setStreamingData(Dataset<Row> streamDF) {
+    super.setStreamingData(streamDF);
+
+    if (doesRegisterTopicViews()) {
+      registerTopicViews();
+    }
+  }
   
   @Override
   public void stageProgress(JavaRDD<?> batch) {
@@ -78,7 +173,13 @@ public class StreamingStep extends DataStep implements CanRecordProgress {
   @SuppressWarnings({ "unchecked", "rawtypes" })
   public JavaRDD<Row> translate(JavaRDD raw) {
     JavaPairRDD<?, ?> prepared = raw.mapToPair(((StreamInput)getInput()).getPrepareFunction());
-    JavaRDD<Row> translated = prepared.flatMap(translateFunction);
+    JavaRDD<Row> translated;
+    if (topicTranslateFunction != null) {
+      translated = prepared.mapPartitions(topicTranslateFunction);
+    }
+    else {
+      translated = prepared.mapPartitions(translateFunction);
+    }
     
     return translated;
   }
@@ -96,6 +197,84 @@ public class StreamingStep extends DataStep implements CanRecordProgress {
     return copy;
   }
 
+  private boolean doesRegisterTopicViews() {
+    if (!config.hasPath(TOPIC_VIEWS_PROPERTY) || !config.getBoolean(TOPIC_VIEWS_PROPERTY)) {
+      return false;
+    }
+
+    if (topicTranslateFunction == null) {
+      throw new RuntimeException("Stream input '" + name + "' can only register topic views " +
+          "when it has per-topic translators");
+    }
+
+    return true;
+  }
+
+  // Each configured topic is also registered as its own view, with only the fields of its translator
+  @SuppressWarnings("unchecked")
+  private void registerTopicViews() {
+    if (topicSchemas == null) {
+      topicSchemas = topicTranslateFunction.getTopicSchemas();
+    }
+
+    Column topicField = functions.col(topicTranslateFunction.getTopicFieldName());
+
+    for (Map.Entry<String, StructType> topicSchema : topicSchemas.entrySet()) {
+      Dataset<Row> topicData = getData()
+          .filter(topicField.equalTo(topicSchema.getKey()))
+          .select(RowUtils.toColumnArray(Lists.newArrayList(topicSchema.getValue().fieldNames())));
+
+      topicData.createOrReplaceTempView(getTopicViewName(topicSchema.getKey()));
+    }
+  }
+
+  /**
+   * @return The name of the view of the rows of the given topic, which is the step name and the
+   * topic name separated by an underscore, with any characters of the topic name that are not
+   * valid in a view name replaced by underscores.
+   */
+  public String getTopicViewName(String topic) {
+    return getName() + "_" + topic.replaceAll("[^A-Za-z0-9_]", "_");
+  }
+
+  // Adapts the rows of a streaming DataFrame to the keyed values that the translate functions
+  // expect, which are also keyed by topic when there is a topic field
+  @SuppressWarnings("serial")
+  private static class TranslateRowsFunction implements MapPartitionsFunction<Row, Row> {
+    @SuppressWarnings("rawtypes")
+    private FlatMapFunction translateFunction;
+    private int keyIndex;
+    private int valueIndex;
+    private int topicIndex;
+
+    @SuppressWarnings("rawtypes")
+    public TranslateRowsFunction(FlatMapFunction translateFunction, int keyIndex, int valueIndex,
+                                 int topicIndex) {
+      this.translateFunction = translateFunction;
+      this.keyIndex = keyIndex;
+      this.valueIndex = valueIndex;
+      this.topicIndex = topicIndex;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<Row> call(Iterator<Row> rows) throws Exception {
+      return translateFunction.call(Iterators.transform(rows, new Function<Row, Object>() {
+        @Override
+        public Object apply(Row row) {
+          Tuple2<Object, Object> keyAndValue = new Tuple2<Object, Object>(
+              keyIndex != -1 ? row.get(keyIndex) : null, row.get(valueIndex));
+
+          if (topicIndex != -1) {
+            return new Tuple2<Object, Object>(row.getString(topicIndex), keyAndValue);
+          }
+
+          return keyAndValue;
+        }
+      }));
+    }
+  }
+
   private boolean doesRepartition() {
     return config.hasPath(REPARTITION_NUM_PARTITIONS_PROPERTY);
   }
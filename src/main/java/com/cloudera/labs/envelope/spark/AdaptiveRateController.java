@@ -0,0 +1,300 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.metrics.source.Source;
+import org.apache.spark.streaming.kafka010.HasOffsetRanges;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.apache.spark.streaming.kafka010.PerPartitionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+
+/**
+ * Adjusts the ingest rate and the Spark SQL shuffle parallelism of a streaming pipeline after each
+ * micro-batch to hold the end-to-end processing time of the micro-batches near a latency target.
+ *
+ * When a micro-batch takes longer than the target the shuffle partitions are increased and the
+ * per-partition rate is reduced in proportion. When it takes well under the target the rate is
+ * increased if the micro-batch was limited by the rate, or otherwise the shuffle partitions are
+ * reduced so that small micro-batches do not pay for many small tasks. The rate is applied to
+ * Kafka inputs through {@link #getPerPartitionConfig()}, alongside Spark Streaming back-pressure.
+ *
+ * Changes to the rate or partitions are logged, and the decisions are reported to the Spark
+ * metrics system under the {@value #METRICS_SOURCE_NAME} source.
+ */
+public class AdaptiveRateController {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateController.class);
+
+  public static final String ENABLED_PROPERTY = "application.adaptive.enabled";
+  public static final String LATENCY_TARGET_PROPERTY = "application.adaptive.latency.target.milliseconds";
+  public static final String RATE_INITIAL_PROPERTY = "application.adaptive.rate.initial";
+  public static final String RATE_MIN_PROPERTY = "application.adaptive.rate.min";
+  public static final String RATE_MAX_PROPERTY = "application.adaptive.rate.max";
+  public static final String PARTITIONS_MIN_PROPERTY = "application.adaptive.partitions.min";
+  public static final String PARTITIONS_MAX_PROPERTY = "application.adaptive.partitions.max";
+
+  public static final String METRICS_SOURCE_NAME = "envelope.adaptive";
+
+  private static final String SHUFFLE_PARTITIONS_CONF = "spark.sql.shuffle.partitions";
+
+  // Micro-batches under this fraction of the target can take on more work
+  private static final double LOW_LATENCY_RATIO = 0.7;
+  // Micro-batches with at least this fraction of the rate limit were limited by the rate
+  private static final double SATURATED_RATIO = 0.9;
+  // The most that the rate can grow by after a single micro-batch
+  private static final double MAX_RATE_GROWTH = 2.0;
+
+  private static AdaptiveRateController instance;
+
+  private long latencyTargetMillis;
+  private long batchMillis;
+  private long minRate;
+  private long maxRate;
+  private int minPartitions;
+  private int maxPartitions;
+
+  private volatile long ratePerPartition;
+  private volatile int shufflePartitions;
+  private volatile long lastBatchMillis;
+  private volatile long lastBatchRecords;
+
+  AdaptiveRateController(long latencyTargetMillis, long batchMillis, long initialRate, long minRate,
+                         long maxRate, int initialPartitions, int minPartitions, int maxPartitions) {
+    this.latencyTargetMillis = latencyTargetMillis;
+    this.batchMillis = batchMillis;
+    this.ratePerPartition = initialRate;
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.shufflePartitions = Math.max(minPartitions, Math.min(maxPartitions, initialPartitions));
+    this.minPartitions = minPartitions;
+    this.maxPartitions = maxPartitions;
+  }
+
+  /**
+   * Create the controller of the pipeline if it is enabled by the application configuration.
+   * This must be called after the Spark session has been created, and before the streams of the
+   * pipeline are created.
+   */
+  public static synchronized void initialize(Config config) {
+    if (!config.hasPath(ENABLED_PROPERTY) || !config.getBoolean(ENABLED_PROPERTY)) {
+      instance = null;
+      return;
+    }
+
+    long batchMillis = config.getLong(Contexts.BATCH_MILLISECONDS_PROPERTY);
+    long latencyTarget = config.hasPath(LATENCY_TARGET_PROPERTY) ?
+        config.getLong(LATENCY_TARGET_PROPERTY) : batchMillis;
+    long initialRate = config.hasPath(RATE_INITIAL_PROPERTY) ? config.getLong(RATE_INITIAL_PROPERTY) : 2000;
+    long minRate = config.hasPath(RATE_MIN_PROPERTY) ? config.getLong(RATE_MIN_PROPERTY) : 10;
+    long maxRate = config.hasPath(RATE_MAX_PROPERTY) ? config.getLong(RATE_MAX_PROPERTY) : 100000;
+    int initialPartitions = Integer.parseInt(
+        Contexts.getSparkSession().conf().get(SHUFFLE_PARTITIONS_CONF));
+    int minPartitions = config.hasPath(PARTITIONS_MIN_PROPERTY) ? config.getInt(PARTITIONS_MIN_PROPERTY) : 1;
+    int maxPartitions = config.hasPath(PARTITIONS_MAX_PROPERTY) ? config.getInt(PARTITIONS_MAX_PROPERTY) :
+        Math.max(minPartitions, Contexts.getSparkSession().sparkContext().defaultParallelism());
+
+    if (minRate <= 0 || minRate > maxRate || initialRate < minRate || initialRate > maxRate) {
+      throw new RuntimeException("Adaptive rate must satisfy 0 < '" + RATE_MIN_PROPERTY + "' <= '" +
+          RATE_INITIAL_PROPERTY + "' <= '" + RATE_MAX_PROPERTY + "'");
+    }
+    if (minPartitions <= 0 || minPartitions > maxPartitions) {
+      throw new RuntimeException("Adaptive partitions must satisfy 0 < '" + PARTITIONS_MIN_PROPERTY +
+          "' <= '" + PARTITIONS_MAX_PROPERTY + "'");
+    }
+
+    instance = new AdaptiveRateController(latencyTarget, batchMillis, initialRate, minRate, maxRate,
+        initialPartitions, minPartitions, maxPartitions);
+    instance.applyShufflePartitions();
+    instance.registerMetrics();
+
+    LOG.info("Adaptive rate controller enabled with latency target {}ms, initial rate {} per partition " +
+        "and {} shuffle partitions", latencyTarget, initialRate, instance.shufflePartitions);
+  }
+
+  /**
+   * @return The controller of the pipeline, or null if it is not enabled.
+   */
+  public static synchronized AdaptiveRateController get() {
+    return instance;
+  }
+
+  /**
+   * @return The Kafka per-partition configuration that limits each partition to the current rate.
+   */
+  public static PerPartitionConfig getPerPartitionConfig() {
+    return new AdaptivePerPartitionConfig();
+  }
+
+  /**
+   * Adjust the rate and shuffle parallelism after a micro-batch has been processed by the
+   * streaming step and all of its dependent steps.
+   * @param batch The raw micro-batch of the stream.
+   * @param elapsedMillis The end-to-end processing time of the micro-batch.
+   */
+  public void batchCompleted(JavaRDD<?> batch, long elapsedMillis) {
+    long records = -1;
+    int inputPartitions = batch.getNumPartitions();
+
+    // The size of Kafka micro-batches is known without running a job
+    if (batch.rdd() instanceof HasOffsetRanges) {
+      OffsetRange[] offsetRanges = ((HasOffsetRanges)batch.rdd()).offsetRanges();
+      records = 0;
+      for (OffsetRange offsetRange : offsetRanges) {
+        records += offsetRange.count();
+      }
+      inputPartitions = offsetRanges.length;
+    }
+
+    int previousPartitions = shufflePartitions;
+    long previousRate = ratePerPartition;
+
+    adjust(records, inputPartitions, elapsedMillis);
+
+    if (shufflePartitions != previousPartitions) {
+      applyShufflePartitions();
+    }
+
+    // Only the decisions that change the pipeline are worth logging on every micro-batch
+    if (shufflePartitions != previousPartitions || ratePerPartition != previousRate) {
+      LOG.info("Micro-batch of {} records took {}ms against a target of {}ms: rate {} -> {} per partition, " +
+          "shuffle partitions {} -> {}", records, elapsedMillis, latencyTargetMillis, previousRate,
+          ratePerPartition, previousPartitions, shufflePartitions);
+    }
+    else if (LOG.isDebugEnabled()) {
+      LOG.debug("Micro-batch of {} records took {}ms against a target of {}ms: rate {} per partition " +
+          "and {} shuffle partitions unchanged", records, elapsedMillis, latencyTargetMillis,
+          ratePerPartition, shufflePartitions);
+    }
+  }
+
+  void adjust(long records, int inputPartitions, long elapsedMillis) {
+    lastBatchMillis = elapsedMillis;
+    lastBatchRecords = records;
+
+    // Empty micro-batches say nothing about how long the work takes
+    if (records == 0 || elapsedMillis <= 0) {
+      return;
+    }
+
+    double latencyRatio = (double)elapsedMillis / latencyTargetMillis;
+    boolean recordsKnown = records > 0 && inputPartitions > 0;
+    double batchSeconds = batchMillis / 1000.0;
+
+    if (latencyRatio > 1) {
+      shufflePartitions = (int)Math.min(maxPartitions, Math.ceil(shufflePartitions * latencyRatio));
+
+      if (recordsKnown) {
+        // Reduce from the rate that was actually received, which can be under the limit
+        double receivedRate = records / (inputPartitions * batchSeconds);
+        double reducedRate = Math.min(ratePerPartition, receivedRate) / latencyRatio;
+        ratePerPartition = Math.max(minRate, (long)reducedRate);
+      }
+    }
+    else if (latencyRatio < LOW_LATENCY_RATIO) {
+      boolean saturated = recordsKnown &&
+          records >= SATURATED_RATIO * ratePerPartition * inputPartitions * batchSeconds;
+
+      if (saturated) {
+        double growth = Math.min(MAX_RATE_GROWTH, 1 / latencyRatio);
+        ratePerPartition = Math.min(maxRate, (long)(ratePerPartition * growth));
+      }
+      else {
+        double shrink = Math.max(0.5, latencyRatio / LOW_LATENCY_RATIO);
+        shufflePartitions = (int)Math.max(minPartitions, Math.floor(shufflePartitions * shrink));
+      }
+    }
+  }
+
+  public long getRatePerPartition() {
+    return ratePerPartition;
+  }
+
+  public int getShufflePartitions() {
+    return shufflePartitions;
+  }
+
+  private void applyShufflePartitions() {
+    Contexts.getSparkSession().conf().set(SHUFFLE_PARTITIONS_CONF, Integer.toString(shufflePartitions));
+  }
+
+  private void registerMetrics() {
+    final MetricRegistry registry = new MetricRegistry();
+
+    registry.register("ratePerPartition", new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return ratePerPartition;
+      }
+    });
+    registry.register("shufflePartitions", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return shufflePartitions;
+      }
+    });
+    registry.register("lastBatchMillis", new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return lastBatchMillis;
+      }
+    });
+    registry.register("lastBatchRecords", new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return lastBatchRecords;
+      }
+    });
+    registry.register("latencyTargetMillis", new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return latencyTargetMillis;
+      }
+    });
+
+    SparkEnv.get().metricsSystem().registerSource(new Source() {
+      @Override
+      public String sourceName() {
+        return METRICS_SOURCE_NAME;
+      }
+
+      @Override
+      public MetricRegistry metricRegistry() {
+        return registry;
+      }
+    });
+  }
+
+  // Evaluated by the Kafka stream on the driver as it computes each micro-batch
+  @SuppressWarnings("serial")
+  private static class AdaptivePerPartitionConfig extends PerPartitionConfig {
+    @Override
+    public long maxRatePerPartition(TopicPartition topicPartition) {
+      AdaptiveRateController controller = get();
+
+      // Zero is no limit
+      return controller != null ? controller.getRatePerPartition() : 0;
+    }
+  }
+
+}
@@ -149,10 +149,11 @@ public enum Contexts {
       sparkConf.set("spark.streaming.backpressure.enabled", "true");
       // Rate limit the micro-batches when using Apache Kafka to 2000 records per Kafka topic partition
       // per second. Without this we could end up with arbitrarily large initial micro-batches
-      // for existing topics.
+      // for existing topics. When the adaptive rate controller is enabled it limits the rate instead.
       sparkConf.set("spark.streaming.kafka.maxRatePerPartition", "2000");
       // Override the Spark SQL shuffle partitions with the default number of cores. Otherwise
-      // the default is typically 200 partitions, which is very high for micro-batches.
+      // the default is typically 200 partitions, which is very high for micro-batches. When the
+      // adaptive rate controller is enabled this is only the initial number of partitions.
       sparkConf.set("spark.sql.shuffle.partitions", "2");
     }
     else if (mode.equals(ExecutionMode.UNIT_TEST)) {
@@ -0,0 +1,503 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.collect.Maps;
+
+import scala.collection.Seq;
+
+/**
+ * A Spark SQL Row with a schema whose values can be changed in place. Long, integer, double and
+ * boolean values are held in primitive slots so that they can be read and written without boxing.
+ * The field ordinals and slot types of a schema are resolved once into a {@link Layout} that is
+ * shared by all of the rows of that schema.
+ *
+ * This is intended for planners that repeatedly change the fields of the rows they plan, which
+ * with immutable rows would copy the whole row for every field that is changed. Rows of this class
+ * must not be changed once they have been handed on from the planner.
+ */
+@SuppressWarnings("serial")
+public class MutableRowWithSchema implements Row {
+
+  private static final int OBJECT_SLOT = 0;
+  private static final int LONG_SLOT = 1;
+  private static final int INT_SLOT = 2;
+  private static final int DOUBLE_SLOT = 3;
+  private static final int BOOLEAN_SLOT = 4;
+
+  private Layout layout;
+  private Object[] objects;
+  private long[] primitives;
+  private boolean[] primitiveNulls;
+
+  public MutableRowWithSchema(Layout layout) {
+    this.layout = layout;
+    this.objects = new Object[layout.length()];
+    this.primitives = new long[layout.length()];
+    this.primitiveNulls = new boolean[layout.length()];
+    Arrays.fill(primitiveNulls, true);
+  }
+
+  /**
+   * Copy the values of the row into a new mutable row of the layout. The layout can have more
+   * fields than the row, which are appended after the fields of the row with null values.
+   */
+  public static MutableRowWithSchema copyOf(Row row, Layout layout) {
+    MutableRowWithSchema copy = new MutableRowWithSchema(layout);
+
+    if (row instanceof MutableRowWithSchema) {
+      MutableRowWithSchema from = (MutableRowWithSchema)row;
+      int length = from.length();
+      System.arraycopy(from.objects, 0, copy.objects, 0, length);
+      System.arraycopy(from.primitives, 0, copy.primitives, 0, length);
+      System.arraycopy(from.primitiveNulls, 0, copy.primitiveNulls, 0, length);
+    }
+    else {
+      // Only the values that are described by the schema of the row are copied
+      int length = Math.min(row.length(), row.schema().length());
+      for (int i = 0; i < length; i++) {
+        copy.set(i, row.get(i));
+      }
+    }
+
+    return copy;
+  }
+
+  public Layout getLayout() {
+    return layout;
+  }
+
+  public void set(int i, Object value) {
+    if (layout.kinds[i] == OBJECT_SLOT) {
+      objects[i] = value;
+    }
+    else if (value == null) {
+      primitiveNulls[i] = true;
+    }
+    else {
+      switch (layout.kinds[i]) {
+        case LONG_SLOT:
+          primitives[i] = (Long)value;
+          break;
+        case INT_SLOT:
+          primitives[i] = (Integer)value;
+          break;
+        case DOUBLE_SLOT:
+          primitives[i] = Double.doubleToRawLongBits((Double)value);
+          break;
+        case BOOLEAN_SLOT:
+          primitives[i] = (Boolean)value ? 1 : 0;
+          break;
+      }
+      primitiveNulls[i] = false;
+    }
+  }
+
+  public void setLong(int i, long value) {
+    if (layout.kinds[i] != LONG_SLOT) {
+      set(i, value);
+      return;
+    }
+
+    primitives[i] = value;
+    primitiveNulls[i] = false;
+  }
+
+  public void setInt(int i, int value) {
+    if (layout.kinds[i] != INT_SLOT) {
+      set(i, value);
+      return;
+    }
+
+    primitives[i] = value;
+    primitiveNulls[i] = false;
+  }
+
+  public void setDouble(int i, double value) {
+    if (layout.kinds[i] != DOUBLE_SLOT) {
+      set(i, value);
+      return;
+    }
+
+    primitives[i] = Double.doubleToRawLongBits(value);
+    primitiveNulls[i] = false;
+  }
+
+  public void setBoolean(int i, boolean value) {
+    if (layout.kinds[i] != BOOLEAN_SLOT) {
+      set(i, value);
+      return;
+    }
+
+    primitives[i] = value ? 1 : 0;
+    primitiveNulls[i] = false;
+  }
+
+  @Override
+  public Object get(int i) {
+    if (layout.kinds[i] == OBJECT_SLOT) {
+      return objects[i];
+    }
+    if (primitiveNulls[i]) {
+      return null;
+    }
+
+    switch (layout.kinds[i]) {
+      case LONG_SLOT:
+        return primitives[i];
+      case INT_SLOT:
+        return (int)primitives[i];
+      case DOUBLE_SLOT:
+        return Double.longBitsToDouble(primitives[i]);
+      default:
+        return primitives[i] != 0;
+    }
+  }
+
+  @Override
+  public long getLong(int i) {
+    if (layout.kinds[i] != LONG_SLOT) {
+      return (Long)getNotNull(i);
+    }
+
+    checkNotNull(i);
+    return primitives[i];
+  }
+
+  @Override
+  public int getInt(int i) {
+    if (layout.kinds[i] != INT_SLOT) {
+      return (Integer)getNotNull(i);
+    }
+
+    checkNotNull(i);
+    return (int)primitives[i];
+  }
+
+  @Override
+  public double getDouble(int i) {
+    if (layout.kinds[i] != DOUBLE_SLOT) {
+      return (Double)getNotNull(i);
+    }
+
+    checkNotNull(i);
+    return Double.longBitsToDouble(primitives[i]);
+  }
+
+  @Override
+  public boolean getBoolean(int i) {
+    if (layout.kinds[i] != BOOLEAN_SLOT) {
+      return (Boolean)getNotNull(i);
+    }
+
+    checkNotNull(i);
+    return primitives[i] != 0;
+  }
+
+  @Override
+  public boolean isNullAt(int i) {
+    if (layout.kinds[i] == OBJECT_SLOT) {
+      return objects[i] == null;
+    }
+
+    return primitiveNulls[i];
+  }
+
+  @Override
+  public boolean anyNull() {
+    for (int i = 0; i < length(); i++) {
+      if (isNullAt(i)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public int fieldIndex(String fieldName) {
+    return layout.ordinal(fieldName);
+  }
+
+  @Override
+  public StructType schema() {
+    return layout.getSchema();
+  }
+
+  @Override
+  public int length() {
+    return layout.length();
+  }
+
+  @Override
+  public int size() {
+    return length();
+  }
+
+  @Override
+  public MutableRowWithSchema copy() {
+    return copyOf(this, layout);
+  }
+
+  @Override
+  public Object apply(int i) {
+    return get(i);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> T getAs(int i) {
+    return (T)get(i);
+  }
+
+  @Override
+  public <T> T getAs(String fieldName) {
+    return getAs(fieldIndex(fieldName));
+  }
+
+  @Override
+  public byte getByte(int i) {
+    return (Byte)getNotNull(i);
+  }
+
+  @Override
+  public short getShort(int i) {
+    return (Short)getNotNull(i);
+  }
+
+  @Override
+  public float getFloat(int i) {
+    return (Float)getNotNull(i);
+  }
+
+  @Override
+  public String getString(int i) {
+    return (String)get(i);
+  }
+
+  @Override
+  public BigDecimal getDecimal(int i) {
+    return (BigDecimal)get(i);
+  }
+
+  @Override
+  public Date getDate(int i) {
+    return (Date)get(i);
+  }
+
+  @Override
+  public Timestamp getTimestamp(int i) {
+    return (Timestamp)get(i);
+  }
+
+  @Override
+  public Row getStruct(int i) {
+    return (Row)get(i);
+  }
+
+  // The remaining methods are not used on the planning path, so they are answered by an
+  // immutable copy of the values
+
+  @Override
+  public <K, V> Map<K, V> getJavaMap(int i) {
+    return toRow().getJavaMap(i);
+  }
+
+  @Override
+  public <T> List<T> getList(int i) {
+    return toRow().getList(i);
+  }
+
+  @Override
+  public <K, V> scala.collection.Map<K, V> getMap(int i) {
+    return toRow().getMap(i);
+  }
+
+  @Override
+  public <T> Seq<T> getSeq(int i) {
+    return toRow().getSeq(i);
+  }
+
+  @Override
+  public <T> scala.collection.immutable.Map<String, T> getValuesMap(Seq<String> fieldNames) {
+    return toRow().getValuesMap(fieldNames);
+  }
+
+  @Override
+  public String mkString() {
+    return toRow().mkString();
+  }
+
+  @Override
+  public String mkString(String sep) {
+    return toRow().mkString(sep);
+  }
+
+  @Override
+  public String mkString(String start, String sep, String end) {
+    return toRow().mkString(start, sep, end);
+  }
+
+  @Override
+  public Seq<Object> toSeq() {
+    return toRow().toSeq();
+  }
+
+  @Override
+  public String toString() {
+    return toRow().toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return toRow().equals(other);
+  }
+
+  @Override
+  public int hashCode() {
+    return toRow().hashCode();
+  }
+
+  private Row toRow() {
+    Object[] values = new Object[length()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = get(i);
+    }
+
+    return RowFactory.create(values);
+  }
+
+  private Object getNotNull(int i) {
+    checkNotNull(i);
+    return get(i);
+  }
+
+  private void checkNotNull(int i) {
+    if (isNullAt(i)) {
+      throw new NullPointerException("Value at index " + i + " is null");
+    }
+  }
+
+  /**
+   * The field ordinals and slot types of a schema.
+   */
+  public static class Layout implements Serializable {
+    private StructType schema;
+    private int[] kinds;
+    private Map<String, Integer> ordinals = Maps.newHashMap();
+
+    public Layout(StructType schema) {
+      this.schema = schema;
+      this.kinds = new int[schema.length()];
+
+      StructField[] fields = schema.fields();
+      for (int i = 0; i < fields.length; i++) {
+        kinds[i] = kindFor(fields[i].dataType());
+        // Later fields of the same name take precedence, as with StructType#fieldIndex
+        ordinals.put(fields[i].name(), i);
+      }
+    }
+
+    /**
+     * @return A new layout with the given fields appended to the fields of this layout.
+     */
+    public Layout append(List<StructField> fields) {
+      StructType appended = schema;
+
+      for (StructField field : fields) {
+        appended = appended.add(field);
+      }
+
+      return new Layout(appended);
+    }
+
+    public int ordinal(String fieldName) {
+      Integer ordinal = ordinals.get(fieldName);
+
+      if (ordinal == null) {
+        throw new IllegalArgumentException("Field \"" + fieldName + "\" does not exist.");
+      }
+
+      return ordinal;
+    }
+
+    public StructType getSchema() {
+      return schema;
+    }
+
+    public int length() {
+      return kinds.length;
+    }
+
+    private static int kindFor(DataType type) {
+      if (type.equals(DataTypes.LongType)) return LONG_SLOT;
+      if (type.equals(DataTypes.IntegerType)) return INT_SLOT;
+      if (type.equals(DataTypes.DoubleType)) return DOUBLE_SLOT;
+      if (type.equals(DataTypes.BooleanType)) return BOOLEAN_SLOT;
+
+      return OBJECT_SLOT;
+    }
+  }
+
+  /**
+   * Resolves the layouts of the schemas of rows, optionally with fields appended. Rows of the same
+   * dataset share the same schema instance, so the layout of the last schema is kept to hand.
+   */
+  public static class Layouts implements Serializable {
+    private List<StructField> appendedFields;
+    private Map<StructType, Layout> layouts = Maps.newHashMap();
+    private StructType lastSchema;
+    private Layout lastLayout;
+
+    public Layouts(List<StructField> appendedFields) {
+      this.appendedFields = appendedFields;
+    }
+
+    public Layout get(StructType schema) {
+      if (schema == lastSchema) {
+        return lastLayout;
+      }
+
+      Layout layout = layouts.get(schema);
+      if (layout == null) {
+        layout = new Layout(schema).append(appendedFields);
+        layouts.put(schema, layout);
+      }
+
+      lastSchema = schema;
+      lastLayout = layout;
+
+      return layout;
+    }
+  }
+
+}
@@ -16,13 +16,22 @@
 package com.cloudera.labs.envelope.utils;
 
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Timestamp;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.LogicalType;
 import org.apache.avro.LogicalTypes;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.util.DateTimeUtils;
 import org.apache.spark.sql.types.ArrayType;
 import org.apache.spark.sql.types.DataType;
 import org.apache.spark.sql.types.DataTypes;
@@ -34,6 +43,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
 
 /**
  *
@@ -287,6 +300,90 @@ public class AvroUtils {
     }
   }
 
+  /**
+   * Convert a Row into an Avro record of the given Record schema, such as the schema returned by
+   * {@link #schemaFor(StructType)} for the schema of the Row. The fields of the Row are matched
+   * to the fields of the record by position.
+   *
+   * @param row The Row to convert
+   * @param schema The Avro Record schema
+   * @return GenericRecord conversion
+   */
+  public static GenericRecord recordFor(Row row, Schema schema) {
+    if (!schema.getType().equals(Schema.Type.RECORD)) {
+      throw new AvroRuntimeException("Unable to convert Row to record: Schema must be a Record");
+    }
+
+    GenericRecord record = new GenericData.Record(schema);
+
+    for (Schema.Field f : schema.getFields()) {
+      record.put(f.pos(), avroValueFor(row.get(f.pos()), f.schema()));
+    }
+
+    return record;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object avroValueFor(Object value, Schema schemaType) {
+    if (value == null) {
+      return null;
+    }
+
+    // Unwrap "optional" unions to the base type
+    if (isNullable(schemaType) && schemaType.getTypes().size() == 2) {
+      for (Schema s : schemaType.getTypes()) {
+        if (!s.getType().equals(Schema.Type.NULL)) {
+          schemaType = s;
+          break;
+        }
+      }
+    }
+
+    if (null != schemaType.getLogicalType()) {
+      LogicalType logicalType = schemaType.getLogicalType();
+      switch (logicalType.getName()) {
+        case "date" :
+          return DateTimeUtils.fromJavaDate((Date) value);
+        case "timestamp-millis" :
+          return ((Timestamp) value).getTime();
+        case "decimal" :
+          int scale = ((LogicalTypes.Decimal) logicalType).getScale();
+          return ByteBuffer.wrap(((BigDecimal) value).setScale(scale).unscaledValue().toByteArray());
+        default:
+          // Pass-thru to the underlying base type
+      }
+    }
+
+    switch (schemaType.getType()) {
+      case RECORD:
+        return recordFor((Row) value, schemaType);
+      case ARRAY:
+        Iterable<Object> elements = value instanceof Seq ?
+            JavaConversions.seqAsJavaList((Seq<Object>) value) : (Iterable<Object>) value;
+        List<Object> array = Lists.newArrayList();
+        for (Object element : elements) {
+          array.add(avroValueFor(element, schemaType.getElementType()));
+        }
+        return array;
+      case MAP:
+        Map<Object, Object> entries = value instanceof scala.collection.Map ?
+            JavaConversions.mapAsJavaMap((scala.collection.Map<Object, Object>) value) :
+            (Map<Object, Object>) value;
+        Map<String, Object> map = Maps.newHashMap();
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+          map.put(String.valueOf(entry.getKey()), avroValueFor(entry.getValue(), schemaType.getValueType()));
+        }
+        return map;
+      case BYTES:
+        return ByteBuffer.wrap((byte[]) value);
+      case INT:
+        // Also covers byte and short
+        return ((Number) value).intValue();
+      default:
+        return value;
+    }
+  }
+
   private static boolean isNullable(Schema schema) {
     if (schema.getType().equals(Schema.Type.UNION)) {
       for (Schema s : schema.getTypes()){
@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Accesses a fixed list of fields of rows by ordinal. This is the equivalent of the field name
+ * based helpers of {@link RowUtils}, except that the ordinals of the fields are resolved once for
+ * each schema that the accessor is used with, rather than on every call.
+ *
+ * The rows of a dataset share the same schema instance, so the ordinals of the last two schema
+ * instances are kept to hand, which covers the planners comparing arriving rows with existing rows
+ * of another schema, and the ordinals of other schemas are looked up by schema. Rows without a schema
+ * can only be used as the second row of a comparison, in which case the ordinals of the first row
+ * are used, as with {@link RowUtils#different(Row, Row, List)}.
+ *
+ * Accessors are not thread-safe, and so should be created for each planner, function, etc.
+ */
+@SuppressWarnings("serial")
+public class RowAccessor implements Serializable {
+
+  private List<String> fieldNames;
+  private Map<StructType, Resolved> resolvedBySchema = Maps.newHashMap();
+  private StructType lastSchema;
+  private Resolved lastResolved;
+  private StructType previousSchema;
+  private Resolved previousResolved;
+
+  public RowAccessor(List<String> fieldNames) {
+    this.fieldNames = Lists.newArrayList(fieldNames);
+  }
+
+  public RowAccessor(String fieldName) {
+    this(Lists.newArrayList(fieldName));
+  }
+
+  public List<String> getFieldNames() {
+    return fieldNames;
+  }
+
+  /**
+   * @return The ordinals of the fields of the accessor within the schema of the row, or -1 for the
+   * fields that are not in the schema.
+   */
+  public int[] ordinals(Row row) {
+    return resolve(row.schema()).ordinals;
+  }
+
+  /**
+   * @return The value of the first field of the accessor.
+   */
+  public Object get(Row row) {
+    return row.get(ordinal(row, 0));
+  }
+
+  /**
+   * @param field The position of the field within the fields of the accessor.
+   */
+  public Object get(Row row, int field) {
+    return row.get(ordinal(row, field));
+  }
+
+  /**
+   * @return The value of the first field of the accessor as a primitive long.
+   */
+  public long getLong(Row row) {
+    return row.getLong(ordinal(row, 0));
+  }
+
+  /**
+   * Set the value of a field of the accessor, copying the row once.
+   * @param field The position of the field within the fields of the accessor.
+   */
+  public Row set(Row row, int field, Object value) {
+    int ordinal = ordinal(row, field);
+    Object[] values = new Object[row.length()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (i == ordinal) ? value : row.get(i);
+    }
+
+    return new RowWithSchema(row.schema(), values);
+  }
+
+  /**
+   * @return A row of only the fields of the accessor that are in the schema of the row, in the
+   * order of the schema of the row, as with {@link RowUtils#subsetRow(Row, StructType)}.
+   */
+  public Row subset(Row row) {
+    Resolved resolved = resolve(row.schema());
+    int[] ordinals = resolved.subsetOrdinals;
+    Object[] values = new Object[ordinals.length];
+
+    for (int i = 0; i < ordinals.length; i++) {
+      values[i] = row.get(ordinals[i]);
+    }
+
+    return new RowWithSchema(resolved.subsetSchema, values);
+  }
+
+  /**
+   * @return True if any of the fields of the accessor have different values between the rows.
+   */
+  public boolean different(Row first, Row second) {
+    boolean secondHasSchema = second.schema() != null;
+
+    for (int i = 0; i < fieldNames.size(); i++) {
+      int firstOrdinal = ordinal(first, i);
+      Object firstValue = first.get(firstOrdinal);
+      Object secondValue = second.get(secondHasSchema ? ordinal(second, i) : firstOrdinal);
+
+      if (firstValue == null ? secondValue != null : !firstValue.equals(secondValue)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Compare the first field of the accessor between the rows as timestamps of type long.
+   * @return -1, 0 or 1 as the first row is before, simultaneous with, or after the second row.
+   */
+  public int compareTimestamp(Row first, Row second) {
+    return Long.compare(getLong(first), getLong(second));
+  }
+
+  public boolean before(Row first, Row second) {
+    return compareTimestamp(first, second) < 0;
+  }
+
+  public boolean after(Row first, Row second) {
+    return compareTimestamp(first, second) > 0;
+  }
+
+  public boolean simultaneous(Row first, Row second) {
+    return compareTimestamp(first, second) == 0;
+  }
+
+  private int ordinal(Row row, int field) {
+    int ordinal = resolve(row.schema()).ordinals[field];
+
+    if (ordinal == -1) {
+      throw new RuntimeException("Field '" + fieldNames.get(field) + "' does not exist in schema " + row.schema());
+    }
+
+    return ordinal;
+  }
+
+  // The schemas are compared by identity first because StructType does not cache its hash code,
+  // and so looking up a schema by equality costs as much as finding the fields by name
+  private Resolved resolve(StructType schema) {
+    if (schema == lastSchema && schema != null) {
+      return lastResolved;
+    }
+
+    if (schema == null) {
+      throw new RuntimeException("Row accessor for fields " + fieldNames + " requires rows with a schema");
+    }
+
+    Resolved resolved;
+    if (schema == previousSchema) {
+      resolved = previousResolved;
+    }
+    else {
+      resolved = resolvedBySchema.get(schema);
+      if (resolved == null) {
+        resolved = new Resolved(schema, fieldNames);
+        resolvedBySchema.put(schema, resolved);
+      }
+    }
+
+    previousSchema = lastSchema;
+    previousResolved = lastResolved;
+    lastSchema = schema;
+    lastResolved = resolved;
+
+    return resolved;
+  }
+
+  private static class Resolved implements Serializable {
+    private int[] ordinals;
+    private int[] subsetOrdinals;
+    private StructType subsetSchema;
+
+    public Resolved(StructType schema, List<String> fieldNames) {
+      List<String> schemaFieldNames = Arrays.asList(schema.fieldNames());
+
+      ordinals = new int[fieldNames.size()];
+      for (int i = 0; i < ordinals.length; i++) {
+        ordinals[i] = schemaFieldNames.contains(fieldNames.get(i)) ? schema.fieldIndex(fieldNames.get(i)) : -1;
+      }
+
+      subsetSchema = RowUtils.subsetSchema(schema, fieldNames);
+      subsetOrdinals = new int[subsetSchema.length()];
+      for (int i = 0; i < subsetOrdinals.length; i++) {
+        subsetOrdinals[i] = schema.fieldIndex(subsetSchema.fields()[i].name());
+      }
+    }
+  }
+
+}
@@ -663,9 +663,11 @@ public class RowUtils {
 
   public static Row set(Row row, String fieldName, Object replacement) {
     Object[] values = new Object[row.length()];
+    int replacementIndex = row.fieldIndex(fieldName);
+    int numFields = row.schema().fields().length;
 
-    for (int i = 0; i < row.schema().fields().length; i++) {
-      if (i == row.fieldIndex(fieldName)) {
+    for (int i = 0; i < numFields; i++) {
+      if (i == replacementIndex) {
         values[i] = replacement;
       } else {
         values[i] = row.get(i);
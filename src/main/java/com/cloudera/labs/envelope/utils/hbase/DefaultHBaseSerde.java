@@ -15,7 +15,10 @@
  */
 package com.cloudera.labs.envelope.utils.hbase;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -31,6 +34,8 @@ import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.CompareFilter;
 import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.filter.FilterList.Operator;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter.RowRange;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.spark.sql.Row;
@@ -39,19 +44,52 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.spark.RowWithSchema;
-import com.cloudera.labs.envelope.utils.RowUtils;
+import com.cloudera.labs.envelope.utils.RowAccessor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
+/**
+ * The default serde, which maps the fields of rows to the row key and to individual cells of
+ * HBase rows by the configured column mapping.
+ * <p>
+ * The family and qualifier bytes of the mapped columns are computed once when the serde is
+ * configured, row keys are encoded into a reusable buffer, and the cells of results are matched
+ * to their columns by comparing their bytes. The serde can be shared between threads.
+ * <p>
+ * If the mapping has salt buckets then each row key is prefixed with a byte that is a hash of the
+ * row key modulo the number of buckets, which spreads monotonically increasing row keys across
+ * the regions of a table that is pre-split by salt bucket. The salt is removed when rows are read,
+ * and reads of a prefix of the row key scan the prefix in every salt bucket.
+ */
 public class DefaultHBaseSerde implements HBaseSerde {
 
   private static final Logger LOG = LoggerFactory.getLogger(DefaultHBaseSerde.class);
 
+  private static final int INITIAL_KEY_BUFFER_SIZE = 64;
+
   private List<String> keyColumns;
   private Map<String, ColumnDef> columns;
   private StructType schema;
   private byte[] keySeparator;
+  private int saltBuckets;
+
+  // The row key columns, in row key order
+  private ColumnDef[] keyDefs;
+  private int[] keySchemaIndexes;
+
+  // The other columns, in the order of their families and then qualifiers
+  private ColumnDef[] valueDefs;
+  private byte[][] valueFamilies;
+  private byte[][] valueQualifiers;
+  private int[] valueSchemaIndexes;
+
+  private ThreadLocal<RowEncoder> encoders = new ThreadLocal<RowEncoder>() {
+    @Override
+    protected RowEncoder initialValue() {
+      return new RowEncoder();
+    }
+  };
 
   public void configure(Config config) {
     if (HBaseUtils.validateConfig(config)) {
@@ -59,6 +97,8 @@ public class DefaultHBaseSerde implements HBaseSerde {
       columns = HBaseUtils.columnsFor(config);
       schema = HBaseUtils.buildSchema(columns);
       keySeparator = HBaseUtils.rowKeySeparatorFor(config);
+      saltBuckets = HBaseUtils.saltBucketsFor(config);
+      precomputeColumns();
     } else {
       LOG.error("Invalid configuration");
       throw new IllegalArgumentException("Invalid configuration");
@@ -87,24 +127,28 @@ public class DefaultHBaseSerde implements HBaseSerde {
 
     // Get row key fields
     byte[] rowKey = result.getRow();
-    int index = 0;
-    for (int i = 0; i < keyColumns.size(); i++) {
-      ColumnDef def = columns.get(keyColumns.get(i));
+    int index = saltBuckets > 0 ? 1 : 0;
+    for (int i = 0; i < keyDefs.length; i++) {
       index += addColumnValue(rowKey, index, rowKey.length, values,
-          def.type, schema.fieldIndex(def.name), keySeparator, i == keyColumns.size() - 1);
-      if (i < keyColumns.size() - 1) {
+          keyDefs[i].type, keySchemaIndexes[i], keySeparator, i == keyDefs.length - 1);
+      if (i < keyDefs.length - 1) {
         // increment by delimiter length
         index += keySeparator.length;
       }
     }
 
     // Get columns
-    for (Cell cell : result.listCells()) {
-      String cellName = Bytes.toString(cell.getQualifierArray(), cell.getQualifierOffset(),
-          cell.getQualifierLength());
-      ColumnDef def = columns.get(cellName);
-      values[schema.fieldIndex(def.name)] = getColumnValue(cell.getValueArray(),
-          cell.getValueOffset(), cell.getValueLength(), def.type);
+    Cell[] cells = result.rawCells();
+    if (cells != null) {
+      int expectedColumn = 0;
+      for (Cell cell : cells) {
+        int column = findColumn(cell, expectedColumn);
+        if (column >= 0) {
+          values[valueSchemaIndexes[column]] = getColumnValue(cell.getValueArray(),
+              cell.getValueOffset(), cell.getValueLength(), valueDefs[column].type);
+          expectedColumn = column + 1;
+        }
+      }
     }
 
     return new RowWithSchema(schema, values);
@@ -122,15 +166,17 @@ public class DefaultHBaseSerde implements HBaseSerde {
 
   @Override
   public Put convertToPut(Row row) {
-    Put put = new Put(buildRowKey(row));
-    for (Map.Entry<String, ColumnDef> column : columns.entrySet()) {
-      if (!column.getValue().cf.equals("rowkey")) {
-        byte[] value = getColumnValueAsBytes(column.getValue().name,
-            column.getValue().type, row);
-        if (value != null) {
-          put.addColumn(Bytes.toBytes(column.getValue().cf),
-              Bytes.toBytes(column.getValue().name), value);
-        }
+    RowEncoder encoder = encoders.get();
+    Put put = new Put(encoder.encodeRowKey(row));
+    int[] ordinals = encoder.valueOrdinals(row);
+    for (int i = 0; i < valueDefs.length; i++) {
+      if (ordinals[i] == -1) {
+        LOG.error("Column does not exist in row: " + valueDefs[i].name);
+        throw new IllegalArgumentException("Column does not exist in row: " + valueDefs[i].name);
+      }
+      Object value = row.get(ordinals[i]);
+      if (value != null) {
+        put.addColumn(valueFamilies[i], valueQualifiers[i], toBytes(value, valueDefs[i].type));
       }
     }
     return put;
@@ -147,12 +193,9 @@ public class DefaultHBaseSerde implements HBaseSerde {
 
   @Override
   public Delete convertToDelete(Row row) {
-    Delete delete = new Delete(buildRowKey(row));
-    for (Map.Entry<String, ColumnDef> column : columns.entrySet()) {
-      if (!column.getValue().cf.equals("rowkey")) {
-        delete.addColumn(Bytes.toBytes(column.getValue().cf),
-            Bytes.toBytes(column.getValue().name));
-      }
+    Delete delete = new Delete(encoders.get().encodeRowKey(row));
+    for (int i = 0; i < valueDefs.length; i++) {
+      delete.addColumn(valueFamilies[i], valueQualifiers[i]);
     }
     return delete;
   }
@@ -168,8 +211,81 @@ public class DefaultHBaseSerde implements HBaseSerde {
 
   //// Utility methods
 
+  private void precomputeColumns() {
+    keyDefs = new ColumnDef[keyColumns.size()];
+    keySchemaIndexes = new int[keyColumns.size()];
+    for (int i = 0; i < keyColumns.size(); i++) {
+      keyDefs[i] = columns.get(keyColumns.get(i));
+      keySchemaIndexes[i] = schema.fieldIndex(keyDefs[i].name);
+    }
+
+    List<ColumnDef> defs = Lists.newArrayList();
+    for (ColumnDef def : columns.values()) {
+      if (!def.cf.equals("rowkey")) {
+        defs.add(def);
+      }
+    }
+    // Sorted so that the columns can be found by binary search on the bytes of cells
+    Collections.sort(defs, new Comparator<ColumnDef>() {
+      @Override
+      public int compare(ColumnDef first, ColumnDef second) {
+        int comparison = Bytes.compareTo(Bytes.toBytes(first.cf), Bytes.toBytes(second.cf));
+        return comparison != 0 ? comparison :
+            Bytes.compareTo(Bytes.toBytes(first.name), Bytes.toBytes(second.name));
+      }
+    });
+
+    valueDefs = defs.toArray(new ColumnDef[defs.size()]);
+    valueFamilies = new byte[valueDefs.length][];
+    valueQualifiers = new byte[valueDefs.length][];
+    valueSchemaIndexes = new int[valueDefs.length];
+    for (int i = 0; i < valueDefs.length; i++) {
+      valueFamilies[i] = Bytes.toBytes(valueDefs[i].cf);
+      valueQualifiers[i] = Bytes.toBytes(valueDefs[i].name);
+      valueSchemaIndexes[i] = schema.fieldIndex(valueDefs[i].name);
+    }
+  }
+
+  // The index of the column of the cell in the value columns, or -1 if the cell is not mapped.
+  // The cells of a result are sorted in the same order as the columns, so the column after that
+  // of the previous cell is tried before searching all of the columns.
+  private int findColumn(Cell cell, int expectedColumn) {
+    if (expectedColumn < valueDefs.length &&
+        Bytes.equals(valueQualifiers[expectedColumn], 0, valueQualifiers[expectedColumn].length,
+            cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength()) &&
+        Bytes.equals(valueFamilies[expectedColumn], 0, valueFamilies[expectedColumn].length,
+            cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength())) {
+      return expectedColumn;
+    }
+
+    int low = 0;
+    int high = valueDefs.length - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = Bytes.compareTo(valueFamilies[middle], 0, valueFamilies[middle].length,
+          cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength());
+      if (comparison == 0) {
+        comparison = Bytes.compareTo(valueQualifiers[middle], 0, valueQualifiers[middle].length,
+            cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+      }
+
+      if (comparison < 0) {
+        low = middle + 1;
+      }
+      else if (comparison > 0) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+
+    return -1;
+  }
+
   private Get convertToGet(Row row) {
-    Get get = new Get(buildRowKey(row));
+    Get get = new Get(encoders.get().encodeRowKey(row));
     for (String family : getColumnFamilies(row)) {
       get.addFamily(Bytes.toBytes(family));
     }
@@ -183,12 +299,38 @@ public class DefaultHBaseSerde implements HBaseSerde {
   }
   
   private Scan convertToScan(Row row) {
-    byte[] startRow = buildRowKey(row);
+    byte[] startRow = encoders.get().encodeRowKey(row);
+
+    if (saltBuckets > 0) {
+      return convertToSaltedScan(startRow);
+    }
+
     byte[] stopRow = exclusiveStopRow(startRow);
     Scan scan = new Scan(startRow, stopRow);
     
     return scan;
   }
+
+  // The salt of a row key depends on the whole row key, so the rows of a prefix can be in any
+  // salt bucket
+  private Scan convertToSaltedScan(byte[] prefix) {
+    List<RowRange> ranges = Lists.newArrayList();
+    for (int bucket = 0; bucket < saltBuckets; bucket++) {
+      byte[] startRow = new byte[prefix.length + 1];
+      startRow[0] = (byte)bucket;
+      System.arraycopy(prefix, 0, startRow, 1, prefix.length);
+      ranges.add(new RowRange(startRow, true, exclusiveStopRow(startRow), false));
+    }
+
+    Scan scan = new Scan(ranges.get(0).getStartRow(), ranges.get(ranges.size() - 1).getStopRow());
+    try {
+      scan.setFilter(new MultiRowRangeFilter(ranges));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    return scan;
+  }
   
   private boolean filtersEntireRowKey(Row row) {
     for (String keyColumn : keyColumns) {
@@ -207,40 +349,11 @@ public class DefaultHBaseSerde implements HBaseSerde {
     return rowColumnNames.equals(prefixColumnNames);
   }
   
-  private byte[] buildRowKey(Row row) {
-    List<byte[]> keyComponents = Lists.newArrayList();
-    int totalSize = 0;
-    List<String> rowColumns = Arrays.asList(row.schema().fieldNames());
-    for (String keyColumn : keyColumns) {
-      if (!rowColumns.contains(keyColumn)) {
-        break;
-      }
-      ColumnDef def = columns.get(keyColumn);
-      byte[] asBytes = getColumnValueAsBytes(def.name, def.type, row);
-      keyComponents.add(asBytes);
-      totalSize += asBytes.length;
-    }
-
-    byte[] fullRow = new byte[totalSize + ((keyComponents.size() - 1) * keySeparator.length)];
-    int currentOffset = 0;
-    for (int i = 0; i < keyComponents.size(); ++i) {
-      byte[] component = keyComponents.get(i);
-      System.arraycopy(component, 0, fullRow, currentOffset, component.length);
-      currentOffset += component.length;
-      if (i < keyComponents.size() - 1) {
-        System.arraycopy(keySeparator, 0, fullRow, currentOffset, keySeparator.length);
-        currentOffset += keySeparator.length;
-      }
-    }
-
-    return fullRow;
-  }
-  
   private byte[] exclusiveStopRow(byte[] startRow) {
     byte[] stopRow = startRow.clone();
      
     for (int i = stopRow.length - 1; i >= 0; i--) {
-      if (stopRow[i] < 255) {
+      if ((stopRow[i] & 0xFF) < 255) {
         stopRow[i] += 1;
         return stopRow;
       }
@@ -273,11 +386,11 @@ public class DefaultHBaseSerde implements HBaseSerde {
       case "long":
         return Bytes.toLong(source, offset, length);
       case "boolean":
-        return Bytes.toBoolean(source);
+        return source[offset] != (byte)0;
       case "float":
-        return Bytes.toFloat(source);
+        return Bytes.toFloat(source, offset);
       case "double":
-        return Bytes.toDouble(source);
+        return Bytes.toDouble(source, offset);
       case "string":
         return Bytes.toString(source, offset, length);
       default:
@@ -296,7 +409,7 @@ public class DefaultHBaseSerde implements HBaseSerde {
         values[valueIndex] = Bytes.toLong(source, offset, 8);
         return 8;
       case "boolean":
-        values[valueIndex] = Bytes.toInt(source, offset, 1);
+        values[valueIndex] = source[offset] != (byte)0;
         return 1;
       case "float":
         values[valueIndex] = Bytes.toFloat(source, offset);
@@ -347,52 +460,41 @@ public class DefaultHBaseSerde implements HBaseSerde {
     }
   }
 
-  private static byte[] getColumnValueAsBytes(String name, String type, Row row) {
-    try {
-      Object field = RowUtils.get(row, name);
-      if (field == null) {
-        return null;
-      }
-      switch (type) {
-        case "string":
-          return Bytes.toBytes((String) RowUtils.get(row, name));
-        case "int":
-          return Bytes.toBytes((int) RowUtils.get(row, name));
-        case "long":
-          return Bytes.toBytes((long) RowUtils.get(row, name));
-        case "float":
-          return Bytes.toBytes((float) RowUtils.get(row, name));
-        case "double":
-          return Bytes.toBytes((double) RowUtils.get(row, name));
-        case "boolean":
-          return Bytes.toBytes((boolean) RowUtils.get(row, name));
-        default:
-          LOG.error("Unsupported column type: {}", type);
-          throw new IllegalArgumentException("Unsupported column type: " + type);
-      }
-    } catch (IllegalArgumentException e) {
-      LOG.error("Column does not exist in row: " + name);
-      throw e;
+  private static byte[] toBytes(Object value, String type) {
+    switch (type) {
+      case "string":
+        return Bytes.toBytes((String)value);
+      case "int":
+        return Bytes.toBytes((int)value);
+      case "long":
+        return Bytes.toBytes((long)value);
+      case "float":
+        return Bytes.toBytes((float)value);
+      case "double":
+        return Bytes.toBytes((double)value);
+      case "boolean":
+        return Bytes.toBytes((boolean)value);
+      default:
+        LOG.error("Unsupported column type: {}", type);
+        throw new IllegalArgumentException("Unsupported column type: " + type);
     }
   }
   
   private FilterList getColumnValueFilters(Row row) {
     FilterList filterList = new FilterList(Operator.MUST_PASS_ALL);
-    Set<String> filterColumnNames = Sets.newHashSet(row.schema().fieldNames());
+    int[] ordinals = encoders.get().valueOrdinals(row);
     
-    for (Map.Entry<String, ColumnDef> column : columns.entrySet()) {
-      if (!column.getValue().cf.equals("rowkey")) {
-        if (filterColumnNames.contains(column.getKey())) {
-          byte[] value = getColumnValueAsBytes(column.getValue().name, column.getValue().type, row);
-          if (value != null) {
-            SingleColumnValueFilter columnValueFilter = new SingleColumnValueFilter(
-                Bytes.toBytes(column.getValue().cf),
-                Bytes.toBytes(column.getValue().name),
-                CompareFilter.CompareOp.EQUAL,
-                value
-            );
-            filterList.addFilter(columnValueFilter);
-          }
+    for (int i = 0; i < valueDefs.length; i++) {
+      if (ordinals[i] != -1) {
+        Object value = row.get(ordinals[i]);
+        if (value != null) {
+          SingleColumnValueFilter columnValueFilter = new SingleColumnValueFilter(
+              valueFamilies[i],
+              valueQualifiers[i],
+              CompareFilter.CompareOp.EQUAL,
+              toBytes(value, valueDefs[i].type)
+          );
+          filterList.addFilter(columnValueFilter);
         }
       }
     }
@@ -400,4 +502,89 @@ public class DefaultHBaseSerde implements HBaseSerde {
     return filterList;
   }
 
+  // The per-thread state for encoding rows, which resolves the ordinals of the mapped fields once
+  // per schema and reuses one buffer for the row keys of the thread
+  private class RowEncoder {
+    private RowAccessor keyAccessor = new RowAccessor(keyColumns);
+    private RowAccessor valueAccessor;
+    private byte[] keyBuffer = new byte[INITIAL_KEY_BUFFER_SIZE];
+
+    RowEncoder() {
+      List<String> valueNames = Lists.newArrayList();
+      for (ColumnDef def : valueDefs) {
+        valueNames.add(def.name);
+      }
+      valueAccessor = new RowAccessor(valueNames);
+    }
+
+    // The ordinals of the value columns in the row, or -1 for those not in the row
+    int[] valueOrdinals(Row row) {
+      return valueAccessor.ordinals(row);
+    }
+
+    // Encodes the row key columns of the row, up to the first that is not in the row. Row keys of
+    // all of the row key columns are salted, and prefixes of row keys are not.
+    byte[] encodeRowKey(Row row) {
+      int[] ordinals = keyAccessor.ordinals(row);
+      int start = saltBuckets > 0 ? 1 : 0;
+      int length = start;
+      int i;
+
+      for (i = 0; i < keyDefs.length && ordinals[i] != -1; i++) {
+        if (i > 0) {
+          length = putBytes(length, keySeparator);
+        }
+
+        Object value = row.get(ordinals[i]);
+        if (value == null) {
+          throw new RuntimeException("Row key column '" + keyDefs[i].name + "' can not be null");
+        }
+
+        switch (keyDefs[i].type) {
+          case "int":
+            ensureCapacity(length + Bytes.SIZEOF_INT);
+            length = Bytes.putInt(keyBuffer, length, (int)value);
+            break;
+          case "long":
+            ensureCapacity(length + Bytes.SIZEOF_LONG);
+            length = Bytes.putLong(keyBuffer, length, (long)value);
+            break;
+          case "float":
+            ensureCapacity(length + Bytes.SIZEOF_FLOAT);
+            length = Bytes.putFloat(keyBuffer, length, (float)value);
+            break;
+          case "double":
+            ensureCapacity(length + Bytes.SIZEOF_DOUBLE);
+            length = Bytes.putDouble(keyBuffer, length, (double)value);
+            break;
+          default:
+            length = putBytes(length, toBytes(value, keyDefs[i].type));
+        }
+      }
+
+      if (start == 0) {
+        return Arrays.copyOf(keyBuffer, length);
+      }
+      else if (i < keyDefs.length) {
+        return Arrays.copyOfRange(keyBuffer, start, length);
+      }
+
+      int hash = Bytes.hashCode(keyBuffer, start, length - start);
+      keyBuffer[0] = (byte)((hash & Integer.MAX_VALUE) % saltBuckets);
+
+      return Arrays.copyOf(keyBuffer, length);
+    }
+
+    private int putBytes(int offset, byte[] bytes) {
+      ensureCapacity(offset + bytes.length);
+      return Bytes.putBytes(keyBuffer, offset, bytes, 0, bytes.length);
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (keyBuffer.length < capacity) {
+        keyBuffer = Arrays.copyOf(keyBuffer, Math.max(capacity, keyBuffer.length * 2));
+      }
+    }
+  }
+
 }
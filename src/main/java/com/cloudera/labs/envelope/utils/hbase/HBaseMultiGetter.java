@@ -0,0 +1,163 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.hbase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Retrieves the results of many gets against an HBase table. The gets are grouped by the region
+ * server that hosts their rows, and each group is issued in batches of at most the batch size,
+ * concurrently with the other groups. The batches run on a thread pool that is shared by all of
+ * the getters of the JVM, and which is sized by the first getter that is created.
+ */
+public class HBaseMultiGetter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HBaseMultiGetter.class);
+
+  private static ExecutorService threadPool;
+
+  private Connection connection;
+  private TableName tableName;
+  private int batchSize;
+
+  public HBaseMultiGetter(Connection connection, TableName tableName, int batchSize, int threads) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.batchSize = batchSize;
+
+    initializeThreadPool(threads);
+  }
+
+  /**
+   * Get the results of the gets. Gets that do not match a row do not have a result.
+   */
+  public List<Result> get(List<Get> gets) throws Exception {
+    List<List<Get>> batches = Lists.newArrayList();
+    for (List<Get> serverGets : groupByServer(gets).values()) {
+      batches.addAll(Lists.partition(serverGets, batchSize));
+    }
+
+    LOG.debug("Issuing {} gets in {} batches", gets.size(), batches.size());
+
+    List<Result> results = Lists.newArrayList();
+
+    // A single batch does not gain anything from being handed to another thread
+    if (batches.size() == 1) {
+      addResults(new BatchGet(batches.get(0)).call(), results);
+      return results;
+    }
+
+    List<Future<Result[]>> futures = Lists.newArrayList();
+    for (List<Get> batch : batches) {
+      futures.add(threadPool.submit(new BatchGet(batch)));
+    }
+
+    try {
+      for (Future<Result[]> future : futures) {
+        addResults(future.get(), results);
+      }
+    }
+    catch (ExecutionException e) {
+      cancel(futures);
+      throw new RuntimeException("HBase lookup batch failed", e.getCause());
+    }
+    catch (InterruptedException e) {
+      cancel(futures);
+      Thread.currentThread().interrupt();
+      throw e;
+    }
+
+    return results;
+  }
+
+  private Map<ServerName, List<Get>> groupByServer(List<Get> gets) throws IOException {
+    Map<ServerName, List<Get>> getsByServer = Maps.newLinkedHashMap();
+
+    // The region locations are cached by the connection, so this only goes to HBase for regions
+    // that have not been seen before or that have moved
+    try (RegionLocator locator = connection.getRegionLocator(tableName)) {
+      for (Get get : gets) {
+        ServerName server = locator.getRegionLocation(get.getRow()).getServerName();
+
+        if (!getsByServer.containsKey(server)) {
+          getsByServer.put(server, Lists.<Get>newArrayList());
+        }
+        getsByServer.get(server).add(get);
+      }
+    }
+
+    return getsByServer;
+  }
+
+  private static void addResults(Result[] batchResults, List<Result> results) {
+    for (Result result : batchResults) {
+      if (!result.isEmpty()) {
+        results.add(result);
+      }
+    }
+  }
+
+  private static void cancel(List<Future<Result[]>> futures) {
+    for (Future<Result[]> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private static synchronized void initializeThreadPool(int threads) {
+    if (threadPool == null) {
+      threadPool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("envelope-hbase-get-%d").build());
+    }
+  }
+
+  // Tables are not thread-safe, so each batch uses its own lightweight table from the connection
+  private class BatchGet implements Callable<Result[]> {
+    private List<Get> batch;
+
+    BatchGet(List<Get> batch) {
+      this.batch = batch;
+    }
+
+    @Override
+    public Result[] call() throws Exception {
+      try (Table table = connection.getTable(tableName)) {
+        return table.get(batch);
+      }
+    }
+  }
+
+}
@@ -23,13 +23,17 @@ import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
 import org.apache.hadoop.hbase.filter.MultiRowRangeFilter.RowRange;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.spark.sql.types.StructType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,11 +57,19 @@ public class HBaseUtils {
   public static final String SERDE_PROPERTY = "mapping.serde";
   public static final String HBASE_PASSTHRU_PREFIX = "hbase.conf";
   public static final String HBASE_BATCH_SIZE = "batch.size";
+  public static final String HBASE_LOOKUP_BATCH_SIZE = "lookup.batch.size";
+  public static final String HBASE_LOOKUP_THREADS = "lookup.threads";
+  public static final String HBASE_BULK_LOAD_ENABLED = "bulk.load.enabled";
+  public static final String HBASE_BULK_LOAD_STAGING_DIR = "bulk.load.staging.dir";
   public static final String KEY_SEPARATOR = "mapping.rowkey.separator";
+  public static final String SALT_BUCKETS_PROPERTY = "mapping.salt.buckets";
 
   public static final int DEFAULT_HBASE_BATCH_SIZE = 1000;
+  public static final int DEFAULT_HBASE_LOOKUP_BATCH_SIZE = 100;
+  public static final int DEFAULT_HBASE_LOOKUP_THREADS = 10;
   public static final String DEFAULT_SERDE_PROPERTY = "default";
   public static final String DEFAULT_KEY_SEPARATOR = ":";
+  public static final int MAX_SALT_BUCKETS = 256;
 
   private static final List<String> REQUIRED_CONFIGS = Lists.newArrayList(
       TABLE_NAME_PROPERTY,
@@ -97,6 +109,15 @@ public class HBaseUtils {
       }
     }
 
+    // Salt buckets are encoded in a single byte
+    if (config.hasPath(SALT_BUCKETS_PROPERTY)) {
+      int saltBuckets = config.getInt(SALT_BUCKETS_PROPERTY);
+      if (saltBuckets < 0 || saltBuckets > MAX_SALT_BUCKETS) {
+        LOG.error("'{}' must be between 0 and {}", SALT_BUCKETS_PROPERTY, MAX_SALT_BUCKETS);
+        isValid = false;
+      }
+    }
+
     return isValid;
   }
 
@@ -157,6 +178,34 @@ public class HBaseUtils {
     }
   }
 
+  public static int lookupBatchSizeFor(Config config) {
+    if (config.hasPath(HBASE_LOOKUP_BATCH_SIZE)) {
+      return config.getInt(HBASE_LOOKUP_BATCH_SIZE);
+    } else {
+      return DEFAULT_HBASE_LOOKUP_BATCH_SIZE;
+    }
+  }
+
+  public static int lookupThreadsFor(Config config) {
+    if (config.hasPath(HBASE_LOOKUP_THREADS)) {
+      return config.getInt(HBASE_LOOKUP_THREADS);
+    } else {
+      return DEFAULT_HBASE_LOOKUP_THREADS;
+    }
+  }
+
+  public static boolean bulkLoadEnabledFor(Config config) {
+    return config.hasPath(HBASE_BULK_LOAD_ENABLED) && config.getBoolean(HBASE_BULK_LOAD_ENABLED);
+  }
+
+  public static String bulkLoadStagingDirFor(Config config) {
+    if (!config.hasPath(HBASE_BULK_LOAD_STAGING_DIR)) {
+      throw new RuntimeException("HBase bulk loads require '" + HBASE_BULK_LOAD_STAGING_DIR + "' to be specified");
+    }
+
+    return config.getString(HBASE_BULK_LOAD_STAGING_DIR);
+  }
+
   public static TableName tableInfoFor(Config config) {
     String name = config.getString(TABLE_NAME_PROPERTY);
 
@@ -198,6 +247,53 @@ public class HBaseUtils {
     return separator;
   }
 
+  // HBaseSerde util
+  public static int saltBucketsFor(Config config) {
+    if (config.hasPath(SALT_BUCKETS_PROPERTY)) {
+      return config.getInt(SALT_BUCKETS_PROPERTY);
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * The split keys that divide a table into one region per salt bucket.
+   */
+  public static byte[][] saltSplitKeysFor(Config config) {
+    int saltBuckets = saltBucketsFor(config);
+    byte[][] splitKeys = new byte[Math.max(saltBuckets - 1, 0)][];
+
+    for (int bucket = 1; bucket < saltBuckets; bucket++) {
+      splitKeys[bucket - 1] = new byte[] {(byte)bucket};
+    }
+
+    return splitKeys;
+  }
+
+  /**
+   * Create the table of the configuration with the column families of its mapping. If the row
+   * keys of the mapping are salted then the table is pre-split into one region per salt bucket,
+   * so that writes are spread across the region servers from the start.
+   */
+  public static void createTable(Admin admin, Config config) throws IOException {
+    HTableDescriptor table = new HTableDescriptor(tableInfoFor(config));
+
+    for (HBaseSerde.ColumnDef column : columnsFor(config).values()) {
+      if (!column.cf.equals("rowkey") && !table.hasFamily(Bytes.toBytes(column.cf))) {
+        table.addFamily(new HColumnDescriptor(column.cf));
+      }
+    }
+
+    byte[][] splitKeys = saltSplitKeysFor(config);
+    LOG.info("Creating HBase table {} with {} regions", table.getTableName(), splitKeys.length + 1);
+
+    if (splitKeys.length > 0) {
+      admin.createTable(table, splitKeys);
+    } else {
+      admin.createTable(table);
+    }
+  }
+
   // HBaseSerde util
   public static List<String> rowKeyFor(Config config) {
     return config.getStringList(ROWKEY_PROPERTY);
@@ -233,6 +329,12 @@ public class HBaseUtils {
     List<RowRange> ranges = Lists.newArrayList();
     
     for (Scan rangeScan : rangeScans) {
+      // Scans of salted row keys cover a range in each salt bucket
+      if (rangeScan.getFilter() instanceof MultiRowRangeFilter) {
+        ranges.addAll(((MultiRowRangeFilter)rangeScan.getFilter()).getRowRanges());
+        continue;
+      }
+
       byte[] startRow = rangeScan.getStartRow();
       byte[] stopRow = rangeScan.getStopRow();
       
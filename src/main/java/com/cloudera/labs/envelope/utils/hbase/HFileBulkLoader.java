@@ -0,0 +1,237 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.hbase;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * Loads rows into an HBase table by writing them as HFiles and bulk loading the HFiles into the
+ * regions of the table, which bypasses the write-ahead log and memstores of the region servers.
+ * <p>
+ * The rows are converted to cells with the configured serde, partitioned by the region of the
+ * table that will contain them, and sorted within each region. Each partition is written to
+ * HFiles in a unique directory beneath the staging directory, and the HFiles are then moved into
+ * their regions. Each region loads its HFiles atomically. The staging directory must be
+ * readable and writable by the HBase user.
+ */
+public class HFileBulkLoader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HFileBulkLoader.class);
+
+  private Config config;
+  private Connection connection;
+  private TableName tableName;
+
+  public HFileBulkLoader(Config config, Connection connection) {
+    this.config = config;
+    this.connection = connection;
+    this.tableName = HBaseUtils.tableInfoFor(config);
+  }
+
+  public void load(Dataset<Row> rows) throws Exception {
+    Configuration hbaseConfiguration = HBaseUtils.getHBaseConfiguration(config);
+    Path stagingPath = new Path(HBaseUtils.bulkLoadStagingDirFor(config),
+        tableName.getNameAsString().replace(':', '_') + "-" + UUID.randomUUID());
+
+    try (Table table = connection.getTable(tableName);
+         RegionLocator locator = connection.getRegionLocator(tableName);
+         Admin admin = connection.getAdmin()) {
+      Job job = Job.getInstance(hbaseConfiguration);
+      HFileOutputFormat2.configureIncrementalLoadMap(job, table);
+
+      // All of the cells of the load have the same version
+      long timestamp = System.currentTimeMillis();
+
+      JavaPairRDD<CellKey, byte[]> cells = rows.javaRDD()
+          .flatMapToPair(new RowToCellsFunction(config))
+          .repartitionAndSortWithinPartitions(new RegionPartitioner(locator.getStartKeys()));
+
+      LOG.info("Writing HFiles for table {} to {}", tableName, stagingPath);
+      cells.mapToPair(new CellToKeyValueFunction(timestamp)).saveAsNewAPIHadoopFile(
+          stagingPath.toString(), ImmutableBytesWritable.class, KeyValue.class,
+          HFileOutputFormat2.class, job.getConfiguration());
+
+      LOG.info("Bulk loading HFiles from {} into table {}", stagingPath, tableName);
+      new LoadIncrementalHFiles(hbaseConfiguration).doBulkLoad(stagingPath, admin, table, locator);
+    }
+    finally {
+      // A retried load writes its HFiles to a new directory, so the HFiles of a failed load are
+      // not needed again. A failure to remove them is only logged so that it does not hide the
+      // failure of the load.
+      try {
+        FileSystem fs = stagingPath.getFileSystem(hbaseConfiguration);
+        fs.delete(stagingPath, true);
+      }
+      catch (IOException e) {
+        LOG.warn("Could not remove HBase bulk load staging directory " + stagingPath, e);
+      }
+    }
+  }
+
+  /**
+   * The coordinates of a cell, which sort in the same order as the cells of an HFile when all of
+   * the cells have the same version.
+   */
+  @SuppressWarnings("serial")
+  public static class CellKey implements Comparable<CellKey>, Serializable {
+    private byte[] row;
+    private byte[] family;
+    private byte[] qualifier;
+
+    public CellKey(byte[] row, byte[] family, byte[] qualifier) {
+      this.row = row;
+      this.family = family;
+      this.qualifier = qualifier;
+    }
+
+    public byte[] getRow() {
+      return row;
+    }
+
+    @Override
+    public int compareTo(CellKey other) {
+      int comparison = Bytes.compareTo(row, other.row);
+      if (comparison == 0) {
+        comparison = Bytes.compareTo(family, other.family);
+      }
+      if (comparison == 0) {
+        comparison = Bytes.compareTo(qualifier, other.qualifier);
+      }
+
+      return comparison;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof CellKey && compareTo((CellKey)other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(row);
+    }
+  }
+
+  /**
+   * Partitions cells by the region of the table that contains their row.
+   */
+  @SuppressWarnings("serial")
+  public static class RegionPartitioner extends Partitioner {
+    private byte[][] startKeys;
+
+    public RegionPartitioner(byte[][] startKeys) {
+      this.startKeys = startKeys;
+    }
+
+    @Override
+    public int numPartitions() {
+      return startKeys.length;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+      byte[] row = ((CellKey)key).getRow();
+
+      // The first region has an empty start key, which every row is greater than or equal to
+      int index = Arrays.binarySearch(startKeys, row, Bytes.BYTES_COMPARATOR);
+
+      return index >= 0 ? index : -(index + 1) - 1;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class RowToCellsFunction implements PairFlatMapFunction<Row, CellKey, byte[]> {
+    private Config config;
+    private transient HBaseSerde serde;
+
+    RowToCellsFunction(Config config) {
+      this.config = config;
+    }
+
+    @Override
+    public Iterator<Tuple2<CellKey, byte[]>> call(Row row) throws Exception {
+      if (serde == null) {
+        serde = HBaseUtils.getSerde(config);
+      }
+
+      Put put = serde.convertToPut(row);
+      List<Tuple2<CellKey, byte[]>> cells = Lists.newArrayList();
+      for (List<Cell> familyCells : put.getFamilyCellMap().values()) {
+        for (Cell cell : familyCells) {
+          cells.add(new Tuple2<>(new CellKey(put.getRow(), CellUtil.cloneFamily(cell),
+              CellUtil.cloneQualifier(cell)), CellUtil.cloneValue(cell)));
+        }
+      }
+
+      return cells.iterator();
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class CellToKeyValueFunction
+      implements PairFunction<Tuple2<CellKey, byte[]>, ImmutableBytesWritable, KeyValue> {
+    private long timestamp;
+
+    CellToKeyValueFunction(long timestamp) {
+      this.timestamp = timestamp;
+    }
+
+    @Override
+    public Tuple2<ImmutableBytesWritable, KeyValue> call(Tuple2<CellKey, byte[]> cell) {
+      CellKey key = cell._1();
+      KeyValue keyValue = new KeyValue(key.row, key.family, key.qualifier, timestamp, cell._2());
+
+      return new Tuple2<>(new ImmutableBytesWritable(key.row), keyValue);
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.hbase;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A table input format that can divide the split of each region into sub-ranges of row keys, so
+ * that tables with few large regions can be read with more parallelism. The sub-ranges are found
+ * by dividing the row key range of the region evenly, and so are only balanced when the row keys
+ * are evenly distributed. The sub-ranges keep the location of their region.
+ */
+public class SubRegionTableInputFormat extends TableInputFormat {
+
+  public static final String SPLITS_PER_REGION = "envelope.hbase.splits.per.region";
+
+  // Stand-ins for the unbounded start and end of the first and last regions when dividing them
+  private static final byte[] LOWEST_ROW = new byte[] {0};
+  private static final byte[] HIGHEST_ROW = new byte[] {-1, -1, -1, -1, -1, -1, -1, -1};
+
+  @Override
+  public List<InputSplit> getSplits(JobContext context) throws IOException {
+    List<InputSplit> regionSplits = super.getSplits(context);
+    int splitsPerRegion = context.getConfiguration().getInt(SPLITS_PER_REGION, 1);
+
+    if (splitsPerRegion <= 1) {
+      return regionSplits;
+    }
+
+    List<InputSplit> splits = Lists.newArrayList();
+    for (InputSplit regionSplit : regionSplits) {
+      splits.addAll(divide((TableSplit)regionSplit, splitsPerRegion));
+    }
+
+    return splits;
+  }
+
+  private static List<InputSplit> divide(TableSplit split, int splitsPerRegion) throws IOException {
+    byte[] startRow = split.getStartRow();
+    byte[] endRow = split.getEndRow();
+    byte[] lower = startRow.length == 0 ? LOWEST_ROW : startRow;
+    byte[] upper = endRow.length == 0 ? HIGHEST_ROW : endRow;
+
+    byte[][] boundaries = null;
+    if (Bytes.compareTo(lower, upper) < 0) {
+      boundaries = Bytes.split(lower, upper, splitsPerRegion - 1);
+    }
+    if (boundaries == null || !strictlyIncreasing(boundaries)) {
+      return Lists.<InputSplit>newArrayList(split);
+    }
+
+    // The divided splits keep the original bounds of the region
+    boundaries[0] = startRow;
+    boundaries[boundaries.length - 1] = endRow;
+
+    List<InputSplit> splits = Lists.newArrayList();
+    for (int i = 0; i < boundaries.length - 1; i++) {
+      splits.add(new TableSplit(split.getTable(), split.getScan(), boundaries[i], boundaries[i + 1],
+          split.getRegionLocation(), split.getLength() / splitsPerRegion));
+    }
+
+    return splits;
+  }
+
+  private static boolean strictlyIncreasing(byte[][] boundaries) {
+    for (int i = 1; i < boundaries.length; i++) {
+      if (Bytes.compareTo(boundaries[i - 1], boundaries[i]) >= 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kafka;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.utils.JVMUtils;
+import com.google.common.collect.Maps;
+
+/**
+ * The registry of the Kafka producers of the JVM, with one producer for each set of producer
+ * properties. Kafka producers are thread-safe and batch the records of all of their callers, so
+ * the tasks of an executor that write to the same cluster share a single producer rather than
+ * each connecting and batching on their own. Producers are closed when the JVM shuts down.
+ */
+public class KafkaProducers {
+
+  private static final Map<Map<String, Object>, Producer<byte[], byte[]>> PRODUCERS = Maps.newHashMap();
+
+  private static Logger LOG = LoggerFactory.getLogger(KafkaProducers.class);
+
+  private KafkaProducers() {}
+
+  /**
+   * @param producerProperties The Kafka producer configurations, including the bootstrap servers.
+   */
+  public static synchronized Producer<byte[], byte[]> getProducer(Map<String, Object> producerProperties) {
+    Map<String, Object> key = new TreeMap<>(producerProperties);
+    Producer<byte[], byte[]> producer = PRODUCERS.get(key);
+
+    if (producer == null) {
+      // The other properties can include credentials, so they are not logged
+      LOG.info("Creating Kafka producer for bootstrap servers " + key.get(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
+
+      producer = new KafkaProducer<>(key, new ByteArraySerializer(), new ByteArraySerializer());
+      PRODUCERS.put(key, producer);
+      JVMUtils.closeAtShutdown(producer);
+    }
+
+    return producer;
+  }
+
+}
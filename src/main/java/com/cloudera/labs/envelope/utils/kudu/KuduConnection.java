@@ -0,0 +1,171 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.kudu.client.AsyncKuduClient;
+import org.apache.kudu.client.KuduClient;
+import org.apache.kudu.client.KuduException;
+import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.LocatedTablet;
+import org.apache.kudu.spark.kudu.KuduContext;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A connection to a Kudu cluster, which is shared by everything in the JVM that uses the same
+ * master addresses. The tables, tablet locations, row converters and sessions of the connection
+ * are kept for reuse.
+ * Connections are obtained from {@link KuduConnections}.
+ */
+public class KuduConnection implements Closeable {
+
+  private String masterAddresses;
+  private AsyncKuduClient asyncClient;
+  private KuduClient client;
+  private KuduContext kuduContext;
+  private Map<String, KuduTable> tables = Maps.newHashMap();
+  private Map<String, KuduRowConverter> converters = Maps.newHashMap();
+  private Map<String, List<LocatedTablet>> tabletLocations = Maps.newHashMap();
+  private Map<String, Long> tabletLocationsRefreshTimes = Maps.newHashMap();
+
+  // Keys that are legitimately outside of every tablet would otherwise refresh on every lookup
+  private static final long MIN_TABLET_LOCATIONS_REFRESH_MILLIS = 10000;
+
+  private ConcurrentMap<String, KuduSessionPool> sessionPools = Maps.newConcurrentMap();
+
+  KuduConnection(String masterAddresses) {
+    this.masterAddresses = masterAddresses;
+    this.asyncClient = new AsyncKuduClient.AsyncKuduClientBuilder(masterAddresses).build();
+    this.client = asyncClient.syncClient();
+  }
+
+  public AsyncKuduClient getAsyncClient() {
+    return asyncClient;
+  }
+
+  public KuduClient getClient() {
+    return client;
+  }
+
+  public synchronized KuduTable getTable(String tableName) throws KuduException {
+    KuduTable table = tables.get(tableName);
+
+    if (table == null) {
+      table = client.openTable(tableName);
+      tables.put(tableName, table);
+    }
+
+    return table;
+  }
+
+  /**
+   * @return The locations of the tablets of the table in partition key order, as they were when
+   * they were last retrieved from the master.
+   */
+  public synchronized List<LocatedTablet> getTabletLocations(KuduTable table) throws Exception {
+    List<LocatedTablet> tablets = tabletLocations.get(table.getName());
+
+    if (tablets == null) {
+      tablets = retrieveTabletLocations(table);
+    }
+
+    return tablets;
+  }
+
+  /**
+   * Retrieve the locations of the tablets of the table from the master again, for when a key was
+   * not found in any of the known tablets, unless they were retrieved very recently.
+   */
+  public synchronized List<LocatedTablet> refreshTabletLocations(KuduTable table) throws Exception {
+    Long refreshTime = tabletLocationsRefreshTimes.get(table.getName());
+
+    if (refreshTime != null && System.currentTimeMillis() - refreshTime < MIN_TABLET_LOCATIONS_REFRESH_MILLIS) {
+      return tabletLocations.get(table.getName());
+    }
+
+    return retrieveTabletLocations(table);
+  }
+
+  private List<LocatedTablet> retrieveTabletLocations(KuduTable table) throws Exception {
+    List<LocatedTablet> tablets = table.getTabletsLocations(asyncClient.getDefaultOperationTimeoutMs());
+
+    tabletLocations.put(table.getName(), tablets);
+    tabletLocationsRefreshTimes.put(table.getName(), System.currentTimeMillis());
+
+    return tablets;
+  }
+
+  /**
+   * @return The row converter for the whole schema of the table.
+   */
+  public synchronized KuduRowConverter getConverter(KuduTable table) {
+    KuduRowConverter converter = converters.get(table.getName());
+
+    if (converter == null) {
+      converter = new KuduRowConverter(table.getSchema());
+      converters.put(table.getName(), converter);
+    }
+
+    return converter;
+  }
+
+  /**
+   * @return The pool of manual flush sessions of the table, which is shared by all threads.
+   */
+  public KuduSessionPool getSessionPool(String tableName) {
+    KuduSessionPool pool = sessionPools.get(tableName);
+
+    if (pool == null) {
+      sessionPools.putIfAbsent(tableName, new KuduSessionPool(asyncClient));
+      pool = sessionPools.get(tableName);
+    }
+
+    return pool;
+  }
+
+  /**
+   * @return The Kudu context for the Spark driver to apply bulk mutations with.
+   */
+  public synchronized KuduContext getKuduContext() {
+    if (kuduContext == null) {
+      kuduContext = new KuduContext(masterAddresses);
+    }
+
+    return kuduContext;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The sessions are flushed and closed before the client that they send to
+    for (KuduSessionPool pool : sessionPools.values()) {
+      pool.close();
+    }
+
+    try {
+      asyncClient.close();
+    }
+    catch (Exception e) {
+      throw new IOException("Could not close Kudu connection to " + masterAddresses, e);
+    }
+  }
+
+}
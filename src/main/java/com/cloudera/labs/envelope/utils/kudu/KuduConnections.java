@@ -0,0 +1,57 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.utils.JVMUtils;
+import com.google.common.collect.Maps;
+
+/**
+ * The registry of the Kudu connections of the JVM, with one connection for each set of master
+ * addresses. Connections are closed when the JVM shuts down.
+ */
+public class KuduConnections {
+
+  private static final Map<String, KuduConnection> CONNECTIONS = Maps.newHashMap();
+
+  private static Logger LOG = LoggerFactory.getLogger(KuduConnections.class);
+
+  private KuduConnections() {}
+
+  /**
+   * @param masterAddresses The hosts and ports of the masters of the Kudu cluster.
+   */
+  public static synchronized KuduConnection getConnection(String masterAddresses) {
+    KuduConnection connection = CONNECTIONS.get(masterAddresses);
+
+    if (connection == null) {
+      LOG.info("Connecting to Kudu at " + masterAddresses);
+
+      connection = new KuduConnection(masterAddresses);
+      CONNECTIONS.put(masterAddresses, connection);
+      JVMUtils.closeAtShutdown(connection);
+
+      LOG.info("Connection to Kudu established");
+    }
+
+    return connection;
+  }
+
+}
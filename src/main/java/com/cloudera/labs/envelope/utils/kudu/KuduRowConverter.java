@@ -0,0 +1,329 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.RowResult;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Converts between Spark SQL rows and the rows of a Kudu schema. The converter for each column
+ * is chosen once for the schema, and the writers of the rows of each Spark SQL schema map the
+ * field ordinals to column indices once, so that no columns or fields are looked up by name
+ * while rows are converted.
+ *
+ * Kudu columns are read as the Spark SQL type of the same size, with binary columns read as byte
+ * arrays and UNIXTIME_MICROS columns read as timestamps. Timestamp columns can be written from
+ * timestamps, or from longs of microseconds since the epoch.
+ *
+ * Converters are thread-safe.
+ */
+public class KuduRowConverter {
+
+  private Schema kuduSchema;
+  private ColumnConverter[] columnConverters;
+  private StructType schema;
+  private ConcurrentMap<StructType, RowWriter> writers = Maps.newConcurrentMap();
+
+  public KuduRowConverter(Schema kuduSchema) {
+    this.kuduSchema = kuduSchema;
+
+    List<ColumnSchema> columns = kuduSchema.getColumns();
+    List<StructField> fields = Lists.newArrayList();
+    columnConverters = new ColumnConverter[columns.size()];
+
+    for (int i = 0; i < columnConverters.length; i++) {
+      ColumnSchema column = columns.get(i);
+      columnConverters[i] = ColumnConverter.forType(column.getType());
+      fields.add(DataTypes.createStructField(column.getName(), columnConverters[i].getDataType(), true));
+    }
+
+    schema = DataTypes.createStructType(fields);
+  }
+
+  /**
+   * @return The Spark SQL schema of the rows of the Kudu schema.
+   */
+  public StructType getSchema() {
+    return schema;
+  }
+
+  /**
+   * Convert a row of a Kudu scan of the schema of the converter into a Spark SQL row.
+   */
+  public Row toRow(RowResult result) {
+    Object[] values = new Object[columnConverters.length];
+
+    for (int i = 0; i < values.length; i++) {
+      if (!result.isNull(i)) {
+        values[i] = columnConverters[i].read(result, i);
+      }
+    }
+
+    return new RowWithSchema(schema, values);
+  }
+
+  /**
+   * @return The writer of Spark SQL rows of the given schema into Kudu rows of the schema of the
+   * converter. Writers are created once for each Spark SQL schema.
+   */
+  public RowWriter writerFor(StructType rowSchema) {
+    RowWriter writer = writers.get(rowSchema);
+
+    if (writer == null) {
+      writer = new RowWriter(rowSchema);
+      writers.putIfAbsent(rowSchema, writer);
+    }
+
+    return writer;
+  }
+
+  public class RowWriter {
+    private int[] columnIndexes;
+    private ColumnConverter[] fieldConverters;
+
+    private RowWriter(StructType rowSchema) {
+      String[] fieldNames = rowSchema.fieldNames();
+      columnIndexes = new int[fieldNames.length];
+      fieldConverters = new ColumnConverter[fieldNames.length];
+
+      for (int i = 0; i < fieldNames.length; i++) {
+        columnIndexes[i] = kuduSchema.getColumnIndex(fieldNames[i]);
+        fieldConverters[i] = columnConverters[columnIndexes[i]];
+      }
+    }
+
+    /**
+     * Write the non-null fields of the Spark SQL row into the Kudu row.
+     */
+    public void write(Row row, PartialRow kuduRow) {
+      for (int i = 0; i < columnIndexes.length; i++) {
+        if (!row.isNullAt(i)) {
+          fieldConverters[i].write(row, i, kuduRow, columnIndexes[i]);
+        }
+      }
+    }
+  }
+
+  private enum ColumnConverter {
+    INT8(DataTypes.ByteType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getByte(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addByte(column, row.getByte(field));
+      }
+    },
+    INT16(DataTypes.ShortType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getShort(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addShort(column, row.getShort(field));
+      }
+    },
+    INT32(DataTypes.IntegerType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getInt(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addInt(column, row.getInt(field));
+      }
+    },
+    INT64(DataTypes.LongType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getLong(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addLong(column, row.getLong(field));
+      }
+    },
+    FLOAT(DataTypes.FloatType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getFloat(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addFloat(column, row.getFloat(field));
+      }
+    },
+    DOUBLE(DataTypes.DoubleType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getDouble(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addDouble(column, row.getDouble(field));
+      }
+    },
+    BOOL(DataTypes.BooleanType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getBoolean(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addBoolean(column, row.getBoolean(field));
+      }
+    },
+    STRING(DataTypes.StringType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getString(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        kuduRow.addString(column, row.getString(field));
+      }
+    },
+    BINARY(DataTypes.BinaryType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return result.getBinaryCopy(column);
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        Object value = row.get(field);
+
+        if (value instanceof ByteBuffer) {
+          kuduRow.addBinary(column, (ByteBuffer)value);
+        }
+        else {
+          kuduRow.addBinary(column, (byte[])value);
+        }
+      }
+    },
+    UNIXTIME_MICROS(DataTypes.TimestampType) {
+      @Override
+      Object read(RowResult result, int column) {
+        return timestampFor(result.getLong(column));
+      }
+
+      @Override
+      void write(Row row, int field, PartialRow kuduRow, int column) {
+        Object value = row.get(field);
+
+        if (value instanceof Timestamp) {
+          kuduRow.addLong(column, microsFor((Timestamp)value));
+        }
+        else {
+          kuduRow.addLong(column, (Long)value);
+        }
+      }
+    };
+
+    private DataType dataType;
+
+    ColumnConverter(DataType dataType) {
+      this.dataType = dataType;
+    }
+
+    DataType getDataType() {
+      return dataType;
+    }
+
+    abstract Object read(RowResult result, int column);
+
+    abstract void write(Row row, int field, PartialRow kuduRow, int column);
+
+    static ColumnConverter forType(Type type) {
+      switch (type) {
+        case INT8:
+          return INT8;
+        case INT16:
+          return INT16;
+        case INT32:
+          return INT32;
+        case INT64:
+          return INT64;
+        case FLOAT:
+          return FLOAT;
+        case DOUBLE:
+          return DOUBLE;
+        case BOOL:
+          return BOOL;
+        case STRING:
+          return STRING;
+        case BINARY:
+          return BINARY;
+        case UNIXTIME_MICROS:
+          return UNIXTIME_MICROS;
+        default:
+          throw new RuntimeException("Unsupported Kudu column type: " + type);
+      }
+    }
+  }
+
+  public static Timestamp timestampFor(long micros) {
+    long seconds = micros / 1000000;
+    long microsOfSecond = micros % 1000000;
+    if (microsOfSecond < 0) {
+      seconds--;
+      microsOfSecond += 1000000;
+    }
+
+    Timestamp timestamp = new Timestamp(seconds * 1000);
+    timestamp.setNanos((int)microsOfSecond * 1000);
+
+    return timestamp;
+  }
+
+  public static long microsFor(Timestamp timestamp) {
+    long millis = timestamp.getTime();
+    long seconds = millis / 1000;
+    if (millis % 1000 < 0) {
+      seconds--;
+    }
+
+    return seconds * 1000000 + timestamp.getNanos() / 1000;
+  }
+
+}
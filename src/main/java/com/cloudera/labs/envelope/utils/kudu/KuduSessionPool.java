@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.kudu.client.AsyncKuduClient;
+import org.apache.kudu.client.AsyncKuduSession;
+import org.apache.kudu.client.OperationResponse;
+import org.apache.kudu.client.SessionConfiguration.FlushMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * A pool of the idle manual flush sessions of a table, which is shared by all of the threads of
+ * the connection. A session is taken from the pool to apply and flush a batch of operations, and
+ * is released back into the pool once the flush has completed. A new session is only created when
+ * there is no idle session, so the pool never holds more sessions than the largest number of
+ * batches that were in flight at once.
+ */
+public class KuduSessionPool implements Closeable {
+
+  private AsyncKuduClient client;
+  private BlockingQueue<AsyncKuduSession> idle = new LinkedBlockingQueue<>();
+
+  private static Logger LOG = LoggerFactory.getLogger(KuduSessionPool.class);
+
+  public KuduSessionPool(AsyncKuduClient client) {
+    this.client = client;
+  }
+
+  public AsyncKuduSession take() {
+    AsyncKuduSession session = idle.poll();
+
+    if (session == null) {
+      session = client.newSession();
+      session.setFlushMode(FlushMode.MANUAL_FLUSH);
+    }
+
+    return session;
+  }
+
+  public void release(AsyncKuduSession session) {
+    idle.add(session);
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Flush and close the idle sessions of the pool.
+   */
+  @Override
+  public void close() throws IOException {
+    List<AsyncKuduSession> sessions = Lists.newArrayList();
+    idle.drainTo(sessions);
+
+    List<Deferred<List<OperationResponse>>> closes = Lists.newArrayList();
+    for (AsyncKuduSession session : sessions) {
+      closes.add(session.close());
+    }
+
+    try {
+      Deferred.group(closes).join();
+    }
+    catch (Exception e) {
+      throw new IOException("Could not close Kudu sessions", e);
+    }
+
+    LOG.debug("Closed {} Kudu sessions", sessions.size());
+  }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.utils.ConfigUtils;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
+
+public class TestHBaseInput {
+
+  private static final TableName TABLE = TableName.valueOf("test");
+  private static final byte[] CF1 = Bytes.toBytes("cf1");
+
+  private static final int INPUT_ROWS = 100;
+  private static final String[] SYMBOLS = {
+      "AAPL", "MSFT", "ORCL", "VMW", "GOOG", "AMZN", "FB", "TWTR"
+  };
+
+  private static HBaseTestingUtility utility;
+  private static Config appConfig = ConfigUtils.configFromResource("/hbase/hbase-input-test.conf");
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    utility = new HBaseTestingUtility();
+    utility.startMiniCluster();
+    utility.createTable(TABLE, new byte[][] {CF1}, new byte[][] {Bytes.toBytes("FB"), Bytes.toBytes("MSFT")});
+
+    List<Put> puts = Lists.newArrayList();
+    for (int i = 0; i < INPUT_ROWS; i++) {
+      Put put = new Put(Bytes.add(Bytes.toBytes(SYMBOLS[i % SYMBOLS.length] + ":"), Bytes.toBytes(1_000_000_000L + i)));
+      // Even rows are written at an earlier time than odd rows
+      long timestamp = i % 2 == 0 ? 1000L : 2000L;
+      put.addColumn(CF1, Bytes.toBytes("clordid"), timestamp, Bytes.toBytes(Integer.toString(i)));
+      put.addColumn(CF1, Bytes.toBytes("orderqty"), timestamp, Bytes.toBytes(i));
+      put.addColumn(CF1, Bytes.toBytes("leavesqty"), timestamp, Bytes.toBytes(i % 10));
+      put.addColumn(CF1, Bytes.toBytes("cumqty"), timestamp, Bytes.toBytes(i + i % 10));
+      puts.add(put);
+    }
+    try (Table table = utility.getConnection().getTable(TABLE)) {
+      table.put(puts);
+    }
+
+    Contexts.initialize(appConfig, Contexts.ExecutionMode.UNIT_TEST);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    Contexts.closeSparkSession(true);
+    utility.shutdownMiniCluster();
+  }
+
+  @Test
+  public void testReadRegions() throws Exception {
+    Dataset<Row> rows = ((BatchInput)InputFactory.create(inputConfig())).read();
+
+    assertEquals(3, rows.rdd().getNumPartitions());
+    assertEquals(INPUT_ROWS, rows.count());
+    assertEquals(6, rows.schema().length());
+
+    Row row = rows.filter("symbol = 'GOOG' AND transacttime = 1000000004").first();
+    assertEquals("4", row.get(row.fieldIndex("clordid")));
+    assertEquals(4, (int)row.get(row.fieldIndex("orderqty")));
+    assertEquals(4, (int)row.get(row.fieldIndex("leavesqty")));
+    assertEquals(8, (int)row.get(row.fieldIndex("cumqty")));
+  }
+
+  @Test
+  public void testReadSubRegions() throws Exception {
+    Config config = inputConfig().withValue(HBaseInput.SPLITS_PER_REGION_CONFIG_NAME, ConfigValueFactory.fromAnyRef(4));
+    Dataset<Row> rows = ((BatchInput)InputFactory.create(config)).read();
+
+    assertEquals(12, rows.rdd().getNumPartitions());
+    assertEquals(INPUT_ROWS, rows.count());
+  }
+
+  @Test
+  public void testReadRowRangeColumnsAndTimeRange() throws Exception {
+    Config config = inputConfig()
+        .withValue(HBaseInput.ROW_START_CONFIG_NAME, ConfigValueFactory.fromAnyRef("GOOG"))
+        .withValue(HBaseInput.ROW_STOP_CONFIG_NAME, ConfigValueFactory.fromAnyRef("GOOH"))
+        .withValue(HBaseInput.COLUMNS_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("orderqty")))
+        .withValue(HBaseInput.TIME_RANGE_START_CONFIG_NAME, ConfigValueFactory.fromAnyRef(1000L))
+        .withValue(HBaseInput.TIME_RANGE_END_CONFIG_NAME, ConfigValueFactory.fromAnyRef(1001L));
+    Dataset<Row> rows = ((BatchInput)InputFactory.create(config)).read();
+
+    assertEquals(Lists.newArrayList("symbol", "transacttime", "orderqty"),
+        Lists.newArrayList(rows.schema().fieldNames()));
+    // GOOG is every eighth row starting from the fourth, which are all even
+    assertEquals(12, rows.count());
+    for (Row row : rows.collectAsList()) {
+      assertEquals("GOOG", row.get(row.fieldIndex("symbol")));
+      assertEquals(0, (int)row.get(row.fieldIndex("orderqty")) % 2);
+    }
+  }
+
+  @Test
+  public void testReadTimeRangeExcludesRows() throws Exception {
+    Config config = inputConfig()
+        .withValue(HBaseInput.TIME_RANGE_START_CONFIG_NAME, ConfigValueFactory.fromAnyRef(2000L));
+    List<Row> rows = ((BatchInput)InputFactory.create(config)).read().collectAsList();
+
+    assertEquals(INPUT_ROWS / 2, rows.size());
+    for (Row row : rows) {
+      assertEquals(1, (int)row.get(row.fieldIndex("orderqty")) % 2);
+    }
+  }
+
+  private Config inputConfig() {
+    return appConfig.getConfig("input").withValue("zookeeper",
+        ConfigValueFactory.fromAnyRef("localhost:" + utility.getZkCluster().getClientPort()));
+  }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+public class TestKafkaOffsetCommitter {
+
+  @Test
+  public void testCommitsOnlyMovedOffsets() throws Exception {
+    OffsetsOutput output = new OffsetsOutput();
+    output.stored.put(0, 10L);
+    KafkaOffsetCommitter committer = new KafkaOffsetCommitter("group", Lists.newArrayList("topic"), output, 0, false);
+
+    Map<TopicPartition, Long> lastOffsets = committer.getLastOffsets();
+    assertEquals(Long.valueOf(10L), lastOffsets.get(new TopicPartition("topic", 0)));
+
+    committer.commit(ranges(10L, 5L));
+    committer.commit(ranges(10L, 8L));
+    committer.commit(ranges(10L, 8L));
+
+    assertEquals(Lists.newArrayList(1, 1), output.applySizes);
+    assertEquals(Long.valueOf(8L), output.stored.get(1));
+    // The first read is for the last offsets and the second verifies the first commit
+    assertEquals(2, output.reads);
+  }
+
+  @Test
+  public void testVerifyInterval() throws Exception {
+    OffsetsOutput output = new OffsetsOutput();
+    KafkaOffsetCommitter committer = new KafkaOffsetCommitter("group", Lists.newArrayList("topic"), output, 2, false);
+
+    for (long offset = 1; offset <= 5; offset++) {
+      committer.commit(ranges(offset, offset));
+    }
+
+    // Commits 1, 2 and 4 are verified
+    assertEquals(3, output.reads);
+  }
+
+  @Test
+  public void testVerifyFailure() throws Exception {
+    OffsetsOutput output = new OffsetsOutput();
+    output.dropWrites = true;
+    KafkaOffsetCommitter committer = new KafkaOffsetCommitter("group", Lists.newArrayList("topic"), output, 0, false);
+
+    try {
+      committer.commit(ranges(1L, 1L));
+      fail("Expected the commit to fail verification");
+    }
+    catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testAsyncFailureRaisedOnNextCommit() throws Exception {
+    OffsetsOutput output = new OffsetsOutput();
+    output.dropWrites = true;
+    KafkaOffsetCommitter committer = new KafkaOffsetCommitter("group", Lists.newArrayList("topic"), output, 0, true);
+
+    committer.commit(ranges(1L, 1L));
+
+    try {
+      committer.commit(ranges(2L, 2L));
+      fail("Expected the failure of the previous commit to be raised");
+    }
+    catch (RuntimeException e) {
+      assertEquals(RuntimeException.class, e.getCause().getClass());
+    }
+
+    output.dropWrites = false;
+    committer.commit(ranges(3L, 3L));
+    committer.awaitPendingCommit();
+
+    assertEquals(Long.valueOf(3L), output.stored.get(0));
+  }
+
+  private static OffsetRange[] ranges(long untilOffset0, long untilOffset1) {
+    return new OffsetRange[] {
+        OffsetRange.create("topic", 0, 0, untilOffset0),
+        OffsetRange.create("topic", 1, 0, untilOffset1)
+    };
+  }
+
+  private static class OffsetsOutput implements RandomOutput {
+    private static final StructType SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("topic", DataTypes.StringType, false),
+        DataTypes.createStructField("partition", DataTypes.IntegerType, false),
+        DataTypes.createStructField("offset", DataTypes.LongType, false)));
+
+    private Map<Integer, Long> stored = Maps.newConcurrentMap();
+    private List<Integer> applySizes = Lists.newArrayList();
+    private volatile boolean dropWrites = false;
+    private int reads = 0;
+
+    @Override
+    public void configure(Config config) {
+    }
+
+    @Override
+    public Set<MutationType> getSupportedRandomMutationTypes() {
+      return Sets.newHashSet(MutationType.UPSERT);
+    }
+
+    @Override
+    public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
+      applySizes.add(planned.size());
+
+      if (!dropWrites) {
+        for (PlannedRow plan : planned) {
+          Row row = plan.getRow();
+          stored.put(row.getInt(row.fieldIndex("partition")), row.getLong(row.fieldIndex("offset")));
+        }
+      }
+    }
+
+    @Override
+    public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+      reads++;
+
+      List<Row> existing = Lists.newArrayList();
+      for (Map.Entry<Integer, Long> offset : stored.entrySet()) {
+        existing.add(new RowWithSchema(SCHEMA, "topic", offset.getKey(), offset.getValue()));
+      }
+
+      return existing;
+    }
+  }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.spark.sql.functions;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestKuduInput {
+
+  private static final Schema SCHEMA = new Schema(Lists.newArrayList(
+      new ColumnSchema.ColumnSchemaBuilder("id", Type.INT64).key(true).build(),
+      new ColumnSchema.ColumnSchemaBuilder("name", Type.STRING).build(),
+      new ColumnSchema.ColumnSchemaBuilder("updated", Type.UNIXTIME_MICROS).build()));
+
+  @Test
+  public void testComparisonPredicates() {
+    assertEquals(functions.col("id").equalTo(5L), KuduInput.predicateFor(predicate("id", "=", "5"), SCHEMA));
+    assertEquals(functions.col("id").geq(5L), KuduInput.predicateFor(predicate("id", ">=", "5"), SCHEMA));
+    assertEquals(functions.col("name").lt("b"), KuduInput.predicateFor(predicate("name", "<", "b"), SCHEMA));
+    assertEquals(functions.col("updated").gt(new Timestamp(1000L)),
+        KuduInput.predicateFor(predicate("updated", ">", "1000000"), SCHEMA));
+  }
+
+  @Test
+  public void testInPredicate() {
+    Config config = ConfigFactory.parseString("column = id, operator = in, values = [1, 2, 3]");
+
+    assertEquals(functions.col("id").isin(1L, 2L, 3L), KuduInput.predicateFor(config, SCHEMA));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testUnsupportedOperator() {
+    KuduInput.predicateFor(predicate("id", "!=", "5"), SCHEMA);
+  }
+
+  private Config predicate(String column, String operator, String value) {
+    return ConfigFactory.parseString(
+        "column = " + column + ", operator = \"" + operator + "\", value = " + value);
+  }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * A partition translator that counts the partitions it translates, and that can not translate
+ * keyed values one at a time.
+ */
+public class DummyPartitionTranslator implements PartitionTranslator<String, String> {
+
+  private static AtomicInteger partitions = new AtomicInteger();
+
+  public DummyPartitionTranslator() {}
+
+  @Override
+  public void configure(Config config) {
+
+  }
+
+  @Override
+  public Iterable<Row> translate(String key, String value) throws Exception {
+    throw new UnsupportedOperationException("Expected partitions to be translated");
+  }
+
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<String, String>> keysAndValues) throws Exception {
+    partitions.incrementAndGet();
+
+    return Iterators.transform(keysAndValues, new Function<Tuple2<String, String>, Row>() {
+      @Override
+      public Row apply(Tuple2<String, String> keyAndValue) {
+        return RowFactory.create(keyAndValue._2());
+      }
+    });
+  }
+
+  @Override
+  public StructType getSchema() {
+    return DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("value", DataTypes.StringType, false)));
+  }
+
+  public static int getPartitions() {
+    return partitions.get();
+  }
+
+  public static void reset() {
+    partitions.set(0);
+  }
+
+}
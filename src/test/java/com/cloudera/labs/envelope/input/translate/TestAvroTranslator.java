@@ -19,9 +19,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
 
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericData.Record;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
@@ -41,6 +46,8 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
 
+import scala.Tuple2;
+
 public class TestAvroTranslator {
 
   @Test
@@ -113,4 +120,119 @@ public class TestAvroTranslator {
     assertEquals(reader.read(null, decoder), record);
   }
   
+  @Test
+  public void testTranslatePartitionReusesRecord() throws Exception {
+    Schema schema = SchemaBuilder.record("test").fields()
+        .optionalString("field1")
+        .optionalBytes("field2")
+        .endRecord();
+
+    Config config = ConfigFactory.empty()
+        .withValue(AvroTranslator.FIELD_NAMES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("field1", "field2")))
+        .withValue(AvroTranslator.FIELD_TYPES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("string", "binary")));
+
+    AvroTranslator t = new AvroTranslator();
+    t.configure(config);
+
+    List<Tuple2<byte[], byte[]>> messages = Lists.newArrayList();
+    Record first = new Record(schema);
+    first.put("field1", "hello");
+    first.put("field2", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    Record second = new Record(schema);
+    second.put("field1", "bye");
+    second.put("field2", ByteBuffer.wrap(new byte[] {4, 5}));
+    messages.add(new Tuple2<byte[], byte[]>(null, serialize(first)));
+    messages.add(new Tuple2<byte[], byte[]>(null, serialize(second)));
+
+    List<Row> rows = Lists.newArrayList(t.translatePartition(messages.iterator()));
+
+    assertEquals(2, rows.size());
+    assertEquals("hello", rows.get(0).get(0));
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), rows.get(0).get(1));
+    assertEquals("bye", rows.get(1).get(0));
+    assertEquals(ByteBuffer.wrap(new byte[] {4, 5}), rows.get(1).get(1));
+  }
+
+  @Test
+  public void testWriterSchemaResolution() throws Exception {
+    String v1File = getResourcePath("/avro/writer-v1.avsc");
+    String v2File = getResourcePath("/avro/writer-v2.avsc");
+    Schema v1 = new Schema.Parser().parse(new File(v1File));
+    Schema v2 = new Schema.Parser().parse(new File(v2File));
+
+    Config config = ConfigFactory.empty()
+        .withValue(AvroTranslator.FIELD_NAMES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("field1", "field2")))
+        .withValue(AvroTranslator.FIELD_TYPES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("string", "int")))
+        .withValue(AvroTranslator.WRITER_SCHEMA_FILES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList(v1File, v2File)));
+
+    AvroTranslator t = new AvroTranslator();
+    t.configure(config);
+
+    Record v1Record = new Record(v1);
+    v1Record.put("field1", "hello");
+    Record v2Record = new Record(v2);
+    v2Record.put("field1", "bye");
+    v2Record.put("field2", 100);
+    v2Record.put("field3", 1000L);
+
+    List<Tuple2<byte[], byte[]>> messages = Lists.newArrayList();
+    messages.add(new Tuple2<byte[], byte[]>(null, singleObject(v2Record)));
+    messages.add(new Tuple2<byte[], byte[]>(null, singleObject(v1Record)));
+    messages.add(new Tuple2<byte[], byte[]>(null, singleObject(v2Record)));
+
+    List<Row> rows = Lists.newArrayList(t.translatePartition(messages.iterator()));
+
+    assertEquals(RowFactory.create("bye", 100), rows.get(0));
+    assertEquals(RowFactory.create("hello", null), rows.get(1));
+    assertEquals(RowFactory.create("bye", 100), rows.get(2));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testUnknownWriterSchema() throws Exception {
+    Schema unknown = SchemaBuilder.record("test").fields()
+        .requiredString("field1")
+        .requiredString("field9")
+        .endRecord();
+
+    Config config = ConfigFactory.empty()
+        .withValue(AvroTranslator.FIELD_NAMES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("field1")))
+        .withValue(AvroTranslator.FIELD_TYPES_CONFIG_NAME, ConfigValueFactory.fromIterable(Lists.newArrayList("string")))
+        .withValue(AvroTranslator.WRITER_SCHEMA_FILES_CONFIG_NAME, ConfigValueFactory.fromIterable(
+            Lists.newArrayList(getResourcePath("/avro/writer-v1.avsc"))));
+
+    AvroTranslator t = new AvroTranslator();
+    t.configure(config);
+
+    Record record = new Record(unknown);
+    record.put("field1", "hello");
+    record.put("field9", "world");
+
+    t.translate(null, singleObject(record));
+  }
+
+  private String getResourcePath(String resource) {
+    return TestAvroTranslator.class.getResource(resource).getPath();
+  }
+
+  private byte[] singleObject(Record record) throws Exception {
+    byte[] serialized = serialize(record);
+    ByteBuffer message = ByteBuffer.allocate(10 + serialized.length);
+    message.put((byte)0xC3).put((byte)0x01);
+    message.order(ByteOrder.LITTLE_ENDIAN).putLong(SchemaNormalization.parsingFingerprint64(record.getSchema()));
+    message.put(serialized);
+
+    return message.array();
+  }
+
+  private byte[] serialize(Record record) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    DatumWriter<Record> writer = new SpecificDatumWriter<Record>(record.getSchema());
+    writer.write(record, encoder);
+    encoder.flush();
+    out.close();
+
+    return out.toByteArray();
+  }
+
 }
@@ -83,4 +83,63 @@ public class TestDelimitedTranslator {
     assertEquals(r.get(8), delimited);
   }
   
+  @Test
+  public void testTrailingEmptyFields() throws Exception {
+    Translator<String, String> t = new DelimitedTranslator();
+    t.configure(configFor(","));
+
+    Row r = t.translate(null, "hello,1,,").iterator().next();
+    assertEquals(2, r.length());
+    assertEquals("hello", r.get(0));
+    assertEquals(1L, r.get(1));
+
+    r = t.translate(null, "").iterator().next();
+    assertEquals(1, r.length());
+    assertEquals(null, r.get(0));
+
+    r = t.translate(null, ",,,").iterator().next();
+    assertEquals(0, r.length());
+  }
+
+  @Test
+  public void testIntegralBounds() throws Exception {
+    Translator<String, String> t = new DelimitedTranslator();
+    t.configure(configFor("|"));
+
+    Row r = t.translate(null, "a|-9223372036854775808|-2147483648").iterator().next();
+    assertEquals(Long.MIN_VALUE, r.get(1));
+    assertEquals(Integer.MIN_VALUE, r.get(2));
+
+    r = t.translate(null, "a|+9223372036854775807|2147483647").iterator().next();
+    assertEquals(Long.MAX_VALUE, r.get(1));
+    assertEquals(Integer.MAX_VALUE, r.get(2));
+  }
+
+  @Test
+  (expected = NumberFormatException.class)
+  public void testIntegralOverflow() throws Exception {
+    Translator<String, String> t = new DelimitedTranslator();
+    t.configure(configFor("|"));
+
+    t.translate(null, "a|1|2147483648");
+  }
+
+  @Test
+  (expected = NumberFormatException.class)
+  public void testIntegralNotANumber() throws Exception {
+    Translator<String, String> t = new DelimitedTranslator();
+    t.configure(configFor("|"));
+
+    t.translate(null, "a|1x|1");
+  }
+
+  private Config configFor(String delimiter) {
+    return ConfigFactory.empty()
+        .withValue(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME, ConfigValueFactory.fromIterable(
+            Lists.newArrayList("field1", "field2", "field3")))
+        .withValue(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME, ConfigValueFactory.fromIterable(
+            Lists.newArrayList("string", "long", "int")))
+        .withValue(DelimitedTranslator.DELIMITER_CONFIG_NAME, ConfigValueFactory.fromAnyRef(delimiter));
+  }
+
 }
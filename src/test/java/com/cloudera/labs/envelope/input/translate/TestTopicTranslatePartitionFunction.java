@@ -0,0 +1,115 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestTopicTranslatePartitionFunction {
+
+  private static final Config CONFIG = ConfigFactory.parseString(
+      "translators {\n" +
+      "  \"topic.a\" { type = delimited, delimiter = \",\", field.names = [id,score], field.types = [string,int] }\n" +
+      "  topicb { type = delimited, delimiter = \"|\", field.names = [id,name], field.types = [string,string] }\n" +
+      "}\n" +
+      "translator { type = delimited, delimiter = \",\", field.names = [id], field.types = [string] }");
+
+  @Test
+  public void testSchema() {
+    StructType schema = new TopicTranslatePartitionFunction<String, String>(CONFIG).getSchema();
+
+    assertEquals(DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, true),
+        DataTypes.createStructField("score", DataTypes.IntegerType, true),
+        DataTypes.createStructField("name", DataTypes.StringType, true),
+        DataTypes.createStructField("topic", DataTypes.StringType, false))), schema);
+  }
+
+  @Test
+  public void testRoutesByTopic() throws Exception {
+    List<Tuple2<String, Tuple2<String, String>>> messages = Lists.newArrayList(
+        new Tuple2<>("topic.a", new Tuple2<String, String>(null, "a,1")),
+        new Tuple2<>("topicb", new Tuple2<String, String>(null, "b|bee")),
+        new Tuple2<>("other", new Tuple2<String, String>(null, "c")));
+
+    List<Row> rows = Lists.newArrayList(
+        new TopicTranslatePartitionFunction<String, String>(CONFIG).call(messages.iterator()));
+
+    assertEquals(Lists.newArrayList(
+        RowFactory.create("a", 1, null, "topic.a"),
+        RowFactory.create("b", null, "bee", "topicb"),
+        RowFactory.create("c", null, null, "other")), rows);
+  }
+
+  @Test
+  public void testPartitionTranslatorTranslatesRunsOfTopic() throws Exception {
+    Config config = ConfigFactory.parseString(
+        "translators {\n" +
+        "  a { type = \"" + DummyPartitionTranslator.class.getName() + "\" }\n" +
+        "  b { type = \"" + DummyPartitionTranslator.class.getName() + "\" }\n" +
+        "}");
+    List<Tuple2<String, Tuple2<String, String>>> messages = Lists.newArrayList(
+        new Tuple2<>("a", new Tuple2<String, String>(null, "1")),
+        new Tuple2<>("a", new Tuple2<String, String>(null, "2")),
+        new Tuple2<>("b", new Tuple2<String, String>(null, "3")),
+        new Tuple2<>("a", new Tuple2<String, String>(null, "4")));
+    DummyPartitionTranslator.reset();
+
+    List<Row> rows = Lists.newArrayList(
+        new TopicTranslatePartitionFunction<String, String>(config).call(messages.iterator()));
+
+    assertEquals(Lists.newArrayList(
+        RowFactory.create("1", "a"),
+        RowFactory.create("2", "a"),
+        RowFactory.create("3", "b"),
+        RowFactory.create("4", "a")), rows);
+    assertEquals(3, DummyPartitionTranslator.getPartitions());
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testConflictingFieldTypes() {
+    Config config = ConfigFactory.parseString(
+        "translators {\n" +
+        "  a { type = delimited, delimiter = \",\", field.names = [id], field.types = [string] }\n" +
+        "  b { type = delimited, delimiter = \",\", field.names = [id], field.types = [int] }\n" +
+        "}");
+
+    new TopicTranslatePartitionFunction<String, String>(config);
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testNoTranslatorForTopic() throws Exception {
+    Config config = CONFIG.withoutPath(TopicTranslatePartitionFunction.DEFAULT_TRANSLATOR_CONFIG_NAME);
+    List<Tuple2<String, Tuple2<String, String>>> messages = Lists.newArrayList(
+        new Tuple2<>("other", new Tuple2<String, String>(null, "c")));
+
+    Lists.newArrayList(new TopicTranslatePartitionFunction<String, String>(config).call(messages.iterator()));
+  }
+
+}
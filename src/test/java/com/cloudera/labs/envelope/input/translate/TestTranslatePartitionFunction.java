@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import scala.Tuple2;
+
+public class TestTranslatePartitionFunction {
+
+  @Test
+  public void testPartitionTranslator() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue(TranslatorFactory.TYPE_CONFIG_NAME, ConfigValueFactory.fromAnyRef("delimited"))
+        .withValue(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME, ConfigValueFactory.fromIterable(
+            Lists.newArrayList("field1", "field2")))
+        .withValue(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME, ConfigValueFactory.fromIterable(
+            Lists.newArrayList("string", "int")))
+        .withValue(DelimitedTranslator.DELIMITER_CONFIG_NAME, ConfigValueFactory.fromAnyRef(","));
+
+    List<Tuple2<String, String>> messages = Lists.newArrayList(
+        new Tuple2<String, String>(null, "a,1"), new Tuple2<String, String>(null, "b,2"));
+
+    List<Row> rows = Lists.newArrayList(
+        new TranslatePartitionFunction<String, String>(config).call(messages.iterator()));
+
+    assertEquals(Lists.newArrayList(RowFactory.create("a", 1), RowFactory.create("b", 2)), rows);
+  }
+
+  @Test
+  public void testTranslatorPerValue() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue(TranslatorFactory.TYPE_CONFIG_NAME,
+            ConfigValueFactory.fromAnyRef(DummyInputFormatTranslator.class.getName()));
+
+    List<Tuple2<LongWritable, Text>> messages = Lists.newArrayList(
+        new Tuple2<LongWritable, Text>(new LongWritable(1), new Text("a")),
+        new Tuple2<LongWritable, Text>(new LongWritable(2), new Text("b")));
+
+    List<Row> rows = Lists.newArrayList(
+        new TranslatePartitionFunction<LongWritable, Text>(config).call(messages.iterator()));
+
+    assertEquals(Lists.newArrayList(RowFactory.create(1L, "a"), RowFactory.create(2L, "b")), rows);
+  }
+
+}
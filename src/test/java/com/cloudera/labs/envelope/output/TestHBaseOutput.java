@@ -220,6 +220,59 @@ public class TestHBaseOutput {
     assertEquals(0, (int) row2.get(row2.fieldIndex("cumqty")));
   }
   
+  @Test
+  public void testGetExistingForFiltersAcrossRegions() throws Exception {
+    utility.deleteTable(TABLE);
+    utility.createTable(TableName.valueOf(TABLE), new byte[][]{CF1},
+        new byte[][]{"FB".getBytes(), "MSFT".getBytes(), "TWTR".getBytes()});
+    addEntriesToHBase();
+
+    Config config = ConfigUtils.configFromResource("/hbase/hbase-output-test.conf").getConfig("output");
+    config = config.withValue("zookeeper",
+        ConfigValueFactory.fromAnyRef("localhost:" + utility.getZkCluster().getClientPort()))
+        .withValue(HBaseUtils.HBASE_LOOKUP_BATCH_SIZE, ConfigValueFactory.fromAnyRef(3));
+
+    HBaseOutput output = new HBaseOutput();
+    output.configure(config);
+
+    List<Row> filters = Lists.newArrayList();
+    for (int i = 0; i < INPUT_ROWS; i += 3) {
+      filters.add(new RowWithSchema(filterSchema, SYMBOLS[i % SYMBOLS.length], 1_000_000_000L + i));
+    }
+    // Does not exist
+    filters.add(new RowWithSchema(filterSchema, "AAPL", 1_000_000_001L));
+
+    Iterable<Row> filtered = output.getExistingForFilters(filters);
+    assertEquals(34, Iterables.size(filtered));
+    for (Row row : filtered) {
+      long i = (long)row.get(row.fieldIndex("transacttime")) - 1_000_000_000L;
+      assertEquals(SYMBOLS[(int)i % SYMBOLS.length], row.get(row.fieldIndex("symbol")));
+      assertEquals((int)i, (int)row.get(row.fieldIndex("orderqty")));
+    }
+  }
+
+  @Test
+  public void testGetExistingProjectedFields() throws Exception {
+    addEntriesToHBase();
+
+    Config config = ConfigUtils.configFromResource("/hbase/hbase-output-test.conf").getConfig("output");
+    config = config.withValue("zookeeper",
+        ConfigValueFactory.fromAnyRef("localhost:" + utility.getZkCluster().getClientPort()));
+
+    HBaseOutput output = new HBaseOutput();
+    output.configure(config);
+    output.receiveExistingFieldNames(Lists.newArrayList("symbol", "transacttime", "orderqty"));
+
+    List<Row> filters = Lists.newArrayList();
+    filters.add(new RowWithSchema(filterSchema, "GOOG", 1_000_000_004L));
+
+    Row row = Iterables.getOnlyElement(output.getExistingForFilters(filters));
+    assertEquals("GOOG", row.get(row.fieldIndex("symbol")));
+    assertEquals(4, (int)row.get(row.fieldIndex("orderqty")));
+    assertEquals(null, row.get(row.fieldIndex("clordid")));
+    assertEquals(null, row.get(row.fieldIndex("cumqty")));
+  }
+
   @Test
   public void testGetPartialKey() throws Exception {
     addEntriesToHBase();
@@ -244,6 +297,39 @@ public class TestHBaseOutput {
     assertEquals(25, Iterables.size(filtered));
   }
 
+  @Test
+  public void testSaltedRowKeys() throws Exception {
+    Config config = ConfigUtils.configFromResource("/hbase/hbase-output-test.conf").getConfig("output");
+    config = config.withValue("zookeeper",
+        ConfigValueFactory.fromAnyRef("localhost:" + utility.getZkCluster().getClientPort()))
+        .withValue(HBaseUtils.SALT_BUCKETS_PROPERTY, ConfigValueFactory.fromAnyRef(4));
+
+    utility.deleteTable(TABLE);
+    HBaseUtils.createTable(connection.getAdmin(), config);
+    assertEquals(4, connection.getRegionLocator(TableName.valueOf(TABLE)).getStartKeys().length);
+
+    HBaseOutput output = new HBaseOutput();
+    output.configure(config);
+    output.applyRandomMutations(createPlannedMutations());
+
+    Table table = connection.getTable(TableName.valueOf(TABLE));
+    scanAndCountTable(table, INPUT_ROWS * 4);
+
+    List<Row> filters = Lists.newArrayList();
+    filters.add(new RowWithSchema(filterSchema, "GOOG", 1_000_000_004L));
+    Row row = Iterables.getOnlyElement(output.getExistingForFilters(filters));
+    assertEquals("GOOG", row.get(row.fieldIndex("symbol")));
+    assertEquals(14, (int)row.get(row.fieldIndex("leavesqty")));
+
+    StructType partialKeySchema = new StructType(new StructField[] {
+        new StructField("symbol", DataTypes.StringType, false, null)
+    });
+    filters.clear();
+    filters.add(new RowWithSchema(partialKeySchema, "AAPL"));
+    filters.add(new RowWithSchema(partialKeySchema, "GOOG"));
+    assertEquals(25, Iterables.size(output.getExistingForFilters(filters)));
+  }
+
   @Test
   public void testApplyPlannedMutations() throws Exception {
     Table table = connection.getTable(TableName.valueOf(TABLE));
@@ -321,6 +407,43 @@ public class TestHBaseOutput {
     scanAndCountTable(table, 0);
   }
 
+  @Test
+  public void testApplyBulkLoad() throws Exception {
+    utility.deleteTable(TABLE);
+    utility.createTable(TableName.valueOf(TABLE), new byte[][]{CF1},
+        new byte[][]{"FB".getBytes(), "MSFT".getBytes(), "TWTR".getBytes()});
+    Table table = connection.getTable(TableName.valueOf(TABLE));
+
+    Config config = ConfigUtils.configFromResource("/hbase/hbase-output-test.conf").getConfig("output");
+    config = config.withValue("zookeeper",
+        ConfigValueFactory.fromAnyRef("localhost:" + utility.getZkCluster().getClientPort()))
+        .withValue(HBaseUtils.HBASE_BULK_LOAD_ENABLED, ConfigValueFactory.fromAnyRef(true))
+        .withValue(HBaseUtils.HBASE_BULK_LOAD_STAGING_DIR,
+            ConfigValueFactory.fromAnyRef(utility.getDataTestDir("bulkload").toString()));
+
+    HBaseOutput output = new HBaseOutput();
+    output.configure(config);
+
+    List<Tuple2<MutationType, Dataset<Row>>> bulk = Lists.newArrayList();
+    bulk.add(new Tuple2<>(MutationType.UPSERT, createBulkMutations(INPUT_ROWS)));
+    output.applyBulkMutations(bulk);
+
+    scanAndCountTable(table, INPUT_ROWS * 4);
+    HBaseSerde serde = HBaseUtils.getSerde(config);
+    for (Result result : scanAndReturnTable(table)) {
+      Row row = serde.convertFromResult(result);
+      int i = (int)((long)row.get(row.fieldIndex("transacttime")) - 1_000_000_000L);
+      assertEquals(SYMBOLS[i % SYMBOLS.length], row.get(row.fieldIndex("symbol")));
+      assertEquals(i + i % 10, (int)row.get(row.fieldIndex("cumqty")));
+    }
+
+    // Deletes are still applied through the mutator
+    bulk.clear();
+    bulk.add(new Tuple2<>(MutationType.DELETE, createBulkMutations(INPUT_ROWS)));
+    output.applyBulkMutations(bulk);
+    scanAndCountTable(table, 0);
+  }
+
   private List<Result> scanAndReturnTable(Table table) throws IOException {
     List<Result> results = Lists.newArrayList();
     Scan scan = new Scan();
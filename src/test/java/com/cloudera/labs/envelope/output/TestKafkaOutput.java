@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.utils.AvroUtils;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestKafkaOutput {
+
+  private static final StructType SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("id", DataTypes.StringType, false),
+      DataTypes.createStructField("count", DataTypes.IntegerType, true),
+      DataTypes.createStructField("payload", DataTypes.BinaryType, true)));
+
+  private static KafkaOutput outputFor(String extraConfig) {
+    Config config = ConfigFactory.parseString(
+        "brokers = \"broker1:9092\"\ntopic = test\n" + extraConfig);
+
+    KafkaOutput output = new KafkaOutput();
+    output.configure(config);
+
+    return output;
+  }
+
+  @Test
+  public void testDelimitedEncoding() throws Exception {
+    KafkaOutput output = outputFor("field.delimiter = \"chars:124\"");
+    Row row = RowFactory.create("a", null, null);
+
+    byte[] encoded = output.valueEncoderFor(SCHEMA).encode(row);
+
+    assertEquals("a||", new String(encoded, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testDelimitedEncodingNullValue() throws Exception {
+    KafkaOutput output = outputFor("null-value = \"\\\\N\"");
+    Row row = RowFactory.create("a", 1, null);
+
+    byte[] encoded = output.valueEncoderFor(SCHEMA).encode(row);
+
+    assertEquals("a,1,\\N", new String(encoded, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testAvroEncoding() throws Exception {
+    KafkaOutput output = outputFor("encoding = avro");
+    KafkaOutput.RowEncoder encoder = output.valueEncoderFor(SCHEMA);
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(AvroUtils.schemaFor(SCHEMA));
+
+    for (int i = 0; i < 2; i++) {
+      Row row = RowFactory.create("a" + i, i, new byte[] { (byte)i });
+      GenericRecord record = reader.read(null,
+          DecoderFactory.get().binaryDecoder(encoder.encode(row), null));
+
+      assertEquals("a" + i, record.get("id").toString());
+      assertEquals(i, record.get("count"));
+      assertEquals((byte)i, ((ByteBuffer)record.get("payload")).get(0));
+    }
+  }
+
+  @Test
+  public void testBinaryEncoding() throws Exception {
+    KafkaOutput output = outputFor("encoding = binary\nvalue.field.name = payload");
+    KafkaOutput.RowEncoder encoder = output.valueEncoderFor(SCHEMA);
+
+    assertArrayEquals(new byte[] { 1, 2 }, encoder.encode(RowFactory.create("a", 1, new byte[] { 1, 2 })));
+    assertNull(encoder.encode(RowFactory.create("a", 1, null)));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testBinaryEncodingRequiresValueField() {
+    outputFor("encoding = binary");
+  }
+
+  @Test
+  public void testProducerProperties() {
+    Config config = ConfigFactory.parseString("brokers = \"broker1:9092\"\ntopic = test\n" +
+        "parameter.linger.ms = 20\n\"parameter.compression.type\" = lz4");
+
+    Map<String, Object> properties = KafkaOutput.getProducerProperties(config);
+
+    assertEquals("broker1:9092", properties.get("bootstrap.servers"));
+    assertEquals("20", properties.get("linger.ms"));
+    assertEquals("lz4", properties.get("compression.type"));
+    assertEquals("65536", properties.get("batch.size"));
+  }
+
+}
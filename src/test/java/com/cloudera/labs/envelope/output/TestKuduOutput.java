@@ -0,0 +1,179 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.AsyncKuduSession;
+import org.apache.kudu.client.KuduPredicate;
+import org.apache.kudu.client.Operation;
+import org.apache.kudu.client.OperationResponse;
+import org.apache.kudu.client.RowError;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.utils.kudu.KuduSessionPool;
+import com.google.common.collect.Lists;
+import com.stumbleupon.async.Deferred;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class TestKuduOutput {
+
+  private AtomicInteger completedBatches = new AtomicInteger();
+
+  @Test
+  public void testAwaitsAllBatchesInFlight(
+      final @Mocked AsyncKuduSession session1,
+      final @Mocked AsyncKuduSession session2,
+      final @Mocked Operation operation) throws Exception
+  {
+    new Expectations() {{
+      session1.flush(); result = new SlowFlushDelegate(); minTimes = 0;
+      session2.flush(); result = new SlowFlushDelegate(); minTimes = 0;
+    }};
+
+    KuduSessionPool sessions = poolOf(session1, session2);
+    List<Operation> operations = Collections.nCopies(5, operation);
+
+    KuduOutput.applyOperations(operations, sessions, 2, 2, false);
+
+    // Three batches of up to two operations, none of which are still in flight
+    assertEquals(3, completedBatches.get());
+    assertEquals(2, sessions.getIdleCount());
+  }
+
+  @Test
+  public void testRowErrorsAggregatedAcrossBatches(
+      final @Mocked AsyncKuduSession session1,
+      final @Mocked AsyncKuduSession session2,
+      final @Mocked Operation operation,
+      final @Mocked OperationResponse response,
+      final @Mocked RowError rowError) throws Exception
+  {
+    new Expectations() {{
+      session1.flush(); result = new SlowFlushDelegate(); minTimes = 0;
+      session2.flush(); result = new SlowFlushDelegate(); minTimes = 0;
+      OperationResponse.collectErrors((List<OperationResponse>)any);
+      result = Collections.nCopies(60, rowError);
+    }};
+
+    KuduSessionPool sessions = poolOf(session1, session2);
+    List<Operation> operations = Collections.nCopies(5, operation);
+
+    try {
+      KuduOutput.applyOperations(operations, sessions, 2, 2, false);
+      fail("Expected the row errors to fail the mutations");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Kudu output encountered 180 row errors"));
+    }
+
+    // The errors are only reported once all of the batches have completed
+    assertEquals(3, completedBatches.get());
+    assertEquals(2, sessions.getIdleCount());
+  }
+
+  @Test
+  public void testTimestampKeyLookupPredicate() {
+    ColumnSchema column = new ColumnSchema.ColumnSchemaBuilder("ts", Type.UNIXTIME_MICROS).key(true).build();
+    StructType filterSchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        DataTypes.createStructField("ts", DataTypes.TimestampType, false)));
+
+    Timestamp first = new Timestamp(1000);
+    first.setNanos(1000);
+    List<Row> filters = Lists.<Row>newArrayList(
+        new RowWithSchema(filterSchema, first),
+        new RowWithSchema(filterSchema, new Timestamp(2000)),
+        new RowWithSchema(filterSchema, new Timestamp(1000)));
+
+    KuduPredicate predicate = KuduOutput.inListPredicateFor(column, filters, 0);
+
+    assertEquals(KuduPredicate.newInListPredicate(column, Lists.<Object>newArrayList(1000001L, 2000000L, 1000000L)),
+        predicate);
+  }
+
+  @Test
+  public void testBinaryKeyLookupPredicate() {
+    ColumnSchema column = new ColumnSchema.ColumnSchemaBuilder("bin", Type.BINARY).key(true).build();
+    StructType filterSchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        DataTypes.createStructField("bin", DataTypes.BinaryType, false)));
+
+    List<Row> filters = Lists.<Row>newArrayList(
+        new RowWithSchema(filterSchema, ByteBuffer.wrap(new byte[] {1, 2})),
+        new RowWithSchema(filterSchema, new byte[] {1, 2}),
+        new RowWithSchema(filterSchema, new byte[] {3}));
+
+    KuduPredicate predicate = KuduOutput.inListPredicateFor(column, filters, 0);
+
+    assertEquals(KuduPredicate.newInListPredicate(column, Lists.<Object>newArrayList(new byte[] {1, 2}, new byte[] {3})),
+        predicate);
+  }
+
+  // The pool starts with the sessions idle, so that no new sessions are created
+  private static KuduSessionPool poolOf(AsyncKuduSession... sessions) {
+    KuduSessionPool pool = new KuduSessionPool(null);
+    for (AsyncKuduSession session : sessions) {
+      pool.release(session);
+    }
+
+    return pool;
+  }
+
+  // Completes the flush of a batch from another thread after a delay, as a tablet server would
+  private class SlowFlushDelegate implements Delegate<Deferred<List<OperationResponse>>> {
+    @SuppressWarnings("unused")
+    Deferred<List<OperationResponse>> flush() {
+      final Deferred<List<OperationResponse>> flushed = new Deferred<>();
+
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(200);
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          completedBatches.incrementAndGet();
+          flushed.callback(Collections.<OperationResponse>emptyList());
+        }
+      }.start();
+
+      return flushed;
+    }
+  }
+
+}
@@ -16,6 +16,7 @@
 package com.cloudera.labs.envelope.plan;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.util.List;
 import java.util.Map;
@@ -705,4 +706,19 @@ public class TestEventTimeHistoryPlanner {
     assertEquals(RowUtils.get(planned.get(3).getRow(), "enddate"), EventTimeHistoryPlanner.FAR_FUTURE_MILLIS);
     assertEquals(RowUtils.get(planned.get(3).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_YES);
   }
+
+  @Test
+  public void testExistingFieldNames() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    assertEquals(Lists.newArrayList("key", "timestamp", "value", "startdate", "enddate", "currentflag", "lastupdated"),
+        ((UsesExistingFields)p).getExistingFieldNames());
+
+    config = config.withValue(EventTimeHistoryPlanner.CARRY_FORWARD_CONFIG_NAME, ConfigValueFactory.fromAnyRef(true));
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    assertNull(((UsesExistingFields)p).getExistingFieldNames());
+  }
 }
@@ -199,4 +199,12 @@ public class TestEventTimeUpsertPlanner {
     assertEquals(planned.get(0).getRow().length(), 3);
   }
 
+  @Test
+  public void testExistingFieldNames() {
+    p = new EventTimeUpsertPlanner();
+    p.configure(config);
+
+    assertEquals(Lists.newArrayList("key", "timestamp", "value"), ((UsesExistingFields)p).getExistingFieldNames());
+  }
+
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.spark.sql.Row;
+
+import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+public class DummyRandomOutput implements RandomOutput {
+
+  private static List<PlannedRow> applied = Lists.newArrayList();
+  private static List<Integer> lookupSizes = Lists.newArrayList();
+  private static List<Integer> applySizes = Lists.newArrayList();
+  private static AtomicInteger startedLookups = new AtomicInteger();
+  private static AtomicInteger completedLookups = new AtomicInteger();
+  private static AtomicInteger runningLookups = new AtomicInteger();
+  private static AtomicInteger appliesDuringLookups = new AtomicInteger();
+
+  private boolean failFirstLookup = false;
+  private long lookupMillis = 0;
+
+  @Override
+  public void configure(Config config) {
+    if (config.hasPath("lookup.fail.first")) {
+      failFirstLookup = config.getBoolean("lookup.fail.first");
+    }
+    if (config.hasPath("lookup.milliseconds")) {
+      lookupMillis = config.getLong("lookup.milliseconds");
+    }
+  }
+
+  @Override
+  public Set<MutationType> getSupportedRandomMutationTypes() {
+    return Sets.newHashSet(MutationType.values());
+  }
+
+  @Override
+  public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
+    if (runningLookups.get() > 0) {
+      appliesDuringLookups.incrementAndGet();
+    }
+
+    synchronized (applied) {
+      applied.addAll(planned);
+      applySizes.add(planned.size());
+    }
+  }
+
+  @Override
+  public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+    if (startedLookups.incrementAndGet() == 1 && failFirstLookup) {
+      throw new RuntimeException("Lookup failed");
+    }
+
+    runningLookups.incrementAndGet();
+    try {
+      Thread.sleep(lookupMillis);
+    }
+    finally {
+      runningLookups.decrementAndGet();
+    }
+
+    synchronized (lookupSizes) {
+      lookupSizes.add(Lists.newArrayList(filters).size());
+    }
+    completedLookups.incrementAndGet();
+
+    return Lists.newArrayList();
+  }
+
+  public static List<PlannedRow> getApplied() {
+    return applied;
+  }
+
+  public static List<Integer> getLookupSizes() {
+    return lookupSizes;
+  }
+
+  public static List<Integer> getApplySizes() {
+    return applySizes;
+  }
+
+  public static int getCompletedLookups() {
+    return completedLookups.get();
+  }
+
+  public static int getAppliesDuringLookups() {
+    return appliesDuringLookups.get();
+  }
+
+  public static void reset() {
+    startedLookups.set(0);
+    completedLookups.set(0);
+    appliesDuringLookups.set(0);
+    applied.clear();
+    lookupSizes.clear();
+    applySizes.clear();
+  }
+
+}
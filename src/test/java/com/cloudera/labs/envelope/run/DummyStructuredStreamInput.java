@@ -0,0 +1,40 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import com.cloudera.labs.envelope.input.StructuredStreamInput;
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.typesafe.config.Config;
+
+public class DummyStructuredStreamInput implements StructuredStreamInput {
+
+  private String path;
+
+  @Override
+  public void configure(Config config) {
+    path = config.getString("path");
+  }
+
+  @Override
+  public Dataset<Row> readStream() throws Exception {
+    // Each line of the files of the directory is the value of a record
+    return Contexts.getSparkSession().readStream().text(path);
+  }
+
+}
@@ -16,6 +16,8 @@
 package com.cloudera.labs.envelope.run;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Map;
 
@@ -25,6 +27,7 @@ import org.apache.spark.sql.Row;
 import org.junit.Test;
 
 import com.cloudera.labs.envelope.derive.PassthroughDeriver;
+import com.cloudera.labs.envelope.spark.Accumulators;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -196,4 +199,127 @@ public class TestBatchStep {
     new BatchStep("world", dependentConfig);
   }
 
+  @Test
+  public void testRandomOutputLookupBatches() throws Exception {
+    DummyRandomOutput.reset();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("value"));
+    configMap.put("planner.field.timestamp", "modulo");
+    configMap.put("planner.field.values", Lists.newArrayList("modulo"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    configMap.put(DataStep.LOOKUP_BATCH_SIZE_PROPERTY, 3);
+    configMap.put(DataStep.LOOKUP_PARALLELISM_PROPERTY, 2);
+    Config config = ConfigFactory.parseMap(configMap);
+
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.receiveAccumulators(new Accumulators(batchStep.getAccumulatorRequests()));
+    batchStep.submit(Sets.<Step>newHashSet());
+
+    assertEquals(50, DummyRandomOutput.getApplied().size());
+    int lookedUp = 0;
+    for (int lookupSize : DummyRandomOutput.getLookupSizes()) {
+      assertTrue(lookupSize <= 3);
+      lookedUp += lookupSize;
+    }
+    assertEquals(50, lookedUp);
+    for (int applySize : DummyRandomOutput.getApplySizes()) {
+      assertTrue(applySize <= 3);
+    }
+  }
+
+  @Test
+  public void testRandomOutputLookupCache() throws Exception {
+    DummyRandomOutput.reset();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("value"));
+    configMap.put("planner.field.timestamp", "modulo");
+    configMap.put("planner.field.values", Lists.newArrayList("modulo"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    configMap.put(DataStep.LOOKUP_CACHE_ENABLED_PROPERTY, true);
+    Config config = ConfigFactory.parseMap(configMap);
+
+    BatchStep batchStep = new BatchStep("testcache", config);
+    Accumulators accumulators = new Accumulators(batchStep.getAccumulatorRequests());
+    batchStep.receiveAccumulators(accumulators);
+    batchStep.submit(Sets.<Step>newHashSet());
+    batchStep.submit(Sets.<Step>newHashSet());
+
+    // The keys of the second write are all found in the cache from the first write
+    int lookedUp = 0;
+    for (int lookupSize : DummyRandomOutput.getLookupSizes()) {
+      lookedUp += lookupSize;
+    }
+    assertEquals(50, lookedUp);
+    assertEquals(50L, (long)accumulators.getLongAccumulators().get("Existing records cache hits").value());
+    assertEquals(50L, (long)accumulators.getLongAccumulators().get("Existing records cache misses").value());
+  }
+
+  @Test
+  public void testRandomOutputLookupFailureCancelsInFlightLookups() throws Exception {
+    DummyRandomOutput.reset();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 1);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("value"));
+    configMap.put("planner.field.timestamp", "modulo");
+    configMap.put("planner.field.values", Lists.newArrayList("modulo"));
+    configMap.put("output.type", DummyConcurrentRandomOutput.class.getName());
+    configMap.put("output.lookup.fail.first", true);
+    configMap.put("output.lookup.milliseconds", 1000);
+    configMap.put(DataStep.LOOKUP_BATCH_SIZE_PROPERTY, 1);
+    configMap.put(DataStep.LOOKUP_PARALLELISM_PROPERTY, 3);
+    Config config = ConfigFactory.parseMap(configMap);
+
+    BatchStep batchStep = new BatchStep("testfailure", config);
+    batchStep.receiveAccumulators(new Accumulators(batchStep.getAccumulatorRequests()));
+    try {
+      batchStep.submit(Sets.<Step>newHashSet());
+      fail("Expected the failed lookup to fail the step");
+    }
+    catch (Exception e) {
+      // expected
+    }
+
+    // The other lookups that were in flight are interrupted rather than left to complete
+    Thread.sleep(1500);
+    assertEquals(0, DummyRandomOutput.getCompletedLookups());
+  }
+
+  @Test
+  public void testRandomOutputLookupsDoNotOverlapApply() throws Exception {
+    DummyRandomOutput.reset();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 1);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("value"));
+    configMap.put("planner.field.timestamp", "modulo");
+    configMap.put("planner.field.values", Lists.newArrayList("modulo"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    configMap.put("output.lookup.milliseconds", 20);
+    configMap.put(DataStep.LOOKUP_BATCH_SIZE_PROPERTY, 1);
+    configMap.put(DataStep.LOOKUP_PARALLELISM_PROPERTY, 3);
+    Config config = ConfigFactory.parseMap(configMap);
+
+    BatchStep batchStep = new BatchStep("testnooverlap", config);
+    batchStep.receiveAccumulators(new Accumulators(batchStep.getAccumulatorRequests()));
+    batchStep.submit(Sets.<Step>newHashSet());
+
+    // The output does not support concurrent lookups, so the next batch is not looked up while
+    // the mutations of the current batch are applied
+    assertEquals(10, DummyRandomOutput.getApplied().size());
+    assertEquals(0, DummyRandomOutput.getAppliesDuringLookups());
+  }
+
 }
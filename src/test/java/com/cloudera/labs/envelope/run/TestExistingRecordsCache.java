@@ -0,0 +1,142 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestExistingRecordsCache {
+
+  private static final List<String> KEY = Lists.newArrayList("key");
+  private static final List<String> IDENTITY = Lists.newArrayList("key", "ts");
+
+  private StructType schema;
+  private StructType keySchema;
+  private ExistingRecordsCache cache;
+
+  @Before
+  public void before() {
+    schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true)));
+    keySchema = DataTypes.createStructType(Lists.<StructField>newArrayList(schema.fields()[0]));
+
+    cache = new ExistingRecordsCache(100, 60000);
+    cache.startPartition(0, 1, 1, false);
+  }
+
+  @Test
+  public void testInsertIntoCachedKey() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList());
+
+    Row inserted = new RowWithSchema(schema, "a", 1L, "hello");
+    cache.applyMutations(0, Lists.newArrayList(new PlannedRow(inserted, MutationType.INSERT)), KEY, IDENTITY);
+
+    assertEquals(Lists.newArrayList(inserted), cache.getIfPresent(0, key));
+  }
+
+  @Test
+  public void testUpdateKeepsUnmutatedFields() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList(
+        new RowWithSchema(schema, "a", 1L, "hello"), new RowWithSchema(schema, "a", 2L, "world")));
+
+    StructType updateSchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        schema.fields()[1], schema.fields()[0]));
+    Row update = new RowWithSchema(updateSchema, 2L, "a");
+    cache.applyMutations(0, Lists.newArrayList(new PlannedRow(update, MutationType.UPDATE)), KEY, IDENTITY);
+
+    List<Row> cached = cache.getIfPresent(0, key);
+    assertEquals(2, cached.size());
+    assertEquals(new RowWithSchema(schema, "a", 2L, "world"), cached.get(1));
+  }
+
+  @Test
+  public void testAmbiguousMutationInvalidatesKey() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList(new RowWithSchema(schema, "a", 1L, "hello")));
+
+    Row inserted = new RowWithSchema(schema, "a", 1L, "again");
+    cache.applyMutations(0, Lists.newArrayList(new PlannedRow(inserted, MutationType.INSERT)), KEY, IDENTITY);
+
+    assertNull(cache.getIfPresent(0, key));
+  }
+
+  @Test
+  public void testDelete() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList(
+        new RowWithSchema(schema, "a", 1L, "hello"), new RowWithSchema(schema, "a", 2L, "world")));
+
+    Row deleted = new RowWithSchema(schema, "a", 1L, "hello");
+    cache.applyMutations(0, Lists.newArrayList(new PlannedRow(deleted, MutationType.DELETE)), KEY, IDENTITY);
+
+    assertEquals(Lists.<Row>newArrayList(new RowWithSchema(schema, "a", 2L, "world")), cache.getIfPresent(0, key));
+  }
+
+  @Test
+  public void testMissedWriteDiscardsPartition() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList());
+    cache.completePartition(0, 1);
+
+    cache.startPartition(0, 1, 2, false);
+    assertEquals(Lists.<Row>newArrayList(), cache.getIfPresent(0, key));
+    cache.completePartition(0, 2);
+
+    // Write 3 of the partition was made by another executor
+    cache.startPartition(0, 1, 4, false);
+    assertNull(cache.getIfPresent(0, key));
+  }
+
+  @Test
+  public void testUncompletedWriteDiscardsPartition() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList());
+
+    cache.startPartition(0, 1, 2, false);
+    assertNull(cache.getIfPresent(0, key));
+  }
+
+  @Test
+  public void testRetriedWriteDiscardsPartition() {
+    Row key = new RowWithSchema(keySchema, "a");
+    cache.put(0, key, Lists.<Row>newArrayList());
+    cache.completePartition(0, 1);
+
+    // The first attempt of write 2 of the partition failed on another executor after applying
+    // some of its mutations, and the retry of the write landed on this executor
+    cache.startPartition(0, 1, 2, true);
+    assertNull(cache.getIfPresent(0, key));
+  }
+
+}
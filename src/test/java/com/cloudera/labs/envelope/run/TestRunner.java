@@ -15,17 +15,31 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.sql.AnalysisException;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.streaming.StreamingQuery;
 import org.junit.Test;
 
+import com.cloudera.labs.envelope.repetition.DummyBatchOutput;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.utils.ConfigUtils;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 public class TestRunner {
 
@@ -58,6 +72,90 @@ public class TestRunner {
     }
   }
   
+  private static Config structuredStreamingConfig(File streamDir, String checkpointConfig) {
+    return ConfigFactory.parseString(
+        "application.streaming.engine = structured\n" +
+        checkpointConfig +
+        "steps {\n" +
+        "  lookup {\n" +
+        "    input { type = \"" + DummyInput.class.getName() + "\", starting.partitions = 1 }\n" +
+        "  }\n" +
+        "  stream {\n" +
+        "    input {\n" +
+        "      type = \"" + DummyStructuredStreamInput.class.getName() + "\"\n" +
+        "      path = \"" + streamDir.getAbsolutePath() + "\"\n" +
+        "      repartition.partitions = 2\n" +
+        "      translator { type = delimited, delimiter = \",\", field.names = [id,score], field.types = [string,int] }\n" +
+        "    }\n" +
+        "  }\n" +
+        "  joined {\n" +
+        "    dependencies = [stream, lookup]\n" +
+        "    deriver {\n" +
+        "      type = sql\n" +
+        "      query.literal = \"SELECT s.id, s.score, l.modulo FROM stream s JOIN lookup l ON s.score = l.value\"\n" +
+        "    }\n" +
+        "    planner { type = append }\n" +
+        "    output { type = \"" + DummyBatchOutput.class.getName() + "\" }\n" +
+        "  }\n" +
+        "}");
+  }
+
+  private static Set<Step> structuredStreamingSteps(Config config) {
+    Config stepsConfig = config.getConfig("steps");
+
+    return Sets.<Step>newHashSet(
+        new BatchStep("lookup", stepsConfig.getConfig("lookup")),
+        new StreamingStep("stream", stepsConfig.getConfig("stream")),
+        new BatchStep("joined", stepsConfig.getConfig("joined")));
+  }
+
+  private static void runStructuredStreaming(Config config) throws Exception {
+    Runner.initializeThreadPool(config);
+    try {
+      List<StreamingQuery> queries = Runner.startStructuredStreaming(config, structuredStreamingSteps(config));
+      assertEquals(1, queries.size());
+      assertEquals("joined", queries.get(0).name());
+
+      queries.get(0).processAllAvailable();
+      queries.get(0).stop();
+    }
+    finally {
+      Runner.shutdownThreadPool();
+    }
+  }
+
+  @Test
+  public void testStructuredStreaming() throws Exception {
+    File streamDir = Files.createTempDir();
+    Files.write("a,3\nb,7\nc,12\n", new File(streamDir, "part-1.txt"), StandardCharsets.UTF_8);
+    File checkpointDir = Files.createTempDir();
+
+    Config config = structuredStreamingConfig(streamDir,
+        "application.checkpoint.path = \"" + checkpointDir.getAbsolutePath() + "\"\n");
+
+    Contexts.closeSparkSession(true);
+    int previousOutputs = DummyBatchOutput.getOutputs().size();
+    runStructuredStreaming(config);
+
+    List<Row> outputs = DummyBatchOutput.getOutputs();
+    assertEquals(previousOutputs + 2, outputs.size());
+    assertTrue(outputs.contains(RowFactory.create("a", 3, 3L)));
+    assertTrue(outputs.contains(RowFactory.create("b", 7, 2L)));
+    assertFalse(outputs.contains(RowFactory.create("c", 12, 2L)));
+
+    // The restarted query replays its last batch, which the sink has already written
+    runStructuredStreaming(config);
+    assertEquals(previousOutputs + 2, DummyBatchOutput.getOutputs().size());
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testStructuredStreamingRequiresCheckpointPath() throws Exception {
+    File streamDir = Files.createTempDir();
+    Config config = structuredStreamingConfig(streamDir, "");
+
+    Runner.startStructuredStreaming(config, structuredStreamingSteps(config));
+  }
+
   @SuppressWarnings("serial")
   public static class TestUDF1 implements UDF1<String, String> {
     @Override
@@ -0,0 +1,207 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.utils.StepUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestStepScheduler {
+
+  private ExecutorService threadPool;
+
+  @Before
+  public void before() {
+    threadPool = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void after() {
+    threadPool.shutdown();
+  }
+
+  @Test
+  public void testIndependentBranchNotHeldBySlowStep() throws Exception {
+    /*
+     * slow
+     * fast1 -> fast2
+     */
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep slow = new SleepingStep("slow", 1000);
+    SleepingStep fast1 = new SleepingStep("fast1", 10);
+    SleepingStep fast2 = new SleepingStep("fast2", 10, "fast1");
+    steps.add(slow);
+    steps.add(fast1);
+    steps.add(fast2);
+
+    StepScheduler scheduler = new StepScheduler(steps, threadPool);
+    scheduler.run();
+
+    assertTrue(StepUtils.allStepsSubmitted(steps));
+    assertTrue(fast2.getFinishedAt() < slow.getFinishedAt());
+    assertEquals(Lists.<Step>newArrayList(slow), scheduler.getCriticalPath());
+  }
+
+  @Test
+  public void testCriticalPath() throws Exception {
+    /*
+     * step1 -> step3 -> step4
+     * step2 ---^
+     */
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep step1 = new SleepingStep("step1", 10);
+    SleepingStep step2 = new SleepingStep("step2", 300);
+    SleepingStep step3 = new SleepingStep("step3", 10, "step1", "step2");
+    SleepingStep step4 = new SleepingStep("step4", 10, "step3");
+    steps.add(step1);
+    steps.add(step2);
+    steps.add(step3);
+    steps.add(step4);
+
+    StepScheduler scheduler = new StepScheduler(steps, threadPool);
+    scheduler.run();
+
+    assertEquals(Lists.<Step>newArrayList(step2, step3, step4), scheduler.getCriticalPath());
+    assertEquals(4, scheduler.getTimings().size());
+    assertTrue(scheduler.getTimings().get(step2).getRunningMillis() >= 300);
+  }
+
+  @Test
+  public void testCriticalPathThroughRefactorStep() throws Exception {
+    /*
+     * step1 -> refactor -> step2
+     */
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep step1 = new SleepingStep("step1", 10);
+    UnchangedRefactorStep refactor = new UnchangedRefactorStep("refactor", "step1");
+    SleepingStep step2 = new SleepingStep("step2", 10, "refactor");
+    steps.add(step1);
+    steps.add(refactor);
+    steps.add(step2);
+
+    StepScheduler scheduler = new StepScheduler(steps, threadPool);
+    scheduler.run();
+
+    assertTrue(StepUtils.allStepsSubmitted(steps));
+    assertEquals(Lists.<Step>newArrayList(step1, refactor, step2), scheduler.getCriticalPath());
+  }
+
+  @Test
+  public void testAlreadySubmittedDependency() throws Exception {
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep step1 = new SleepingStep("step1", 10);
+    step1.setSubmitted(true);
+    SleepingStep step2 = new SleepingStep("step2", 10, "step1");
+    steps.add(step1);
+    steps.add(step2);
+
+    StepScheduler scheduler = new StepScheduler(steps, threadPool);
+    scheduler.run();
+
+    assertTrue(step2.hasSubmitted());
+    assertEquals(1, scheduler.getTimings().size());
+  }
+
+  @Test
+  (expected = ExecutionException.class)
+  public void testFailingStep() throws Exception {
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep step1 = new SleepingStep("step1", -1);
+    SleepingStep step2 = new SleepingStep("step2", 10, "step1");
+    steps.add(step1);
+    steps.add(step2);
+
+    new StepScheduler(steps, threadPool).run();
+  }
+
+  @Test
+  (expected = RuntimeException.class)
+  public void testUnsatisfiableDependency() throws Exception {
+    Set<Step> steps = Sets.newHashSet();
+    SleepingStep step1 = new SleepingStep("step1", 10, "step2");
+    SleepingStep step2 = new SleepingStep("step2", 10, "step1");
+    steps.add(step1);
+    steps.add(step2);
+
+    new StepScheduler(steps, threadPool).run();
+  }
+
+  private static Config dependenciesConfig(String... dependencies) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("dependencies", Lists.newArrayList(dependencies));
+    return ConfigFactory.parseMap(configMap);
+  }
+
+  private static class SleepingStep extends BatchStep {
+    private long sleepMillis;
+    private volatile long finishedAt;
+
+    public SleepingStep(String name, long sleepMillis, String... dependencies) {
+      super(name, dependenciesConfig(dependencies));
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override
+    public void submit(Set<Step> dependencySteps) throws Exception {
+      if (sleepMillis < 0) {
+        throw new RuntimeException("Step " + getName() + " failed");
+      }
+
+      Thread.sleep(sleepMillis);
+      finishedAt = System.nanoTime();
+      setSubmitted(true);
+    }
+
+    public long getFinishedAt() {
+      return finishedAt;
+    }
+  }
+
+  private static class UnchangedRefactorStep extends RefactorStep {
+    public UnchangedRefactorStep(String name, String... dependencies) {
+      super(name, dependenciesConfig(dependencies));
+    }
+
+    @Override
+    public Set<Step> refactor(Set<Step> steps) {
+      setSubmitted(true);
+
+      return steps;
+    }
+
+    @Override
+    public Step copy() {
+      return new UnchangedRefactorStep(name, getDependencyNames().toArray(new String[0]));
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestStreamingStep {
+
+  @Test
+  public void testTopicViews() throws Exception {
+    Config config = ConfigFactory.parseString(
+        "input {\n" +
+        "  type = kafka\n" +
+        "  translators {\n" +
+        "    \"topic.a\" { type = delimited, delimiter = \",\", field.names = [id,score], field.types = [string,int] }\n" +
+        "    topicb { type = delimited, delimiter = \",\", field.names = [id,name], field.types = [string,string] }\n" +
+        "  }\n" +
+        "  topic.views = true\n" +
+        "}");
+
+    StreamingStep step = new StreamingStep("teststream", config);
+    List<Row> rows = Lists.newArrayList(
+        RowFactory.create("a", 1, null, "topic.a"),
+        RowFactory.create("b", null, "bee", "topicb"),
+        RowFactory.create("c", null, "sea", "topicb"));
+    Dataset<Row> data = Contexts.getSparkSession().createDataFrame(rows, step.getSchema());
+
+    step.setData(data);
+
+    assertEquals("teststream_topic_a", step.getTopicViewName("topic.a"));
+    assertEquals(3, Contexts.getSparkSession().table("teststream").count());
+
+    Dataset<Row> topicA = Contexts.getSparkSession().table("teststream_topic_a");
+    assertEquals(Lists.newArrayList("id", "score"), Lists.newArrayList(topicA.columns()));
+    assertEquals(Lists.newArrayList(RowFactory.create("a", 1)), topicA.collectAsList());
+
+    Dataset<Row> topicB = Contexts.getSparkSession().table("teststream_topicb");
+    assertEquals(Lists.newArrayList("id", "name"), Lists.newArrayList(topicB.columns()));
+    assertEquals(2, topicB.count());
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestAdaptiveRateController {
+
+  // 1 second micro-batches with a 1 second target, 1000 records per partition per second,
+  // and 4 shuffle partitions between 1 and 16
+  private static AdaptiveRateController controller() {
+    return new AdaptiveRateController(1000, 1000, 1000, 10, 100000, 4, 1, 16);
+  }
+
+  @Test
+  public void testOverTarget() {
+    AdaptiveRateController controller = controller();
+
+    controller.adjust(4000, 4, 2000);
+
+    assertEquals(500, controller.getRatePerPartition());
+    assertEquals(8, controller.getShufflePartitions());
+  }
+
+  @Test
+  public void testOverTargetBelowRateLimit() {
+    AdaptiveRateController controller = controller();
+
+    // Only 200 records per partition arrived, so the rate is reduced from that
+    controller.adjust(800, 4, 2000);
+
+    assertEquals(100, controller.getRatePerPartition());
+  }
+
+  @Test
+  public void testUnderTargetSaturated() {
+    AdaptiveRateController controller = controller();
+
+    controller.adjust(4000, 4, 250);
+
+    // Growth is capped at double per micro-batch
+    assertEquals(2000, controller.getRatePerPartition());
+    assertEquals(4, controller.getShufflePartitions());
+  }
+
+  @Test
+  public void testUnderTargetNotSaturated() {
+    AdaptiveRateController controller = controller();
+
+    controller.adjust(400, 4, 100);
+
+    assertEquals(1000, controller.getRatePerPartition());
+    assertEquals(2, controller.getShufflePartitions());
+  }
+
+  @Test
+  public void testNearTargetAndEmptyBatchesHold() {
+    AdaptiveRateController controller = controller();
+
+    controller.adjust(4000, 4, 900);
+    controller.adjust(0, 4, 5000);
+
+    assertEquals(1000, controller.getRatePerPartition());
+    assertEquals(4, controller.getShufflePartitions());
+  }
+
+  @Test
+  public void testBounds() {
+    AdaptiveRateController controller = controller();
+
+    for (int i = 0; i < 10; i++) {
+      controller.adjust(controller.getRatePerPartition() * 4, 4, 10000);
+    }
+
+    assertEquals(10, controller.getRatePerPartition());
+    assertEquals(16, controller.getShufflePartitions());
+  }
+
+  @Test
+  public void testInitialize() {
+    Config config = ConfigFactory.parseString(
+        "application.batch.milliseconds = 5000\n" +
+        "application.adaptive { enabled = true, rate.initial = 300, partitions.max = 3 }");
+
+    AdaptiveRateController.initialize(config);
+
+    try {
+      AdaptiveRateController controller = AdaptiveRateController.get();
+      assertEquals(300, controller.getRatePerPartition());
+      assertEquals(300, AdaptiveRateController.getPerPartitionConfig()
+          .maxRatePerPartition(new TopicPartition("topic", 0)));
+      assertEquals(Integer.toString(controller.getShufflePartitions()),
+          Contexts.getSparkSession().conf().get("spark.sql.shuffle.partitions"));
+    }
+    finally {
+      AdaptiveRateController.initialize(ConfigFactory.empty());
+    }
+
+    assertNull(AdaptiveRateController.get());
+  }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestMutableRowWithSchema {
+
+  private static final StructType SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("name", DataTypes.StringType, true),
+      DataTypes.createStructField("count", DataTypes.LongType, true),
+      DataTypes.createStructField("size", DataTypes.IntegerType, true),
+      DataTypes.createStructField("score", DataTypes.DoubleType, true),
+      DataTypes.createStructField("valid", DataTypes.BooleanType, true)));
+
+  @Test
+  public void testCopyOfRow() {
+    Row row = new RowWithSchema(SCHEMA, "a", 1L, 2, 3.5, true);
+    MutableRowWithSchema copy = MutableRowWithSchema.copyOf(row, new MutableRowWithSchema.Layout(SCHEMA));
+
+    assertEquals("a", copy.get(0));
+    assertEquals(1L, copy.getLong(1));
+    assertEquals(2, copy.getInt(2));
+    assertEquals(3.5, copy.getDouble(3), 0);
+    assertTrue(copy.getBoolean(4));
+    assertEquals(row, copy);
+    assertEquals(copy, row);
+    assertEquals(row.hashCode(), copy.hashCode());
+  }
+
+  @Test
+  public void testSetInPlace() {
+    MutableRowWithSchema row = new MutableRowWithSchema(new MutableRowWithSchema.Layout(SCHEMA));
+    assertTrue(row.isNullAt(1));
+
+    row.setLong(row.fieldIndex("count"), 10L);
+    row.set(row.fieldIndex("name"), "b");
+    row.set(row.fieldIndex("valid"), false);
+
+    assertEquals(10L, row.get(1));
+    assertEquals("b", row.getString(0));
+    assertFalse(row.getBoolean(4));
+
+    row.set(1, null);
+    assertTrue(row.isNullAt(1));
+    assertNull(row.get(1));
+  }
+
+  @Test
+  public void testCopyIsIndependent() {
+    MutableRowWithSchema row = MutableRowWithSchema.copyOf(
+        new RowWithSchema(SCHEMA, "a", 1L, 2, 3.5, true), new MutableRowWithSchema.Layout(SCHEMA));
+    MutableRowWithSchema copy = row.copy();
+
+    copy.setLong(1, 5L);
+
+    assertEquals(1L, row.getLong(1));
+    assertEquals(5L, copy.getLong(1));
+  }
+
+  @Test
+  public void testAppendedLayout() {
+    MutableRowWithSchema.Layouts layouts = new MutableRowWithSchema.Layouts(Lists.newArrayList(
+        DataTypes.createStructField("added", DataTypes.LongType, true)));
+    MutableRowWithSchema.Layout layout = layouts.get(SCHEMA);
+
+    assertSame(layout, layouts.get(SCHEMA));
+    assertEquals(6, layout.length());
+    assertEquals(5, layout.ordinal("added"));
+
+    MutableRowWithSchema row = MutableRowWithSchema.copyOf(new RowWithSchema(SCHEMA, "a", 1L, 2, 3.5, true), layout);
+    assertTrue(row.isNullAt(5));
+    row.setLong(5, 7L);
+    assertEquals(7L, row.getAs("added"));
+  }
+
+  @Test
+  (expected = IllegalArgumentException.class)
+  public void testMissingField() {
+    new MutableRowWithSchema.Layout(DataTypes.createStructType(Lists.<StructField>newArrayList())).ordinal("missing");
+  }
+
+  @Test
+  (expected = NullPointerException.class)
+  public void testPrimitiveOfNull() {
+    new MutableRowWithSchema(new MutableRowWithSchema.Layout(SCHEMA)).getLong(1);
+  }
+
+}
@@ -20,9 +20,17 @@ import static org.hamcrest.core.AnyOf.anyOf;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+
 import org.apache.avro.LogicalTypes;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructType;
 import org.junit.Test;
@@ -795,4 +803,29 @@ public class TestAvroUtils {
     assertEquals("Invalid DataType", DataTypes.LongType, AvroUtils.dataTypeFor(logicalType));
   }
 
+  @Test
+  public void toRecord() throws Exception {
+    StructType nested = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("inner", DataTypes.ShortType, false)));
+    StructType input = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("field1", DataTypes.StringType, true),
+        DataTypes.createStructField("field2", DataTypes.TimestampType, false),
+        DataTypes.createStructField("field3", DataTypes.createDecimalType(5, 2), true),
+        DataTypes.createStructField("field4", DataTypes.createArrayType(DataTypes.LongType), true),
+        DataTypes.createStructField("field5", nested, true)
+    ));
+    Schema schema = AvroUtils.schemaFor(input);
+
+    GenericRecord record = AvroUtils.recordFor(RowFactory.create(null, new Timestamp(1000L),
+        new BigDecimal("1.5"), Lists.newArrayList(1L, 2L), RowFactory.create((short)3)), schema);
+
+    assertEquals("Invalid field1", null, record.get("field1"));
+    assertEquals("Invalid field2", 1000L, record.get("field2"));
+    assertEquals("Invalid field3", BigInteger.valueOf(150),
+        new BigInteger(((ByteBuffer) record.get("field3")).array()));
+    assertEquals("Invalid field4", Lists.newArrayList(1L, 2L), record.get("field4"));
+    assertEquals("Invalid field5", 3, ((GenericRecord) record.get("field5")).get("inner"));
+    assertEquals("Invalid record", true, GenericData.get().validate(schema, record));
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestRowAccessor {
+
+  private static final StructType SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("ts", DataTypes.LongType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true)));
+
+  @Test
+  public void testSubsetMatchesRowUtils() {
+    Row row = new RowWithSchema(SCHEMA, "a", 1L, "hello");
+    RowAccessor accessor = new RowAccessor(Lists.newArrayList("value", "key"));
+
+    Row subset = accessor.subset(row);
+    Row expected = RowUtils.subsetRow(row, RowUtils.subsetSchema(SCHEMA, accessor.getFieldNames()));
+
+    assertEquals(expected, subset);
+    assertEquals(expected.schema(), subset.schema());
+  }
+
+  @Test
+  public void testGetAndSet() {
+    Row row = new RowWithSchema(SCHEMA, "a", 1L, "hello");
+    RowAccessor accessor = new RowAccessor(Lists.newArrayList("ts", "value"));
+
+    assertEquals(1L, accessor.getLong(row));
+    assertEquals("hello", accessor.get(row, 1));
+
+    Row set = accessor.set(row, 1, "world");
+    assertEquals(RowUtils.set(row, "value", "world"), set);
+    assertEquals("hello", row.get(2));
+  }
+
+  @Test
+  public void testResolvesEachSchema() {
+    StructType reordered = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        SCHEMA.fields()[2], SCHEMA.fields()[1], SCHEMA.fields()[0]));
+    RowAccessor accessor = new RowAccessor("value");
+
+    assertEquals("hello", accessor.get(new RowWithSchema(SCHEMA, "a", 1L, "hello")));
+    assertEquals("world", accessor.get(new RowWithSchema(reordered, "world", 1L, "a")));
+    assertEquals("again", accessor.get(new RowWithSchema(SCHEMA, "a", 1L, "again")));
+    assertEquals("world", accessor.get(new RowWithSchema(reordered, "world", 1L, "a")));
+    assertEquals("third", accessor.get(new RowWithSchema(
+        DataTypes.createStructType(Lists.newArrayList(SCHEMA.fields())), "a", 1L, "third")));
+    assertEquals("again", accessor.get(new RowWithSchema(SCHEMA, "a", 1L, "again")));
+  }
+
+  @Test
+  public void testDifferent() {
+    RowAccessor accessor = new RowAccessor("value");
+    Row first = new RowWithSchema(SCHEMA, "a", 1L, "hello");
+
+    assertFalse(accessor.different(first, new RowWithSchema(SCHEMA, "b", 2L, "hello")));
+    assertTrue(accessor.different(first, new RowWithSchema(SCHEMA, "a", 1L, null)));
+    assertTrue(accessor.different(first, RowFactory.create("a", 1L, "world")));
+  }
+
+  @Test
+  public void testCompareTimestamp() {
+    RowAccessor accessor = new RowAccessor("ts");
+    Row first = new RowWithSchema(SCHEMA, "a", 1L, "hello");
+    Row second = new RowWithSchema(SCHEMA, "a", 2L, "hello");
+
+    assertTrue(accessor.before(first, second));
+    assertTrue(accessor.after(second, first));
+    assertTrue(accessor.simultaneous(first, first));
+  }
+
+  @Test
+  (expected = RuntimeException.class)
+  public void testMissingField() {
+    new RowAccessor("missing").get(new RowWithSchema(SCHEMA, "a", 1L, "hello"));
+  }
+
+}
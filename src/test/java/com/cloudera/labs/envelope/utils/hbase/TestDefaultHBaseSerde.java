@@ -20,6 +20,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +35,8 @@ import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter.RowRange;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.spark.sql.Row;
@@ -49,6 +52,8 @@ import com.cloudera.labs.envelope.utils.ConfigUtils;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
 
 public class TestDefaultHBaseSerde {
 
@@ -138,6 +143,48 @@ public class TestDefaultHBaseSerde {
     assertEquals("Should be stop row 'AAPM'", "AAPM", Bytes.toString(scan.getStopRow()));
   }
 
+  @Test
+  public void testSaltedRowKey() {
+    DefaultHBaseSerde saltedSerde = new DefaultHBaseSerde();
+    saltedSerde.configure(config.withValue(HBaseUtils.SALT_BUCKETS_PROPERTY, ConfigValueFactory.fromAnyRef(4)));
+
+    byte[] unsaltedKey = Bytes.add(Bytes.toBytes("GOOG:"), Bytes.toBytes(1000L));
+    Row row = new RowWithSchema(fullSchema, "GOOG", 1000L, "abcd", 100, 10, 5);
+    Put put = saltedSerde.convertToPut(row);
+
+    byte[] saltedKey = put.getRow();
+    assertEquals("Row key should have a one byte salt", unsaltedKey.length + 1, saltedKey.length);
+    assertTrue("Salt should be a bucket", saltedKey[0] >= 0 && saltedKey[0] < 4);
+    assertArrayEquals("Row key should follow the salt", unsaltedKey,
+        Arrays.copyOfRange(saltedKey, 1, saltedKey.length));
+    assertArrayEquals("Gets should be salted", saltedKey,
+        ((Get)saltedSerde.convertToQuery(new RowWithSchema(filterSchema1, "GOOG", 1000L))).getRow());
+
+    List<Cell> cells = Lists.newArrayList(
+        (Cell)new KeyValue(saltedKey, Bytes.toBytes("cf1"), Bytes.toBytes("clordid"), 1000L, Bytes.toBytes("abcd")));
+    Row result = saltedSerde.convertFromResult(Result.create(cells));
+    assertEquals("Symbol should be GOOG", "GOOG", RowUtils.<String>getAs(result, "symbol"));
+    assertEquals("Transacttime should be 1000L", 1000L, RowUtils.<Long>getAs(result, "transacttime").longValue());
+    assertEquals("Clordid should be abcd", "abcd", RowUtils.<String>getAs(result, "clordid"));
+  }
+
+  @Test
+  public void testSaltedScanPrefixKey() {
+    DefaultHBaseSerde saltedSerde = new DefaultHBaseSerde();
+    saltedSerde.configure(config.withValue(HBaseUtils.SALT_BUCKETS_PROPERTY, ConfigValueFactory.fromAnyRef(4)));
+
+    Scan scan = (Scan)saltedSerde.convertToQuery(new RowWithSchema(filterSchemaPrefix, "AAPL"));
+    List<RowRange> ranges = ((MultiRowRangeFilter)scan.getFilter()).getRowRanges();
+
+    assertEquals("Should scan every salt bucket", 4, ranges.size());
+    for (int bucket = 0; bucket < 4; bucket++) {
+      assertArrayEquals(Bytes.add(new byte[] {(byte)bucket}, Bytes.toBytes("AAPL")), ranges.get(bucket).getStartRow());
+      assertArrayEquals(Bytes.add(new byte[] {(byte)bucket}, Bytes.toBytes("AAPM")), ranges.get(bucket).getStopRow());
+    }
+    assertArrayEquals(ranges.get(0).getStartRow(), scan.getStartRow());
+    assertArrayEquals(ranges.get(3).getStopRow(), scan.getStopRow());
+  }
+
   @Test
   public void testConvertFromResult() {
     byte[] rowKey = Bytes.add(Bytes.toBytes("GOOG:"), Bytes.toBytes(1000L));
@@ -163,6 +210,46 @@ public class TestDefaultHBaseSerde {
     assertEquals("Cumqty should be 5", 5, RowUtils.<Integer>getAs(row, "cumqty").intValue());
   }
 
+  @Test
+  public void testConvertFromResultTypes() {
+    DefaultHBaseSerde typesSerde = new DefaultHBaseSerde();
+    typesSerde.configure(ConfigFactory.parseString(
+        "table.name = test\n" +
+        "mapping.rowkey = [id, flag]\n" +
+        "mapping.columns {\n" +
+        "  id { cf = rowkey, col = id, type = int }\n" +
+        "  flag { cf = rowkey, col = flag, type = boolean }\n" +
+        "  price { cf = cf1, col = price, type = double }\n" +
+        "  rate { cf = cf1, col = rate, type = float }\n" +
+        "  active { cf = cf2, col = active, type = boolean }\n" +
+        "}"));
+
+    StructType typesSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.IntegerType, false),
+        DataTypes.createStructField("flag", DataTypes.BooleanType, false),
+        DataTypes.createStructField("price", DataTypes.DoubleType, true),
+        DataTypes.createStructField("rate", DataTypes.FloatType, true),
+        DataTypes.createStructField("active", DataTypes.BooleanType, true)));
+    Put put = typesSerde.convertToPut(new RowWithSchema(typesSchema, 7, true, 1.5d, 2.5f, true));
+
+    // Cells backed by shared arrays have non-zero value offsets
+    List<Cell> cells = Lists.newArrayList();
+    for (List<Cell> familyCells : put.getFamilyCellMap().values()) {
+      for (Cell cell : familyCells) {
+        cells.add(new KeyValue(CellUtil.cloneRow(cell), CellUtil.cloneFamily(cell),
+            CellUtil.cloneQualifier(cell), 1000L, CellUtil.cloneValue(cell)));
+      }
+    }
+    cells.add(new KeyValue(put.getRow(), Bytes.toBytes("cf1"), Bytes.toBytes("unmapped"), 1000L, Bytes.toBytes(1)));
+    Row row = typesSerde.convertFromResult(Result.create(cells));
+
+    assertEquals(7, RowUtils.<Integer>getAs(row, "id").intValue());
+    assertEquals(true, RowUtils.<Boolean>getAs(row, "flag"));
+    assertEquals(1.5d, RowUtils.<Double>getAs(row, "price"), 0);
+    assertEquals(2.5f, RowUtils.<Float>getAs(row, "rate"), 0);
+    assertEquals(true, RowUtils.<Boolean>getAs(row, "active"));
+  }
+
   @Test
   public void testConvertFromResults() {
     byte[] rowKey = Bytes.add(Bytes.toBytes("GOOG:"), Bytes.toBytes(1000L));
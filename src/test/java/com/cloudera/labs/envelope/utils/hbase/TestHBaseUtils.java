@@ -40,6 +40,7 @@ import org.spark_project.guava.collect.Lists;
 import com.cloudera.labs.envelope.utils.ConfigUtils;
 import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
 
 public class TestHBaseUtils {
 
@@ -185,6 +186,22 @@ public class TestHBaseUtils {
     assertEquals(100, batchSize);
   }
   
+  @Test
+  public void testSaltSplitKeysFor() {
+    Config config = ConfigUtils.configFromResource("/hbase/hbase-output.conf").getConfig("output");
+    assertEquals(0, HBaseUtils.saltSplitKeysFor(config).length);
+
+    config = config.withValue(HBaseUtils.SALT_BUCKETS_PROPERTY, ConfigValueFactory.fromAnyRef(4));
+    byte[][] splitKeys = HBaseUtils.saltSplitKeysFor(config);
+    assertEquals(3, splitKeys.length);
+    assertArrayEquals(new byte[] {1}, splitKeys[0]);
+    assertArrayEquals(new byte[] {2}, splitKeys[1]);
+    assertArrayEquals(new byte[] {3}, splitKeys[2]);
+
+    assertFalse(HBaseUtils.validateConfig(config.withValue(HBaseUtils.SALT_BUCKETS_PROPERTY,
+        ConfigValueFactory.fromAnyRef(257))));
+  }
+
   @Test
   public void testMergePrefixScans() throws IOException {
     List<Scan> scans = Lists.newArrayList();
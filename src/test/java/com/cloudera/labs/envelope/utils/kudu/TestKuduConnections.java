@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.kudu.client.AsyncKuduSession;
+import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.LocatedTablet;
+import org.apache.kudu.client.SessionConfiguration.FlushMode;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.Lists;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.integration.junit4.JMockit;
+
+@RunWith(JMockit.class)
+public class TestKuduConnections {
+
+  @Test
+  public void testConnectionPerMasterAddresses() {
+    KuduConnection connection = KuduConnections.getConnection("master1:7051");
+
+    assertSame(connection, KuduConnections.getConnection("master1:7051"));
+    assertNotSame(connection, KuduConnections.getConnection("master2:7051"));
+  }
+
+  @Test
+  public void testSessionPoolPerTable() throws Exception {
+    final KuduConnection connection = KuduConnections.getConnection("master1:7051");
+    KuduSessionPool pool = connection.getSessionPool("table");
+
+    assertSame(pool, connection.getSessionPool("table"));
+    assertNotSame(pool, connection.getSessionPool("other"));
+
+    final AtomicReference<KuduSessionPool> otherThreadPool = new AtomicReference<>();
+    Thread otherThread = new Thread() {
+      @Override
+      public void run() {
+        otherThreadPool.set(connection.getSessionPool("table"));
+      }
+    };
+    otherThread.start();
+    otherThread.join();
+
+    assertSame(pool, otherThreadPool.get());
+  }
+
+  @Test
+  public void testSessionPoolReusesIdleSessions() throws Exception {
+    KuduSessionPool pool = KuduConnections.getConnection("master1:7051").getSessionPool("reused");
+
+    AsyncKuduSession session1 = pool.take();
+    AsyncKuduSession session2 = pool.take();
+    assertEquals(FlushMode.MANUAL_FLUSH, session1.getFlushMode());
+    assertNotSame(session1, session2);
+
+    pool.release(session1);
+    assertEquals(1, pool.getIdleCount());
+    assertSame(session1, pool.take());
+    pool.release(session1);
+    pool.release(session2);
+
+    pool.close();
+    assertEquals(0, pool.getIdleCount());
+    assertTrue(session1.isClosed());
+    assertTrue(session2.isClosed());
+  }
+
+  @Test
+  public void testTabletLocationsCached(final @Mocked KuduTable table, final @Mocked LocatedTablet tablet)
+      throws Exception
+  {
+    final List<LocatedTablet> tablets = Lists.newArrayList(tablet);
+
+    new Expectations() {{
+      table.getName(); result = "table";
+      // Retrieved once, and not again for an immediate refresh
+      table.getTabletsLocations(anyLong); result = tablets; times = 1;
+    }};
+
+    KuduConnection connection = KuduConnections.getConnection("master3:7051");
+
+    assertSame(tablets, connection.getTabletLocations(table));
+    assertSame(tablets, connection.getTabletLocations(table));
+    assertSame(tablets, connection.refreshTabletLocations(table));
+  }
+
+}
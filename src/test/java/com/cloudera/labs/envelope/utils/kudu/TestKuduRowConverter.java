@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils.kudu;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+
+import org.apache.kudu.ColumnSchema.ColumnSchemaBuilder;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestKuduRowConverter {
+
+  private static final Schema KUDU_SCHEMA = new Schema(Lists.newArrayList(
+      new ColumnSchemaBuilder("key", Type.STRING).key(true).build(),
+      new ColumnSchemaBuilder("tiny", Type.INT8).nullable(true).build(),
+      new ColumnSchemaBuilder("small", Type.INT16).nullable(true).build(),
+      new ColumnSchemaBuilder("ts", Type.UNIXTIME_MICROS).nullable(true).build(),
+      new ColumnSchemaBuilder("bytes", Type.BINARY).nullable(true).build(),
+      new ColumnSchemaBuilder("amount", Type.DOUBLE).nullable(true).build()));
+
+  @Test
+  public void testSchema() {
+    StructType schema = new KuduRowConverter(KUDU_SCHEMA).getSchema();
+
+    assertEquals(DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, true),
+        DataTypes.createStructField("tiny", DataTypes.ByteType, true),
+        DataTypes.createStructField("small", DataTypes.ShortType, true),
+        DataTypes.createStructField("ts", DataTypes.TimestampType, true),
+        DataTypes.createStructField("bytes", DataTypes.BinaryType, true),
+        DataTypes.createStructField("amount", DataTypes.DoubleType, true))), schema);
+  }
+
+  @Test
+  public void testWriteByOrdinal() {
+    // The fields are in a different order to the columns, and not all columns are written
+    StructType rowSchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        DataTypes.createStructField("amount", DataTypes.DoubleType, true),
+        DataTypes.createStructField("ts", DataTypes.LongType, true),
+        DataTypes.createStructField("small", DataTypes.ShortType, true),
+        DataTypes.createStructField("key", DataTypes.StringType, true),
+        DataTypes.createStructField("bytes", DataTypes.BinaryType, true),
+        DataTypes.createStructField("tiny", DataTypes.ByteType, true)));
+    Row row = new RowWithSchema(rowSchema, 1.5, 1000000L, (short)2, "a", new byte[] {1}, null);
+
+    KuduRowConverter converter = new KuduRowConverter(KUDU_SCHEMA);
+    PartialRow kuduRow = KUDU_SCHEMA.newPartialRow();
+    converter.writerFor(rowSchema).write(row, kuduRow);
+
+    PartialRow expected = KUDU_SCHEMA.newPartialRow();
+    expected.addString("key", "a");
+    expected.addShort("small", (short)2);
+    expected.addLong("ts", 1000000L);
+    expected.addBinary("bytes", new byte[] {1});
+    expected.addDouble("amount", 1.5);
+
+    assertEquals(expected.toString(), kuduRow.toString());
+  }
+
+  @Test
+  public void testWriteTimestamp() {
+    StructType rowSchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, true),
+        DataTypes.createStructField("ts", DataTypes.TimestampType, true)));
+    Timestamp timestamp = new Timestamp(1500000000123L);
+    timestamp.setNanos(123456000);
+    Row row = new RowWithSchema(rowSchema, "a", timestamp);
+
+    PartialRow kuduRow = KUDU_SCHEMA.newPartialRow();
+    new KuduRowConverter(KUDU_SCHEMA).writerFor(rowSchema).write(row, kuduRow);
+
+    PartialRow expected = KUDU_SCHEMA.newPartialRow();
+    expected.addString("key", "a");
+    expected.addLong("ts", 1500000000123456L);
+
+    assertEquals(expected.toString(), kuduRow.toString());
+  }
+
+  @Test
+  public void testTimestampMicros() {
+    for (long micros : new long[] {0L, 1L, 1500000000123456L, -1L, -1500000000123456L}) {
+      Timestamp timestamp = KuduRowConverter.timestampFor(micros);
+
+      assertEquals(micros, KuduRowConverter.microsFor(timestamp));
+    }
+
+    assertEquals(new Timestamp(-1L), KuduRowConverter.timestampFor(-1000L));
+  }
+
+}